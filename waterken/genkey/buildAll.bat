@@ -7,6 +7,8 @@ cd ..\network
 CALL build.bat
 cd ..\log
 CALL build.bat
+cd ..\k2v
+CALL build.bat
 cd ..\persistence
 CALL build.bat
 cd ..\syntax
@@ -4,6 +4,7 @@
 (cd ../ref_send/; ./build.sh $@)
 (cd ../network/; ./build.sh $@)
 (cd ../log/; ./build.sh $@)
+(cd ../k2v/; ./build.sh $@)
 (cd ../persistence/; ./build.sh $@)
 (cd ../syntax/; ./build.sh $@)
 (cd ../remote/; ./build.sh $@)
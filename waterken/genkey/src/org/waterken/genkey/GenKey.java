@@ -38,7 +38,7 @@ import org.waterken.remote.http.HTTP;
 import org.waterken.remote.http.VatInitializer;
 import org.waterken.server.Settings;
 import org.waterken.syntax.Exporter;
-import org.waterken.thread.Loop;
+import org.waterken.thread.Pool;
 import org.waterken.uri.Header;
 import org.waterken.uri.URI;
 
@@ -279,7 +279,7 @@ GenKey {
                         System.out.println("https://" + hostname + port + "/");
                         
                         // TODO: _.destruct.apply(null);
-                        Loop.pool.shutdown();
+                        Pool.shutdown();
                         
                         return null;
                     }
@@ -0,0 +1,9 @@
+@echo off
+echo 'Building k2v project...'
+mkdir bin
+javac -encoding ISO-8859-1 -d bin ^
+  src\org\k2v\*.java ^
+  src\org\k2v\boxcar\*.java ^
+  src\org\k2v\gentrie\*.java ^
+  src\org\k2v\test\*.java ^
+  src\org\k2v\trie\*.java
@@ -3,4 +3,4 @@
 echo 'Building k2v project...'
 rm -rf bin/
 mkdir -p bin
-javac -d bin/ `find src/ -name '*.java'` $@
+javac -encoding ISO-8859-1 -d bin/ `find src/ -name '*.java'` $@
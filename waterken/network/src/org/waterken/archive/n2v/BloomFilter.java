@@ -0,0 +1,148 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link N2V} Bloom filter block.
+ * <p>
+ * The block is a count of hash functions, followed by the filter bits. Each
+ * name is hashed with a 64 bit FNV-1a hash of its UTF-8 encoding. The two
+ * halves of that hash are combined to produce each of the bit indices.
+ * </p>
+ */
+/* package */ final class
+BloomFilter {
+    private BloomFilter() {}
+    
+    /**
+     * number of filter bits per entry
+     */
+    static private final int bitsPerEntry = 10;
+    
+    /**
+     * number of bits set per entry
+     */
+    static private final int hashCount = 7;
+    
+    static private final long offsetBasis = 0xCBF29CE484222325L;
+    static private final long prime = 0x100000001B3L;
+    
+    /**
+     * Hashes a name.
+     * @param name  UTF-8 encoded name
+     * @return name's hash
+     */
+    static long
+    hash(final byte[] name) { return hash(name, name.length); }
+    
+    /**
+     * Hashes a name.
+     * @param name      UTF-8 encoded name
+     * @param length    number of bytes in <code>name</code>
+     * @return name's hash
+     */
+    static long
+    hash(final byte[] name, final int length) {
+        long r = offsetBasis;
+        for (int i = 0; i != length; ++i) {
+            r ^= 0xFF & name[i];
+            r *= prime;
+        }
+        return r;
+    }
+    
+    /**
+     * Hashes a null terminated name.
+     * @param in    UTF-8 encoded name, followed by a null byte
+     * @return name's hash
+     * @throws IOException  any I/O problem
+     */
+    static long
+    hash(final InputStream in) throws IOException {
+        long r = offsetBasis;
+        for (int b = in.read(); 0 != b; b = in.read()) {
+            if (-1 == b) { throw new EOFException(); }
+            r ^= b;
+            r *= prime;
+        }
+        return r;
+    }
+    
+    /**
+     * Creates a filter block.
+     * @param hashes    hash of each name
+     * @param count     number of hashes
+     * @return filter block
+     */
+    static byte[]
+    make(final long[] hashes, final int count) {
+        final byte[] r = allocate(count);
+        for (int i = 0; i != count; ++i) { add(r, hashes[i]); }
+        return r;
+    }
+    
+    /**
+     * Creates an empty filter block.
+     * @param count number of names to be {@linkplain #add added}
+     * @return filter block
+     */
+    static byte[]
+    allocate(final int count) {
+        final long bits = Math.max(Byte.SIZE, (long)count * bitsPerEntry);
+        if (bits / Byte.SIZE >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException();
+        }
+        final byte[] r = new byte[1 + (int)((bits + Byte.SIZE - 1)/Byte.SIZE)];
+        r[0] = hashCount;
+        return r;
+    }
+    
+    /**
+     * Adds a name to a filter block.
+     * @param filter    filter block
+     * @param hash      {@linkplain #hash hash} of name
+     */
+    static void
+    add(final byte[] filter, final long hash) {
+        final long m = (filter.length - 1) * (long)Byte.SIZE;
+        final long h1 = hash >>> Integer.SIZE;
+        final long h2 = hash & 0xFFFFFFFFL;
+        for (int k = 0; k != hashCount; ++k) {
+            final long bit = ((h1 + k * h2) & Long.MAX_VALUE) % m;
+            filter[1 + (int)(bit / Byte.SIZE)] |= 1 << (int)(bit % Byte.SIZE);
+        }
+    }
+    
+    /**
+     * Might a filter block contain a name?
+     * @param data      archive
+     * @param address   address of filter block
+     * @param length    length of filter block
+     * @param hash      {@linkplain #hash hash} of name
+     * @return <code>false</code> if the name is not in the archive, else
+     *         <code>true</code>
+     * @throws IOException  any I/O problem
+     */
+    static boolean
+    test(final Cursor data, final long address, final long length,
+         final long hash) throws IOException {
+        final long m = (length - 1) * Byte.SIZE;
+        if (m <= 0) { return true; }
+        data.jump(address);
+        final int k = data.read();
+        final long h1 = hash >>> Integer.SIZE;
+        final long h2 = hash & 0xFFFFFFFFL;
+        for (int i = 0; i < k; ++i) {
+            final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % m;
+            data.jump(address + 1 + bit / Byte.SIZE);
+            if (0 == (data.read() & (1 << (int)(bit % Byte.SIZE)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -6,151 +6,109 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 
 /**
- * A random access file cursor.
+ * A random access archive cursor.
  */
-/* package */ final class
+/* package */ abstract class
 Cursor extends InputStream {
     
-    private final boolean top;
-    private final Cursor[] current;
-    private final RandomAccessFile main;
-    
-    private       long saved;   // saved position
-    private       long marked;  // marked position
-    
-    private
-    Cursor(final Cursor[] current, final RandomAccessFile main,
-           final long saved, final long marked) {
-        top = false;
-        this.current = current;
-        this.main = main;
-        
-        this.saved = saved;
-        this.marked = marked;
-    }
-    
-    private
-    Cursor(final RandomAccessFile main) {
-        top = true;
-        this.current = new Cursor[] { this };   
-        this.main = main;
-        
-        saved = -1;
-        marked = -1;
-    }
-    
-    public
-    Cursor(final File file) throws IOException {
-        this(new RandomAccessFile(file, "r"));
-    }
-    
-    private void
-    restore() throws IOException {
-        if (this != current[0]) {
-            current[0].saved = main.getFilePointer();
-            current[0] = this;
-            main.seek(saved);
-            saved = -1;
-        }
-    }
-    
-    // java.io.InputStream interface
-
-    public int
-    read() throws IOException { restore(); return main.read(); }
-
-    public int
-    read(final byte[] b, final int off, final int len) throws IOException {
-        restore(); return main.read(b, off, len);
-    }
-
-    public long
-    skip(final long n) throws IOException {
-        restore(); return main.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
-    }
-
-    public int
-    available() { return 0; }
-
-    public void
-    close() throws IOException { if (top) { main.close(); } }
-
-    public boolean
-    markSupported() { return true; }
-
-    public void
-    mark(final int readlimit) {
-        if (this == current[0]) {
-            try {
-                marked = main.getFilePointer();
-            } catch (final IOException e) {
-                marked = -1;
+    /**
+     * Opens a cursor on a file.
+     * <p>
+     * A file that fits in a single mapped buffer is mapped into memory, so
+     * that a search of its index only compares bytes in memory. A larger file
+     * is read through a {@link RandomAccessFile}, kept open by the
+     * {@linkplain FileCache#shared shared file cache}.
+     * </p>
+     * @param file      file to open
+     * @param mapped    Map the file into memory, if possible?
+     * @throws IOException  any I/O problem
+     */
+    static Cursor
+    open(final File file, final boolean mapped) throws IOException {
+        final RandomAccessFile main = new RandomAccessFile(file, "r");
+        try {
+            if (mapped && main.length() <= Integer.MAX_VALUE) {
+                // the mapping remains valid after the file is closed
+                final FileChannel channel = main.getChannel();
+                final Cursor r = new MappedCursor(channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                main.close();
+                return r;
             }
-        } else {
-            marked = saved;
-        }
-    }
-
-    public void
-    reset() throws IOException {
-        if (-1 == marked) { throw new IOException(); }
-        if (this == current[0]) {
-            main.seek(marked);
-        } else {
-            saved = marked;
+            return new FileCursor(FileCache.shared.add(file, main));
+        } catch (final IOException e) {
+            main.close();
+            throw e;
         }
     }
     
     // org.waterken.archive.n2v.Cursor interface
     
-    public long
-    getLength() throws IOException { return main.length(); }
+    /**
+     * Gets the length of the archive.
+     */
+    public abstract long
+    getLength() throws IOException;
     
-    public long
-    getPosition() throws IOException {
-        return this == current[0] ? main.getFilePointer() : saved;
-    }
+    /**
+     * Gets the current position.
+     */
+    public abstract long
+    getPosition() throws IOException;
     
+    /**
+     * Copies a range of bytes.
+     * @param off   position of the first byte
+     * @param len   number of bytes to copy
+     * @param out   output channel
+     * @throws IOException  any I/O problem
+     */
+    public abstract void
+    writeTo(long off, long len, WritableByteChannel out) throws IOException;
+    
+    /**
+     * Moves to a position.
+     * @param address   new position
+     * @throws IOException  any I/O problem
+     */
+    public abstract void
+    jump(long address) throws IOException;
+    
+    /**
+     * Keeps the archive file open, until {@linkplain #unpin unpinned}.
+     * <p>
+     * An archive operation pins the file for the whole of its walk, so the
+     * file is acquired from the {@linkplain FileCache#shared file cache} once
+     * per operation, instead of once per read. Pins nest, and are shared by
+     * all the cursors forked from the same archive.
+     * </p>
+     * @throws IOException  any I/O problem
+     */
     public void
-    writeTo(final long off, final long len,
-            final WritableByteChannel out) throws IOException {
-        if (len != main.getChannel().transferTo(off, len, out)) {
-            throw new IOException();
-        }
-    }
+    pin() throws IOException {}
     
+    /**
+     * Removes a {@linkplain #pin pin}.
+     */
     public void
-    jump(final long address) throws IOException {
-        if (this == current[0]) {
-            main.seek(address);
-        } else {
-            saved = address;
-        }
-    }
+    unpin() {}
     
-    public Cursor
-    fork() throws IOException {
-        if (this == current[0]) {
-            saved = main.getFilePointer();
-            return current[0] = new Cursor(current, main, -1, marked);
-        }
-        return new Cursor(current, main, saved, marked);
-    }
+    /**
+     * Creates another cursor at the same position, on the same archive.
+     * @throws IOException  any I/O problem
+     */
+    public abstract Cursor
+    fork() throws IOException;
     
-    public long
-    readFixedLong(final int size) throws IOException {
-        restore();
-        return Byte.SIZE / Byte.SIZE == size
-            ? main.readByte()
-        : Short.SIZE / Byte.SIZE == size
-            ? main.readShort()
-        : Integer.SIZE / Byte.SIZE == size
-            ? main.readInt()
-        : Long.SIZE / Byte.SIZE == size
-            ? main.readLong()
-        : 1 / 0;
-    }
+    /**
+     * Reads a big-endian signed number.
+     * @param size  number of bytes to read: 1, 2, 4 or 8
+     * @throws IOException  any I/O problem
+     */
+    public abstract long
+    readFixedLong(int size) throws IOException;
 }
@@ -0,0 +1,108 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The comment on a deflated value in an {@link N2V} archive.
+ * <p>
+ * A value stored as is has an empty comment, so archives written before
+ * values could be deflated are read as before.
+ * </p>
+ * <pre>
+ * comment ::= method rawLength dictionary
+ * </pre>
+ */
+/* package */ final class
+Deflated {
+
+    /**
+     * method number for a raw deflate stream with a preset dictionary
+     */
+    static private final int method = 1;
+
+    /**
+     * length of the inflated value
+     */
+    final long rawLength;
+
+    /**
+     * number of the dictionary in the archive's dictionary block, starting
+     * from 1, or 0 if none
+     */
+    final int dictionary;
+
+    Deflated(final long rawLength, final int dictionary) {
+        this.rawLength = rawLength;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Reads the rest of a summary entry.
+     * @param meta  summary, positioned after the value length
+     * @return comment on a deflated value, or <code>null</code> if stored as
+     *         is
+     * @throws IOException  any I/O problem
+     */
+    static protected Deflated
+    read(final InputStream meta) throws IOException {
+        final long commentLength = N2V.readExtensionLong(meta);
+        if (0 == commentLength) { return null; }
+        final CountedInput in = new CountedInput(meta);
+        if (method != N2V.readExtensionLong(in)) { throw new IOException(); }
+        final long rawLength = N2V.readExtensionLong(in);
+        final long dictionary = N2V.readExtensionLong(in);
+        if (dictionary > Integer.MAX_VALUE) { throw new IOException(); }
+        if (in.count > commentLength) { throw new IOException(); }
+        N2V.skip(meta, commentLength - in.count);
+        return new Deflated(rawLength, (int)dictionary);
+    }
+
+    /**
+     * Writes the rest of a summary entry.
+     * @param meta          summary
+     * @param valueLength   length of the stored value
+     * @param packing       comment on a deflated value, or <code>null</code>
+     *                      if stored as is
+     * @throws IOException  any I/O problem
+     */
+    static protected void
+    write(final OutputStream meta, final long valueLength,
+          final Deflated packing) throws IOException {
+        N2V.writeExtensionLong(meta, valueLength);
+        if (null == packing) {
+            N2V.writeExtensionLong(meta, 0);
+            return;
+        }
+        final ByteArrayOutputStream comment = new ByteArrayOutputStream(16);
+        N2V.writeExtensionLong(comment, method);
+        N2V.writeExtensionLong(comment, packing.rawLength);
+        N2V.writeExtensionLong(comment, packing.dictionary);
+        N2V.writeExtensionLong(meta, comment.size());
+        comment.writeTo(meta);
+    }
+
+    /**
+     * An input stream that counts the bytes read.
+     */
+    static private final class
+    CountedInput extends InputStream {
+        private final InputStream in;
+        long count = 0;
+
+        CountedInput(final InputStream in) {
+            this.in = in;
+        }
+
+        public int
+        read() throws IOException {
+            final int r = in.read();
+            if (-1 != r) { count += 1; }
+            return r;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A preset dictionary for deflating the values of an {@link N2V} archive.
+ * <p>
+ * A small value has little repetition of its own to compress, but a lot in
+ * common with the other values in the archive, such as the class and field
+ * names in a serialized object. Each value is deflated on its own, so it can
+ * still be read on its own, but against a dictionary of byte sequences that
+ * are common to many values.
+ * </p>
+ */
+public final class
+Dictionary {
+
+    /**
+     * dictionary content, with the most useful sequences at the end
+     */
+    private final byte[] bytes;
+
+    /**
+     * Constructs an instance.
+     * @param bytes {@link #bytes}
+     */
+    Dictionary(final byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * empty dictionary
+     */
+    static protected final Dictionary none = new Dictionary(new byte[0]);
+
+    public boolean
+    equals(final Object o) {
+        return o instanceof Dictionary &&
+               Arrays.equals(bytes, ((Dictionary)o).bytes);
+    }
+
+    public int
+    hashCode() { return Arrays.hashCode(bytes); }
+
+    // org.waterken.archive.n2v.Dictionary interface
+
+    /**
+     * length of the sequences counted in the training samples
+     */
+    static private final int gram = 6;
+
+    /**
+     * maximum length of a sequence copied from a training sample
+     */
+    static private final int segment = 96;
+
+    /**
+     * A candidate sequence for the dictionary.
+     */
+    static private final class
+    Segment {
+        final byte[] sample;
+        final int off;
+        final int len;
+        final long score;   // sum of the counts of its grams
+
+        Segment(final byte[] sample, final int off, final int len,
+                final long score) {
+            this.sample = sample;
+            this.off = off;
+            this.len = len;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Trains a dictionary.
+     * <p>
+     * The number of samples that contain each short byte sequence is
+     * counted. The sample segments with the most commonly shared sequences
+     * are then put in the dictionary, skipping sequences that are already in
+     * it.
+     * </p>
+     * @param samples   sample values
+     * @param size      maximum dictionary length
+     * @return trained dictionary, or <code>null</code> if the samples have
+     *         nothing in common
+     */
+    static public Dictionary
+    train(final Iterable<byte[]> samples, final int size) {
+        // count the samples that contain each sequence
+        final HashMap<Long,int[]> counts = new HashMap<Long,int[]>();
+        final HashSet<Long> seen = new HashSet<Long>();
+        for (final byte[] sample : samples) {
+            seen.clear();
+            for (int i = 0; i + gram <= sample.length; ++i) {
+                final Long k = key(sample, i);
+                if (seen.add(k)) {
+                    final int[] n = counts.get(k);
+                    if (null == n) {
+                        counts.put(k, new int[] { 1 });
+                    } else {
+                        n[0] += 1;
+                    }
+                }
+            }
+        }
+
+        // score each segment of the samples by its shared sequences
+        final ArrayList<Segment> candidates = new ArrayList<Segment>();
+        for (final byte[] sample : samples) {
+            for (int off = 0; off < sample.length; off += segment) {
+                final int len = Math.min(segment, sample.length - off);
+                final long score = score(counts, null, sample, off, len);
+                if (0 != score) {
+                    candidates.add(new Segment(sample, off, len, score));
+                }
+            }
+        }
+        Collections.sort(candidates, new Comparator<Segment>() {
+            public int
+            compare(final Segment a, final Segment b) {
+                return a.score > b.score ? -1 : a.score < b.score ? 1 : 0;
+            }
+        });
+
+        // pick the best segments, skipping those mostly already picked
+        final HashSet<Long> picked = new HashSet<Long>();
+        final ArrayList<Segment> chosen = new ArrayList<Segment>();
+        int length = 0;
+        for (final Segment x : candidates) {
+            if (length + x.len > size) { continue; }
+            final long score = score(counts, picked, x.sample, x.off, x.len);
+            if (2 * score < x.score) { continue; }
+            for (int i = x.off; i + gram <= x.off + x.len; ++i) {
+                picked.add(key(x.sample, i));
+            }
+            chosen.add(x);
+            length += x.len;
+        }
+        if (0 == length) { return null; }
+
+        // put the best segments last, where they are cheapest to refer to
+        final byte[] bytes = new byte[length];
+        int at = length;
+        for (final Segment x : chosen) {
+            at -= x.len;
+            System.arraycopy(x.sample, x.off, bytes, at, x.len);
+        }
+        return new Dictionary(bytes);
+    }
+
+    /**
+     * Scores a segment of a sample.
+     * @param counts    [ sequence => number of samples that contain it ]
+     * @param picked    sequences to skip, or <code>null</code> if none
+     * @param sample    sample
+     * @param off       offset of the segment
+     * @param len       length of the segment
+     * @return sum of the counts of the shared sequences in the segment
+     */
+    static private long
+    score(final HashMap<Long,int[]> counts, final HashSet<Long> picked,
+          final byte[] sample, final int off, final int len) {
+        long r = 0;
+        for (int i = off; i + gram <= off + len; ++i) {
+            final Long k = key(sample, i);
+            if (null != picked && picked.contains(k)) { continue; }
+            final int n = counts.get(k)[0];
+            if (1 != n) { r += n; }
+        }
+        return r;
+    }
+
+    static private Long
+    key(final byte[] sample, final int off) {
+        long r = 0;
+        for (int i = off; i != off + gram; ++i) {
+            r = (r << Byte.SIZE) | (sample[i] & 0xFF);
+        }
+        return r;
+    }
+
+    /**
+     * Gets the length of the dictionary.
+     */
+    protected int
+    getLength() { return bytes.length; }
+
+    /**
+     * Gets the dictionary content.
+     */
+    protected byte[]
+    getBytes() { return bytes.clone(); }
+
+    /**
+     * Deflates a value.
+     * @param deflater  deflater, without the zlib wrapper
+     * @param value     value
+     * @return deflated value, or <code>null</code> if not shorter
+     */
+    protected byte[]
+    deflate(final Deflater deflater, final byte[] value) {
+        deflater.reset();
+        if (0 != bytes.length) { deflater.setDictionary(bytes); }
+        deflater.setInput(value);
+        deflater.finish();
+        final byte[] r = new byte[value.length];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (r.length == n) { return null; }
+            n += deflater.deflate(r, n, r.length - n);
+        }
+        if (n == r.length) { return null; }
+        final byte[] deflated = new byte[n];
+        System.arraycopy(r, 0, deflated, 0, n);
+        return deflated;
+    }
+
+    /**
+     * Inflates a value.
+     * @param in        deflated value, which will be closed
+     * @param length    length of the deflated value
+     * @param rawLength length of the inflated value
+     * @return inflated value
+     * @throws IOException  any I/O problem
+     */
+    protected byte[]
+    inflate(final InputStream in, final long length,
+            final long rawLength) throws IOException {
+        if (length > Integer.MAX_VALUE || rawLength > Integer.MAX_VALUE) {
+            throw new IOException();
+        }
+        final byte[] packed = new byte[(int)length];
+        try {
+            for (int n = 0; n != packed.length;) {
+                final int d = in.read(packed, n, packed.length - n);
+                if (-1 == d) { throw new EOFException(); }
+                n += d;
+            }
+        } finally {
+            in.close();
+        }
+        final byte[] r = new byte[(int)rawLength];
+        final Inflater inflater = new Inflater(true);
+        try {
+            if (0 != bytes.length) { inflater.setDictionary(bytes); }
+            inflater.setInput(packed);
+            int n = 0;
+            while (n != r.length) {
+                final int d = inflater.inflate(r, n, r.length - n);
+                if (0 == d && (inflater.finished() || inflater.needsInput())) {
+                    throw new EOFException();
+                }
+                n += d;
+            }
+        } catch (final DataFormatException e) {
+            throw (IOException)new IOException(e.toString()).initCause(e);
+        } finally {
+            inflater.end();
+        }
+        return r;
+    }
+}
@@ -0,0 +1,223 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A process wide cache of the files opened to read archives.
+ * <p>
+ * An archive that is not {@linkplain MappedCursor mapped} into memory, which
+ * is the default, is read through a {@link RandomAccessFile}, which holds a
+ * file descriptor for as long as it is open. Rather than each archive holding
+ * on to its own file, a cursor acquires the file from this cache for each
+ * archive operation, such as a lookup, or a merge, and releases it when done.
+ * At most {@linkplain #getLimit limit} files are kept open: the least
+ * recently used file not being read is closed to make room for another, and
+ * opened again, at the same position, when next acquired.
+ * </p>
+ */
+public final class
+FileCache {
+
+    /**
+     * shared instance, used by all archive cursors
+     */
+    static public final FileCache shared = new FileCache(256);
+
+    /**
+     * A file opened through the cache.
+     */
+    static final class
+    Handle {
+        final File file;
+        final long length;          // length of the file when first opened
+        RandomAccessFile main;      // open file, or null if evicted
+        long position;              // file pointer when evicted
+        int readers = 0;            // number of operations in progress
+        boolean closed = false;     // Is the handle closed for good?
+
+        Handle(final File file,
+               final RandomAccessFile main) throws IOException {
+            this.file = file;
+            this.main = main;
+            length = main.length();
+        }
+    }
+
+    private       int limit;            // maximum number of open files
+    private final LinkedHashMap<Handle,Handle> open =   // least recently used
+        new LinkedHashMap<Handle,Handle>(16, 0.75f, true);  // first
+    private       long hits = 0;        // number of acquired open files
+    private       long reopens = 0;     // number of evicted files reopened
+    private       long evictions = 0;   // number of files closed to make room
+
+    /**
+     * Constructs an instance.
+     * @param limit {@linkplain #configure limit}
+     */
+    public
+    FileCache(final int limit) {
+        configure(limit);
+    }
+
+    // org.waterken.archive.n2v.FileCache interface
+
+    /**
+     * Sets the maximum number of open files.
+     * <p>
+     * A smaller limit takes effect as files are released.
+     * </p>
+     * @param limit maximum number of open files, or <code>0</code> for no
+     *              limit
+     */
+    public synchronized void
+    configure(final int limit) {
+        if (limit < 0) { throw new IllegalArgumentException(); }
+
+        this.limit = limit;
+        evict();
+    }
+
+    /**
+     * Gets the maximum number of open files, or <code>0</code> if unlimited.
+     */
+    public synchronized int
+    getLimit() { return limit; }
+
+    /**
+     * Gets the number of open files.
+     */
+    public synchronized int
+    getOpen() { return open.size(); }
+
+    /**
+     * Gets the number of times an open file was acquired.
+     */
+    public synchronized long
+    getHits() { return hits; }
+
+    /**
+     * Gets the number of times a closed file was opened again.
+     */
+    public synchronized long
+    getReopens() { return reopens; }
+
+    /**
+     * Gets the number of files closed to stay within the limit.
+     */
+    public synchronized long
+    getEvictions() { return evictions; }
+
+    /**
+     * Adds an opened file to the cache.
+     * @param file  opened file
+     * @param main  open file
+     * @return handle for acquiring the file
+     * @throws IOException  any I/O problem
+     */
+    synchronized Handle
+    add(final File file, final RandomAccessFile main) throws IOException {
+        final Handle r = new Handle(file, main);
+        open.put(r, r);
+        evict();
+        return r;
+    }
+
+    /**
+     * Acquires a file for reading, opening it again if needed.
+     * <p>
+     * Each acquire must be followed by a {@linkplain #release release}.
+     * </p>
+     * @param handle    file to acquire
+     * @return open file
+     * @throws IOException  any I/O problem
+     */
+    synchronized RandomAccessFile
+    acquire(final Handle handle) throws IOException {
+        if (handle.closed) { throw new IOException(); }
+        if (null != handle.main) {
+            open.get(handle);   // move to the most recently used end
+            hits += 1;
+        } else {
+            final RandomAccessFile main = new RandomAccessFile(handle.file,"r");
+            try {
+                if (handle.length != main.length()) { throw new IOException(); }
+                main.seek(handle.position);
+            } catch (final IOException e) {
+                main.close();
+                throw e;
+            }
+            handle.main = main;
+            open.put(handle, handle);
+            reopens += 1;
+        }
+        handle.readers += 1;
+        evict();
+        return handle.main;
+    }
+
+    /**
+     * Releases an {@linkplain #acquire acquired} file.
+     * @param handle    file to release
+     */
+    synchronized void
+    release(final Handle handle) {
+        handle.readers -= 1;
+        if (handle.closed && 0 == handle.readers) {
+            close(handle.main);
+            handle.main = null;
+        } else {
+            evict();
+        }
+    }
+
+    /**
+     * Closes a file for good.
+     * @param handle    file to close
+     */
+    synchronized void
+    close(final Handle handle) {
+        if (handle.closed) { return; }
+        handle.closed = true;
+        open.remove(handle);
+        if (0 == handle.readers && null != handle.main) {
+            close(handle.main);
+            handle.main = null;
+        }
+    }
+
+    /**
+     * Closes the least recently used files not being read, until within the
+     * limit.
+     */
+    private void
+    evict() {
+        if (0 == limit) { return; }
+        final Iterator<Handle> i = open.keySet().iterator();
+        while (open.size() > limit && i.hasNext()) {
+            final Handle x = i.next();
+            if (0 != x.readers) { continue; }
+            try {
+                x.position = x.main.getFilePointer();
+            } catch (final IOException e) {
+                x.position = 0;
+            }
+            i.remove();
+            close(x.main);
+            x.main = null;
+            evictions += 1;
+        }
+    }
+
+    static private void
+    close(final RandomAccessFile main) {
+        try {
+            main.close();
+        } catch (final IOException e) {}
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright 2009 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A random access file cursor.
+ * <p>
+ * The file is {@linkplain FileCache#acquire acquired} from the
+ * {@linkplain FileCache#shared shared file cache} when {@linkplain #pin
+ * pinned} for an archive operation, and released when the operation is done,
+ * so it may be closed, and opened again, between operations. A read made
+ * while not pinned acquires the file just for that read.
+ * </p>
+ */
+/* package */ final class
+FileCursor extends Cursor {
+    
+    private final boolean top;
+    private final FileCursor[] current;
+    private final FileCache.Handle main;
+    private final RandomAccessFile[] pinned;    // acquired file, or null
+    private final int[] pins;                   // number of pins held
+    
+    private       long saved;   // saved position
+    private       long marked;  // marked position
+    
+    private
+    FileCursor(final FileCursor[] current, final FileCache.Handle main,
+           final RandomAccessFile[] pinned, final int[] pins,
+           final long saved, final long marked) {
+        top = false;
+        this.current = current;
+        this.main = main;
+        this.pinned = pinned;
+        this.pins = pins;
+        
+        this.saved = saved;
+        this.marked = marked;
+    }
+    
+    FileCursor(final FileCache.Handle main) {
+        top = true;
+        this.current = new FileCursor[] { this };   
+        this.main = main;
+        pinned = new RandomAccessFile[] { null };
+        pins = new int[] { 0 };
+        
+        saved = -1;
+        marked = -1;
+    }
+    
+    /**
+     * Pins the file, positioned for this cursor.
+     * @return open file, to be {@linkplain #unpin unpinned}
+     * @throws IOException  any I/O problem
+     */
+    private RandomAccessFile
+    restore() throws IOException {
+        pin();
+        final RandomAccessFile file = pinned[0];
+        try {
+            if (this != current[0]) {
+                current[0].saved = file.getFilePointer();
+                current[0] = this;
+                file.seek(saved);
+                saved = -1;
+            }
+        } catch (final IOException e) {
+            unpin();
+            throw e;
+        }
+        return file;
+    }
+    
+    // java.io.InputStream interface
+
+    public int
+    read() throws IOException {
+        final RandomAccessFile file = restore();
+        try {
+            return file.read();
+        } finally {
+            unpin();
+        }
+    }
+
+    public int
+    read(final byte[] b, final int off, final int len) throws IOException {
+        final RandomAccessFile file = restore();
+        try {
+            return file.read(b, off, len);
+        } finally {
+            unpin();
+        }
+    }
+
+    public long
+    skip(final long n) throws IOException {
+        final RandomAccessFile file = restore();
+        try {
+            return file.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+        } finally {
+            unpin();
+        }
+    }
+
+    public int
+    available() { return 0; }
+
+    public void
+    close() { if (top) { FileCache.shared.close(main); } }
+
+    public boolean
+    markSupported() { return true; }
+
+    public void
+    mark(final int readlimit) {
+        try {
+            marked = getPosition();
+        } catch (final IOException e) {
+            marked = -1;
+        }
+    }
+
+    public void
+    reset() throws IOException {
+        if (-1 == marked) { throw new IOException(); }
+        jump(marked);
+    }
+    
+    // org.waterken.archive.n2v.Cursor interface
+    
+    public long
+    getLength() { return main.length; }
+    
+    public long
+    getPosition() throws IOException {
+        if (this != current[0]) { return saved; }
+        pin();
+        try {
+            return pinned[0].getFilePointer();
+        } finally {
+            unpin();
+        }
+    }
+    
+    public void
+    writeTo(final long off, final long len,
+            final WritableByteChannel out) throws IOException {
+        pin();
+        try {
+            if (len != pinned[0].getChannel().transferTo(off, len, out)) {
+                throw new IOException();
+            }
+        } finally {
+            unpin();
+        }
+    }
+    
+    public void
+    jump(final long address) throws IOException {
+        if (this != current[0]) {
+            saved = address;
+            return;
+        }
+        pin();
+        try {
+            pinned[0].seek(address);
+        } finally {
+            unpin();
+        }
+    }
+    
+    public Cursor
+    fork() throws IOException {
+        if (this == current[0]) {
+            saved = getPosition();
+            return current[0] =
+                new FileCursor(current, main, pinned, pins, -1, marked);
+        }
+        return new FileCursor(current, main, pinned, pins, saved, marked);
+    }
+    
+    public void
+    pin() throws IOException {
+        if (0 == pins[0]) { pinned[0] = FileCache.shared.acquire(main); }
+        pins[0] += 1;
+    }
+    
+    public void
+    unpin() {
+        pins[0] -= 1;
+        if (0 == pins[0]) {
+            pinned[0] = null;
+            FileCache.shared.release(main);
+        }
+    }
+    
+    public long
+    readFixedLong(final int size) throws IOException {
+        final RandomAccessFile file = restore();
+        try {
+            return Byte.SIZE / Byte.SIZE == size
+                ? file.readByte()
+            : Short.SIZE / Byte.SIZE == size
+                ? file.readShort()
+            : Integer.SIZE / Byte.SIZE == size
+                ? file.readInt()
+            : Long.SIZE / Byte.SIZE == size
+                ? file.readLong()
+            : 1 / 0;
+        } finally {
+            unpin();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.Serializable;
+
+import org.joe_e.Powerless;
+import org.joe_e.Struct;
+
+/**
+ * The layout of an {@link N2V} archive file.
+ * <p>
+ * A recorded layout can be used to {@linkplain N2V#open(java.io.File, Layout)
+ * open} an archive without reading its trailer.
+ * </p>
+ */
+public final class
+Layout extends Struct implements Powerless, Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * length of the archive file
+     */
+    public final long length;
+
+    /**
+     * modification time of the archive file
+     */
+    public final long lastModified;
+
+    /**
+     * address of the index
+     */
+    public final long indexAddress;
+
+    /**
+     * address of the summary
+     */
+    public final long summaryAddress;
+
+    /**
+     * address of the Bloom filter block, or <code>-1</code> if none
+     */
+    public final long filterAddress;
+
+    /**
+     * address of the dictionary block, or <code>-1</code> if none
+     */
+    public final long dictionaryAddress;
+
+    /**
+     * number of entries
+     */
+    public final long entryCount;
+
+    /**
+     * lowest entry name, or <code>null</code> if no entries
+     */
+    public final String first;
+
+    /**
+     * highest entry name, or <code>null</code> if no entries
+     */
+    public final String last;
+
+    /**
+     * Constructs an instance.
+     * @param length            {@link #length}
+     * @param lastModified      {@link #lastModified}
+     * @param indexAddress      {@link #indexAddress}
+     * @param summaryAddress    {@link #summaryAddress}
+     * @param filterAddress     {@link #filterAddress}
+     * @param dictionaryAddress {@link #dictionaryAddress}
+     * @param entryCount        {@link #entryCount}
+     * @param first             {@link #first}
+     * @param last              {@link #last}
+     */
+    public
+    Layout(final long length, final long lastModified,
+           final long indexAddress, final long summaryAddress,
+           final long filterAddress, final long dictionaryAddress,
+           final long entryCount, final String first, final String last) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.indexAddress = indexAddress;
+        this.summaryAddress = summaryAddress;
+        this.filterAddress = filterAddress;
+        this.dictionaryAddress = dictionaryAddress;
+        this.entryCount = entryCount;
+        this.first = first;
+        this.last = last;
+    }
+}
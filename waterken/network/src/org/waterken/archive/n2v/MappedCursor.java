@@ -0,0 +1,114 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.archive.n2v;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A memory mapped file cursor.
+ */
+/* package */ final class
+MappedCursor extends Cursor {
+    
+    private final ByteBuffer buffer;    // position is the cursor position
+    private       int marked;           // marked position
+    
+    private
+    MappedCursor(final ByteBuffer buffer, final int marked) {
+        this.buffer = buffer;
+        this.marked = marked;
+    }
+    
+    MappedCursor(final ByteBuffer buffer) {
+        this(buffer, -1);
+    }
+    
+    // java.io.InputStream interface
+
+    public int
+    read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    public int
+    read(final byte[] b, final int off, final int len) {
+        if (0 == len) { return 0; }
+        final int n = Math.min(len, buffer.remaining());
+        if (0 == n) { return -1; }
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    public long
+    skip(final long n) {
+        final int r = (int)Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + r);
+        return r;
+    }
+
+    public int
+    available() { return buffer.remaining(); }
+
+    public void
+    close() {}
+
+    public boolean
+    markSupported() { return true; }
+
+    public void
+    mark(final int readlimit) { marked = buffer.position(); }
+
+    public void
+    reset() throws IOException {
+        if (-1 == marked) { throw new IOException(); }
+        buffer.position(marked);
+    }
+    
+    // org.waterken.archive.n2v.Cursor interface
+    
+    public long
+    getLength() { return buffer.limit(); }
+    
+    public long
+    getPosition() { return buffer.position(); }
+    
+    public void
+    writeTo(final long off, final long len,
+            final WritableByteChannel out) throws IOException {
+        if (off < 0 || len < 0 || off + len > buffer.limit()) {
+            throw new EOFException();
+        }
+        final ByteBuffer chunk = buffer.duplicate();
+        chunk.limit((int)(off + len));
+        chunk.position((int)off);
+        while (chunk.hasRemaining()) { out.write(chunk); }
+    }
+    
+    public void
+    jump(final long address) throws IOException {
+        if (address < 0 || address > buffer.limit()) {
+            throw new EOFException();
+        }
+        buffer.position((int)address);
+    }
+    
+    public Cursor
+    fork() { return new MappedCursor(buffer.duplicate(), marked); }
+    
+    public long
+    readFixedLong(final int size) throws IOException {
+        if (buffer.remaining() < size) { throw new EOFException(); }
+        return Byte.SIZE / Byte.SIZE == size
+            ? buffer.get()
+        : Short.SIZE / Byte.SIZE == size
+            ? buffer.getShort()
+        : Integer.SIZE / Byte.SIZE == size
+            ? buffer.getInt()
+        : Long.SIZE / Byte.SIZE == size
+            ? buffer.getLong()
+        : 1 / 0;
+    }
+}
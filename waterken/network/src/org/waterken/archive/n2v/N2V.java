@@ -7,15 +7,23 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.waterken.archive.Archive;
 import org.waterken.io.bounded.Bounded;
@@ -32,11 +40,25 @@ N2V implements Archive, Serializable {
      */
     static public    final int endMagic = 0x0A4E3256;
     
+    /**
+     * 4 bytes at the end of an N2V archive file with a Bloom filter block
+     */
+    static public    final int filterMagic = 0x0A4E3242;
+    
+    /**
+     * 4 bytes at the end of an N2V archive file with a dictionary block
+     */
+    static public    final int dictionaryMagic = 0x0A4E3244;
+    
     static protected final int magicSize = Integer.SIZE / Byte.SIZE;
 
     protected final String etag;    // corresponding ETag for all entries
-    protected final Cursor data;    // raw archive data
+    private   final File file;      // archive file
+    private   final boolean mapped; // Map the archive into memory?
+    private         Cursor data;    // raw archive data, or null if not opened
     
+    private final long length;
+    private final long lastModified;
     private final int dataOffsetSize;
     private final long summaryAddress;
     private final long summaryLength;
@@ -45,14 +67,29 @@ N2V implements Archive, Serializable {
     private final int indexEntrySize;
     private final long entryCount;
     private final long totalsAddress;
+    private final long filterAddress;   // -1 if no filter block
+    private final long filterLength;
+    private final long dictionaryAddress;   // -1 if no dictionary block
+    private   Dictionary[] dictionaries;    // null if not yet read
+    private       byte[] first;     // lowest name, or null if not known
+    private       byte[] last;      // highest name, or null if not known
     
     /*
-     * archive ::= data summary index indexAddress summaryAddress endMagic
+     * archive ::= data summary index trailer
      * data ::= value*
      * value ::= byte*
      * summary ::= entry*
      * entry ::= name 0 valueLength commentLength commentByte*
      * index ::= (dataOffset summaryOffset)*
+     * trailer ::= indexAddress summaryAddress endMagic
+     *           | filter indexAddress summaryAddress filterAddress filterMagic
+     *           | filter dictionaries
+     *             indexAddress summaryAddress filterAddress dictionaryAddress
+     *             dictionaryMagic
+     * filter ::= hashCount filterByte*
+     * dictionaries ::= count (length dictionaryByte*)*
+     *
+     * A deflated value has a comment, as described by Deflated.
      */
     
     static protected int
@@ -68,41 +105,241 @@ N2V implements Archive, Serializable {
     
     /**
      * Constructs an instance.
-     * @throws IOException  any I/O problem
+     * @param file      archive file
+     * @param mapped    Map the archive into memory, if it is small enough?
+     * @param data      opened archive, or <code>null</code> to open on demand
+     * @param layout    archive layout
      */
     private
-    N2V(final String etag, final Cursor data) throws IOException {
-        this.etag = etag;
+    N2V(final File file, final boolean mapped,
+        final Cursor data, final Layout layout) {
+        this.file = file;
+        this.mapped = mapped;
         this.data = data;
+        etag = '\"' + Long.toHexString(layout.lastModified) + '\"';
         
-        final long length = data.getLength();
-        final int rawOffsetSize = sizeof(length);
-        totalsAddress = length - magicSize - 2 * rawOffsetSize;
-        data.jump(totalsAddress);
-        indexAddress = data.readFixedLong(rawOffsetSize);
-        summaryAddress = data.readFixedLong(rawOffsetSize);
-        if (endMagic!=data.readFixedLong(magicSize)) {throw new EOFException();}
+        length = layout.length;
+        lastModified = layout.lastModified;
+        indexAddress = layout.indexAddress;
+        summaryAddress = layout.summaryAddress;
+        filterAddress = layout.filterAddress;
+        dictionaryAddress = layout.dictionaryAddress;
+        entryCount = layout.entryCount;
+        totalsAddress = length - magicSize - (-1 != dictionaryAddress ? 4 :
+            -1 != filterAddress ? 3 : 2) * sizeof(length);
+        filterLength = -1 == filterAddress ? 0 : (-1 != dictionaryAddress
+            ? dictionaryAddress : totalsAddress) - filterAddress;
         
         dataOffsetSize = sizeof(summaryAddress);
         summaryLength = indexAddress - summaryAddress;
         summaryOffsetSize = sizeof(summaryLength);
         indexEntrySize = summaryOffsetSize + dataOffsetSize;
-        entryCount = (totalsAddress - indexAddress) / indexEntrySize;
+        
+        if (null != layout.first) {
+            try {
+                first = layout.first.getBytes("UTF-8");
+                last = layout.last.getBytes("UTF-8");
+            } catch (final UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
     }
     
     /**
-     * Opens an archive.
+     * Reads the layout recorded in an archive's trailer.
+     * @param data          archive
+     * @param lastModified  {@link Layout#lastModified}
+     * @return layout, without the range of entry names
+     * @throws IOException  any I/O problem
+     */
+    static private Layout
+    readTrailer(final Cursor data,
+                final long lastModified) throws IOException {
+        final long length = data.getLength();
+        final int rawOffsetSize = sizeof(length);
+        data.jump(length - magicSize);
+        final long magic = data.readFixedLong(magicSize);
+        final boolean packed = dictionaryMagic == magic;
+        final boolean filtered = packed || filterMagic == magic;
+        if (!filtered && endMagic != magic) { throw new EOFException(); }
+        final long totalsAddress = length - magicSize -
+            (packed ? 4 : filtered ? 3 : 2) * rawOffsetSize;
+        data.jump(totalsAddress);
+        final long indexAddress = data.readFixedLong(rawOffsetSize);
+        final long summaryAddress = data.readFixedLong(rawOffsetSize);
+        final long filterAddress =
+            filtered ? data.readFixedLong(rawOffsetSize) : -1;
+        final long dictionaryAddress =
+            packed ? data.readFixedLong(rawOffsetSize) : -1;
+        final int indexEntrySize =
+            sizeof(indexAddress - summaryAddress) + sizeof(summaryAddress);
+        final long entryCount = ((filtered ? filterAddress : totalsAddress) -
+                                 indexAddress) / indexEntrySize;
+        return new Layout(length, lastModified, indexAddress, summaryAddress,
+                          filterAddress, dictionaryAddress, entryCount,
+                          null, null);
+    }
+    
+    /**
+     * Opens an archive, read through the {@linkplain FileCache#shared shared
+     * file cache}.
      * @param file  archive file
      * @throws IOException  any I/O problem
      */
     static public N2V
-    open(final File file) throws IOException {
-        return new N2V('\"' + Long.toHexString(file.lastModified()) + '\"',
-                       new Cursor(file));
+    open(final File file) throws IOException { return open(file, false); }
+    
+    /**
+     * Opens an archive.
+     * <p>
+     * A mapping is only released once the garbage collector finds it is no
+     * longer used, not when the archive is closed. On some platforms, such as
+     * Windows, a mapped file cannot be deleted until then.
+     * </p>
+     * @param file      archive file
+     * @param mapped    Map the archive into memory, if it is small enough?
+     * @throws IOException  any I/O problem
+     */
+    static public N2V
+    open(final File file, final boolean mapped) throws IOException {
+        final Cursor data = Cursor.open(file, mapped);
+        try {
+            return new N2V(file, mapped, data,
+                           readTrailer(data, file.lastModified()));
+        } catch (final IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens an archive with a known layout.
+     * <p>
+     * The archive file is not read until an entry is looked up that is
+     * within the range of entry names.
+     * </p>
+     * @param file      archive file
+     * @param layout    {@linkplain #getLayout layout} of <code>file</code>
+     */
+    static public N2V
+    open(final File file, final Layout layout) {
+        return open(file, layout, false);
+    }
+    
+    /**
+     * Opens an archive with a known layout.
+     * @param file      archive file
+     * @param layout    {@linkplain #getLayout layout} of <code>file</code>
+     * @param mapped    Map the archive into memory, if it is small enough?
+     * @see #open(File, Layout)
+     * @see #open(File, boolean)
+     */
+    static public N2V
+    open(final File file, final Layout layout, final boolean mapped) {
+        return new N2V(file, mapped, null, layout);
+    }
+    
+    /**
+     * Gets the layout of this archive.
+     * @throws IOException  any I/O problem
+     */
+    public Layout
+    getLayout() throws IOException {
+        if (null == first && 0 != entryCount) {
+            final Cursor data = data();
+            data.pin();
+            try {
+                first = nameAt(0);
+                last = nameAt(entryCount - 1);
+            } finally {
+                data.unpin();
+            }
+        }
+        return new Layout(length, lastModified, indexAddress, summaryAddress,
+            filterAddress, dictionaryAddress, entryCount,
+            null != first ? new String(first, "UTF-8") : null,
+            null != last ? new String(last, "UTF-8") : null);
+    }
+    
+    /**
+     * Reads the name of an indexed entry.
+     * @param i index of entry
+     * @return UTF-8 encoded name
+     * @throws IOException  any I/O problem
+     */
+    private byte[]
+    nameAt(final long i) throws IOException {
+        final Cursor data = data();
+        data.jump(indexAddress + i * indexEntrySize);
+        data.readFixedLong(dataOffsetSize);
+        data.jump(summaryAddress + data.readFixedLong(summaryOffsetSize));
+        final ByteArrayOutputStream r = new ByteArrayOutputStream(32);
+        for (int b = data.read(); 0 != b; b = data.read()) {
+            if (-1 == b) { throw new EOFException(); }
+            r.write(b);
+        }
+        return r.toByteArray();
+    }
+    
+    /**
+     * Gets the raw archive data, opening the archive file if needed.
+     * @throws IOException  any I/O problem
+     */
+    private Cursor
+    data() throws IOException {
+        if (null == data) {
+            final Cursor opened = Cursor.open(file, mapped);
+            if (length != opened.getLength()) {
+                opened.close();
+                throw new IOException();
+            }
+            data = opened;
+        }
+        return data;
+    }
+    
+    /**
+     * Gets a dictionary from the dictionary block.
+     * @param n number of the dictionary, starting from 1, or 0 for none
+     * @throws IOException  any I/O problem
+     */
+    private Dictionary
+    dictionary(final long n) throws IOException {
+        if (0 == n) { return Dictionary.none; }
+        if (null == dictionaries) {
+            if (-1 == dictionaryAddress) { throw new IOException(); }
+            final Cursor data = data();
+            data.jump(dictionaryAddress);
+            final long count = readExtensionLong(data);
+            if (count > Integer.MAX_VALUE) { throw new IOException(); }
+            final Dictionary[] r = new Dictionary[(int)count];
+            for (int i = 0; i != r.length; ++i) {
+                final long length = readExtensionLong(data);
+                if (length > Integer.MAX_VALUE) { throw new IOException(); }
+                final byte[] bytes = new byte[(int)length];
+                for (int k = 0; k != bytes.length;) {
+                    final int d = data.read(bytes, k, bytes.length - k);
+                    if (-1 == d) { throw new EOFException(); }
+                    k += d;
+                }
+                r[i] = new Dictionary(bytes);
+            }
+            dictionaries = r;
+        }
+        if (n > dictionaries.length) { throw new IOException(); }
+        return dictionaries[(int)n - 1];
     }
     
     /**
      * Merges the entries from multiple archives.
+     * <p>
+     * The archives are merged by walking their indices together, in name
+     * order, so an entry is known to be overridden when a newer archive has
+     * an entry with the same name at the same point in the walk. The merged
+     * archive is written in three such walks: one each for the data, summary
+     * and index, so memory use is independent of the number of entries,
+     * other than for the Bloom filter block.
+     * </p>
      * @param out   output channel for created archive
      * @param versions  archives to merge, ordered from oldest to newest
      * @throws IOException  any I/O problem
@@ -110,149 +347,497 @@ N2V implements Archive, Serializable {
     static public void
     merge(final WritableByteChannel out,
           final List<N2V> versions) throws IOException {
-        final int versionCount = versions.size();
-                
-        // write out the most recent data values and reconstruct the indices
-        final long[][] dataTable = new long[versionCount][];
-        final long[][] summaryTable = new long[versionCount][];
-        for (int i = versionCount; 0 != i--;) {
-            final N2V m = versions.get(i);
-            if (m.entryCount > Integer.MAX_VALUE) { throw new IOException(); }
-            dataTable[i]    = new long[(int)m.entryCount];
-            summaryTable[i] = new long[(int)m.entryCount];
-        }
-        class Chunk {
-            final Cursor data;
-            final long off;
-            final long len;
-            
-            Chunk(final Cursor data, final long off, final long len) {
-                this.data = data;
-                this.off = off;
-                this.len = len;
+        merge(out, versions, 0);
+    }
+    
+    /**
+     * maximum length of a value to deflate
+     */
+    static private final int maxDeflated = 1 << 20;
+    
+    /**
+     * number of sample bytes to train a dictionary on, per dictionary byte
+     */
+    static private final int samplesPerByte = 32;
+    
+    /**
+     * Merges the entries from multiple archives, deflating the values.
+     * <p>
+     * A value that is already deflated is copied as is, along with its
+     * dictionary. Any other value is deflated with the dictionary of the
+     * oldest archive that has one, or else with a dictionary trained on a
+     * sample of the merged values, and is stored as is if that does not make
+     * it shorter. Memory use also grows with the number of entries, by the
+     * length of each newly deflated value.
+     * </p>
+     * @param out   output channel for created archive
+     * @param versions  archives to merge, ordered from oldest to newest
+     * @param dictionarySize    maximum length of a trained dictionary, or
+     *                          <code>0</code> to copy all values as is
+     * @throws IOException  any I/O problem
+     * @see #merge(WritableByteChannel, List)
+     */
+    static public void
+    merge(final WritableByteChannel out, final List<N2V> versions,
+          final int dictionarySize) throws IOException {
+        merge(out, versions, dictionarySize, Collections.<String>emptySet());
+    }
+    
+    /**
+     * Merges the entries from multiple archives, leaving out some names.
+     * <p>
+     * An entry that is left out is removed from the merged archive, along
+     * with any overridden versions of it, instead of being copied.
+     * </p>
+     * @param out   output channel for created archive
+     * @param versions  archives to merge, ordered from oldest to newest
+     * @param dictionarySize    maximum length of a trained dictionary, or
+     *                          <code>0</code> to copy all values as is
+     * @param drop  names of the entries to leave out
+     * @throws IOException  any I/O problem
+     * @see #merge(WritableByteChannel, List, int)
+     */
+    static public void
+    merge(final WritableByteChannel out, final List<N2V> versions,
+          final int dictionarySize,
+          final Set<String> drop) throws IOException {
+        final ArrayList<Cursor> pinned = new ArrayList<Cursor>();
+        try {
+            for (final N2V version : versions) {
+                final Cursor data = version.data();
+                data.pin();
+                pinned.add(data);
             }
+            final Dictionary dictionary = 0 != dictionarySize
+                ? choose(versions, dictionarySize, drop) : null;
+            final Deflater deflater = null != dictionary
+                ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+            try {
+                merge(out, versions, dictionary, deflater, drop);
+            } finally {
+                if (null != deflater) { deflater.end(); }
+            }
+        } finally {
+            for (final Cursor data : pinned) { data.unpin(); }
         }
-        final ArrayList<Chunk> summaryChunks =
-            new ArrayList<Chunk>(versionCount * 8);
-        long dataOffset = 0;
-        long summaryOffset = 0;
+    }
+    
+    /**
+     * Chooses the dictionary for deflating merged values.
+     * @param versions  archives to merge, ordered from oldest to newest
+     * @param size      maximum length of a trained dictionary
+     * @param drop      names of the entries left out of the merge
+     * @return chosen dictionary, or <code>null</code> if none
+     * @throws IOException  any I/O problem
+     */
+    static private Dictionary
+    choose(final List<N2V> versions, final int size,
+           final Set<String> drop) throws IOException {
+        for (final N2V version : versions) {
+            if (-1 != version.dictionaryAddress) {
+                return version.dictionary(1);
+            }
+        }
+        final ArrayList<byte[]> samples = new ArrayList<byte[]>();
+        long sampled = 0;
+        for (final Merger i = new Merger(versions, drop);
+                sampled < (long)samplesPerByte * size && i.next();) {
+            final Run r = i.top;
+            if (null == r.packing && r.valueLength <= maxDeflated) {
+                samples.add(r.read());
+                sampled += r.valueLength;
+            }
+        }
+        return Dictionary.train(samples, size);
+    }
+    
+    static private void
+    merge(final WritableByteChannel out, final List<N2V> versions,
+          final Dictionary dictionary, final Deflater deflater,
+          final Set<String> drop) throws IOException {
+        
+        // dictionaries used by the merged values, in the order written
+        final ArrayList<Dictionary> used = new ArrayList<Dictionary>();
+        
+        // length of each newly deflated value, or 0 if not newly deflated
+        int[] packed = new int[null != deflater ? 1024 : 0];
+        
+        // write out the most recent data values, in name order
+        final ByteArrayBuilder entry = new ByteArrayBuilder(64);
+        final Copier data = new Copier(out);
         long entryCount = 0;
-        for (int i = versionCount; 0 != i--;) {
-            final long[] dataOffsets =    dataTable[i];
-            final long[] summaryOffsets = summaryTable[i];
-            final ArrayList<Chunk> dataChunks = new ArrayList<Chunk>(8);
-            final N2V m = versions.get(i);
-            m.data.jump(m.summaryAddress);
-            final Cursor names = m.data.fork();
-            long dataChunkOffset = 0;
-            long dataChunkLength = 0;
-            long summaryChunkOffset = m.summaryAddress;
-            final long[] pos = new long[] { -1 };
-            for (int entry = 0; m.entryCount != entry; ++entry) {
-                boolean overridden = false;
-                for (int j = i + 1; !overridden && j != versionCount; ++j) {
-                    overridden = 0 <= versions.get(j).locate(pos, names);
-                }
-                pos[0] = -1;
-                if (!overridden) {
-                    if (0 > m.locate(pos, names)) { throw new Error(); }
+        long dataLength = 0;
+        long summaryLength = 0;
+        for (final Merger i = new Merger(versions, drop); i.next();) {
+            if (Integer.MAX_VALUE == entryCount) { throw new IOException(); }
+            final Run r = i.top;
+            int p = 0;
+            if (null != r.packing) {
+                if (0 != r.packing.dictionary) {
+                    use(used, r.archive.dictionary(r.packing.dictionary));
                 }
-                
-                final long beginSummary = names.getPosition();
-                while (0 != names.read()) { /* skip name and null */ }
-                final long valueLength = readExtensionLong(names);
-                skip(names, readExtensionLong(names));
-                final long endSummary = names.getPosition();
-                
-                if (overridden) {
-                    if (0 != valueLength) {
-                        if (0 != dataChunkLength) {
-                            dataChunks.add(new Chunk(
-                                m.data, dataChunkOffset, dataChunkLength));
-                        }
-                        dataChunkOffset += dataChunkLength + valueLength;
-                        dataChunkLength = 0;
-                    }
-                    if (beginSummary != summaryChunkOffset) {
-                        summaryChunks.add(new Chunk(m.data, summaryChunkOffset,
-                            beginSummary - summaryChunkOffset));
-                    }
-                    summaryChunkOffset = endSummary;
-                } else {
-                    dataOffsets[(int)pos[0]] = dataOffset;
-                    summaryOffsets[(int)pos[0]] = summaryOffset;
-                    dataOffset += valueLength;
-                    summaryOffset += endSummary - beginSummary;
-                    entryCount += 1;
-                    dataChunkLength += valueLength;
+            } else if (null != deflater && r.valueLength <= maxDeflated) {
+                final byte[] v = dictionary.deflate(deflater, r.read());
+                if (null != v) {
+                    use(used, dictionary);
+                    data.write(v);
+                    p = v.length;
                 }
             }
-            if (0 != dataChunkLength) {
-                dataChunks.add(new Chunk(
-                    m.data, dataChunkOffset, dataChunkLength));
-            }
-            if (m.indexAddress != summaryChunkOffset) {
-                summaryChunks.add(new Chunk(m.data, summaryChunkOffset,
-                    m.indexAddress - summaryChunkOffset));
+            if (0 == p) { data.copy(r.data, r.dataOffset, r.valueLength); }
+            if (null != deflater) {
+                if (packed.length == entryCount) {
+                    final int[] grown = new int[2 * packed.length];
+                    System.arraycopy(packed, 0, grown, 0, packed.length);
+                    packed = grown;
+                }
+                packed[(int)entryCount] = p;
             }
-            for (final Chunk chunk : dataChunks) {
-                chunk.data.writeTo(chunk.off, chunk.len, out);
+            entryCount += 1;
+            dataLength += 0 != p ? p : r.valueLength;
+            summaryLength += summarize(entry, r, p, used, dictionary)
+                ? entry.size() : r.entryLength;
+        }
+        data.flush();
+        
+        // write out the corresponding summary entries and filter the names
+        final byte[] filter = BloomFilter.allocate((int)entryCount);
+        final Copier summary = new Copier(out);
+        int n = 0;
+        for (final Merger i = new Merger(versions, drop); i.next(); ++n) {
+            final Run r = i.top;
+            final int p = null != deflater ? packed[n] : 0;
+            if (summarize(entry, r, p, used, dictionary)) {
+                summary.write(entry.toByteArray());
+            } else {
+                summary.copy(r.data, r.summaryOffset, r.entryLength);
             }
+            BloomFilter.add(filter, BloomFilter.hash(r.name, r.nameLength));
         }
-        final long dataLength = dataOffset;
-        final long summaryLength = summaryOffset;
-        for (final Chunk chunk : summaryChunks) {
-            chunk.data.writeTo(chunk.off, chunk.len, out);
+        summary.flush();
+        
+        // encode the dictionary block
+        final ByteArrayBuilder dictionaries = new ByteArrayBuilder(
+            used.isEmpty() ? 0 : used.get(0).getLength() + 8);
+        if (!used.isEmpty()) {
+            writeExtensionLong(dictionaries, used.size());
+            for (final Dictionary d : used) {
+                writeExtensionLong(dictionaries, d.getLength());
+                dictionaries.write(d.getBytes());
+            }
         }
         
-        // produce an N-way merge of the indices
+        // write out the index
         final int dataOffsetSize = sizeof(dataLength);
         final int summaryOffsetSize = sizeof(summaryLength);
         final int indexOffsetSize = dataOffsetSize + summaryOffsetSize;
         final long indexLength = entryCount * indexOffsetSize;
         final long dsiLength = dataLength + summaryLength + indexLength;
-        final int addressSize = sizeof(dsiLength+2*sizeof(dsiLength)+magicSize);
+        final long dsifLength = dsiLength + filter.length;
+        final long blocksLength = dsifLength + dictionaries.size();
+        final int addressCount = used.isEmpty() ? 3 : 4;
+        final int addressSize = sizeof(blocksLength +
+            addressCount * sizeof(blocksLength) + magicSize);
         final OutputStream sout = new BufferedOutputStream(
             new ChannelOutputStream(out),
-            (int)Math.min(indexLength + 2 * addressSize + magicSize,
+            (int)Math.min(indexLength + filter.length + dictionaries.size() +
+                          addressCount * addressSize + magicSize,
                           (1<<14) * indexOffsetSize));
-        final int[] i = new int[versionCount];
-        while (true) {
-            int min = versionCount;
-            Cursor minKey = null;
-            for (int j = min; 0 != j--;) {
-                final N2V m = versions.get(j);
-                for (; i[j] != m.entryCount; i[j] += 1) {
-                    m.data.jump(m.indexAddress + i[j] * m.indexEntrySize);
-                    m.data.readFixedLong(m.dataOffsetSize);
-                    m.data.jump(m.summaryAddress +
-                                m.data.readFixedLong(m.summaryOffsetSize));
-                    m.data.mark(0);
-                    if (null != minKey) {
-                        final int d = compare(m.data, minKey);
-                        m.data.reset();
-                        minKey.reset();
-                        if (d > 0) { break; }
-                        if (0 == d) { continue; }
-                    }
-                    min = j;
-                    minKey = m.data;
-                    break;
-                }
-            }
-            if (null == minKey) { break; }
-            writeFixedLong(sout, dataOffsetSize,    dataTable[min][i[min]]);
-            writeFixedLong(sout, summaryOffsetSize, summaryTable[min][i[min]]);
-            i[min] += 1;
+        long dataOffset = 0;
+        long summaryOffset = 0;
+        n = 0;
+        for (final Merger i = new Merger(versions, drop); i.next(); ++n) {
+            final Run r = i.top;
+            final int p = null != deflater ? packed[n] : 0;
+            writeFixedLong(sout, dataOffsetSize,    dataOffset);
+            writeFixedLong(sout, summaryOffsetSize, summaryOffset);
+            dataOffset += 0 != p ? p : r.valueLength;
+            summaryOffset += summarize(entry, r, p, used, dictionary)
+                ? entry.size() : r.entryLength;
         }
         
-        // append the totals
+        // append the filter, any dictionaries and the totals
+        sout.write(filter);
+        dictionaries.writeTo(sout);
         writeFixedLong(sout, addressSize, dataLength + summaryLength);
         writeFixedLong(sout, addressSize, dataLength);
-        writeFixedLong(sout, magicSize,   endMagic);
+        writeFixedLong(sout, addressSize, dsiLength);
+        if (used.isEmpty()) {
+            writeFixedLong(sout, magicSize, filterMagic);
+        } else {
+            writeFixedLong(sout, addressSize, dsifLength);
+            writeFixedLong(sout, magicSize, dictionaryMagic);
+        }
         sout.flush();
     }
     
+    /**
+     * Adds a dictionary to the list of those used, if not already there.
+     */
+    static private void
+    use(final List<Dictionary> used, final Dictionary dictionary) {
+        if (!used.contains(dictionary)) { used.add(dictionary); }
+    }
+    
+    /**
+     * Encodes a merged summary entry, if it differs from the original.
+     * @param entry     output buffer
+     * @param r         run positioned on the merged entry
+     * @param packed    length of the newly deflated value, or 0 if none
+     * @param used      dictionaries used by the merged archive
+     * @param dictionary    dictionary for newly deflated values
+     * @return <code>true</code> if the entry was encoded, else
+     *         <code>false</code> if the original entry can be copied
+     * @throws IOException  any I/O problem
+     */
+    static private boolean
+    summarize(final ByteArrayBuilder entry, final Run r, final int packed,
+              final List<Dictionary> used,
+              final Dictionary dictionary) throws IOException {
+        final long valueLength;
+        final Deflated packing;
+        if (0 != packed) {
+            valueLength = packed;
+            packing = new Deflated(r.valueLength, used.indexOf(dictionary) + 1);
+        } else if (null != r.packing && 0 != r.packing.dictionary) {
+            final int d =
+                used.indexOf(r.archive.dictionary(r.packing.dictionary)) + 1;
+            if (d == r.packing.dictionary) { return false; }
+            valueLength = r.valueLength;
+            packing = new Deflated(r.packing.rawLength, d);
+        } else {
+            return false;
+        }
+        entry.reset();
+        entry.write(r.name, 0, r.nameLength);
+        entry.write(0);
+        Deflated.write(entry, valueLength, packing);
+        return true;
+    }
+    
+    /**
+     * A walk over an archive's entries, in name order.
+     */
+    static private final class
+    Run {
+        final N2V archive;
+        final int version;      // position in the list of merged archives
+        final Cursor data;      // archive data
+        final Cursor index;     // position of the next index entry
+        final Cursor summary;   // cursor for reading summary entries
+        long remaining;         // number of entries not yet visited
+        
+        byte[] name = new byte[64]; // UTF-8 encoded name of current entry
+        int nameLength = 0;         // number of bytes in name
+        long dataOffset;            // address of current value
+        long valueLength;           // length of current stored value
+        Deflated packing;           // comment on current value, if deflated
+        long summaryOffset;         // address of current summary entry
+        long entryLength;           // length of current summary entry
+        
+        Run(final N2V archive, final int version) throws IOException {
+            this.archive = archive;
+            this.version = version;
+            data = archive.data();
+            data.jump(archive.indexAddress);
+            index = data.fork();
+            summary = data.fork();
+            remaining = archive.entryCount;
+        }
+        
+        /**
+         * Moves to the next entry.
+         * @return <code>false</code> if no more entries, else
+         *         <code>true</code>
+         * @throws IOException  any I/O problem
+         */
+        boolean
+        next() throws IOException {
+            if (0 == remaining) { return false; }
+            remaining -= 1;
+            dataOffset = index.readFixedLong(archive.dataOffsetSize);
+            summaryOffset = archive.summaryAddress +
+                            index.readFixedLong(archive.summaryOffsetSize);
+            summary.jump(summaryOffset);
+            nameLength = 0;
+            for (int b = summary.read(); 0 != b; b = summary.read()) {
+                if (-1 == b) { throw new EOFException(); }
+                if (name.length == nameLength) {
+                    System.arraycopy(name, 0,
+                        name = new byte[2 * nameLength], 0, nameLength);
+                }
+                name[nameLength++] = (byte)b;
+            }
+            valueLength = readExtensionLong(summary);
+            packing = Deflated.read(summary);
+            entryLength = summary.getPosition() - summaryOffset;
+            return true;
+        }
+        
+        /**
+         * Decodes the name of the current entry.
+         * @throws IOException  any I/O problem
+         */
+        String
+        getName() throws IOException {
+            return new String(name, 0, nameLength, "UTF-8");
+        }
+        
+        /**
+         * Reads the current stored value.
+         * @throws IOException  any I/O problem
+         */
+        byte[]
+        read() throws IOException {
+            final byte[] r = new byte[(int)valueLength];
+            data.jump(dataOffset);
+            for (int n = 0; n != r.length;) {
+                final int d = data.read(r, n, r.length - n);
+                if (-1 == d) { throw new EOFException(); }
+                n += d;
+            }
+            return r;
+        }
+    }
+    
+    /**
+     * Walks a list of archives together, in name order, skipping overridden
+     * and dropped entries.
+     */
+    static private final class
+    Merger {
+        private final PriorityQueue<Run> heap;
+        private final Set<String> drop;     // names of entries to skip
+        
+        /**
+         * run positioned on the current entry, or <code>null</code> if none
+         */
+        Run top = null;
+        
+        Merger(final List<N2V> versions,
+               final Set<String> drop) throws IOException {
+            this.drop = drop;
+            heap = new PriorityQueue<Run>(Math.max(1, versions.size()),
+                                          new Comparator<Run>() {
+                public int
+                compare(final Run a, final Run b) {
+                    final int d = compareNames(a, b);
+                    return 0 != d ? d : b.version - a.version;
+                }
+            });
+            for (int i = 0; i != versions.size(); ++i) {
+                final Run r = new Run(versions.get(i), i);
+                if (r.next()) { heap.add(r); }
+            }
+        }
+        
+        /**
+         * Moves to the next entry, which is the newest with its name.
+         * @return <code>false</code> if no more entries, else
+         *         <code>true</code>
+         * @throws IOException  any I/O problem
+         */
+        boolean
+        next() throws IOException {
+            do {
+                if (null != top && top.next()) { heap.add(top); }
+                top = heap.poll();
+                if (null == top) { return false; }
+                while (!heap.isEmpty() && 0==compareNames(top, heap.peek())) {
+                    final Run overridden = heap.poll();
+                    if (overridden.next()) { heap.add(overridden); }
+                }
+            } while (!drop.isEmpty() && drop.contains(top.getName()));
+            return true;
+        }
+        
+        static private int
+        compareNames(final Run a, final Run b) {
+            final int n = Math.min(a.nameLength, b.nameLength);
+            for (int i = 0; i != n; ++i) {
+                final int d = (0xFF & a.name[i]) - (0xFF & b.name[i]);
+                if (0 != d) { return d; }
+            }
+            return a.nameLength - b.nameLength;
+        }
+    }
+    
+    /**
+     * Copies ranges of archive data.
+     * <p>
+     * Adjacent ranges are joined and small ranges are gathered into a buffer,
+     * so the output channel sees large writes.
+     * </p>
+     */
+    static private final class
+    Copier {
+        private final WritableByteChannel out;
+        private final byte[] buffer = new byte[1 << 16];
+        private int buffered = 0;   // number of bytes in buffer
+        private Cursor data = null; // archive of pending range
+        private long off;           // address of pending range
+        private long len;           // length of pending range
+        
+        Copier(final WritableByteChannel out) {
+            this.out = out;
+        }
+        
+        void
+        copy(final Cursor data, final long off,
+             final long len) throws IOException {
+            if (this.data == data && this.off + this.len == off) {
+                this.len += len;
+            } else {
+                stage();
+                this.data = data;
+                this.off = off;
+                this.len = len;
+            }
+        }
+        
+        void
+        write(final byte[] b) throws IOException {
+            stage();
+            if (b.length > buffer.length - buffered) { flush(); }
+            if (b.length > buffer.length) {
+                final ByteBuffer x = ByteBuffer.wrap(b);
+                while (x.hasRemaining()) { out.write(x); }
+            } else {
+                System.arraycopy(b, 0, buffer, buffered, b.length);
+                buffered += b.length;
+            }
+        }
+        
+        void
+        flush() throws IOException {
+            stage();
+            if (0 != buffered) {
+                final ByteBuffer b = ByteBuffer.wrap(buffer, 0, buffered);
+                while (b.hasRemaining()) { out.write(b); }
+                buffered = 0;
+            }
+        }
+        
+        private void
+        stage() throws IOException {
+            if (null == data) { return; }
+            final Cursor data = this.data;
+            this.data = null;
+            if (len > buffer.length - buffered) { flush(); }
+            if (len > buffer.length) {
+                data.writeTo(off, len, out);
+            } else {
+                data.jump(off);
+                for (int n = 0; n != len;) {
+                    final int d = data.read(buffer, buffered + n, (int)len - n);
+                    if (-1 == d) { throw new EOFException(); }
+                    n += d;
+                }
+                buffered += len;
+            }
+        }
+    }
+    
     static protected void
     writeFixedLong(final OutputStream out,
                    final int size, final long n) throws IOException {
@@ -294,9 +879,15 @@ N2V implements Archive, Serializable {
         final InputStream s;
         final int first;
         try {
-            data.jump(summaryAddress);
-            s = Bounded.input(summaryLength, data.fork());
-            first = s.read();
+            final Cursor data = data();
+            data.pin();
+            try {
+                data.jump(summaryAddress);
+                s = Bounded.input(summaryLength, data.fork());
+                first = s.read();
+            } finally {
+                data.unpin();
+            }
         } catch (final IOException e) { throw new RuntimeException(e); }
         return new Iterator<Archive.Entry>() {
             
@@ -310,17 +901,24 @@ N2V implements Archive, Serializable {
             next() {
                 if (-1 == next) { throw new NoSuchElementException(); }
                 try {
-                    final ByteArrayOutputStream name =
-                        new ByteArrayOutputStream(32);
-                    while (0 != next) {
-                        name.write(next);
+                    final Cursor data = data();
+                    data.pin();
+                    try {
+                        final ByteArrayOutputStream name =
+                            new ByteArrayOutputStream(32);
+                        while (0 != next) {
+                            name.write(next);
+                            next = s.read();
+                            if (-1 == next) { throw new EOFException(); }
+                        } 
+                        final Entry r =
+                            new Entry(address, name.toString("UTF-8"), s);
+                        address += r.stored;
                         next = s.read();
-                        if (-1 == next) { throw new EOFException(); }
-                    } 
-                    final Entry r = new Entry(address,name.toString("UTF-8"),s);
-                    address += r.getLength();
-                    next = s.read();
-                    return r;
+                        return r;
+                    } finally {
+                        data.unpin();
+                    }
                 } catch (final EOFException e) {
                     throw new NoSuchElementException();
                 } catch (final IOException e) { throw new RuntimeException(e); }
@@ -336,14 +934,15 @@ N2V implements Archive, Serializable {
 
         private final long address;
         private final String name;
-        private final long length;
+        private final long stored;      // length of stored value
+        private final Deflated packing; // null if stored as is
         
         Entry(final long address,
               final String name, final InputStream meta) throws IOException {
             this.address = address;
             this.name = name;
-            length = readExtensionLong(meta);
-            skip(meta, readExtensionLong(meta));
+            stored = readExtensionLong(meta);
+            packing = Deflated.read(meta);
         }
 
         public String
@@ -353,13 +952,67 @@ N2V implements Archive, Serializable {
         getETag() { return etag; }
 
         public long
-        getLength() { return length; }
+        getLength() { return null != packing ? packing.rawLength : stored; }
         
         public InputStream
         open() throws IOException {
-            if (0 == length) { return new ByteArrayInputStream(new byte[0]); }
-            data.jump(address);
-            return Bounded.input(length, data.fork());
+            if (0 == stored) { return new ByteArrayInputStream(new byte[0]); }
+            final Cursor data = data();
+            data.pin();
+            try {
+                data.jump(address);
+                final InputStream in = Bounded.input(stored, data.fork());
+                if (null == packing) {
+                    data.pin();     // held until the value is read
+                    return new Pinned(data, in);
+                }
+                return new ByteArrayInputStream(dictionary(packing.dictionary).
+                    inflate(in, stored, packing.rawLength));
+            } finally {
+                data.unpin();
+            }
+        }
+    }
+    
+    /**
+     * A stored value, read with the archive file {@linkplain Cursor#pin
+     * pinned} until the value is closed, or read to the end.
+     */
+    static private final class
+    Pinned extends FilterInputStream {
+        private Cursor data;    // pinned archive, or null if unpinned
+        
+        Pinned(final Cursor data, final InputStream in) {
+            super(in);
+            this.data = data;
+        }
+        
+        public int
+        read() throws IOException {
+            final int r = super.read();
+            if (-1 == r) { unpin(); }
+            return r;
+        }
+        
+        public int
+        read(final byte[] b, final int off, final int len) throws IOException {
+            final int r = super.read(b, off, len);
+            if (-1 == r) { unpin(); }
+            return r;
+        }
+        
+        public void
+        close() throws IOException {
+            unpin();
+            super.close();
+        }
+        
+        private void
+        unpin() {
+            if (null != data) {
+                data.unpin();
+                data = null;
+            }
         }
     }
     
@@ -374,17 +1027,74 @@ N2V implements Archive, Serializable {
     // org.waterken.archive.Archive interface
     
     public void
-    close() throws IOException { data.close(); }
+    close() throws IOException { if (null != data) { data.close(); } }
     
     public Archive.Entry
     find(final String name) throws IOException {
-        final long address = locate(new long[] { -1 },
-            new ByteArrayInputStream((name + '\0').getBytes("UTF-8")));
-        return address >= 0 ? new Entry(address, name, data) : null;
+        final byte[] key = (name + '\0').getBytes("UTF-8");
+        if (0 == entryCount) { return null; }
+        if (null != first && (compare(key, first) < 0 ||
+                              compare(key, last) > 0)) { return null; }
+        final Cursor data = data();
+        data.pin();
+        try {
+            if (!mightContain(
+                    BloomFilter.hash(new ByteArrayInputStream(key)))) {
+                return null;
+            }
+            final long address =
+                locate(new long[] { -1 }, new ByteArrayInputStream(key));
+            return address >= 0 ? new Entry(address, name, data) : null;
+        } finally {
+            data.unpin();
+        }
+    }
+    
+    /**
+     * Finds many entries at once.
+     * @param names entry names
+     * @return found entries, ordered by their location in the archive
+     * @throws IOException  any I/O problem
+     */
+    public List<Archive.Entry>
+    find(final Iterable<String> names) throws IOException {
+        final ArrayList<Entry> found = new ArrayList<Entry>();
+        if (0 == entryCount) { return new ArrayList<Archive.Entry>(found); }
+        final Cursor data = data();
+        data.pin();
+        try {
+            for (final String name : names) {
+                final Archive.Entry x = find(name);
+                if (null != x) { found.add((Entry)x); }
+            }
+        } finally {
+            data.unpin();
+        }
+        Collections.sort(found, new Comparator<Entry>() {
+            public int
+            compare(final Entry a, final Entry b) {
+                return a.address < b.address ? -1 : a.address > b.address ? 1:0;
+            }
+        });
+        return new ArrayList<Archive.Entry>(found);
+    }
+    
+    /**
+     * Might this archive contain a name?
+     * @param hash  {@linkplain BloomFilter#hash hash} of the name
+     * @return <code>false</code> if the name is not in this archive, else
+     *         <code>true</code>
+     * @throws IOException  any I/O problem
+     */
+    private boolean
+    mightContain(final long hash) throws IOException {
+        return -1 == filterAddress ||
+               BloomFilter.test(data(), filterAddress, filterLength, hash);
     }
     
     private long
     locate(final long[] pos, final InputStream name) throws IOException {
+        final Cursor data = data();
         name.mark(0);
         for (long low = 0, high = entryCount - 1; low <= high;) {
             final long mid = (low + high) >>> 1;
@@ -405,6 +1115,22 @@ N2V implements Archive, Serializable {
         return -1;
     }
     
+    /**
+     * Compares a null terminated name with a name.
+     * @param key   UTF-8 encoded name, followed by a null byte
+     * @param name  UTF-8 encoded name
+     * @return the order of <code>key</code> relative to <code>name</code>
+     */
+    static private int
+    compare(final byte[] key, final byte[] name) {
+        for (int i = 0; true; ++i) {
+            final int kb = 0xFF & key[i];
+            final int nb = i != name.length ? 0xFF & name[i] : 0;
+            final int r = kb - nb;
+            if (0 != r || 0 == kb) { return r; }
+        }
+    }
+    
     static private int
     compare(final InputStream a, final InputStream b) throws IOException {
         while (true) {
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.zip.Deflater;
 
 import org.joe_e.file.InvalidFilenameException;
 import org.waterken.archive.ArchiveOutput;
@@ -22,15 +23,20 @@ N2VOutput implements ArchiveOutput {
     protected final ByteArrayBuilder meta = new ByteArrayBuilder(2048);
     protected       Offset[] offsets = new Offset[32];
     protected       int offsetCount = 0;
+    protected final Dictionary dictionary;  // null if values stored as is
+    protected final Deflater deflater;      // null if values stored as is
+    protected       boolean deflated = false;   // Any value deflated?
     
     static private final class
     Offset {
         protected final long data;
         protected final int summary;
+        protected final long hash;      // hash of entry name
         
-        Offset(final long data, final int summary) {
+        Offset(final long data, final int summary, final long hash) {
             this.data = data;
             this.summary = summary;
+            this.hash = hash;
         }
     }
     
@@ -40,7 +46,25 @@ N2VOutput implements ArchiveOutput {
      */
     public
     N2VOutput(final OutputStream out) {
+        this(out, null);
+    }
+    
+    /**
+     * Constructs an instance that deflates values.
+     * <p>
+     * Each value is buffered, and stored deflated if that makes it shorter.
+     * The dictionary is only stored if some value was deflated with it.
+     * </p>
+     * @param out           output stream
+     * @param dictionary    dictionary for deflating values, or
+     *                      <code>null</code> to store values as is
+     */
+    public
+    N2VOutput(final OutputStream out, final Dictionary dictionary) {
         this.out = out;
+        this.dictionary = dictionary;
+        deflater = null != dictionary
+            ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
     }
     
     // org.waterken.archive.n2v.N2VOutput interface
@@ -54,25 +78,27 @@ N2VOutput implements ArchiveOutput {
         return current = new OutputStream() {
             
             private long length = 0;
+            private final OutputStream to =
+                null != dictionary ? new ByteArrayBuilder(256) : out;
             
             public void
             write(final int b) throws IOException {
                 if (this != current) { throw new RuntimeException(); }
-                out.write(b);
+                to.write(b);
                 ++length;
             }
 
             public void
             write(final byte[] b) throws IOException {
                 if (this != current) { throw new RuntimeException(); }
-                out.write(b);
+                to.write(b);
                 length += b.length;
             }
 
             public void
             write(final byte[] b,final int off,final int len)throws IOException{
                 if (this != current) { throw new RuntimeException(); }
-                out.write(b, off, len);
+                to.write(b, off, len);
                 length += len;
             }
 
@@ -87,11 +113,23 @@ N2VOutput implements ArchiveOutput {
                         System.arraycopy(offsets, 0,
                             offsets= new Offset[2*offsetCount], 0, offsetCount);
                     }
-                    offsets[offsetCount++] = new Offset(total, meta.size());
-                    meta.write(name.getBytes("UTF-8"));
+                    final byte[] encoded = name.getBytes("UTF-8");
+                    offsets[offsetCount++] = new Offset(total, meta.size(),
+                                                    BloomFilter.hash(encoded));
+                    Deflated packing = null;
+                    if (out != to) {
+                        final byte[] raw = ((ByteArrayBuilder)to).toByteArray();
+                        final byte[] v = dictionary.deflate(deflater, raw);
+                        if (null != v) {
+                            packing = new Deflated(raw.length, 1);
+                            deflated = true;
+                            length = v.length;
+                        }
+                        out.write(null != v ? v : raw);
+                    }
+                    meta.write(encoded);
                     meta.write(0);
-                    N2V.writeExtensionLong(meta, length);   // valueLength
-                    N2V.writeExtensionLong(meta, 0);        // commentLength
+                    Deflated.write(meta, length, packing);
                     total += length;
                 }
             }
@@ -120,22 +158,42 @@ N2VOutput implements ArchiveOutput {
                 return iv - jv;
             }
         });
+        final long[] hashes = new long[offsetCount];
         for (int i = 0; i != offsetCount; ++i) {
             N2V.writeFixedLong(meta, dataOffsetSize, offsets[i].data);
             N2V.writeFixedLong(meta, summaryOffsetSize, offsets[i].summary);
+            hashes[i] = offsets[i].hash;
+        }
+        final long filterAddress = total + meta.size();
+        meta.write(BloomFilter.make(hashes, offsetCount));
+        final long dictionaryAddress = total + meta.size();
+        if (deflated) {
+            N2V.writeExtensionLong(meta, 1);
+            N2V.writeExtensionLong(meta, dictionary.getLength());
+            meta.write(dictionary.getBytes());
         }
         
         total += meta.size();
-        final int addressSize =
-            N2V.sizeof(total + 2 * N2V.sizeof(total) + N2V.magicSize);
+        final int addressCount = deflated ? 4 : 3;
+        final int addressSize = N2V.sizeof(
+            total + addressCount * N2V.sizeof(total) + N2V.magicSize);
         N2V.writeFixedLong(meta, addressSize, indexAddress);
         N2V.writeFixedLong(meta, addressSize, summaryAddress);
-        N2V.writeFixedLong(meta, N2V.magicSize, N2V.endMagic);
+        N2V.writeFixedLong(meta, addressSize, filterAddress);
+        if (deflated) {
+            N2V.writeFixedLong(meta, addressSize, dictionaryAddress);
+            N2V.writeFixedLong(meta, N2V.magicSize, N2V.dictionaryMagic);
+        } else {
+            N2V.writeFixedLong(meta, N2V.magicSize, N2V.filterMagic);
+        }
 
         meta.writeTo(out);
         out.flush();
     }
     
     public void
-    close() throws IOException { out.close(); }
+    close() throws IOException {
+        if (null != deflater) { deflater.end(); }
+        out.close();
+    }
 }
@@ -1,9 +1,9 @@
 #!/bin/sh
 if [ "$OS" = 'Windows_NT' ]
 then
-    CLASSPATH='..\joe-e\bin;..\ref_send\bin;..\log\bin;..\network\bin'
+    CLASSPATH='..\joe-e\bin;..\ref_send\bin;..\log\bin;..\network\bin;..\k2v\bin'
 else
-    CLASSPATH='../joe-e/bin:../ref_send/bin:../log/bin:../network/bin'
+    CLASSPATH='../joe-e/bin:../ref_send/bin:../log/bin:../network/bin:../k2v/bin'
 fi
 
 echo 'Building persistence project...'
@@ -0,0 +1,157 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.cache;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.ref_send.deserializer;
+import org.ref_send.name;
+
+/**
+ * A memory budget for holding on to recently used cache values.
+ * <p>
+ * The value of a {@link CacheReference} is only softly reachable, so the
+ * garbage collector may clear all of the values in a cache at once. A budget
+ * holds a strong reference to the most recently used values, up to a
+ * {@linkplain #limit limit} on their total size, and leaves the rest to the
+ * garbage collector.
+ * </p>
+ */
+public final class
+Budget implements Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * maximum total size of the held values
+     */
+    public final long limit;
+
+    /**
+     * Constructs an instance.
+     * @param limit {@link #limit}
+     */
+    public @deserializer
+    Budget(@name("limit") final long limit) {
+        if (limit < 0) { throw new IllegalArgumentException(); }
+
+        this.limit = limit;
+    }
+
+    // org.waterken.cache.Budget interface
+
+    /**
+     * A held value.
+     */
+    static private final class
+    Held {
+        final Object value;
+        final long size;
+
+        Held(final Object value, final long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * [ cache entry => held value ], from least to most recently used
+     */
+    private transient LinkedHashMap<CacheReference<?,?>,Held> held;
+
+    private transient long size = 0;        // total size of held values
+    private transient long hits = 0;        // number of cache hits
+    private transient long misses = 0;      // number of cache misses
+    private transient long evictions = 0;   // number of values let go
+
+    /**
+     * Gets the total size of the held values.
+     */
+    public synchronized long
+    getSize() { return size; }
+
+    /**
+     * Gets the number of cache lookups that found a value.
+     */
+    public synchronized long
+    getHits() { return hits; }
+
+    /**
+     * Gets the number of cache lookups that did not find a value.
+     */
+    public synchronized long
+    getMisses() { return misses; }
+
+    /**
+     * Gets the number of values let go to make room for others.
+     */
+    public synchronized long
+    getEvictions() { return evictions; }
+
+    /**
+     * Holds on to a cache value.
+     * @param entry     cache entry
+     * @param size      size of the value
+     */
+    public synchronized void
+    keep(final CacheReference<?,?> entry, final long size) {
+        final Object value = entry.get();
+        if (null == value) { return; }
+        release(entry);
+        if (null == held) {
+            held = new LinkedHashMap<CacheReference<?,?>,Held>(64, 0.75f, true);
+        }
+        held.put(entry, new Held(value, size));
+        this.size += size;
+        for (final Iterator<Held> i = held.values().iterator();
+                this.size > limit && i.hasNext();) {
+            this.size -= i.next().size;
+            i.remove();
+            evictions += 1;
+        }
+    }
+
+    /**
+     * Counts a cache hit.
+     * @param entry cache entry found, which becomes the most recently used
+     */
+    public synchronized void
+    hit(final CacheReference<?,?> entry) {
+        hits += 1;
+        if (null != held) { held.get(entry); }
+    }
+
+    /**
+     * Counts a cache miss.
+     */
+    public synchronized void
+    miss() { misses += 1; }
+
+    /**
+     * Lets go of a cache value.
+     * @param entry cache entry
+     */
+    public synchronized void
+    drop(final CacheReference<?,?> entry) { release(entry); }
+
+    /**
+     * Lets go of all the cache values.
+     */
+    public synchronized void
+    shed() {
+        if (null != held) {
+            evictions += held.size();
+            held.clear();
+        }
+        size = 0;
+    }
+
+    private void
+    release(final CacheReference<?,?> entry) {
+        if (null != held) {
+            final Held x = held.remove(entry);
+            if (null != x) { size -= x.size; }
+        }
+    }
+}
@@ -37,6 +37,11 @@ Database<S> {
      */
     static public final String effect = ".effect";
     
+    /**
+     * event loop turn {@linkplain Receiver flipper}, initialized by database
+     */
+    static public final String flip = ".flip";
+    
     /**
      * URI for this database, initialized by database
      */
@@ -72,6 +77,16 @@ Database<S> {
      */
     static public final String wake = ".wake";
 
+    /**
+     * {@link Promise} for whether the {@link #wake wake} task has any work to
+     * do, checked each time the database is modified
+     * <p>
+     * A database with a {@link #wake wake} task, but no such promise, is
+     * assumed to always have work to do.
+     * </p>
+     */
+    static public final String pending = ".pending";
+
     // org.waterken.db.Database interface
 
     /**
@@ -105,6 +120,12 @@ Database<S> {
      */
     public final Scheduler<Service> scheduler;
     
+    /**
+     * tasks that only enter {@link #query} transactions, and so may be run
+     * concurrently, or <code>null</code> if there is no such support
+     */
+    public final Receiver<Service> queries;
+    
     /**
      * Constructs an instance.
      */
@@ -112,18 +133,35 @@ Database<S> {
     Database(final S session,
              final Receiver<Service> service,
              final Scheduler<Service> timeouts) {
+        this(session, service, timeouts, null);
+    }
+    
+    /**
+     * Constructs an instance.
+     */
+    protected
+    Database(final S session,
+             final Receiver<Service> service,
+             final Scheduler<Service> timeouts,
+             final Receiver<Service> queries) {
         this.session = session;
         this.service = service;
         this.scheduler = timeouts;
+        this.queries = queries;
     }
 
     /**
      * Processes a transaction within this database.
      * <p>
-     * The implementation MUST ensure only one transaction is active in the
-     * database at any time. An invocation from another thread MUST block until
-     * the database becomes available. A recursive invocation from the same
-     * thread MUST throw an {@link Exception}.
+     * The implementation MUST ensure only one {@link #update} transaction is
+     * active in the database at any time. An invocation from another thread
+     * MUST block until the database becomes available. A recursive invocation
+     * from the same thread MUST throw an {@link Exception}.
+     * </p>
+     * <p>
+     * A {@link #query} transaction MAY instead run concurrently with other
+     * transactions, provided it sees only the state produced by the most
+     * recently committed {@link #update} transaction.
      * </p>
      * <p>
      * If {@linkplain Transaction#run invocation} of the <code>body</code>
@@ -14,4 +14,10 @@ TransactionMonitor {
      * @return entity-tag, or <code>null</code> if none
      */
     String tag();
+
+    /**
+     * Gets the time spent in the current transaction.
+     * @return number of elapsed milliseconds
+     */
+    long elapsed();
 }
@@ -0,0 +1,207 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.jos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.waterken.base32.Base32;
+
+/**
+ * A vat's dictionary of class descriptors.
+ * <p>
+ * A stream in the compact format has the usual stream header, but with its
+ * own {@linkplain #version version} number, and writes each class descriptor
+ * as an 8 byte key, instead of the full descriptor. The key is a hash of the
+ * descriptor, which is stored once, in its own entry, along with the
+ * objects that use it. Since a descriptor is named by its state, storing it
+ * more than once, or out of order, is harmless.
+ * </p>
+ */
+/* package */ final class
+ClassDictionary {
+
+    /**
+     * version number of a compact stream
+     */
+    static protected final short version = 0x4A01;
+
+    /**
+     * [ key => class descriptor ] for stored descriptors
+     */
+    private final HashMap<Long,ObjectStreamClass> k2d =
+        new HashMap<Long,ObjectStreamClass>();
+
+    /**
+     * [ local class => key ]
+     */
+    private final WeakHashMap<Class<?>,Long> c2k =
+        new WeakHashMap<Class<?>,Long>();
+
+    /**
+     * [ key => encoded descriptor ] for descriptors not known to be stored
+     */
+    private final HashMap<Long,byte[]> unstored = new HashMap<Long,byte[]>();
+
+    /**
+     * keys of the descriptors known to be stored
+     */
+    private final HashSet<Long> stored = new HashSet<Long>();
+
+    /**
+     * Gets the key for a local class descriptor.
+     * @param desc      local class descriptor
+     * @param unsaved   [ key => encoded descriptor ] to add to if the
+     *                  descriptor is not yet stored, or <code>null</code>
+     * @return key for <code>desc</code>
+     * @throws IOException  any I/O problem
+     */
+    synchronized long
+    intern(final ObjectStreamClass desc,
+           final Map<Long,byte[]> unsaved) throws IOException {
+        final Class<?> type = desc.forClass();
+        Long key = null != type ? c2k.get(type) : null;
+        if (null == key) {
+            final byte[] encoded = encode(desc);
+            key = hash(encoded);
+            if (null != type) { c2k.put(type, key); }
+            if (!stored.contains(key)) { unstored.put(key, encoded); }
+        }
+        if (null != unsaved && !stored.contains(key)) {
+            unsaved.put(key, unstored.get(key));
+        }
+        return key;
+    }
+
+    /**
+     * Marks descriptors as stored.
+     * @param keys  keys of the committed descriptors
+     */
+    synchronized void
+    saved(final Collection<Long> keys) {
+        for (final Long key : keys) {
+            stored.add(key);
+            unstored.remove(key);
+        }
+    }
+
+    /**
+     * A source of stored descriptors.
+     */
+    static interface
+    Source {
+
+        /**
+         * Opens a stored entry.
+         * @param filename  entry name
+         * @return entry content
+         * @throws IOException  any I/O problem
+         */
+        InputStream
+        read(String filename) throws IOException;
+    }
+
+    /**
+     * Finds a stored class descriptor.
+     * @param key   descriptor key
+     * @param in    store to read a descriptor not already known from
+     * @return class descriptor
+     * @throws IOException  any I/O problem
+     */
+    ObjectStreamClass
+    find(final long key, final Source in) throws IOException {
+        synchronized (this) {
+            final ObjectStreamClass r = k2d.get(key);
+            if (null != r) { return r; }
+        }
+        final ObjectStreamClass r = decode(in.read(filename(key) + JODB.ext));
+        synchronized (this) {
+            k2d.put(key, r);
+            stored.add(key);
+            unstored.remove(key);
+        }
+        return r;
+    }
+
+    /**
+     * Turns a descriptor key into a filename.
+     * <p>
+     * The filename is shorter than that of any persistent object.
+     * </p>
+     * @param key   descriptor key
+     * @return corresponding filename, without the extension
+     */
+    static protected String
+    filename(final long key) {
+        final byte[] bits = new byte[Long.SIZE / Byte.SIZE];
+        for (int i = bits.length, n = 0; i-- != 0; n += Byte.SIZE) {
+            bits[i] = (byte)(key >>> n);
+        }
+        return Base32.encode(bits);
+    }
+
+    static private long
+    hash(final byte[] encoded) {
+        final byte[] h;
+        try {
+            h = MessageDigest.getInstance("SHA-256").digest(encoded);
+        } catch (final NoSuchAlgorithmException e) { throw new Error(e); }
+        long r = 0;
+        for (int i = 0; i != Long.SIZE / Byte.SIZE; ++i) {
+            r = (r << Byte.SIZE) | (h[i] & 0xFF);
+        }
+        return r;
+    }
+
+    /**
+     * Encodes a class descriptor as a standard stream holding only the
+     * descriptor.
+     * @param desc  class descriptor
+     * @return encoded descriptor
+     * @throws IOException  any I/O problem
+     */
+    static private byte[]
+    encode(final ObjectStreamClass desc) throws IOException {
+        final ByteArrayOutputStream r = new ByteArrayOutputStream(128);
+        final ObjectOutputStream out = new ObjectOutputStream(r) {{
+            writeClassDescriptor(desc);
+        }};
+        out.close();
+        return r.toByteArray();
+    }
+
+    /**
+     * Decodes a class descriptor.
+     * @param in    encoded descriptor, which will be closed
+     * @return class descriptor, not yet bound to a local class
+     * @throws IOException  any I/O problem
+     */
+    static protected ObjectStreamClass
+    decode(final InputStream in) throws IOException {
+        final ObjectStreamClass[] r = { null };
+        try {
+            new ObjectInputStream(in) {{
+                try {
+                    r[0] = readClassDescriptor();
+                } catch (final ClassNotFoundException e) {
+                    throw (IOException)
+                        new IOException(e.toString()).initCause(e);
+                }
+            }};
+        } finally {
+            in.close();
+        }
+        return r[0];
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.jos;
+
+import java.io.Externalizable;
+import java.io.ObjectOutputStream;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+import org.joe_e.Immutable;
+import org.joe_e.JoeE;
+
+/**
+ * A shallow copy of a stored object's fields.
+ * <p>
+ * The serialized state of a stored object extends beyond its own fields only
+ * through inline objects, whose fields are all final, and through references
+ * to selfish objects, which are each stored separately. If the fields still
+ * match the shallow copy, the object need not be serialized again to find out
+ * that it is unchanged.
+ * </p>
+ */
+/* package */ final class
+Fingerprint {
+
+    /**
+     * field values, with primitive values boxed, or the copied elements of an
+     * array
+     */
+    private final Object values;
+
+    private
+    Fingerprint(final Object values) {
+        this.values = values;
+    }
+
+    /**
+     * fingerprint of any {@link Immutable} object
+     */
+    static private final Fingerprint frozen = new Fingerprint(null);
+
+    /**
+     * layout of a type whose serialized state is not just its fields
+     */
+    static private final Field[] opaque = {};
+
+    /**
+     * [ type => non-static fields ]
+     * <p>
+     * A field refers to its declaring class, so the fields are only softly
+     * held, leaving the class free to be unloaded.
+     * </p>
+     */
+    static private final WeakHashMap<Class<?>,SoftReference<Field[]>>
+    layouts = new WeakHashMap<Class<?>,SoftReference<Field[]>>();
+
+    /**
+     * Gets the non-static fields of a type.
+     * @param type  type to describe
+     * @return fields, or {@link #opaque}
+     */
+    static private Field[]
+    layout(final Class<?> type) {
+        synchronized (layouts) {
+            final SoftReference<Field[]> cached = layouts.get(type);
+            Field[] r = null != cached ? cached.get() : null;
+            if (null == r) {
+                r = fields(type);
+                layouts.put(type, new SoftReference<Field[]>(r));
+            }
+            return r;
+        }
+    }
+
+    static private Field[]
+    fields(final Class<?> type) {
+        if (Externalizable.class.isAssignableFrom(type) ||
+                Enum.class.isAssignableFrom(type) ||
+                Class.class == type) { return opaque; }
+        final ArrayList<Field> r = new ArrayList<Field>();
+        try {
+            for (Class<?> i = type; null != i; i = i.getSuperclass()) {
+                if (declares(i, "writeObject", ObjectOutputStream.class) ||
+                    declares(i, "writeReplace")) { return opaque; }
+                for (final Field f : i.getDeclaredFields()) {
+                    if (!Modifier.isStatic(f.getModifiers())) {
+                        f.setAccessible(true);
+                        r.add(f);
+                    }
+                }
+            }
+        } catch (final SecurityException e) { return opaque; }
+        return r.toArray(new Field[r.size()]);
+    }
+
+    static private boolean
+    declares(final Class<?> type, final String name, final Class<?>... param) {
+        try {
+            type.getDeclaredMethod(name, param);
+            return true;
+        } catch (final NoSuchMethodException e) { return false; }
+    }
+
+    /**
+     * Takes a fingerprint.
+     * @param o stored object
+     * @return fingerprint of <code>o</code>, or <code>null</code> if the
+     *         stored state of <code>o</code> is not just its fields
+     */
+    static Fingerprint
+    take(final Object o) {
+        if (null == o) { return new Fingerprint(new Object[0]); }
+        if (JoeE.instanceOf(o, Immutable.class)) { return frozen; }
+        final Class<?> type = o.getClass();
+        if (type.isArray()) { return new Fingerprint(copy(o)); }
+        final Field[] fields = layout(type);
+        if (opaque == fields) { return null; }
+        final Object[] values = new Object[fields.length];
+        try {
+            for (int i = 0; i != fields.length; ++i) {
+                values[i] = fields[i].get(o);
+            }
+        } catch (final IllegalAccessException e) { return null; }
+        return new Fingerprint(values);
+    }
+
+    /**
+     * Does an object still match this fingerprint?
+     * @param o object this fingerprint was {@linkplain #take taken} of
+     * @return <code>true</code> if the stored state is unchanged, else
+     *         <code>false</code>
+     */
+    boolean
+    matches(final Object o) {
+        if (frozen == this) { return true; }
+        if (null == o) { return 0 == ((Object[])values).length; }
+        final Class<?> type = o.getClass();
+        if (type.isArray()) { return same(values, o); }
+        final Object[] values = (Object[])this.values;
+        final Field[] fields = layout(type);
+        if (fields.length != values.length) { return false; }
+        try {
+            for (int i = 0; i != fields.length; ++i) {
+                final Object x = fields[i].get(o);
+                if (fields[i].getType().isPrimitive()
+                        ? !values[i].equals(x) : values[i] != x) {
+                    return false;
+                }
+            }
+        } catch (final IllegalAccessException e) { return false; }
+        return true;
+    }
+
+    /**
+     * Copies an array.
+     * @param array array to copy
+     * @return shallow copy of <code>array</code>
+     */
+    static private Object
+    copy(final Object array) {
+        if (array instanceof Object[]) { return ((Object[])array).clone(); }
+        if (array instanceof byte[]) { return ((byte[])array).clone(); }
+        if (array instanceof int[]) { return ((int[])array).clone(); }
+        if (array instanceof long[]) { return ((long[])array).clone(); }
+        if (array instanceof char[]) { return ((char[])array).clone(); }
+        if (array instanceof boolean[]) { return ((boolean[])array).clone(); }
+        if (array instanceof short[]) { return ((short[])array).clone(); }
+        if (array instanceof double[]) { return ((double[])array).clone(); }
+        return ((float[])array).clone();
+    }
+
+    /**
+     * Compares an array with a copy of it.
+     * <p>
+     * A primitive element is compared by value, but a reference is compared by
+     * identity, since the referenced object's state is not copied.
+     * </p>
+     * @param copy  {@link #copy copy} of the array
+     * @param array array to compare
+     * @return <code>true</code> if the same, else <code>false</code>
+     */
+    static private boolean
+    same(final Object copy, final Object array) {
+        if (array instanceof Object[]) {
+            final Object[] a = (Object[])copy;
+            final Object[] b = (Object[])array;
+            if (a.length != b.length) { return false; }
+            for (int i = 0; i != a.length; ++i) {
+                if (a[i] != b[i]) { return false; }
+            }
+            return true;
+        }
+        if (array instanceof byte[]) {
+            return Arrays.equals((byte[])copy, (byte[])array);
+        }
+        if (array instanceof int[]) {
+            return Arrays.equals((int[])copy, (int[])array);
+        }
+        if (array instanceof long[]) {
+            return Arrays.equals((long[])copy, (long[])array);
+        }
+        if (array instanceof char[]) {
+            return Arrays.equals((char[])copy, (char[])array);
+        }
+        if (array instanceof boolean[]) {
+            return Arrays.equals((boolean[])copy, (boolean[])array);
+        }
+        if (array instanceof short[]) {
+            return Arrays.equals((short[])copy, (short[])array);
+        }
+        if (array instanceof double[]) {
+            return Arrays.equals((double[])copy, (double[])array);
+        }
+        return Arrays.equals((float[])copy, (float[])array);
+    }
+}
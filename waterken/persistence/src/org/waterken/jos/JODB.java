@@ -11,6 +11,7 @@ import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -18,13 +19,16 @@ import java.io.StreamCorruptedException;
 import java.lang.ref.ReferenceQueue;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.crypto.Mac;
@@ -46,6 +50,7 @@ import org.ref_send.promise.Log;
 import org.ref_send.promise.Promise;
 import org.ref_send.promise.Receiver;
 import org.waterken.base32.Base32;
+import org.waterken.cache.Budget;
 import org.waterken.cache.CacheReference;
 import org.waterken.db.Creator;
 import org.waterken.db.CyclicGraph;
@@ -59,6 +64,7 @@ import org.waterken.db.Service;
 import org.waterken.db.Transaction;
 import org.waterken.db.TransactionMonitor;
 import org.waterken.project.Project;
+import org.waterken.store.Collector;
 import org.waterken.store.Store;
 import org.waterken.store.Update;
 import org.waterken.trace.EventSender;
@@ -88,6 +94,26 @@ JODB<S> extends Database<S> {
      * file extension for a serialized Java object tree
      */
     static protected final String ext = ".jos";
+    
+    /**
+     * name of an optional root binding that overrides the choice of whether
+     * to store the vat's objects in the {@linkplain ClassDictionary compact}
+     * format
+     */
+    static protected final String format = ".compact";
+
+    /**
+     * name of a root binding marking a vat whose unreferenced objects are
+     * collected
+     * <p>
+     * Each name given out by a marked vat is anchored, so an object that is
+     * only referred to from outside the vat is kept. The objects of a vat
+     * created before it could be marked are never collected. The mark is
+     * never removed: once collection is turned off, a marked vat is no longer
+     * collected, but still anchors each name it gives out.
+     * </p>
+     */
+    static protected final String collected = ".collected";
 
     static private   final int keyChars = 70 / 5;     // 70 bits > 10^21 keys
     static protected final int keyBytes = keyChars * 5 / 8 + 1;
@@ -102,14 +128,26 @@ JODB<S> extends Database<S> {
 
     private final Receiver<Event> stderr;   // log event output
     private final Store store;              // byte storage
+    private final Budget budget;            // object cache budget, or null
+    private       boolean compact;          // Store in the compact format?
+    private final boolean quick;            // Version objects with SipHash?
+    private final boolean collect;          // Collect unreferenced objects?
+    private volatile boolean anchoring;     // Are names given out anchored?
+    private final ClassDictionary classes = new ClassDictionary();
 
     protected
     JODB(final S session, final Receiver<Service> service,
-         final Scheduler<Service> scheduler, final Receiver<Event> stderr,
-         final Store store) {
-        super(session, service, scheduler);
+         final Scheduler<Service> scheduler, final Receiver<Service> queries,
+         final Receiver<Event> stderr, final Store store,
+         final Budget budget, final boolean compact, final boolean quick,
+         final boolean collect) {
+        super(session, service, scheduler, queries);
         this.stderr = stderr;
         this.store = store;
+        this.budget = budget;
+        this.compact = compact;
+        this.quick = quick;
+        this.collect = collect;
     }
     
     static protected <S> Receiver<Object>
@@ -147,7 +185,76 @@ JODB<S> extends Database<S> {
     private       SecureRandom prng;
     private       HashMap<String,Bucket> f2b;       // object cache
     private       ReferenceQueue<Object> wiped;     // dead cache entries
-    private       Processor tx;     // currently active transaction processor
+    private final ThreadLocal<Processor> tx =       // active transaction
+        new ThreadLocal<Processor>();
+    private final Object updating = new Object();   // update transaction lock
+    private       ByteArrayOutputStream scratch =   // modified object state,
+        new ByteArrayOutputStream(256);             // reused by each update
+    
+    /**
+     * Can query transactions run concurrently?
+     * <p>
+     * Set once an update transaction has woken the database and finished
+     * initializing it.
+     * </p>
+     */
+    private volatile boolean concurrent = false;
+    
+    /*
+     * A query transaction uses the object cache while no update transaction,
+     * which modifies the cached objects in place, is using it. While an update
+     * is in progress, a query instead uses a side cache, which only holds
+     * objects loaded from the most recently committed state. Either cache is
+     * only used by one query at a time, since a query may also modify the
+     * objects it loads, until found out when it is persisted, so a query run
+     * concurrently with another loads its mutable objects into a cache of its
+     * own. An update never waits for a query: if a query is using the object
+     * cache, the query keeps it, and lets go of it when done, while the update
+     * starts a new object cache.
+     */
+    private final Object sharing = new Object();    // object cache sharing lock
+    private       int readers = 0;          // number of queries using cache
+    private       boolean writing = false;  // Is an update using the cache?
+    private       boolean siding = false;   // Is a query using the side cache?
+    private       long epoch = 0;           // odd while committing an update
+    private       long revision = 0;        // odd while committing a write
+    private       HashMap<String,Bucket> side;      // query side cache
+    private       ReferenceQueue<Object> sideWiped; // dead side cache entries
+    private       long sideEpoch;           // epoch of the side cache
+    private       Set<String> stale;        // names written by last commit
+    
+    /**
+     * immutable objects shared by all transactions
+     * <p>
+     * The state of an {@link Immutable} object cannot be modified, so the
+     * stored state it was loaded from is never overwritten either.
+     * </p>
+     */
+    private final HashMap<String,Bucket> frozen =
+        new HashMap<String,Bucket>(64);
+    private final ReferenceQueue<Object> thawed = new ReferenceQueue<Object>();
+    
+    /**
+     * [ cache entry => pinned root object ]
+     * <p>
+     * Given a {@link Budget}, the root objects of the object cache are held
+     * until the cache lets go of them. The pins are held by the database, not
+     * the shared budget, so they go with a database that is no longer used.
+     * </p>
+     */
+    private final IdentityHashMap<CacheReference<?,?>,Object> pins =
+        new IdentityHashMap<CacheReference<?,?>,Object>();
+    
+    /*
+     * A vat connected by a JODBManager is listed in the manager's index of
+     * vats to wake, while there is work for its wake task. Given a Residency
+     * policy, the vat also lets go of its cached objects once evicted, and is
+     * made resident again by its next transaction.
+     */
+    JODBManager<S> manager = null;      // connecting manager, or null
+    File folder = null;                 // folder known to the manager
+    volatile long used = 0;             // time of the last transaction
+    volatile boolean evicted = false;   // Were the cached objects let go?
     
     static protected final class
     Wake<S> implements Transaction<ImmutableArray<Effect<S>>> {
@@ -162,7 +269,12 @@ JODB<S> extends Database<S> {
 
     public <R extends Immutable> Promise<R>
     enter(final boolean isQuery, final Transaction<R> body) throws Exception {
-        synchronized (store) {
+        if (null != manager) {
+            used = System.currentTimeMillis();
+            if (evicted) { manager.admit(this); }
+        }
+        if (isQuery && concurrent) { return query(body); }
+        synchronized (updating) {
             if (!awake.is() && !(body instanceof Wake<?>)) {
                 // To restart any pending services, use a query transaction that
                 // prevents application objects from detecting restart. Since
@@ -183,37 +295,55 @@ JODB<S> extends Database<S> {
                 awake.set(true);
             }
             Promise<R> r;
-            final Processor m = tx = new Processor(isQuery, store.update());
+            final long from = exclude();
+            final Processor m;
+            try {
+                m = new Processor(isQuery, store.update(), f2b, wiped,
+                                  null, null, false, budget, pins, from);
+            } catch (final Exception e) {
+                include(false);
+                throw e;
+            }
+            tx.set(m);
             boolean done = false;
             try {
                 initialize(m);
                 try {
                     // execute the transaction body
                     if (!m.isQuery) {
-                        final Receiver<?> flip = root.fetch(null, JODB.flip);
+                        final Receiver<?> flip =
+                            root.fetch(null, Database.flip);
                         if (null != flip) { flip.apply(null); }
                     }
                     r = Eventual.ref(body.apply(root));
                 } catch (final Exception e) {
                     r = Eventual.reject(e);
                 }
+                final boolean indexed = null != manager && null != folder &&
+                                        (!m.isQuery || body instanceof Wake<?>);
+                final boolean busy = indexed && pending();
                 persist(m);
-                m.update.commit();
+                
+                // a vat is indexed before committing work for its wake task,
+                // and only dropped from the index once the work is committed
+                if (busy) { manager.waking(folder, true); }
+                commit(m.update, m.written);
+                if (indexed && !busy) { manager.waking(folder, false); }
+                classes.saved(m.unsaved.keySet());
                 done = true;
             } catch (final Error e) {
                 // allow the caller to recover from an aborted transaction
-                if (e instanceof OutOfMemoryError) { System.gc(); }
+                if (e instanceof OutOfMemoryError) { shed(); }
                 final Throwable cause = e.getCause();
                 if (cause instanceof Exception) { throw (Exception)cause; }
                 throw new Exception(e);
             } finally {
-                if (!done) {
-                    f2b = null;
-                    wiped = null;
-                }
-                tx = null;
+                tx.remove();
                 m.update.close();
+                include(!done && !salvage(m));
+                release(m);
             }
+            concurrent = awake.is();
             
             // output the log events for the committed transaction
             if (null != stderr) {
@@ -232,6 +362,362 @@ JODB<S> extends Database<S> {
         }
     }
     
+    /**
+     * Is there any work for the {@link Database#wake wake} task?
+     */
+    private boolean
+    pending() {
+        try {
+            final Promise<?> wake = root.fetch(null, Database.wake);
+            if (null == wake) { return false; }
+            final Promise<Boolean> pending =
+                root.fetch(null, Database.pending);
+            return null == pending || !Boolean.FALSE.equals(pending.call());
+        } catch (final Exception e) { return true; }
+    }
+    
+    /**
+     * Takes exclusive use of the object cache, leaving the cache to any query
+     * using it, and starting a new one.
+     * @return revision of the committed state
+     */
+    private long
+    exclude() {
+        synchronized (sharing) {
+            writing = true;
+            if (0 != readers) {
+                readers = 0;
+                f2b = null;
+                wiped = null;
+            }
+            if (null == f2b) {
+                wiped = new ReferenceQueue<Object>();
+                f2b = new HashMap<String,Bucket>(64);
+            }
+            return revision;
+        }
+    }
+    
+    /**
+     * Commits an update, marking the committed state as changing.
+     * @param update    update to commit
+     * @param written   names of the written buckets
+     * @throws IOException  any I/O problem
+     */
+    private void
+    commit(final Update update, final Set<String> written) throws IOException {
+        final boolean writes = !written.isEmpty();
+        synchronized (sharing) {
+            epoch += 1;
+            if (writes) { revision += 1; }
+        }
+        boolean committed = false;
+        try {
+            update.commit();
+            committed = true;
+        } finally {
+            synchronized (sharing) {
+                epoch += 1;
+                if (writes) { revision += 1; }
+                stale = committed && null != side && sideEpoch + 2 == epoch
+                    ? written : null;
+            }
+        }
+    }
+    
+    /**
+     * Shares the object cache with query transactions again.
+     * @param flush Must the cached objects be discarded?
+     */
+    private void
+    include(final boolean flush) {
+        synchronized (sharing) {
+            if (flush) {
+                drop(f2b);
+                f2b = null;
+                wiped = null;
+            }
+            writing = false;
+        }
+    }
+    
+    /**
+     * Keeps the unmodified part of the object cache of an aborted update.
+     * <p>
+     * An aborted update may have modified the cached objects in place. If
+     * nothing was written to the store, the objects created by the update,
+     * and each loaded object that no longer matches its
+     * {@linkplain Fingerprint fingerprint}, are removed from the cache, along
+     * with any object they are spliced into.
+     * </p>
+     * @param m aborted update
+     * @return <code>true</code> if the object cache can be kept, else
+     *         <code>false</code>
+     */
+    private boolean
+    salvage(final Processor m) {
+        if (!m.written.isEmpty()) { return false; }
+        
+        for (final Iterator<Bucket> i = m.f2b.values().iterator();
+                                    i.hasNext();) {
+            if (i.next().created) { i.remove(); }
+        }
+        for (final Map.Entry<Object,String> x : m.o2f.entrySet()) {
+            final Bucket b = m.f2b.get(x.getValue());
+            if (null != b && (null == b.fingerprint ||
+                              !b.fingerprint.matches(x.getKey()))) {
+                m.f2b.remove(x.getValue());
+                forget(b.value);
+            }
+        }
+        stock(m);
+        prune(m.f2b);
+        return true;
+    }
+    
+    /**
+     * Are the cached objects used by an aborted transaction unmodified?
+     * <p>
+     * An aborted transaction may have modified the cached objects in place.
+     * If nothing was written to the store, and each loaded object still
+     * matches its {@linkplain Fingerprint fingerprint}, the cached objects
+     * are the same as their stored state.
+     * </p>
+     * @param m aborted transaction
+     */
+    static private boolean
+    intact(final Processor m) {
+        if (!m.written.isEmpty()) { return false; }
+        for (final Map.Entry<Object,String> x : m.o2f.entrySet()) {
+            final Bucket b = m.get(x.getValue());
+            if (null == b || b.created) { continue; }
+            if (null == b.fingerprint || !b.fingerprint.matches(x.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Lets go of the objects held in a dropped object cache.
+     * @param f2b   dropped object cache, or <code>null</code>
+     */
+    private void
+    drop(final HashMap<String,Bucket> f2b) {
+        if (null == budget || null == f2b) { return; }
+        synchronized (f2b) {
+            for (final Bucket b : f2b.values()) { forget(b.value); }
+        }
+    }
+    
+    /**
+     * Lets go of a cached object held within the budget, or pinned.
+     * @param entry cache entry
+     */
+    private void
+    forget(final CacheReference<String,Object> entry) {
+        if (null == budget) { return; }
+        budget.drop(entry);
+        synchronized (pins) { pins.remove(entry); }
+    }
+    
+    /**
+     * Lets go of all the cached objects, and closes the store's open files.
+     * @return <code>false</code> if a query is using the object cache, else
+     *         <code>true</code>
+     */
+    boolean
+    evict() {
+        synchronized (updating) {
+            synchronized (sharing) {
+                if (0 != readers) { return false; }
+                
+                drop(f2b);
+                f2b = null;
+                wiped = null;
+                side = null;
+                sideWiped = null;
+                stale = null;
+                evicted = true;
+            }
+            synchronized (frozen) { frozen.clear(); }
+            synchronized (hints) { hints.clear(); }
+            synchronized (anchored) { anchored.clear(); }
+            synchronized (tags) { tags.clear(); }
+            store.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Lets go of the objects held within the budget, after running out of
+     * memory.
+     */
+    private void
+    shed() {
+        if (null != budget) { budget.shed(); }
+        System.gc();
+    }
+    
+    /**
+     * Processes a query transaction on a snapshot of the committed state.
+     * <p>
+     * Query transactions run concurrently with each other and with any update
+     * transaction. Objects are loaded into the object cache, unless an update
+     * or another query is using it, in which case the query uses the side
+     * cache, or, if that is also in use, loads the objects into a cache of its
+     * own, sharing only immutable objects. An update that starts while the
+     * query is using the object cache leaves it to the query.
+     * </p>
+     */
+    private <R extends Immutable> Promise<R>
+    query(final Transaction<R> body) throws Exception {
+        // use the update cache, if no other transaction is using it
+        boolean reading = false;
+        boolean aside = false;
+        final long before;
+        final long from;
+        synchronized (sharing) {
+            if (!writing && 0 == readers && null != f2b) {
+                readers += 1;
+                reading = true;
+            }
+            before = epoch;
+            from = revision;
+        }
+        HashMap<String,Bucket> shared = null;
+        Promise<R> r;
+        final Processor m;
+        boolean done = false;
+        boolean kept = false;   // Are the shared objects intact after an abort?
+        try {
+            final Update snapshot = store.snapshot();
+            ReferenceQueue<Object> sharedWiped = null;
+            long read = -1; // revision of the snapshot, or -1 if not known
+            synchronized (sharing) {
+                if (from == revision && 0 == from % 2) { read = from; }
+                if (reading) {
+                    shared = f2b;
+                    sharedWiped = wiped;
+                } else if (!siding && before == epoch && 0 == epoch % 2) {
+                    // no commit since the snapshot was taken, so use the cache
+                    // kept for the queries on the same snapshot
+                    if (null == side || sideEpoch != epoch) {
+                        if (null != side && null != stale) {
+                            // keep the entries the last commit didn't write
+                            synchronized (side) {
+                                side = new HashMap<String,Bucket>(side);
+                            }
+                            side.keySet().removeAll(stale);
+                            prune(side);
+                        } else {
+                            side = new HashMap<String,Bucket>(64);
+                            sideWiped = new ReferenceQueue<Object>();
+                        }
+                        sideEpoch = epoch;
+                        stale = null;
+                    }
+                    shared = side;
+                    sharedWiped = sideWiped;
+                    siding = true;
+                    aside = true;
+                }
+            }
+            m = new Processor(Database.query, snapshot,
+                    new HashMap<String,Bucket>(16),
+                    new ReferenceQueue<Object>(), shared, sharedWiped, true,
+                    budget, reading ? pins : null, read);
+            tx.set(m);
+            try {
+                initialize(m);
+                try {
+                    r = Eventual.ref(body.apply(root));
+                } catch (final Exception e) {
+                    r = Eventual.reject(e);
+                }
+                persist(m);
+                m.update.commit();
+                done = true;
+            } catch (final Error e) {
+                if (e instanceof OutOfMemoryError) { shed(); }
+                final Throwable cause = e.getCause();
+                if (cause instanceof Exception) { throw (Exception)cause; }
+                throw new Exception(e);
+            } finally {
+                tx.remove();
+                m.update.close();
+                kept = !done && intact(m);
+                if (!done) { release(m); }
+            }
+        } finally {
+            synchronized (sharing) {
+                // an update started a new object cache, leaving this one to
+                // the query
+                final boolean left = reading && shared != f2b;
+                if (left) {
+                    drop(shared);
+                } else if (!done && null != shared && !kept) {
+                    // an aborted query may have modified the shared objects
+                    if (shared == f2b) {
+                        drop(f2b);
+                        f2b = null;
+                        wiped = null;
+                    }
+                    if (shared == side) {
+                        side = null;
+                        sideWiped = null;
+                    }
+                }
+                if (reading && !left) { readers -= 1; }
+                if (aside) { siding = false; }
+            }
+        }
+        
+        // A snapshot cannot be written to, so any inline objects exported by
+        // the query are stored by an update. Since the name of an inline
+        // object is the hash of its state, writing it out of order is safe.
+        try {
+            if (!m.deferred.isEmpty()) { flush(m); }
+        } finally {
+            release(m);
+        }
+        return r;
+    }
+    
+    /**
+     * Stores the state created by a query transaction.
+     * @param m query transaction
+     * @throws Exception    any problem
+     */
+    private void
+    flush(final Processor m) throws Exception {
+        synchronized (updating) {
+            exclude();
+            try {
+                final Update update = store.update();
+                try {
+                    for (final Map.Entry<String,ByteArrayOutputStream> x :
+                            m.deferred.entrySet()) {
+                        final OutputStream fout =
+                            update.write(x.getKey() + ext);
+                        x.getValue().writeTo(fout);
+                        fout.flush();
+                        fout.close();
+                        final Bucket b = f2b.remove(x.getKey());
+                        if (null != b) { forget(b.value); }
+                    }
+                    save(update, m.unsaved);
+                    commit(update, m.deferred.keySet());
+                    classes.saved(m.unsaved.keySet());
+                } finally {
+                    update.close();
+                }
+            } finally {
+                include(false);
+            }
+        }
+    }
+    
     // org.waterken.jos.JODB interface
     
     /**
@@ -245,10 +731,16 @@ JODB<S> extends Database<S> {
                                     // <code>null</code> if not known
         final boolean managed;      // Does value contain only managed state?
         final PowerlessArray<String> splices;   // buckets spliced into value
+        final Fingerprint fingerprint;  // shallow copy of stored value, or
+                                        // <code>null</code> if not known
+        final int size;             // serialized length, or 0 if not known
+        final boolean compact;      // Is value stored in the compact format?
 
         Bucket(final CacheReference<String,Object> value,
                final boolean created, final ByteArray version,
-               final boolean managed, final PowerlessArray<String> splices) {
+               final boolean managed, final PowerlessArray<String> splices,
+               final Fingerprint fingerprint, final int size,
+               final boolean compact) {
             if (null == value) { throw new AssertionError(); }
             if (!created && null == version) { throw new AssertionError(); }
             if (!created && null == splices) { throw new AssertionError(); }
@@ -258,6 +750,9 @@ JODB<S> extends Database<S> {
             this.version = version;
             this.managed = managed;
             this.splices = splices;
+            this.fingerprint = fingerprint;
+            this.size = size;
+            this.compact = compact;
         }
     }
     
@@ -268,18 +763,153 @@ JODB<S> extends Database<S> {
     Processor {
         final boolean isQuery;
         final Update update;
+        final HashMap<String,Bucket> f2b;           // object cache
+        final ReferenceQueue<Object> wiped;         // dead cache entries
+        final HashMap<String,Bucket> shared;        // shared object cache, or
+                                                    // null if not shared
+        final ReferenceQueue<Object> sharedWiped;   // dead shared entries
+        final HashMap<String,ByteArrayOutputStream> deferred; // [ filename =>
+                                    // created state ] if update is a snapshot
+        final Budget budget;        // object cache budget, or null
+        final IdentityHashMap<CacheReference<?,?>,Object> pins; // [ cache
+                        // entry => pinned root object ], or null if not kept
+                        // in the database's own object cache
+        final ArrayList<String> stack =             // [ loading filename ]
+            new ArrayList<String>(16);
+        final long revision;        // revision of the state read, or -1
+        long reads = 0;             // sum of the hashes of the o2f names
         final IdentityHashMap<Object,String> o2f =  // [ object => filename ]
-            new IdentityHashMap<Object,String>(32);
+                new IdentityHashMap<Object,String>(32) {
+            static private final long serialVersionUID = 1L;
+
+            public String
+            put(final Object o, final String f) {
+                final String r = super.put(o, f);
+                reads += hash(f) - (null != r ? hash(r) : 0);
+                return r;
+            }
+        };
         final IdentityHashMap<Object,String> o2wf = // [object => weak filename]
             new IdentityHashMap<Object,String>(32);
         final HashSet<String> xxx =                 // [ dirty filename ]
             new HashSet<String>(16);
+        final HashSet<String> written =             // [ written filename ]
+            new HashSet<String>(16);
+        final HashMap<Long,byte[]> unsaved =        // [ key => descriptor ]
+            new HashMap<Long,byte[]>(4);            // needed by written state
+        final HashSet<String> exported =            // [ filename given out ]
+            new HashSet<String>(4);
+        int slicing = 0;            // number of serializations in progress
         final LinkedList<Service> services = new LinkedList<Service>();
         final LinkedList<Event> events = new LinkedList<Event>();
+        final long started = System.nanoTime();
         
-        Processor(final boolean isQuery, final Update update) {
+        Processor(final boolean isQuery, final Update update,
+                  final HashMap<String,Bucket> f2b,
+                  final ReferenceQueue<Object> wiped,
+                  final HashMap<String,Bucket> shared,
+                  final ReferenceQueue<Object> sharedWiped,
+                  final boolean isSnapshot, final Budget budget,
+                  final IdentityHashMap<CacheReference<?,?>,Object> pins,
+                  final long revision) {
             this.isQuery = isQuery;
             this.update = update;
+            this.f2b = f2b;
+            this.wiped = wiped;
+            this.shared = shared;
+            this.sharedWiped = sharedWiped;
+            deferred = isSnapshot
+                ? new HashMap<String,ByteArrayOutputStream>(8) : null;
+            this.budget = budget;
+            this.pins = pins;
+            this.revision = revision;
+        }
+        
+        /**
+         * Gets a cache entry.
+         * @param f name of corresponding bucket
+         * @return corresponding entry, or <code>null</code> if none
+         */
+        Bucket
+        get(final String f) {
+            final Bucket r = f2b.get(f);
+            if (null != r || null == shared) { return r; }
+            synchronized (shared) { return shared.get(f); }
+        }
+        
+        /**
+         * Removes dead cache entries.
+         */
+        void
+        purge() {
+            JODB.purge(f2b, wiped);
+            if (null != shared) {
+                synchronized (shared) { JODB.purge(shared, sharedWiped); }
+            }
+        }
+        
+        /**
+         * Caches a loaded object.
+         * <p>
+         * If the cache is shared, another query may have cached the same
+         * object first, in which case that object is used instead.
+         * </p>
+         * @param f         name of corresponding bucket
+         * @param o         loaded object
+         * @param version   {@link Bucket#version}
+         * @param managed   {@link Bucket#managed}
+         * @param splices   {@link Bucket#splices}
+         * @param fingerprint   {@link Bucket#fingerprint}
+         * @param size      {@link Bucket#size}
+         * @param compact   {@link Bucket#compact}
+         * @return cached object
+         */
+        Object
+        cache(final String f, final Object o, final ByteArray version,
+              final boolean managed, final PowerlessArray<String> splices,
+              final Fingerprint fingerprint, final int size,
+              final boolean compact) {
+            if (null == shared) {
+                // may overwrite a dead cache entry
+                final Bucket b = new Bucket(
+                    new CacheReference<String,Object>(f, o, wiped),
+                    false, version, managed, splices, fingerprint, size,
+                    compact);
+                f2b.put(f, b);
+                if (null == deferred) { keep(b); }
+                return o;
+            }
+            synchronized (shared) {
+                final Bucket prior = shared.get(f);
+                final Object r = null != prior ? prior.value.get() : null;
+                if (null != r) { return r; }
+                final Bucket b = new Bucket(
+                    new CacheReference<String,Object>(f, o, sharedWiped),
+                    false, version, managed, splices, fingerprint, size,
+                    compact);
+                shared.put(f, b);
+                keep(b);
+                return o;
+            }
+        }
+        
+        /**
+         * Holds on to an object in a lasting cache, within the cache budget.
+         * <p>
+         * The root objects of the database's own object cache are pinned
+         * instead, until the cache lets go of them.
+         * </p>
+         * @param b cache entry
+         */
+        void
+        keep(final Bucket b) {
+            if (null == budget) { return; }
+            final Object o = b.value.get();
+            if (null != pins && o instanceof SymbolicLink) {
+                synchronized (pins) { pins.put(b.value, o); }
+            } else {
+                budget.keep(b.value, b.size);
+            }
         }
     }
     
@@ -290,26 +920,334 @@ JODB<S> extends Database<S> {
      */
     protected void
     create(final String f, final Object o) {
+        final Processor m = tx.get();
         /*
          * to support caching of query responses, forbid export of selfish state
          * from a query transaction
          */
-        if (tx.isQuery && null != o && !Slicer.inline(o.getClass())) {
+        if (m.isQuery && null != o && !Slicer.inline(o.getClass())) {
             throw new ProhibitedCreation(Reflection.getName(o.getClass()));
         }
-        if (null != f2b.put(f,
-            new Bucket(new CacheReference<String,Object>(f, o, wiped),
-                       true, null, false, null))) {throw new AssertionError();}
-        if (null != tx.o2f.put(o, f)) { throw new AssertionError(); }
-        if (!tx.xxx.add(f)) { throw new AssertionError(); }
+        if (null != m.f2b.put(f,
+            new Bucket(new CacheReference<String,Object>(f, o, m.wiped),
+                       true, null, false, null, null, 0, false))) {
+            throw new AssertionError();
+        }
+        if (null != m.o2f.put(o, f)) { throw new AssertionError(); }
+        if (!m.xxx.add(f)) { throw new AssertionError(); }
     }
     
-    private final Root root = new Root() {
+    /**
+     * Shares a loaded immutable object with all transactions.
+     * @param f         name of corresponding bucket
+     * @param o         loaded object
+     * @param version   {@link Bucket#version}
+     * @param managed   {@link Bucket#managed}
+     * @param splices   {@link Bucket#splices}
+     * @param fingerprint   {@link Bucket#fingerprint}
+     * @param size      {@link Bucket#size}
+     * @param compact   {@link Bucket#compact}
+     */
+    private void
+    freeze(final String f, final Object o, final ByteArray version,
+           final boolean managed, final PowerlessArray<String> splices,
+           final Fingerprint fingerprint, final int size,
+           final boolean compact) {
+        synchronized (frozen) {
+            purge(frozen, thawed);
+            frozen.put(f, new Bucket(
+                new CacheReference<String,Object>(f, o, thawed),
+                false, version, managed, splices, fingerprint, size, compact));
+        }
+    }
+    
+    /**
+     * Removes the cache entries with a missing spliced entry.
+     * @param f2b   object cache
+     */
+    private void
+    prune(final HashMap<String,Bucket> f2b) {
+        for (boolean pruned = true; pruned;) {
+            pruned = false;
+            for (final Iterator<Bucket> i = f2b.values().iterator();
+                                        i.hasNext();) {
+                final Bucket b = i.next();
+                if (b.created) { continue; }
+                for (final String splice : b.splices) {
+                    if (!f2b.containsKey(splice)) {
+                        i.remove();
+                        forget(b.value);
+                        pruned = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Removes dead entries from an object cache.
+     * @param f2b   object cache
+     * @param wiped dead cache entries
+     */
+    static private void
+    purge(final HashMap<String,Bucket> f2b,final ReferenceQueue<Object> wiped){
+        while (true) {
+            final CacheReference<?,?> r = (CacheReference<?,?>)wiped.poll();
+            if (null == r) { break; }
+            final Bucket b = f2b.remove(r.key);
+            if (null != b && b.value != r) {
+                /*
+                 * The entry was reloaded before the soft reference to the
+                 * previously loaded value was dequeued. Just put the entry
+                 * back in the cache. 
+                 */
+                f2b.put(b.value.key, b);
+            }
+        }
+    }
+    
+    static private final int maxHints = 4096;   // maximum number of hints
+    private final LinkedHashMap<String,PowerlessArray<String>> hints =
+            new LinkedHashMap<String,PowerlessArray<String>>(64, 0.75f, true) {
+        static private final long serialVersionUID = 1L;
 
-    	/**
-    	 * stack of buckets currently being deserialized
-    	 */
-        private final ArrayList<String> stack = new ArrayList<String>(16);
+        protected boolean
+        removeEldestEntry(final Map.Entry<String,PowerlessArray<String>> x) {
+            return size() > maxHints;
+        }
+    };  // [ filename => {@link Bucket#splices} of its last known value ]
+
+    /**
+     * Remembers the buckets spliced into a bucket's value.
+     * @param f         name of corresponding bucket
+     * @param splices   {@link Bucket#splices}
+     */
+    private void
+    hint(final String f, final PowerlessArray<String> splices) {
+        synchronized (hints) {
+            if (0 == splices.length()) {
+                hints.remove(f);
+            } else {
+                hints.put(f, splices);
+            }
+        }
+    }
+
+    /**
+     * Reads ahead the buckets likely to be spliced into a loaded value.
+     * <p>
+     * The spliced buckets are otherwise each read by a separate lookup, as
+     * deserialization meets each {@link Splice}. The splices of the last
+     * known value of each bucket are remembered after the value is let go
+     * from the object cache, so the whole tree of buckets not in the cache
+     * can be read in one batch.
+     * </p>
+     * @param m transaction processor
+     * @param f name of bucket about to be loaded
+     * @throws IOException  any I/O problem
+     */
+    private void
+    prefetch(final Processor m, final String f) throws IOException {
+        final ArrayList<String> names = new ArrayList<String>();
+        final HashSet<String> seen = new HashSet<String>();
+        final ArrayList<String> todo = new ArrayList<String>();
+        todo.add(f);
+        while (!todo.isEmpty()) {
+            final PowerlessArray<String> splices;
+            synchronized (hints) {
+                splices = hints.get(todo.remove(todo.size() - 1));
+            }
+            if (null == splices) { continue; }
+            for (final String splice : splices) {
+                if (!seen.add(splice)) { continue; }
+                final Bucket b = m.get(splice);
+                if (null != b && null != b.value.get()) { continue; }
+                names.add(splice + ext);
+                todo.add(splice);
+            }
+        }
+        if (!names.isEmpty()) {
+            names.add(f + ext);
+            m.update.prefetch(names);
+        }
+    }
+    
+    /*
+     * An object that is only referred to by a name given out of the vat is
+     * not referred to by any stored state, so a vat whose unreferenced
+     * objects are collected anchors each name it gives out: a root bucket,
+     * named "." + name, holds the name. A name given out by a transaction
+     * that has yet to commit its anchor is also treated as a root.
+     */
+    static private final int maxAnchored = 4096;    // maximum number of kept
+                                                    // anchored names
+    private final LinkedHashMap<String,Boolean> anchored =
+            new LinkedHashMap<String,Boolean>(64, 0.75f, true) {
+        static private final long serialVersionUID = 1L;
+
+        protected boolean
+        removeEldestEntry(final Map.Entry<String,Boolean> eldest) {
+            return size() > maxAnchored;
+        }
+    };  // [ filename => Boolean.TRUE ] known to be anchored
+    private final HashMap<String,int[]> exporting =
+        new HashMap<String,int[]>();    // [ filename => number of
+                                        // uncommitted transactions giving
+                                        // it out ]
+
+    /**
+     * Is a name that of a persistent object's bucket?
+     * @param f name of bucket
+     */
+    static private boolean
+    isKey(final String f) {
+        if (keyChars != f.length()) { return false; }
+        for (int i = 0; i != keyChars; ++i) {
+            if (!isKeyChar(f.charAt(i))) { return false; }
+        }
+        return true;
+    }
+
+    static private boolean
+    isKeyChar(final int c) { return ('a'<=c && 'z'>=c) || ('2'<=c && '7'>=c); }
+
+    /**
+     * Notes a name given out by a transaction.
+     * @param m transaction processor
+     * @param f name given out
+     */
+    private void
+    expose(final Processor m, final String f) {
+        if (!anchoring || !isKey(f) || !m.exported.add(f)) { return; }
+        synchronized (exporting) {
+            final int[] count = exporting.get(f);
+            if (null != count) {
+                count[0] += 1;
+            } else {
+                exporting.put(f, new int[] { 1 });
+            }
+        }
+    }
+
+    /**
+     * Forgets the names given out by a finished transaction.
+     * @param m transaction processor
+     */
+    private void
+    release(final Processor m) {
+        if (m.exported.isEmpty()) { return; }
+        synchronized (exporting) {
+            for (final String f : m.exported) {
+                final int[] count = exporting.get(f);
+                count[0] -= 1;
+                if (0 == count[0]) { exporting.remove(f); }
+            }
+        }
+        m.exported.clear();
+    }
+
+    /**
+     * Is a name anchored in the state read by a transaction?
+     * @param m transaction processor
+     * @param f name given out
+     * @throws IOException  any I/O problem
+     */
+    private boolean
+    anchored(final Processor m, final String f) throws IOException {
+        synchronized (anchored) {
+            if (null != anchored.get(f)) { return true; }
+        }
+        try {
+            m.update.read("." + f + ext).close();
+        } catch (final FileNotFoundException e) { return false; }
+        synchronized (anchored) { anchored.put(f, Boolean.TRUE); }
+        return true;
+    }
+
+    /**
+     * Stores an anchor for each name given out by a transaction.
+     * @param m transaction processor
+     * @throws IOException  any I/O problem
+     */
+    private void
+    anchor(final Processor m) throws IOException {
+        for (final String f : m.exported) {
+            if (anchored(m, f)) { continue; }
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+            bytes.write(f.getBytes("UTF-8"));
+            if (null != m.deferred) {
+                m.deferred.put("." + f, bytes);
+            } else {
+                final OutputStream fout = m.update.write("." + f + ext);
+                bytes.writeTo(fout);
+                fout.flush();
+                fout.close();
+                m.written.add("." + f);
+            }
+        }
+    }
+
+    /**
+     * Lists the names of the buckets that stored state may refer to.
+     * <p>
+     * A bucket is referred to by its name, such as in a {@link Splice}, or a
+     * URL, so each run of name characters long enough to hold a name is
+     * listed, whether stored as one byte per character, as in a string, or
+     * two, as in a <code>char</code> array.
+     * </p>
+     * @param content   stored state
+     * @return filenames of any referred to buckets
+     */
+    static private Set<String>
+    referents(final byte[] content) {
+        final HashSet<String> r = new HashSet<String>();
+        final char[] name = new char[keyChars];
+        for (int step = 1; step != 3; ++step) {
+            for (int start = step - 1; start != 2 * step - 1; ++start) {
+                int run = 0;
+                for (int i = start; i < content.length; i += step) {
+                    final int c = content[i];
+                    if (!isKeyChar(c) || (2 == step && 0 != content[i - 1])) {
+                        run = 0;
+                        continue;
+                    }
+                    run += 1;
+                    if (run >= keyChars) {
+                        for (int j = 0; j != keyChars; ++j) {
+                            name[j] = (char)content[i - (keyChars-1-j)*step];
+                        }
+                        r.add(new String(name) + ext);
+                    }
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Finds the buckets no longer referred to.
+     * <p>
+     * The buckets with a chosen name, such as the root bindings, the class
+     * descriptors and the anchors, are roots, along with any bucket whose
+     * name is being given out.
+     * </p>
+     */
+    private final Collector collector = new Collector() {
+        public boolean
+        isRoot(final String filename) {
+            if (!filename.endsWith(ext)) { return true; }
+            final String f =
+                filename.substring(0, filename.length() - ext.length());
+            if (!isKey(f)) { return true; }
+            synchronized (exporting) { return exporting.containsKey(f); }
+        }
+
+        public Iterable<String>
+        trace(final byte[] content) { return referents(content); }
+    };
+    
+    private final Root root = new Root() {
 
         /**
          * Gets the corresponding value, loading from the store if needed.
@@ -323,39 +1261,40 @@ JODB<S> extends Database<S> {
         load(final String f) throws FileNotFoundException, RuntimeException {
             if ("".equals(f)) { return null; }
             
+            final Processor m = tx.get();
             {
                 // check the cache
-                final Bucket b = f2b.get(f);
+                final Bucket b = m.get(f);
                 if (null != b) {
 	                final Object o = b.value.get();
 	                if (null != o) {
-	                    if (!b.created) { markDirty(o, b); }
+	                    if (!b.created) {
+	                        if (null != budget) { budget.hit(b.value); }
+	                        markDirty(o, b);
+	                    }
 	                    return o;
 	                }
                 }
             }
 
             // remove dead cache entries
-            while (true) {
-                final CacheReference<?,?> r = (CacheReference<?,?>)wiped.poll();
-                if (null == r) { break; }
-                final Bucket b = f2b.remove(r.key);
-                if (b.value != r) {
-                    /*
-                     * The entry was reloaded before the soft reference to the
-                     * previously loaded value was dequeued. Just put the entry
-                     * back in the cache. 
-                     */
-                    f2b.put(b.value.key, b);
-                }
+            m.purge();
+            
+            {
+                // check the shared cache of immutable objects
+                final Object o = thaw(m, f);
+                if (null != o) { return o; }
             }
+            if (null != budget) { budget.miss(); }
             
-            final int startCycle = stack.lastIndexOf(f);
+            final int startCycle = m.stack.lastIndexOf(f);
             if (-1 != startCycle) {
                 PowerlessArray<String> cycle = PowerlessArray.array();
-                for (final String at : stack.subList(startCycle,stack.size())) {
+                for (final String at :
+                        m.stack.subList(startCycle, m.stack.size())) {
                     try {
-                        cycle = cycle.with(identify(tx.update.read(at + ext)));
+                        cycle = cycle.with(identify(m.update.read(at + ext),
+                                                    source(m.update)));
                     } catch (final IOException e) { throw new Error(e); }
                 }
                 throw new CyclicGraph(cycle.with(cycle.get(0)));
@@ -363,13 +1302,16 @@ JODB<S> extends Database<S> {
             
             InputStream in;
             try {
-                in = tx.update.read(f + ext);
+                if (m.stack.isEmpty()) { prefetch(m, f); }
+                in = m.update.read(f + ext);
             } catch (final FileNotFoundException e) { throw e;
             } catch (final IOException e) { throw new Error(e); }
-            stack.add(f);
+            m.stack.add(f);
             try {
                 final Object o;
                 final ByteArray version;
+                final int size;
+                final boolean compact;
                 final Milestone<Boolean> unmanaged = Milestone.make();
                 final HashSet<String> splices = new HashSet<String>(8);
                 if (JODB.secret.equals(f)) {
@@ -379,17 +1321,20 @@ JODB<S> extends Database<S> {
                     o = oin.readObject();
                     setMaster((ByteArray)((SymbolicLink)o).target);
                     
-                    final Mac mac = allocMac(this);
+                    final Mac mac = allocVersion(this);
                     final Slicer out = new Slicer(false, o, this,
                             new MacOutputStream(mac, null));
                     out.writeObject(o);
                     out.flush();
                     out.close();
                     version = ByteArray.array(mac.doFinal());
-                    freeMac(mac);
+                    freeVersion(mac);
+                    size = 0;
+                    compact = false;
                 } else {
-                    final Mac mac = allocMac(this);
-                    in = new MacInputStream(mac, in);
+                    final Mac mac = allocVersion(this);
+                    final MacInputStream min = new MacInputStream(mac, in);
+                    in = min;
                     final SubstitutionStream oin =
                             new SubstitutionStream(true, code, in) {
                         protected Object
@@ -402,21 +1347,33 @@ JODB<S> extends Database<S> {
                             }
                             return x;
                         }
+                        
+                        protected ObjectStreamClass
+                        lookup(final long key) throws IOException {
+                            return classes.find(key, source(m.update));
+                        }
                     };
                     o = oin.readObject();
                     while (-1 != in.read()) { in.skip(Long.MAX_VALUE); }
                     in = oin;
                     version = ByteArray.array(mac.doFinal());
-                    freeMac(mac);
+                    freeVersion(mac);
+                    size = (int)min.getCount();
+                    compact = oin.isCompact();
                 }
-                // may overwrite a dead cache entry
-                f2b.put(f, new Bucket(
-                    new CacheReference<String,Object>(f, o, wiped),
-                    false, version, !unmanaged.is(), 
-                    PowerlessArray.array(splices.toArray(new String[0]))));
-                if (null != tx.o2f.put(o, f)) { throw new AssertionError(); }
-                if (!tx.xxx.add(f)) { throw new AssertionError(); }
-                return o;
+                final PowerlessArray<String> spliced =
+                    PowerlessArray.array(splices.toArray(new String[0]));
+                hint(f, spliced);
+                final Fingerprint fingerprint = Fingerprint.take(o);
+                final Object r = m.cache(f, o, version, !unmanaged.is(),
+                                         spliced, fingerprint, size, compact);
+                if (null != m.o2f.put(r, f)) { throw new AssertionError(); }
+                if (!m.xxx.add(f)) { throw new AssertionError(); }
+                if (r == o && JoeE.instanceOf(o, Immutable.class)) {
+                    freeze(f, o, version, !unmanaged.is(), spliced,
+                           fingerprint, size, compact);
+                }
+                return r;
             } catch (final InvalidClassException e) {
                 throw new RuntimeException(e);
             } catch (final ClassNotFoundException e) {
@@ -428,23 +1385,90 @@ JODB<S> extends Database<S> {
             } catch (final Exception e) {
                 throw new RuntimeException(e);
             } finally {
-                stack.remove(stack.size() - 1);
+                m.stack.remove(m.stack.size() - 1);
                 try { in.close(); } catch (final Exception e) {}
             }
         }
         
         private void
         markDirty(final Object o, final Bucket b) {
-            if (null == tx.o2f.put(o, b.value.key)) {
-                if (!tx.xxx.add(b.value.key)) { throw new AssertionError(); }
+            final Processor m = tx.get();
+            if (null == m.o2f.put(o, b.value.key)) {
+                if (!m.xxx.add(b.value.key)) { throw new AssertionError(); }
                 for (final String splice : b.splices) {
-                    final Bucket spliced = f2b.get(splice);
+                    final Bucket spliced = m.get(splice);
                     if (null == spliced) { throw new AssertionError(); }
                     markDirty(spliced.value.get(), spliced);
                 }
             }
         }
         
+        /**
+         * Copies a shared immutable object into the transaction's cache.
+         * @param m transaction processor
+         * @param f name of corresponding bucket
+         * @return corresponding value, or <code>null</code> if not shared
+         */
+        private Object
+        thaw(final Processor m, final String f) {
+            final HashMap<String,Bucket> shared = new HashMap<String,Bucket>(8);
+            final IdentityHashMap<Object,String> copied =
+                new IdentityHashMap<Object,String>(8);
+            if (!collect(m, f, shared, copied)) { return null; }
+            for (final Map.Entry<Object,String> x : copied.entrySet()) {
+                final String name = x.getValue();
+                final Bucket b = shared.get(name);
+                final Bucket copy = new Bucket(
+                    new CacheReference<String,Object>(name, x.getKey(),m.wiped),
+                    false, b.version, b.managed, b.splices, b.fingerprint,
+                    b.size, b.compact);
+                m.f2b.put(name, copy);
+                if (null == m.deferred) { m.keep(copy); }
+            }
+            final Bucket b = m.f2b.get(f);
+            final Object o = b.value.get();
+            if (null != budget) { budget.hit(b.value); }
+            markDirty(o, b);
+            return o;
+        }
+        
+        /**
+         * Collects a shared immutable object and those spliced into it.
+         * <p>
+         * An object already in the transaction's cache must be the same one
+         * that is shared, or the shared object is not used.
+         * </p>
+         * @param m         transaction processor
+         * @param f         name of corresponding bucket
+         * @param shared    [ filename => shared bucket ]
+         * @param copied    [ object => filename ] to be copied
+         * @return <code>true</code> if the whole object tree is shared
+         */
+        private boolean
+        collect(final Processor m, final String f,
+                final HashMap<String,Bucket> shared,
+                final IdentityHashMap<Object,String> copied) {
+            if (shared.containsKey(f)) { return true; }
+            final Bucket b;
+            synchronized (frozen) {
+                purge(frozen, thawed);
+                b = frozen.get(f);
+            }
+            if (null == b) { return false; }
+            final Object o = b.value.get();
+            if (null == o) { return false; }
+            shared.put(f, b);
+            final Bucket cached = m.get(f);
+            if (null != cached && null != cached.value.get()) {
+                return o == cached.value.get();
+            }
+            copied.put(o, f);
+            for (final String splice : b.splices) {
+                if (!collect(m, splice, shared, copied)) { return false; }
+            }
+            return true;
+        }
+        
         // org.waterken.db.Root interface
         
         /**
@@ -463,7 +1487,7 @@ JODB<S> extends Database<S> {
          */
         public void
         assign(final String name, final Object value) {
-            if (tx.isQuery) {
+            if (tx.get().isQuery) {
               throw new ProhibitedModification(Reflection.getName(Root.class));
             }
             create(canonicalize(name), new SymbolicLink(value));
@@ -480,20 +1504,37 @@ JODB<S> extends Database<S> {
 
         public String
         export(final Object o, final boolean isWeak) {
+            final Processor m = tx.get();
+            final String r = name(m, o, isWeak);
+            
+            // a name given out by serialization is only stored in the state
+            if (!isWeak && 0 == m.slicing) { expose(m, r); }
+            return r;
+        }
+        
+        /**
+         * Gets the name of an object, creating one if needed.
+         * @param m         transaction processor
+         * @param o         object to name
+         * @param isWeak    Is the identity weak?
+         * @return name of the object's bucket
+         */
+        private String
+        name(final Processor m, final Object o, final boolean isWeak) {
             
             // check for an existing strong identity
             {
-                final String f = tx.o2f.get(o);
+                final String f = m.o2f.get(o);
                 if (null != f) { return f; }
             }
             
             // check for an existing weak identity
             {
-                final String wf = tx.o2wf.get(o);
+                final String wf = m.o2wf.get(o);
                 if (null != wf) {
                     if (!isWeak) {
                         create(wf, o);
-                        tx.o2wf.remove(o);
+                        m.o2wf.remove(o);
                     }
                     return wf;
                 }
@@ -502,9 +1543,11 @@ JODB<S> extends Database<S> {
             // create a new identity
             final String r;
             if (null == o || Slicer.inline(o.getClass())) {
+                m.slicing += 1;
                 try {
                     final Mac mac = allocMac(this);
                     final Slicer out = new Slicer(isWeak, o, this,
+                            compact ? classes : null, null,
                             new MacOutputStream(mac, null));
                     out.writeObject(o);
                     out.flush();
@@ -512,37 +1555,111 @@ JODB<S> extends Database<S> {
                     final byte[] k = mac.doFinal();
                     freeMac(mac);
                     r = filename(k);
-                    final Bucket b = f2b.get(r);
+                    final Bucket b = m.get(r);
                     if (null != b) {
-                        if(!b.created && !ByteArray.array(k).equals(b.version)){
+                        // only a MAC version can be checked against the key
+                        if (!quick && !b.created &&
+                                !ByteArray.array(k).equals(b.version)) {
                             throw new AssertionError();
                         }
                         return r;   // recalculated key for a stored object
                     }
-                } catch (final Exception e) { throw new Error(e); }
+                } catch (final Exception e) { throw new Error(e);
+                } finally {
+                    m.slicing -= 1;
+                }
             } else {
                 final byte[] k = new byte[keyBytes];
                 prng.nextBytes(k);
                 r = filename(k);
             }
             if (isWeak) {
-                tx.o2wf.put(o, r);
+                m.o2wf.put(o, r);
             } else {
                 create(r, o);
             }
             return r;
         }
     };
+    /*
+     * An ETag is a MAC of the versions of the objects read by a transaction,
+     * which only change when a commit writes them. A computed ETag is kept
+     * for the set of names read, so a transaction that reads the same
+     * objects, with no write committed since, gets it without sorting the
+     * names or computing the MAC again. The kept tags are looked up by the
+     * sum of the hashes of the names, which is updated as each object is
+     * read, but different sets of names may have the same sum, so a tag is
+     * only used if its set of names is the same as the one read.
+     */
+    static private final class
+    Tag {
+        final long revision;        // revision of the state the tag is for
+        final Set<String> names;    // names read
+        final String etag;
+
+        Tag(final long revision, final Set<String> names, final String etag) {
+            this.revision = revision;
+            this.names = names;
+            this.etag = etag;
+        }
+    }
+
+    static private final int maxTags = 64;  // maximum number of kept tags
+    private final LinkedHashMap<Long,Tag> tags =    // [ name set => tag ]
+            new LinkedHashMap<Long,Tag>(16, 0.75f, true) {
+        static private final long serialVersionUID = 1L;
+
+        protected boolean
+        removeEldestEntry(final Map.Entry<Long,Tag> eldest) {
+            return size() > maxTags;
+        }
+    };
+
+    /**
+     * Finds the kept ETag for the objects read by a transaction.
+     * @param m transaction
+     * @return kept tag, or <code>null</code> if none
+     */
+    private Tag
+    recall(final Processor m) {
+        if (-1 == m.revision) { return null; }
+        final Tag r;
+        synchronized (tags) { r = tags.get(m.reads); }
+        if (null == r || m.revision != r.revision) { return null; }
+        final Collection<String> read = m.o2f.values();
+        if (read.size() < r.names.size()) { return null; }
+        return r.names.equals(new HashSet<String>(read)) ? r : null;
+    }
+
+    /**
+     * Hashes an object's name.
+     */
+    static private long
+    hash(final String name) {
+        long r = 0xCBF29CE484222325L;
+        for (int i = 0; i != name.length(); ++i) {
+            r = (r ^ name.charAt(i)) * 0x100000001B3L;
+        }
+        r ^= r >>> 33;
+        r *= 0xFF51AFD7ED558CCDL;
+        r ^= r >>> 33;
+        return r;
+    }
+
     final TransactionMonitor monitor = new TransactionMonitor() {
         public String
         tag() {
-            if (!tx.o2wf.isEmpty()) { return null; }
+            final Processor m = tx.get();
+            if (!m.o2wf.isEmpty()) { return null; }
+            final Tag memo = recall(m);
+            if (null != memo) { return memo.etag; }
             final Mac mac;
             try {
                 mac = allocMac(root);
             } catch (final Exception e) { throw new Error(e); }
-            for (final String name : new TreeSet<String>(tx.o2f.values())) {
-                final Bucket b = f2b.get(name);
+            final TreeSet<String> names = new TreeSet<String>(m.o2f.values());
+            for (final String name : names) {
+                final Bucket b = m.get(name);
                 if (!b.created) {
                     if (!b.managed) { return null; }
                     mac.update(b.version.toByteArray());
@@ -558,17 +1675,29 @@ JODB<S> extends Database<S> {
             }
             final byte[] id = mac.doFinal();
             freeMac(mac);
-            return '\"' + Base32.encode(id).substring(0, 2*keyChars) + '\"';
+            final String r =
+                '\"' + Base32.encode(id).substring(0, 2*keyChars) + '\"';
+            if (-1 != m.revision) {
+                synchronized (tags) {
+                    tags.put(m.reads, new Tag(m.revision,
+                                              new HashSet<String>(names), r));
+                }
+            }
+            return r;
         }
+        
+        public long
+        elapsed() { return (System.nanoTime() - tx.get().started) / 1000000; }
     };
     final Receiver<Effect<S>> effect = new Receiver<Effect<S>>() {
         public void
         apply(final Effect<S> task) {
-            if (tx.isQuery) {
+            final Processor m = tx.get();
+            if (m.isQuery) {
                 throw new ProhibitedModification(
                         Reflection.getName(Receiver.class));
             }
-            tx.services.add(new Service() {
+            m.services.add(new Service() {
                 public Void
                 call() throws Exception {
                     task.apply(JODB.this);
@@ -582,7 +1711,8 @@ JODB<S> extends Database<S> {
         apply(final String project, final String base, String name,
             final Transaction<X> setup) throws InvalidFilenameException,
                                                ProhibitedModification {
-            if (tx.isQuery) {
+            final Processor m = tx.get();
+            if (m.isQuery) {
                 throw new ProhibitedModification(
                         Reflection.getName(Creator.class));
             }
@@ -591,7 +1721,7 @@ JODB<S> extends Database<S> {
             if (null != name) {
                 name = canonicalize(name);
                 try {
-                    subStore = tx.update.nest(name);
+                    subStore = m.update.nest(name);
                 } catch (final InvalidFilenameException e) { throw e;
                 } catch (final Exception e) { throw new Error(e); }
             } else {
@@ -600,7 +1730,7 @@ JODB<S> extends Database<S> {
                         final byte[] d = new byte[4];
                         prng.nextBytes(d);
                         name = Base32.encode(d).substring(0, 6);
-                        subStore = tx.update.nest(name);
+                        subStore = m.update.nest(name);
                         break;
                     } catch (final InvalidFilenameException e) {
                     } catch (final Exception e) { throw new Error(e); }
@@ -611,11 +1741,11 @@ JODB<S> extends Database<S> {
                 final byte[] bits = new byte[128 / Byte.SIZE];
                 prng.nextBytes(bits);
                 final ByteArray secretBits = ByteArray.array(bits);
-                final JODB<S> sub = new JODB<S>(null, null, null,
+                final JODB<S> sub = new JODB<S>(null, null, null, null,
                     null == stderr ? new Receiver<Event>() {
                         public void
                         apply(final Event value) {}
-                } : stderr, subStore);
+                } : stderr, subStore, budget, compact, quick, collect);
                 final String subProject;
                 if (null != project) {
                     subProject = project;
@@ -625,6 +1755,12 @@ JODB<S> extends Database<S> {
                     sub.code = code;
                 }
                 sub.prng = prng;
+                sub.anchoring = collect;
+                if (null != folder) {
+                    sub.manager = manager;
+                    sub.folder = new File(folder, name);
+                }
+                if (collect) { subStore.collect(sub.collector); }
                 sub.awake.set(true);
                 return sub.enter(Database.update, new Transaction<X>() {
                     public X
@@ -632,8 +1768,9 @@ JODB<S> extends Database<S> {
                         local.assign(Database.project, subProject);
                         local.assign(Database.here, here);
                         local.assign(secret, secretBits);
+                        if (collect) { local.assign(collected, Boolean.TRUE); }
                         final TurnCounter turn = TurnCounter.make(here);
-                        local.assign(JODB.flip, turn.flip);
+                        local.assign(Database.flip, turn.flip);
                         final ClassLoader code =
                             local.fetch(null, Database.code);
                         final Tracer tracer = ApplicationTracer.make(code);
@@ -652,23 +1789,18 @@ JODB<S> extends Database<S> {
     final Receiver<Event> txerr = new Receiver<Event>() {
         public void
         apply(final Event event) {
-            if (tx.isQuery) {
+            final Processor m = tx.get();
+            if (m.isQuery) {
                 throw new ProhibitedModification(
                         Reflection.getName(Receiver.class));
             }
-            tx.events.add(event);
+            m.events.add(event);
         }
     };
     final Log nop = new Log();
 
     private void
     initialize(final Processor m) throws Exception {
-        final boolean restockCache = null == f2b;
-        if (restockCache) {
-            wiped = new ReferenceQueue<Object>();
-            f2b = new HashMap<String,Bucket>(64);
-        }
-
         /*
          * finish Vat initialization, which was delayed to avoid doing anything
          * intensive while holding the global "live" lock
@@ -679,29 +1811,43 @@ JODB<S> extends Database<S> {
                 project = root.fetch(null, Database.project);
             } catch (final Exception e) { throw new Error(e); }
             code = Project.connect(project);
+            final Boolean format = root.fetch(null, JODB.format);
+            if (null != format) { compact = format; }
+            anchoring = Boolean.TRUE.equals(root.fetch(null, collected));
+            if (anchoring && collect) { store.collect(collector); }
             prng = new SecureRandom(); 
         }
         
         // setup the pseudo-persistent objects
-        m.o2f.put(code,         Database.code);
-        m.o2f.put(creator,      Database.creator);
-        m.o2f.put(effect,       Database.effect);
-        m.o2f.put(null,         Database.nothing);
-        m.o2f.put(monitor,      Database.monitor);
-        m.o2f.put(txerr,        ".txerr");
-        m.o2f.put(root,         ".root");
+        stock(m);
+    }
+    
+    /**
+     * Puts the pseudo-persistent objects in a transaction's cache.
+     * @param m transaction processor
+     */
+    private void
+    stock(final Processor m) {
+        final IdentityHashMap<Object,String> o2f =
+            new IdentityHashMap<Object,String>(16);
+        o2f.put(code,           Database.code);
+        o2f.put(creator,        Database.creator);
+        o2f.put(effect,         Database.effect);
+        o2f.put(null,           Database.nothing);
+        o2f.put(monitor,        Database.monitor);
+        o2f.put(txerr,          ".txerr");
+        o2f.put(root,           ".root");
         if (null == stderr) {
             // short-circuit the log implementation
-            m.o2f.put(nop,      Database.log);
-        }
-        if (restockCache) {
-            for (final Map.Entry<Object,String> x : m.o2f.entrySet()) {
-                final String f = x.getValue();
-                if (!f2b.containsKey(f)) {
-                    f2b.put(f, new Bucket(
-                        new CacheReference<String,Object>(f, x.getKey(), wiped),
-                        true, null, false, null));
-                }
+            o2f.put(nop,        Database.log);
+        }
+        m.o2f.putAll(o2f);
+        for (final Map.Entry<Object,String> x : o2f.entrySet()) {
+            final String f = x.getValue();
+            if (!m.f2b.containsKey(f)) {
+                m.f2b.put(f, new Bucket(
+                    new CacheReference<String,Object>(f, x.getKey(), m.wiped),
+                    true, null, false, null, null, 0, false));
             }
         }
     }
@@ -709,41 +1855,118 @@ JODB<S> extends Database<S> {
     private void
     persist(final Processor m) throws Exception {
         while (!m.xxx.isEmpty()) {
-            final Iterator<String> i = m.xxx.iterator();
-            final String f = i.next();
-            final Bucket b = f2b.get(f);
-            final Object o = b.value.get();
-            i.remove();
+            // serializing may create more buckets, so take a batch at a time
+            final String[] batch = m.xxx.toArray(new String[m.xxx.size()]);
+            m.xxx.clear();
+            for (final String f : batch) {
+                final Bucket b = m.get(f);
+                final Object o = b.value.get();
+                if (!b.created && null != b.fingerprint &&
+                        b.fingerprint.matches(o)) {
+                    continue;   // the fields are unchanged, so the state is too
+                }
 
-            final Mac mac = allocMac(root);
-            final ByteArrayOutputStream bytes =
-                !b.created && (m.isQuery || JoeE.isFrozen(o))
-                    ? null : new ByteArrayOutputStream(256);
-            final Slicer out =
-                new Slicer(false, o, root, new MacOutputStream(mac, bytes));
-            out.writeObject(o);
-            out.flush();
-            out.close();
-            final ByteArray version = ByteArray.array(mac.doFinal());
-            freeMac(mac);
-            if (b.created || !version.equals(b.version)) {
-                if (null == bytes) {
-                    final Object mutated = o instanceof SymbolicLink ?
-                            ((SymbolicLink)o).target : o;
-                    throw new ProhibitedModification(Reflection.getName(
-                        null != mutated ? mutated.getClass() : Void.class));
+                // a created object is serialized straight into the store,
+                // other state is buffered until it is known to be modified
+                final OutputStream fout;
+                final ByteArrayOutputStream bytes;
+                if (!b.created && (m.isQuery || JoeE.isFrozen(o))) {
+                    fout = null;
+                    bytes = null;
+                } else if (null != m.deferred) {
+                    fout = null;
+                    bytes = new ByteArrayOutputStream(256);
+                } else if (b.created) {
+                    fout = m.update.write(f + ext);
+                    bytes = null;
+                } else {
+                    fout = null;
+                    bytes = scratch;
+                    bytes.reset();
                 }
-                final OutputStream fout = m.update.write(f + ext);
-                bytes.writeTo(fout);
-                fout.flush();
-                fout.close();
-                if (b != f2b.put(f, new Bucket(b.value, false, version,
-                                          out.isManaged(), out.getSplices()))) {
-                    throw new AssertionError();
+                
+                // compare to the stored state in the format it was stored in
+                final boolean packed = null != dictionary(f);
+                final boolean migrating = !b.created && b.compact != packed;
+                final HashMap<Long,byte[]> unsaved =
+                    new HashMap<Long,byte[]>(4);
+                Mac mac = allocVersion(root);
+                MacOutputStream sink = new MacOutputStream(mac,
+                        migrating ? null : null != fout ? fout : bytes);
+                Slicer out = slice(o, b.created ? packed : b.compact, unsaved,
+                                   sink);
+                ByteArray version = ByteArray.array(mac.doFinal());
+                freeVersion(mac);
+                final Fingerprint fingerprint = Fingerprint.take(o);
+                if (b.created || !version.equals(b.version)) {
+                    if (null == fout && null == bytes) {
+                        final Object mutated = o instanceof SymbolicLink ?
+                                ((SymbolicLink)o).target : o;
+                        throw new ProhibitedModification(Reflection.getName(
+                            null != mutated ? mutated.getClass() : Void.class));
+                    }
+                    if (migrating) {
+                        // store the modified state in the vat's format
+                        unsaved.clear();
+                        mac = allocVersion(root);
+                        sink = new MacOutputStream(mac, bytes);
+                        out = slice(o, packed, unsaved, sink);
+                        version = ByteArray.array(mac.doFinal());
+                        freeVersion(mac);
+                    }
+                    m.unsaved.putAll(unsaved);
+                    if (null != m.deferred) {
+                        // an inline object is named by its state, so only
+                        // store one not already in the snapshot, nor given
+                        // out unanchored, as it may since have been collected
+                        boolean stored =
+                            !m.exported.contains(f) || anchored(m, f);
+                        if (stored) {
+                            try {
+                                m.update.read(f + ext).close();
+                            } catch (final FileNotFoundException e) {
+                                stored = false;
+                            }
+                        }
+                        if (!stored) { m.deferred.put(f, bytes); }
+                    } else {
+                        if (null == fout) {
+                            final OutputStream to = m.update.write(f + ext);
+                            bytes.writeTo(to);
+                            to.flush();
+                            to.close();
+                            
+                            // don't hold on to the buffer for a large object
+                            if (bytes.size() > 64 * 1024) {
+                                scratch = new ByteArrayOutputStream(256);
+                            }
+                        }
+                        m.written.add(f);
+                    }
+                    final Bucket x = new Bucket(b.value, false, version,
+                        out.isManaged(), out.getSplices(), fingerprint,
+                        sink.getLength(), packed);
+                    if (b != m.f2b.put(f, x)) { throw new AssertionError(); }
+                    if (null == m.deferred) { m.keep(x); }
+                    hint(f, x.splices);
+                } else if (!m.isQuery && null != fingerprint) {
+                    // the fields changed, but not the state, so refresh the
+                    // fingerprint
+                    if (b != m.f2b.put(f, new Bucket(b.value, false, b.version,
+                            b.managed, b.splices, fingerprint, b.size,
+                            b.compact))) {
+                        throw new AssertionError();
+                    }
                 }
             }
         }
         
+        // keep the objects named by the names given out
+        anchor(m);
+        
+        // store the class descriptors the written state needs
+        if (null == m.deferred) { save(m.update, m.unsaved); }
+        
         // to avoid disk searches, put dead weak keys in the cache
         while (!m.o2wf.isEmpty()) {
             final Iterator<String> i = m.o2wf.values().iterator();
@@ -751,32 +1974,104 @@ JODB<S> extends Database<S> {
             i.remove();
             final Object o = new SymbolicLink(null);
             final ByteArray version; {
-                final Mac mac = allocMac(root);
+                final Mac mac = allocVersion(root);
                 final ObjectOutputStream out =
                     new ObjectOutputStream(new MacOutputStream(mac, null));
                 out.writeObject(o);
                 out.flush();
                 out.close();
                 version = ByteArray.array(mac.doFinal());
-                freeMac(mac);
+                freeVersion(mac);
             }
-            if (null != f2b.put(f, new Bucket(
-                new CacheReference<String,Object>(f,o,wiped),false,version,true,
-                    PowerlessArray.array(new String[0])))) {
+            if (null != m.f2b.put(f, new Bucket(
+                new CacheReference<String,Object>(f, o, m.wiped),
+                    false, version, true,
+                    PowerlessArray.array(new String[0]),
+                    Fingerprint.take(o), 0, false))) {
                 throw new AssertionError();
             }
         }
     }
     
-    static private final String flip = ".flip";     // name of loop turn flipper
-
+    /**
+     * Gets the class dictionary to store a bucket with.
+     * @param f bucket's filename
+     * @return dictionary for the compact format, or <code>null</code> for the
+     *         standard format
+     */
+    private ClassDictionary
+    dictionary(final String f) {
+        // the master secret is read without a class dictionary
+        return compact && !secret.equals(f) ? classes : null;
+    }
+    
+    /**
+     * Serializes an object tree.
+     * @param o         root object
+     * @param compact   Use the {@linkplain ClassDictionary compact} format?
+     * @param unsaved   [ key => descriptor ] to add the used descriptors not
+     *                  yet stored to
+     * @param bytes     output stream
+     * @return closed output
+     * @throws IOException  any I/O problem
+     */
+    private Slicer
+    slice(final Object o, final boolean compact,
+          final HashMap<Long,byte[]> unsaved,
+          final OutputStream bytes) throws IOException {
+        final Processor m = tx.get();
+        m.slicing += 1;
+        try {
+            final Slicer out = new Slicer(false, o, root,
+                    compact ? classes : null, unsaved, bytes);
+            out.writeObject(o);
+            out.flush();
+            out.close();
+            return out;
+        } finally {
+            m.slicing -= 1;
+        }
+    }
+    
+    /**
+     * Writes out class descriptors.
+     * @param update    update to write to
+     * @param unsaved   [ key => descriptor ]
+     * @throws IOException  any I/O problem
+     */
+    static private void
+    save(final Update update,
+          final HashMap<Long,byte[]> unsaved) throws IOException {
+        for (final Map.Entry<Long,byte[]> x : unsaved.entrySet()) {
+            final OutputStream fout =
+                update.write(ClassDictionary.filename(x.getKey()) + ext);
+            fout.write(x.getValue());
+            fout.flush();
+            fout.close();
+        }
+    }
+    
+    /**
+     * Gets the stored class descriptors.
+     * @param update    store to read from
+     */
+    static private ClassDictionary.Source
+    source(final Update update) {
+        return new ClassDictionary.Source() {
+            public InputStream
+            read(final String filename) throws IOException {
+                return update.read(filename);
+            }
+        };
+    }
+    
     /*
      * In testing, allocation of hash objects doubled serialization time, so I'm
      * keeping a pool of them. Sucky code is like cancer.
      */
     static private final String secret = ".secret"; // name of master MAC key
     private final ArrayList<Mac> macs = new ArrayList<Mac>();
-    private SecretKeySpec master;                   // MAC key generation secret
+    private volatile SecretKeySpec master;          // MAC key generation secret
 
     protected void
     setMaster(final ByteArray bits) {
@@ -785,7 +2080,9 @@ JODB<S> extends Database<S> {
     
     protected Mac
     allocMac(final Root local) throws Exception {
-        if (!macs.isEmpty()) { return macs.remove(macs.size() - 1); }
+        synchronized (macs) {
+            if (!macs.isEmpty()) { return macs.remove(macs.size() - 1); }
+        }
         if (null == master) {
             final ByteArray bits = local.fetch(null, secret);
             setMaster(bits);
@@ -796,23 +2093,81 @@ JODB<S> extends Database<S> {
     }
 
     protected void
-    freeMac(final Mac h) { macs.add(h); }
+    freeMac(final Mac h) { synchronized (macs) { macs.add(h); } }
+    
+    /*
+     * An object's version is only used to detect a change to its state, so
+     * only needs to be a MAC where it is also exposed: as a content-addressed
+     * key, which is computed separately, or in an ETag, which is a MAC of the
+     * versions. In quick mode, a version is a SipHash, keyed by a secret
+     * derived from the master secret.
+     */
+    private final ArrayList<Mac> hashes = new ArrayList<Mac>();
+    private volatile SecretKeySpec hashKey;         // version hash key
+    
+    /**
+     * Allocates a calculation of an object's version.
+     * @param local root to read the master secret from
+     */
+    protected Mac
+    allocVersion(final Root local) throws Exception {
+        if (!quick) { return allocMac(local); }
+        synchronized (hashes) {
+            if (!hashes.isEmpty()) { return hashes.remove(hashes.size() - 1); }
+        }
+        if (null == hashKey) {
+            final Mac mac = allocMac(local);
+            final byte[] bits = mac.doFinal("version".getBytes("UTF-8"));
+            freeMac(mac);
+            hashKey = new SecretKeySpec(bits, 0, 16, "SipHash");
+        }
+        final Mac r = new SipHash();
+        r.init(hashKey);
+        return r;
+    }
+    
+    protected void
+    freeVersion(final Mac h) {
+        if (!quick) {
+            freeMac(h);
+        } else {
+            synchronized (hashes) { hashes.add(h); }
+        }
+    }
     
     /**
      * Determine the type of object stored in a stream.
+     * @param s         stream to read
+     * @param classes   stored class descriptors
      */
     static protected String
-    identify(final InputStream s) throws IOException {
+    identify(final InputStream s,
+             final ClassDictionary.Source classes) throws IOException {
         final DataInputStream data = new DataInputStream(s);
         final String r;
         if (ObjectStreamConstants.STREAM_MAGIC != data.readShort()) {
             r = "! " + StreamCorruptedException.class.getName();
         } else {
-            data.readShort();   // skip version number, assume compatible
+            final boolean compact = ClassDictionary.version == data.readShort();
             switch (data.read()) {
             case ObjectStreamConstants.TC_OBJECT: {
                 switch (data.read()) {
-                case ObjectStreamConstants.TC_CLASSDESC: { r = data.readUTF(); }
+                case ObjectStreamConstants.TC_CLASSDESC: {
+                    if (compact) {
+                        final String f =
+                            ClassDictionary.filename(data.readLong()) + ext;
+                        String name;
+                        try {
+                            name = ClassDictionary.decode(classes.read(f)).
+                                getName();
+                        } catch (final FileNotFoundException e) {
+                            name = "? " + f;    // stored elsewhere
+                        }
+                        r = name;
+                    } else {
+                        r = data.readUTF();
+                    }
+                }
                 break;
                 case ObjectStreamConstants.TC_PROXYCLASSDESC: {
                     r = data.readInt() > 0 ? data.readUTF() : "proxy";
@@ -830,6 +2185,17 @@ JODB<S> extends Database<S> {
             break;
             case ObjectStreamConstants.TC_NULL: { r = "null"; }
             break;
+            // a stored class descriptor
+            case ObjectStreamConstants.TC_BLOCKDATA: {
+                data.read();    // skip block length
+                r = "class " + data.readUTF();
+            }
+            break;
+            case ObjectStreamConstants.TC_BLOCKDATALONG: {
+                data.readInt(); // skip block length
+                r = "class " + data.readUTF();
+            }
+            break;
             default: r = "! " + StreamCorruptedException.class.getName();
             }
         }
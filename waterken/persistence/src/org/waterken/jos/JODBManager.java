@@ -2,17 +2,41 @@
 // found at http://www.opensource.org/licenses/mit-license.html
 package org.waterken.jos;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.joe_e.Immutable;
+import org.joe_e.Token;
 import org.ref_send.log.Event;
 import org.ref_send.promise.Receiver;
+import org.waterken.cache.Budget;
 import org.waterken.cache.Cache;
+import org.waterken.db.Database;
 import org.waterken.db.DatabaseManager;
+import org.waterken.db.Root;
 import org.waterken.db.Service;
+import org.waterken.db.Transaction;
+import org.waterken.store.DoesNotExist;
 import org.waterken.store.StoreMaker;
 import org.waterken.thread.Loop;
 import org.waterken.thread.LoopScheduler;
+import org.waterken.thread.Pool;
 
 /**
  * A cache of live vats.
@@ -21,10 +45,50 @@ public final class
 JODBManager<S> implements DatabaseManager<S> {
     
     private final Cache<File,JODB<S>> live = Cache.make();
+    
+    /**
+     * [ vat folder => resident vat ], from least to most recently used
+     */
+    private final LinkedHashMap<File,JODB<S>> resident =
+        new LinkedHashMap<File,JODB<S>>(16, 0.75f, true);
+    
+    /**
+     * [ vat folder => Boolean.TRUE ], from least to most recently used
+     */
+    private final LinkedHashMap<File,Boolean> recent =
+        new LinkedHashMap<File,Boolean>(16, 0.75f, true);
+    private       File record = null;   // file recording the most recently
+                                        // used vats, or null
+    private       boolean sweeping = false; // Is a sweep scheduled?
+    
+    /**
+     * [ folder of a vat with work for its wake task ]
+     */
+    private final LinkedHashSet<File> waking = new LinkedHashSet<File>();
+    private       FileOutputStream index = null;    // log of the changes to
+                                                    // waking, or null
+    
+    /**
+     * evicts the vats of all managers
+     */
+    static private final ScheduledExecutorService evictor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread
+            newThread(final Runnable task) {
+                final Thread r = new Thread(task, "evictor");
+                r.setDaemon(true);
+                return r;
+            }
+        });
 
     private final StoreMaker layout;
     private final S session;
     private final Receiver<Event> stderr;
+    private final Budget budget;
+    private final boolean compact;
+    private final boolean quick;
+    private final boolean collect;
+    private final Residency residency;
     
     /**
      * Constructs an instance.
@@ -35,23 +99,337 @@ JODBManager<S> implements DatabaseManager<S> {
     public
     JODBManager(final StoreMaker layout, final S session,
                 final Receiver<Event> stderr) {
+        this(layout, session, stderr, null);
+    }
+    
+    /**
+     * Constructs an instance.
+     * @param session   session state for all vats
+     * @param stderr    standard error output for all vats
+     * @param layout    store maker
+     * @param options   optional features, or <code>null</code> for none
+     */
+    public
+    JODBManager(final StoreMaker layout, final S session,
+                final Receiver<Event> stderr, final Options options) {
+        final Options x = null != options
+            ? options : new Options(null, false, false, false, null);
         this.layout = layout;
         this.session = session;
         this.stderr = stderr;
+        budget = x.budget;
+        compact = x.compact;
+        quick = x.quick;
+        collect = x.collect;
+        residency = x.residency;
+        if (null != residency && 0 != residency.idle) { schedule(); }
     }
 
     public JODB<S>
     connect(final File id) throws IOException {
         final File dir = id.getCanonicalFile();
+        final JODB<S> r;
         synchronized (live) {
-            JODB<S> r = live.fetch(null, dir);
-            if (null != r) { return r; }
-            final Loop<Service> service = Loop.make(dir.getPath());
-            r = new JODB<S>(session, service.foreground,
-                    LoopScheduler.make(service.foreground), stderr,
-                    layout.apply(service.background, dir.getParentFile(), dir));
-            live.put(dir, r);
-            return r;
+            final JODB<S> cached = live.fetch(null, dir);
+            if (null != cached) {
+                r = cached;
+            } else {
+                final Loop<Service> service =
+                    Loop.make(dir.getPath(), Pool.turn);
+                r = new JODB<S>(session, service.foreground,
+                    LoopScheduler.make(service.foreground),
+                    Loop.<Service>concurrent(dir.getPath(), Pool.turn), stderr,
+                    layout.apply(service.background, dir.getParentFile(), dir),
+                    budget, compact, quick, collect);
+                live.put(dir, r);
+                r.folder = dir;
+                r.manager = this;
+            }
+        }
+        if (null != residency) { admit(r); }
+        return r;
+    }
+    
+    // org.waterken.jos.JODBManager interface
+    
+    /**
+     * Makes a vat resident, evicting the least recently used vats over the
+     * limit.
+     * @param vat   vat to make resident
+     */
+    void
+    admit(final JODB<S> vat) {
+        vat.used = System.currentTimeMillis();
+        final ArrayList<JODB<S>> evicting = new ArrayList<JODB<S>>();
+        synchronized (resident) {
+            final boolean again = vat.evicted;
+            vat.evicted = false;
+            if (null == resident.put(vat.folder, vat)) {
+                residency.opened(again);
+            }
+            if (0 != residency.warm) {
+                recent.put(vat.folder, Boolean.TRUE);
+                final Iterator<File> i = recent.keySet().iterator();
+                while (recent.size() > residency.warm) {
+                    i.next();
+                    i.remove();
+                }
+            }
+            if (0 != residency.limit) {
+                for (final Iterator<JODB<S>> i = resident.values().iterator();
+                        resident.size() > residency.limit && i.hasNext();) {
+                    final JODB<S> x = i.next();
+                    if (x != vat) {
+                        i.remove();
+                        evicting.add(x);
+                    }
+                }
+            }
+        }
+        
+        // a vat is evicted once its transactions are done, so another vat's
+        // transaction never waits on it
+        for (final JODB<S> x : evicting) {
+            evictor.execute(new Runnable() {
+                public void
+                run() { evict(x); }
+            });
+        }
+    }
+    
+    /**
+     * Evicts a vat that is no longer resident.
+     * @param vat   vat to evict
+     */
+    private void
+    evict(final JODB<S> vat) {
+        if (vat.evict()) {
+            residency.evicted();
+        } else {
+            // the vat is still in use, so keep it resident
+            synchronized (resident) {
+                if (!resident.containsKey(vat.folder)) {
+                    resident.put(vat.folder, vat);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Schedules periodic sweeps, if not already scheduled.
+     */
+    private synchronized void
+    schedule() {
+        if (sweeping) { return; }
+        
+        sweeping = true;
+        final long period = 0 != residency.idle
+            ? Math.max(residency.idle / 2, 1) : 60 * 1000;
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void
+            run() { sweep(); }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Evicts the idle vats, and records the most recently used vats.
+     */
+    private void
+    sweep() {
+        final ArrayList<JODB<S>> evicting = new ArrayList<JODB<S>>();
+        final ArrayList<File> used;
+        synchronized (resident) {
+            if (0 != residency.idle) {
+                final long now = System.currentTimeMillis();
+                for (final Iterator<JODB<S>> i = resident.values().iterator();
+                        i.hasNext();) {
+                    final JODB<S> x = i.next();
+                    if (now - x.used >= residency.idle) {
+                        i.remove();
+                        evicting.add(x);
+                    }
+                }
+            }
+            used = new ArrayList<File>(recent.keySet());
+        }
+        for (final JODB<S> x : evicting) { evict(x); }
+        
+        final File file;
+        synchronized (this) { file = record; }
+        if (null != file && file.getParentFile().isDirectory()) {
+            try {
+                save(file, used, "");
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Starts keeping an index of the vats with work for their wake task.
+     * <p>
+     * A vat is added to the index, and the index synced, before a commit
+     * that leaves work for its wake task. A vat is removed once it has
+     * committed a state with no such work. Each change is appended to the
+     * index file, which is compacted when opened.
+     * </p>
+     * @param file  index file
+     * @return <code>true</code> if the index was kept by a previous run, else
+     *         <code>false</code>, in which case all vats must be woken
+     * @throws IOException  any I/O problem
+     */
+    public boolean
+    index(final File file) throws IOException {
+        final LinkedHashSet<File> listed = new LinkedHashSet<File>();
+        boolean found = true;
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+            try {
+                for (String line; null != (line = in.readLine());) {
+                    if (line.startsWith("+")) {
+                        listed.add(new File(line.substring(1)));
+                    } else if (line.startsWith("-")) {
+                        listed.remove(new File(line.substring(1)));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final FileNotFoundException e) { found = false; }
+        synchronized (waking) {
+            listed.addAll(waking);
+            save(file, listed, "+");
+            waking.clear();
+            waking.addAll(listed);
+            if (null != index) { index.close(); }
+            index = new FileOutputStream(file, true);
+        }
+        return found;
+    }
+    
+    /**
+     * Updates the index of vats to wake.
+     * @param folder    vat folder
+     * @param pending   Is there any work for the vat's wake task?
+     * @throws IOException  any I/O problem
+     */
+    void
+    waking(final File folder, final boolean pending) throws IOException {
+        synchronized (waking) {
+            if (pending ? !waking.add(folder) : !waking.remove(folder)) {
+                return;
+            }
+            if (null == index) { return; }
+            
+            index.write(((pending ? "+" : "-") + folder.getPath() + "\n").
+                            getBytes("UTF-8"));
+            if (pending) { index.getChannel().force(false); }
+        }
+    }
+    
+    /**
+     * Wakes the vats in the {@linkplain #index index}, a few at a time.
+     * <p>
+     * The other vats are woken by their first transaction.
+     * </p>
+     * @param concurrency   maximum number of vats woken at once
+     * @throws InterruptedException interrupted while waiting
+     */
+    public void
+    wake(final int concurrency) throws InterruptedException {
+        final ArrayList<File> folders;
+        synchronized (waking) { folders = new ArrayList<File>(waking); }
+        final ExecutorService workers =
+            Executors.newFixedThreadPool(Math.max(1, concurrency));
+        for (final File folder : folders) {
+            workers.execute(new Runnable() {
+                public void
+                run() {
+                    try {
+                        connect(folder).enter(Database.query,
+                                              new Transaction<Immutable>() {
+                            public Immutable
+                            apply(final Root local) { return new Token(); }
+                        }).call();
+                    } catch (final DoesNotExist e) {
+                        try {
+                            waking(folder, false);
+                        } catch (final IOException e2) {}
+                    } catch (final Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Loads the vats recently used before a restart.
+     * <p>
+     * The vats recorded in the <code>record</code> file are loaded, from least
+     * to most recently used. From then on, the most recently used vats are
+     * recorded in the file, so they can be loaded after the next restart.
+     * </p>
+     * @param record    file recording the most recently used vats
+     */
+    public void
+    warm(final File record) {
+        if (null == residency) { return; }
+        
+        final ArrayList<String> paths = new ArrayList<String>();
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(record), "UTF-8"));
+            try {
+                for (String line; null != (line = in.readLine());) {
+                    if (0 != line.length()) { paths.add(line); }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final FileNotFoundException e) {
+        } catch (final IOException e) { e.printStackTrace(); }
+        for (final String path : paths) {
+            try {
+                connect(new File(path)).enter(Database.query,
+                                              new Transaction<Immutable>() {
+                    public Immutable
+                    apply(final Root local) { return new Token(); }
+                }).call();
+            } catch (final Exception e) {}  // vat was deleted
+        }
+        synchronized (this) { this.record = record; }
+        schedule();
+    }
+    
+    /**
+     * Records vat folders.
+     * @param record    file to write
+     * @param folders   vat folders
+     * @param prefix    line prefix
+     * @throws IOException  any I/O problem
+     */
+    static private void
+    save(final File record, final Iterable<File> folders,
+         final String prefix) throws IOException {
+        final File tmp = new File(record.getPath() + ".new");
+        final Writer out =
+            new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (final File folder : folders) {
+                out.write(prefix);
+                out.write(folder.getPath());
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(record)) {
+            record.delete();
+            if (!tmp.renameTo(record)) { throw new IOException(); }
         }
     }
 }
@@ -15,6 +15,7 @@ MacInputStream extends InputStream {
 
     private final Mac mac;
     private final InputStream in;
+    private       long count = 0;   // number of bytes read
     
     MacInputStream(final Mac mac, final InputStream in) {
         this.mac = mac;
@@ -32,14 +33,28 @@ MacInputStream extends InputStream {
     @Override public int
     read() throws IOException {
         final int r = in.read();
-        if (-1 != r) { mac.update((byte)r); }
+        if (-1 != r) {
+            mac.update((byte)r);
+            count += 1;
+        }
         return r;
     }
 
     @Override public int
     read(final byte[] b, final int off, final int len) throws IOException {
         final int r = in.read(b, off, len);
-        if (-1 != r) { mac.update(b, off, r); }
+        if (-1 != r) {
+            mac.update(b, off, r);
+            count += r;
+        }
         return r;
     }
+    
+    // org.waterken.jos.MacInputStream interface
+    
+    /**
+     * Gets the number of bytes read.
+     */
+    long
+    getCount() { return count; }
 }
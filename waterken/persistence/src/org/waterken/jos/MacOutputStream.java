@@ -8,37 +8,48 @@ import java.io.OutputStream;
 import javax.crypto.Mac;
 
 /**
- * Updates a MAC calculation. 
+ * Updates a MAC calculation, optionally passing the bytes on to another
+ * output stream.
  */
 /* package */ final class
 MacOutputStream extends OutputStream {
 
     private final Mac mac;
     private final OutputStream out;
+    private       int length = 0;   // number of bytes written
     
     MacOutputStream(final Mac mac, final OutputStream out) {
         this.mac = mac;
         this.out = out;
     }
     
+    /**
+     * Gets the number of bytes written.
+     */
+    int
+    getLength() { return length; }
+    
     // java.io.OutputStream interface
 
     @Override public void
     write(final int b) throws IOException {
         if (null != out) { out.write(b); }
         mac.update((byte)b);
+        length += 1;
     }
 
     @Override public void
     write(final byte[] v, final int off, final int len) throws IOException {
         if (null != out) { out.write(v, off, len); }
         mac.update(v, off, len);
+        length += len;
     }
 
     @Override public void
     write(final byte[] v) throws IOException {
         if (null != out) { out.write(v); }
         mac.update(v);
+        length += v.length;
     }
 
     @Override public void
@@ -0,0 +1,81 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.jos;
+
+import org.joe_e.Struct;
+import org.waterken.cache.Budget;
+
+/**
+ * The optional features of the vats connected by a {@link JODBManager}.
+ */
+public final class
+Options extends Struct {
+
+    /**
+     * object cache budget shared by all vats, or <code>null</code> to leave
+     * the object caches entirely to the garbage collector
+     */
+    public final Budget budget;
+
+    /**
+     * Store objects in the compact format, which refers to each class
+     * descriptor by a key into a dictionary kept in the vat, instead of
+     * repeating it?
+     * <p>
+     * A vat's choice of object format can be overridden by assigning a
+     * boolean to the ".compact" name in its root. Objects stored in either
+     * format can always be read, and a stored object is rewritten in the
+     * chosen format when it is next modified.
+     * </p>
+     */
+    public final boolean compact;
+
+    /**
+     * Version objects with a SipHash?
+     * <p>
+     * A vat detects a change to a stored object by comparing a hash of its
+     * serialized state, called its version, to that of the stored state. In
+     * quick mode, this hash is a SipHash, instead of an HMAC-SHA256. Either
+     * way, a content-addressed key and an ETag are still computed with an
+     * HMAC-SHA256. The versions are only kept in memory, so the mode can be
+     * changed without affecting the stored vats.
+     * </p>
+     */
+    public final boolean quick;
+
+    /**
+     * Collect the unreferenced objects of marked vats?
+     * <p>
+     * A vat created while collection is turned on is marked as collected:
+     * each name it gives out is kept as a root, and the objects no longer
+     * referred to from a root are removed from its store in the background.
+     * A vat that is not marked is never collected, since the names it has
+     * already given out are not known.
+     * </p>
+     */
+    public final boolean collect;
+
+    /**
+     * policy for keeping vats resident, or <code>null</code> to leave the
+     * vats entirely to the garbage collector
+     */
+    public final Residency residency;
+
+    /**
+     * Constructs an instance.
+     * @param budget    {@link #budget}
+     * @param compact   {@link #compact}
+     * @param quick     {@link #quick}
+     * @param collect   {@link #collect}
+     * @param residency {@link #residency}
+     */
+    public
+    Options(final Budget budget, final boolean compact, final boolean quick,
+            final boolean collect, final Residency residency) {
+        this.budget = budget;
+        this.compact = compact;
+        this.quick = quick;
+        this.collect = collect;
+        this.residency = residency;
+    }
+}
@@ -3,7 +3,9 @@
 package org.waterken.jos;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -59,6 +61,14 @@ Report {
     
     static private void
     report(final PrintStream stdout, final Archive archive) throws IOException {
+        final ClassDictionary.Source classes = new ClassDictionary.Source() {
+            public InputStream
+            read(final String filename) throws IOException {
+                final Archive.Entry found = archive.find(filename);
+                if (null == found) {throw new FileNotFoundException(filename);}
+                return found.open();
+            }
+        };
         final HashMap<String,Total> total = new HashMap<String,Total>();
         stdout.println("--- Entries ( name, length, typename) ---");
         for (final Archive.Entry entry : archive) {
@@ -69,7 +79,7 @@ Report {
             stdout.print('\t');
             stdout.print(entry.getLength());
             stdout.print('\t');
-            final String typename = JODB.identify(entry.open());
+            final String typename = JODB.identify(entry.open(), classes);
             stdout.println(typename);
 
             // keep track of totals
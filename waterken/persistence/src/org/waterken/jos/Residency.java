@@ -0,0 +1,104 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.jos;
+
+import java.io.Serializable;
+
+import org.ref_send.deserializer;
+import org.ref_send.name;
+
+/**
+ * A policy for keeping vats resident in memory.
+ * <p>
+ * A {@link JODBManager} holds on to each resident vat. An evicted vat lets go
+ * of its cached objects and closes the open files of its store, which are
+ * loaded again by its next transaction. A vat is evicted once it has been
+ * idle for {@linkplain #idle a while}, and the least recently used vat is
+ * evicted when more than {@linkplain #limit limit} vats are resident. The
+ * memory held by the cached objects of all the vats is limited by the
+ * manager's object cache {@link org.waterken.cache.Budget}.
+ * </p>
+ */
+public final class
+Residency implements Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * maximum number of resident vats, or zero for no limit
+     */
+    public final int limit;
+
+    /**
+     * milliseconds a vat stays resident after its last transaction, or zero
+     * to only evict vats over the {@linkplain #limit limit}
+     */
+    public final long idle;
+
+    /**
+     * number of most recently used vats recorded to be loaded again after a
+     * restart
+     */
+    public final int warm;
+
+    /**
+     * Constructs an instance.
+     * @param limit {@link #limit}
+     * @param idle  {@link #idle}
+     * @param warm  {@link #warm}
+     */
+    public @deserializer
+    Residency(@name("limit") final int limit,
+              @name("idle") final long idle,
+              @name("warm") final int warm) {
+        if (limit < 0 || idle < 0 || warm < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.limit = limit;
+        this.idle = idle;
+        this.warm = warm;
+    }
+
+    // org.waterken.jos.Residency interface
+
+    private transient long opens = 0;       // number of vats loaded
+    private transient long evictions = 0;   // number of vats evicted
+    private transient long reopens = 0;     // number of evicted vats reloaded
+
+    /**
+     * Gets the number of vats loaded into memory.
+     */
+    public synchronized long
+    getOpens() { return opens; }
+
+    /**
+     * Gets the number of resident vats evicted.
+     */
+    public synchronized long
+    getEvictions() { return evictions; }
+
+    /**
+     * Gets the number of evicted vats made resident again.
+     */
+    public synchronized long
+    getReopens() { return reopens; }
+
+    /**
+     * Counts a vat made resident.
+     * @param again Was the vat evicted before?
+     */
+    synchronized void
+    opened(final boolean again) {
+        if (again) {
+            reopens += 1;
+        } else {
+            opens += 1;
+        }
+    }
+
+    /**
+     * Counts an evicted vat.
+     */
+    synchronized void
+    evicted() { evictions += 1; }
+}
@@ -0,0 +1,132 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.jos;
+
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Mac;
+import javax.crypto.MacSpi;
+
+/**
+ * A SipHash-2-4 calculation, with a 128 bit output.
+ * <p>
+ * SipHash is a keyed hash for short inputs. It is several times cheaper than
+ * an HMAC-SHA256, especially for the small inputs typical of a serialized
+ * object, yet a party that does not know the key still cannot find two
+ * inputs with the same output. The key must be 16 bytes long.
+ * </p>
+ */
+/* package */ final class
+SipHash extends Mac {
+
+    SipHash() {
+        super(new Spi(), null, "SipHash-2-4-128");
+    }
+
+    static private final class
+    Spi extends MacSpi {
+        private long k0, k1;        // key
+        private long v0, v1, v2, v3;// internal state
+        private long tail;          // bytes not yet in a whole word
+        private int tailBits;       // number of bits in tail
+        private long length;        // number of bytes hashed
+
+        protected int
+        engineGetMacLength() { return 16; }
+
+        protected void
+        engineInit(final Key key, final AlgorithmParameterSpec params)
+                                                throws InvalidKeyException {
+            final byte[] k = key.getEncoded();
+            if (null == k || 16 != k.length) {throw new InvalidKeyException();}
+            k0 = word(k, 0);
+            k1 = word(k, 8);
+            engineReset();
+        }
+
+        protected void
+        engineReset() {
+            v0 = k0 ^ 0x736f6d6570736575L;
+            v1 = k1 ^ 0x646f72616e646f6dL ^ 0xEE;
+            v2 = k0 ^ 0x6c7967656e657261L;
+            v3 = k1 ^ 0x7465646279746573L;
+            tail = 0;
+            tailBits = 0;
+            length = 0;
+        }
+
+        protected void
+        engineUpdate(final byte b) {
+            length += 1;
+            tail |= (b & 0xFFL) << tailBits;
+            tailBits += Byte.SIZE;
+            if (Long.SIZE == tailBits) {
+                compress(tail);
+                tail = 0;
+                tailBits = 0;
+            }
+        }
+
+        protected void
+        engineUpdate(final byte[] b, final int off, final int len) {
+            int i = off;
+            final int end = off + len;
+            while (0 != tailBits && i != end) { engineUpdate(b[i++]); }
+            for (; end - i >= 8; i += 8) {
+                compress(word(b, i));
+                length += 8;
+            }
+            while (i != end) { engineUpdate(b[i++]); }
+        }
+
+        protected byte[]
+        engineDoFinal() {
+            final long last = ((length & 0xFF) << 56) | tail;
+            compress(last);
+            v2 ^= 0xEE;
+            round(); round(); round(); round();
+            final long h0 = v0 ^ v1 ^ v2 ^ v3;
+            v1 ^= 0xDD;
+            round(); round(); round(); round();
+            final long h1 = v0 ^ v1 ^ v2 ^ v3;
+            final byte[] r = new byte[16];
+            for (int i = 0; i != 8; ++i) {
+                r[i] = (byte)(h0 >>> (i * Byte.SIZE));
+                r[8 + i] = (byte)(h1 >>> (i * Byte.SIZE));
+            }
+            engineReset();
+            return r;
+        }
+
+        private void
+        compress(final long m) {
+            v3 ^= m;
+            round(); round();
+            v0 ^= m;
+        }
+
+        private void
+        round() {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+
+        /**
+         * Reads a little-endian word.
+         */
+        static private long
+        word(final byte[] b, final int off) {
+            long r = 0;
+            for (int i = 8; 0 != i--;) {
+                r = (r << Byte.SIZE) | (b[off + i] & 0xFF);
+            }
+            return r;
+        }
+    }
+}
@@ -5,6 +5,7 @@ package org.waterken.jos;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
@@ -12,6 +13,7 @@ import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.HashSet;
+import java.util.Map;
 
 import org.joe_e.JoeE;
 import org.joe_e.Selfless;
@@ -30,6 +32,10 @@ Slicer extends ObjectOutputStream {
     private final boolean weakTop;
     private final Object top;
     private final Root root;
+    private final ClassDictionary classes;  // compact format dictionary, or
+                                            // null for the standard format
+    private final Map<Long,byte[]> unsaved; // [ key => descriptor ] used,
+                                            // but not yet stored, or null
     
     private final boolean throwableTop;
     private final Milestone<Boolean> unmanaged = Milestone.make();
@@ -37,14 +43,61 @@ Slicer extends ObjectOutputStream {
     
     Slicer(final boolean weakTop, final Object top, final Root root,
            final OutputStream out) throws IOException {
-        super(out);
+        this(weakTop, top, root, null, null, out);
+    }
+    
+    /**
+     * Constructs an instance.
+     * @param weakTop   Is the top object only weakly referenced?
+     * @param top       top object
+     * @param root      root object table
+     * @param classes   class dictionary to write the compact format with, or
+     *                  <code>null</code> for the standard format
+     * @param unsaved   [ key => descriptor ] to add the used descriptors not
+     *                  yet stored to, or <code>null</code> if not needed
+     * @param out       output stream
+     */
+    Slicer(final boolean weakTop, final Object top, final Root root,
+           final ClassDictionary classes, final Map<Long,byte[]> unsaved,
+           final OutputStream out) throws IOException {
+        super(header(null != classes, out));
         this.weakTop = weakTop;
         this.top = top;
         this.root = root;
+        this.classes = classes;
+        this.unsaved = unsaved;
         throwableTop = top instanceof Throwable;
         enableReplaceObject(true);
     }
     
+    /**
+     * Writes the stream header, which is done before the super constructor
+     * is run, so the version number can depend upon the constructor arguments.
+     * @param compact   Write the {@linkplain ClassDictionary compact} format?
+     * @param out       output stream
+     * @return <code>out</code>
+     */
+    static private OutputStream
+    header(final boolean compact, final OutputStream out) throws IOException {
+        final short version =
+            compact ? ClassDictionary.version : STREAM_VERSION;
+        out.write(new byte[] { (byte)(STREAM_MAGIC >>> 8), (byte)STREAM_MAGIC,
+                               (byte)(version >>> 8), (byte)version });
+        return out;
+    }
+    
+    protected void
+    writeStreamHeader() {}
+    
+    protected void
+    writeClassDescriptor(final ObjectStreamClass d) throws IOException {
+        if (null == classes) {
+            super.writeClassDescriptor(d);
+        } else {
+            writeLong(classes.intern(d, unsaved));
+        }
+    }
+    
     static private final Class<?> Fulfilled;
     static private final Field isWeak;
     static private final Field state;
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Proxy;
 
 /**
@@ -16,12 +17,52 @@ SubstitutionStream extends ObjectInputStream {
 
     private final ClassLoader code;
     
+    /*
+     * Set by readStreamHeader(), which is called by the super constructor, so
+     * this field must not have an initializer.
+     */
+    private boolean compact;    // Is the stream in the compact format?
+    
     SubstitutionStream(final boolean resolve, final ClassLoader code,
                        final InputStream in) throws IOException {
         super(in);
         this.code = code;
         if (resolve) { enableResolveObject(true); }
     }
+    
+    /**
+     * Is the stream in the {@linkplain ClassDictionary compact} format?
+     */
+    protected boolean
+    isCompact() { return compact; }
+    
+    /**
+     * Finds the class descriptor for a key read from a compact stream.
+     * @param key   descriptor key
+     * @return class descriptor
+     * @throws IOException  any I/O problem
+     */
+    protected ObjectStreamClass
+    lookup(final long key) throws IOException {
+        throw new StreamCorruptedException();
+    }
+
+    protected void
+    readStreamHeader() throws IOException {
+        final short magic = readShort();
+        final short version = readShort();
+        if (STREAM_MAGIC != magic ||
+                (STREAM_VERSION != version &&
+                 ClassDictionary.version != version)) {
+            throw new StreamCorruptedException();
+        }
+        compact = ClassDictionary.version == version;
+    }
+    
+    protected ObjectStreamClass
+    readClassDescriptor() throws IOException, ClassNotFoundException {
+        return compact ? lookup(readLong()) : super.readClassDescriptor();
+    }
 
     protected Class<?>
     resolveClass(final ObjectStreamClass d) throws IOException,
@@ -0,0 +1,28 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.store;
+
+/**
+ * Finds the files referred to by a stored file, so that a {@link Store} can
+ * remove the files no longer referred to.
+ */
+public interface
+Collector {
+
+    /**
+     * Must a file be kept, even if no other file refers to it?
+     * @param filename  name of file
+     */
+    boolean isRoot(String filename);
+
+    /**
+     * Lists the files a file may refer to.
+     * <p>
+     * A listed name need not be that of an existing file, but each file the
+     * content refers to MUST be listed.
+     * </p>
+     * @param content   file content
+     * @return names of files referred to
+     */
+    Iterable<String> trace(byte[] content);
+}
@@ -24,4 +24,34 @@ Store {
      * @throws IOException  any I/O problem
      */
     Update update() throws DoesNotExist, IOException;
+    
+    /**
+     * Creates a read-only transaction on the most recently committed state.
+     * <p>
+     * Any number of snapshots can be active at a time, alongside at most one
+     * {@linkplain #update update} transaction, whose changes they do not see.
+     * A snapshot cannot be written to and its {@link Update#commit commit}
+     * has no effect.
+     * </p>
+     * @throws IOException  any I/O problem
+     */
+    Update snapshot() throws DoesNotExist, IOException;
+    
+    /**
+     * Removes the files no longer referred to from a root file.
+     * <p>
+     * Unreferenced files are found, and removed, in the background. A store
+     * MAY ignore the request.
+     * </p>
+     * @param collector file reference finder
+     */
+    void collect(Collector collector);
+    
+    /**
+     * Closes any open files, which are reopened by the next transaction.
+     * <p>
+     * A store MAY ignore the request, such as while a transaction is active.
+     * </p>
+     */
+    void close();
 }
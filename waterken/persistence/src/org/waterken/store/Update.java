@@ -32,6 +32,20 @@ Update {
      */
     InputStream read(String filename) throws FileNotFoundException, IOException;
 
+    /**
+     * Reads ahead files that are likely to be {@linkplain #read read} soon.
+     * <p>
+     * The files are looked up together, and read in the order they are
+     * stored, instead of by a separate lookup for each one. A file that does
+     * not exist is skipped. The next {@link #read read} of a file read ahead
+     * returns its content without another lookup.
+     * </p>
+     * @param filenames names of files to read ahead
+     * @return number of files read ahead
+     * @throws IOException              any I/O problem
+     */
+    int prefetch(Iterable<String> filenames) throws IOException;
+
     /**
      * Creates an update file.
      * <p>
@@ -0,0 +1,608 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.store.k2v;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.joe_e.Struct;
+import org.joe_e.file.Filesystem;
+import org.joe_e.file.InvalidFilenameException;
+import org.k2v.Document;
+import org.k2v.Folder;
+import org.k2v.K2V;
+import org.k2v.Query;
+import org.k2v.Value;
+import org.k2v.gentrie.GenTrie;
+import org.ref_send.promise.Promise;
+import org.ref_send.promise.Receiver;
+import org.waterken.store.Collector;
+import org.waterken.store.DoesNotExist;
+import org.waterken.store.NameCollision;
+import org.waterken.store.Store;
+import org.waterken.store.StoreMaker;
+import org.waterken.store.Update;
+
+/**
+ * A {@link GenTrie} based {@link Store} implementation.
+ * <p>
+ * A top level store keeps a {@link GenTrie} in a hidden folder of its
+ * directory, and each nested store is a {@link Folder} within its parent's
+ * folder, so a whole tree of vats is kept in one trie, written by appending
+ * to a file. An update is buffered in memory, and appended to the trie by
+ * one trie update when committed, so updates of different vats only wait on
+ * each other while committing.
+ * </p>
+ * <p>
+ * The {@link Store} for the directory of a nested store is found by walking
+ * up to the nearest directory holding a trie. Each nested store also gets an
+ * empty directory, so the tree of stores can still be walked in the
+ * filesystem.
+ * </p>
+ * <p>
+ * The tries in use are shared by all instances. At most {@link #capacity}
+ * idle tries are kept open, closing the least recently used one first.
+ * </p>
+ */
+public final class
+FolderK2V extends Struct implements StoreMaker, Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * name of the folder holding a top level store's trie
+     */
+    static private final String home = ".k2v";
+
+    /**
+     * maximum number of idle tries kept open
+     */
+    static public  final int capacity = 16;
+
+    /**
+     * An opened trie.
+     */
+    static private final class
+    Shared {
+        final K2V trie;
+        int users = 0;      // number of transactions using the trie
+
+        Shared(final K2V trie) {
+            this.trie = trie;
+        }
+    }
+
+    /**
+     * [ trie folder => opened trie ], in least recently used order
+     */
+    static private final LinkedHashMap<File,Shared> tries =
+        new LinkedHashMap<File,Shared>(16, 0.75f, true);
+
+    /**
+     * Constructs an instance.
+     */
+    public
+    FolderK2V() {}
+
+    // org.waterken.store.StoreMaker interface
+
+    public Store
+    apply(final Receiver<Promise<?>> background,
+          final File parent, final File dir) {
+        return new Vat(parent, dir, null, null);
+    }
+
+    /**
+     * A store kept in a trie folder.
+     */
+    static private final class
+    Vat implements Store {
+        private final File parent;          // parent folder, for cleaning
+        private final File dir;             // directory of the store
+        private       File top;             // directory holding the trie,
+                                            // or null if not yet found
+        private       String[] path;        // folder keys from the trie root
+        private       Update active = null; // Is an update in progress?
+
+        Vat(final File parent, final File dir,
+            final File top, final String[] path) {
+            this.parent = parent;
+            this.dir = dir;
+            this.top = top;
+            this.path = path;
+        }
+
+        /**
+         * Finds, and starts using, the trie the store is kept in.
+         * @param create    Create the trie of a top level store, if needed?
+         * @return trie, or <code>null</code> if not yet created
+         * @throws DoesNotExist store does not exist
+         * @throws IOException  any I/O problem
+         */
+        private K2V
+        locate(final boolean create) throws DoesNotExist, IOException {
+            if (null == top) {
+                final ArrayList<String> keys = new ArrayList<String>();
+                for (File at = dir; null != at; at = at.getParentFile()) {
+                    if (Filesystem.file(at, home).isDirectory()) {
+                        top = at;
+                        break;
+                    }
+                    keys.add(0, at.getName());
+                }
+                if (null == top) {
+                    if (!dir.isDirectory()) { throw new DoesNotExist(); }
+                    top = dir;
+                    keys.clear();
+                }
+                path = keys.toArray(new String[keys.size()]);
+            }
+            return open(top, create && 0 == path.length);
+        }
+
+        /**
+         * Finds the store's folder.
+         * @param query query to search
+         * @return store's folder
+         * @throws DoesNotExist store does not exist
+         * @throws IOException  any I/O problem
+         */
+        private Folder
+        find(final Query query) throws DoesNotExist, IOException {
+            Folder r = query.root;
+            for (final String key : path) {
+                final Value x = query.find(r, key(key));
+                if (!(x instanceof Folder)) { throw new DoesNotExist(); }
+                r = (Folder)x;
+            }
+            return r;
+        }
+
+        // org.waterken.store.Store interface
+
+        public void
+        clean() throws IOException {
+            final K2V trie;
+            try {
+                trie = locate(false);
+            } catch (final DoesNotExist e) { return; }
+            if (0 == path.length) {
+                if (null != trie) {
+                    synchronized (tries) {
+                        tries.remove(Filesystem.file(top, home));
+                    }
+                    trie.close();
+                }
+                final File tmp =
+                    Filesystem.file(parent, ".dead." + dir.getName());
+                if (dir.isDirectory() && !dir.renameTo(tmp)) {
+                    throw new IOException();
+                }
+                if (tmp.isDirectory()) { delete(tmp); }
+                return;
+            }
+
+            // replace the store's folder with an empty document
+            if (null == trie) { return; }
+            try {
+                final org.k2v.Update update = trie.update();
+                try {
+                    final Query query = trie.query();
+                    Folder folder = query.root;
+                    query.close();
+                    for (int i = 0; i != path.length - 1; ++i) {
+                        folder = update.nest(folder, key(path[i]));
+                    }
+                    update.open(folder, key(path[path.length - 1])).close();
+                    update.commit();
+                } finally {
+                    update.close();
+                }
+            } finally {
+                release(top);
+            }
+            if (dir.isDirectory()) { delete(dir); }
+        }
+
+        public synchronized Update
+        update() throws DoesNotExist, IOException {
+            while (null != active) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            final K2V trie = locate(true);
+            if (null == trie) { throw new DoesNotExist(); }
+            final Query query;
+            final Folder folder;
+            try {
+                query = trie.query();
+                try {
+                    folder = find(query);
+                } catch (final IOException e) {
+                    query.close();
+                    throw e;
+                }
+            } catch (final IOException e) {
+                release(top);
+                throw e;
+            }
+
+            // construct an update transaction
+            final LinkedHashMap<String,ByteArrayOutputStream> updates =
+                new LinkedHashMap<String,ByteArrayOutputStream>();
+            final Object lock = this;
+            return active = new Update() {
+                private boolean committing = false;
+
+                public void
+                close() {
+                    synchronized (lock) {
+                        if (this != active) { return; }
+
+                        query.close();
+                        release(top);
+                        updates.clear();
+                        active = null;
+                        lock.notifyAll();
+                    }
+                }
+
+                public InputStream
+                read(final String filename) throws IOException {
+                    if (this != active) { throw new AssertionError(); }
+                    if (committing) { throw new AssertionError(); }
+
+                    return FolderK2V.read(query, folder, filename);
+                }
+
+                public int
+                prefetch(final Iterable<String> filenames) {
+                    if (this != active) { throw new AssertionError(); }
+                    if (committing) { throw new AssertionError(); }
+
+                    return 0;   // each lookup is a few positioned reads
+                }
+
+                public OutputStream
+                write(final String filename) throws IOException {
+                    if (this != active) { throw new AssertionError(); }
+                    if (committing) { throw new AssertionError(); }
+                    if (!ok(filename)) { throw new InvalidFilenameException(); }
+
+                    final ByteArrayOutputStream r =
+                        new ByteArrayOutputStream(256);
+                    updates.put(filename, r);
+                    return r;
+                }
+
+                public Store
+                nest(final String filename) throws IOException {
+                    if (this != active) { throw new AssertionError(); }
+                    if (committing) { throw new AssertionError(); }
+                    if (filename.startsWith(".") || !ok(filename)) {
+                        throw new InvalidFilenameException();
+                    }
+
+                    // the nested folder is created, and its name used up, at
+                    // once, so the nested store can be updated before this
+                    // update commits
+                    final byte[] key = key(filename);
+                    final byte[] was = key("." + filename + ".was");
+                    final org.k2v.Update update = trie.update();
+                    try {
+                        final Query current = trie.query();
+                        try {
+                            if (!(current.find(find(current), was)
+                                    instanceof org.k2v.Null)) {
+                                throw new NameCollision();
+                            }
+                        } finally {
+                            current.close();
+                        }
+                        final Folder at = descend(update, query.root);
+                        update.open(at, was).close();
+                        update.open(at, key).close();
+                        update.nest(at, key);
+                        final File sub = Filesystem.file(dir, filename);
+                        if (!sub.isDirectory() && !sub.mkdirs()) {
+                            throw new IOException();
+                        }
+                        update.commit();
+                    } finally {
+                        update.close();
+                    }
+                    final String[] child = new String[path.length + 1];
+                    System.arraycopy(path, 0, child, 0, path.length);
+                    child[path.length] = filename;
+                    return new Vat(null, Filesystem.file(dir, filename),
+                                   top, child);
+                }
+
+                public void
+                commit() throws IOException {
+                    if (this != active) { throw new AssertionError(); }
+                    if (committing) { throw new AssertionError(); }
+
+                    committing = true;
+                    if (updates.isEmpty()) { return; }
+                    final org.k2v.Update update = trie.update();
+                    try {
+                        // a cleaned store is not brought back
+                        final Query current = trie.query();
+                        try {
+                            find(current);
+                        } finally {
+                            current.close();
+                        }
+                        final Folder at = descend(update, query.root);
+                        for (final Map.Entry<String,ByteArrayOutputStream> x :
+                                updates.entrySet()) {
+                            final OutputStream out =
+                                update.open(at, key(x.getKey()));
+                            x.getValue().writeTo(out);
+                            out.close();
+                        }
+                        update.commit();
+                    } finally {
+                        update.close();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Gets the store's folder for a trie update.
+         * @param update    trie update
+         * @param root      trie's root folder
+         * @return store's folder
+         * @throws IOException  any I/O problem
+         */
+        private Folder
+        descend(final org.k2v.Update update,
+                final Folder root) throws IOException {
+            Folder r = root;
+            for (final String key : path) { r = update.nest(r, key(key)); }
+            return r;
+        }
+
+        public Update
+        snapshot() throws DoesNotExist, IOException {
+            final K2V trie = locate(false);
+            if (null == trie) { return empty; }
+            final Query query;
+            final Folder folder;
+            try {
+                query = trie.query();
+                try {
+                    folder = find(query);
+                } catch (final IOException e) {
+                    query.close();
+                    throw e;
+                }
+            } catch (final IOException e) {
+                release(top);
+                throw e;
+            }
+
+            // construct a read-only transaction
+            return new Update() {
+                private boolean closed = false;
+
+                public void
+                close() {
+                    if (closed) { return; }
+
+                    closed = true;
+                    query.close();
+                    release(top);
+                }
+
+                public InputStream
+                read(final String filename) throws IOException {
+                    if (closed) { throw new AssertionError(); }
+
+                    return FolderK2V.read(query, folder, filename);
+                }
+
+                public int
+                prefetch(final Iterable<String> filenames) {
+                    if (closed) { throw new AssertionError(); }
+
+                    return 0;   // each lookup is a few positioned reads
+                }
+
+                public OutputStream
+                write(final String filename) {
+                    throw new AssertionError();
+                }
+
+                public Store
+                nest(final String filename) {
+                    throw new AssertionError();
+                }
+
+                public void
+                commit() {
+                    if (closed) { throw new AssertionError(); }
+                }
+            };
+        }
+
+        public void
+        collect(final Collector collector) {}
+
+        public void
+        close() {}  // the trie is closed once no store is using it
+    }
+
+    /**
+     * snapshot of a top level store whose trie is not yet created
+     */
+    static private final Update empty = new Update() {
+        public void
+        close() {}
+
+        public InputStream
+        read(final String filename) throws FileNotFoundException {
+            throw new FileNotFoundException();
+        }
+
+        public int
+        prefetch(final Iterable<String> filenames) { return 0; }
+
+        public OutputStream
+        write(final String filename) { throw new AssertionError(); }
+
+        public Store
+        nest(final String filename) { throw new AssertionError(); }
+
+        public void
+        commit() {}
+    };
+
+    /**
+     * Opens, and starts using, the trie kept in a directory.
+     * @param top       directory holding the trie
+     * @param create    Create the trie, if needed?
+     * @return opened trie, or <code>null</code> if none
+     * @throws IOException  any I/O problem
+     */
+    static private K2V
+    open(final File top, final boolean create) throws IOException {
+        final File folder = Filesystem.file(top, home);
+        synchronized (tries) {
+            Shared r = tries.get(folder);
+            if (null == r) {
+                final K2V trie = load(top, folder, create);
+                if (null == trie) { return null; }
+                r = new Shared(trie);
+                tries.put(folder, r);
+            }
+            r.users += 1;
+            return r.trie;
+        }
+    }
+
+    /**
+     * Stops using the trie kept in a directory.
+     * <p>
+     * The least recently used idle tries are closed, until no more than
+     * {@link #capacity} of them are open.
+     * </p>
+     * @param top   directory holding the trie
+     */
+    static private void
+    release(final File top) {
+        final ArrayList<K2V> closing = new ArrayList<K2V>();
+        synchronized (tries) {
+            final Shared released = tries.get(Filesystem.file(top, home));
+            if (null != released) { released.users -= 1; }
+            int idle = 0;
+            for (final Shared x : tries.values()) {
+                if (0 == x.users) { idle += 1; }
+            }
+            for (final Iterator<Shared> i = tries.values().iterator();
+                     idle > capacity && i.hasNext();) {
+                final Shared x = i.next();
+                if (0 == x.users) {
+                    i.remove();
+                    closing.add(x.trie);
+                    idle -= 1;
+                }
+            }
+        }
+        for (final K2V x : closing) {
+            try {
+                x.close();
+            } catch (final IOException e) {}
+        }
+    }
+
+    /**
+     * Opens the trie kept in a directory.
+     * @param top       directory holding the trie
+     * @param folder    folder holding the trie
+     * @param create    Create the trie, if needed?
+     * @return opened trie, or <code>null</code> if none
+     * @throws IOException  any I/O problem
+     */
+    static private K2V
+    load(final File top, final File folder,
+         final boolean create) throws IOException {
+        if (!folder.isDirectory()) {
+            if (!create) { return null; }
+
+            // create the trie to the side, so a partly created one is
+            // never opened
+            final File tmp = Filesystem.file(top, home + ".new");
+            if (tmp.isDirectory()) { delete(tmp); }
+            if (!tmp.mkdir()) { throw new IOException(); }
+            final K2V created = GenTrie.create(tmp, new SecureRandom());
+            final org.k2v.Update update = created.update();
+            try {
+                update.commit();
+            } finally {
+                update.close();
+            }
+            created.close();
+            if (!tmp.renameTo(folder)) { throw new IOException(); }
+        }
+        return GenTrie.open(folder);
+    }
+
+    /**
+     * Opens a document for reading.
+     * @param query     query to search
+     * @param folder    folder to search
+     * @param filename  document name
+     * @return document content
+     * @throws FileNotFoundException    no document named <code>filename</code>
+     * @throws IOException              any I/O problem
+     */
+    static private InputStream
+    read(final Query query, final Folder folder,
+         final String filename) throws IOException {
+        final Value r = query.find(folder, key(filename));
+        if (!(r instanceof Document)) { throw new FileNotFoundException(); }
+        return (Document)r;
+    }
+
+    static private byte[]
+    key(final String name) throws IOException { return name.getBytes("UTF-8"); }
+
+    static private boolean
+    ok(final String name)  {
+        if (0 == name.length()) { return false; }
+        for (int i = name.length(); i-- != 0;) {
+            if (disallowed.indexOf(name.charAt(i)) != -1) { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Recursively deletes a filesystem entry.
+     * @param file  entry to recursively delete
+     * @throws IOException  any I/O problem
+     */
+    static private void
+    delete(final File file) throws IOException {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        if (!file.delete()) { throw new IOException(); }
+    }
+}
@@ -0,0 +1,8 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+
+/**
+ * A {@link org.k2v.gentrie.GenTrie} based {@link org.waterken.store.Store}
+ * implementation.
+ */
+package org.waterken.store.k2v;
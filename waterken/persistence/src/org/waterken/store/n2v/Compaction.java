@@ -0,0 +1,125 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.store.n2v;
+
+import java.io.Serializable;
+
+import org.joe_e.Powerless;
+import org.joe_e.Struct;
+import org.ref_send.deserializer;
+import org.ref_send.name;
+
+/**
+ * A policy for merging the archive files of a {@link RollingN2V} store.
+ * <p>
+ * After each commit, the newest archives are merged into one. The merged
+ * archives are chosen by walking back from the newest archive, adding each
+ * older archive that is not too large compared to the newer ones added so
+ * far. Under the size ratio scheme, an older archive is added if it is no
+ * more than {@link #factor} times the total length of the newer ones. Under
+ * the leveled scheme, archive lengths are grouped into levels, each
+ * {@link #factor} times larger than the one before, and an older archive is
+ * added if it is on the same level as, or a lower level than, the total.
+ * </p>
+ * <p>
+ * A merge can also deflate the merged values, with a {@link #dictionary}
+ * shared by all the values in the store. Values are committed as is, since
+ * the dictionary would take more space than it saves in a single commit.
+ * An archive of deflated values cannot be read by a build that predates the
+ * dictionary block, so values are only deflated if a dictionary length is
+ * configured.
+ * </p>
+ */
+public final class
+Compaction extends Struct implements Powerless, Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * Use the leveled scheme, rather than the size ratio scheme?
+     */
+    public final boolean leveled;
+
+    /**
+     * size ratio, or ratio between the lengths of adjacent levels
+     */
+    public final int factor;
+
+    /**
+     * maximum number of bytes per second written by a merge, or
+     * <code>0</code> for no limit
+     */
+    public final long rate;
+
+    /**
+     * maximum length of the dictionary for deflating merged values, or
+     * <code>0</code> to store values as is
+     */
+    public final int dictionary;
+
+    /**
+     * Constructs an instance.
+     * @param leveled       {@link #leveled}
+     * @param factor        {@link #factor}
+     * @param rate          {@link #rate}
+     * @param dictionary    {@link #dictionary}
+     */
+    public @deserializer
+    Compaction(@name("leveled") final boolean leveled,
+               @name("factor") final int factor,
+               @name("rate") final long rate,
+               @name("dictionary") final int dictionary) {
+        if (factor < 2 || rate < 0 || dictionary < 0) {
+            throw new IllegalArgumentException();
+        }
+
+        this.leveled = leveled;
+        this.factor = factor;
+        this.rate = rate;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Constructs an instance that stores values as is.
+     * @param leveled   {@link #leveled}
+     * @param factor    {@link #factor}
+     * @param rate      {@link #rate}
+     */
+    public
+    Compaction(final boolean leveled, final int factor, final long rate) {
+        this(leveled, factor, rate, 0);
+    }
+
+    /**
+     * default policy: size ratio of 10, with no rate limit, storing values as
+     * is
+     */
+    static public final Compaction standard = new Compaction(false, 10, 0);
+
+    /**
+     * Selects the archives to merge.
+     * @param lengths   length of each archive, ordered from oldest to newest
+     * @return index of the oldest archive to merge with all newer ones
+     */
+    public int
+    select(final long[] lengths) {
+        if (0 == lengths.length) { return 0; }
+        int i = lengths.length - 1;
+        long sum = lengths[i];
+        for (; 0 != i; --i) {
+            final long l = lengths[i - 1];
+            if (leveled ? level(l) > level(sum) : l / factor > sum) { break; }
+            sum += l;
+        }
+        return i;
+    }
+
+    /**
+     * Computes the level of an archive length.
+     */
+    private int
+    level(final long length) {
+        int r = 0;
+        for (long n = length; n >= factor; n /= factor) { ++r; }
+        return r;
+    }
+}
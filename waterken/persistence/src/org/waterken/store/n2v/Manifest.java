@@ -0,0 +1,128 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.store.n2v;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.waterken.archive.n2v.Layout;
+
+/**
+ * A record of the archive files that make up a {@link RollingN2V} store.
+ * <p>
+ * Each merge commits a manifest together with the archive files it leaves
+ * behind, so a reopened store need not read the trailer of each of these
+ * archives, or open them at all until an entry is looked up. An archive
+ * committed since the last merge is not in the manifest and is opened as
+ * usual. The manifest is not synced to disk, since a damaged manifest fails
+ * its checksum and is then ignored.
+ * </p>
+ * <pre>
+ * manifest ::= magic count archive* checksum
+ * archive  ::= filename length lastModified indexAddress summaryAddress
+ *              filterAddress dictionaryAddress entryCount range
+ * range    ::= false | true first last
+ * </pre>
+ */
+/* package */ final class
+Manifest {
+    private Manifest() {}
+
+    /**
+     * manifest filename
+     */
+    static protected final String filename = ".manifest";
+
+    static private final int magic = 0x4E32564E;
+
+    /**
+     * Writes a manifest.
+     * @param out       output stream, which will be closed
+     * @param files     archive files, ordered from oldest to newest
+     * @param layouts   layout of each of the <code>files</code>
+     * @throws IOException  any I/O problem
+     */
+    static protected void
+    write(final OutputStream out, final List<File> files,
+          final List<Layout> layouts) throws IOException {
+        final CheckedOutputStream checked =
+            new CheckedOutputStream(new BufferedOutputStream(out), new CRC32());
+        final DataOutputStream data = new DataOutputStream(checked);
+        try {
+            data.writeInt(magic);
+            data.writeInt(files.size());
+            for (int i = 0; i != files.size(); ++i) {
+                final Layout layout = layouts.get(i);
+                data.writeUTF(files.get(i).getName());
+                data.writeLong(layout.length);
+                data.writeLong(layout.lastModified);
+                data.writeLong(layout.indexAddress);
+                data.writeLong(layout.summaryAddress);
+                data.writeLong(layout.filterAddress);
+                data.writeLong(layout.dictionaryAddress);
+                data.writeLong(layout.entryCount);
+                data.writeBoolean(null != layout.first);
+                if (null != layout.first) {
+                    data.writeUTF(layout.first);
+                    data.writeUTF(layout.last);
+                }
+            }
+            data.writeLong(checked.getChecksum().getValue());
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Reads a manifest.
+     * @param in    input stream, which will be closed
+     * @return [ archive filename => layout ]
+     * @throws IOException  any I/O problem
+     */
+    static protected Map<String,Layout>
+    read(final InputStream in) throws IOException {
+        final CheckedInputStream checked =
+            new CheckedInputStream(new BufferedInputStream(in), new CRC32());
+        final DataInputStream data = new DataInputStream(checked);
+        try {
+            if (magic != data.readInt()) { throw new IOException(); }
+            final int count = data.readInt();
+            if (count < 0) { throw new IOException(); }
+            final HashMap<String,Layout> r = new HashMap<String,Layout>();
+            for (int i = 0; i != count; ++i) {
+                final String filename = data.readUTF();
+                final long length = data.readLong();
+                final long lastModified = data.readLong();
+                final long indexAddress = data.readLong();
+                final long summaryAddress = data.readLong();
+                final long filterAddress = data.readLong();
+                final long dictionaryAddress = data.readLong();
+                final long entryCount = data.readLong();
+                final boolean ranged = data.readBoolean();
+                final String first = ranged ? data.readUTF() : null;
+                final String last = ranged ? data.readUTF() : null;
+                r.put(filename, new Layout(length, lastModified, indexAddress,
+                    summaryAddress, filterAddress, dictionaryAddress,
+                    entryCount, first, last));
+            }
+            final long checksum = checked.getChecksum().getValue();
+            if (checksum != data.readLong()) { throw new IOException(); }
+            if (-1 != data.read()) { throw new IOException(); }
+            return r;
+        } finally {
+            data.close();
+        }
+    }
+}
@@ -2,8 +2,12 @@
 // found at http://www.opensource.org/licenses/mit-license.html
 package org.waterken.store.n2v;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -14,8 +18,15 @@ import java.io.Serializable;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.joe_e.Struct;
 import org.joe_e.file.Filesystem;
@@ -25,13 +36,17 @@ import org.ref_send.promise.Promise;
 import org.ref_send.promise.Receiver;
 import org.waterken.archive.Archive;
 import org.waterken.archive.ArchiveOutput;
+import org.waterken.archive.n2v.Layout;
 import org.waterken.archive.n2v.N2V;
 import org.waterken.archive.n2v.N2VOutput;
+import org.waterken.store.Collector;
 import org.waterken.store.DoesNotExist;
 import org.waterken.store.NameCollision;
 import org.waterken.store.Store;
 import org.waterken.store.StoreMaker;
 import org.waterken.store.Update;
+import org.waterken.thread.Loop;
+import org.waterken.thread.Pool;
 
 /**
  * An {@link N2V} based {@link Store} implementation.
@@ -40,14 +55,41 @@ public final class
 RollingN2V extends Struct implements StoreMaker, Serializable {
     static private final long serialVersionUID = 1L;
     
+    /**
+     * runs merges off the vat's own loop, so its updates are not held up
+     */
+    static private final Receiver<Promise<?>> compactor =
+        Loop.concurrent("compaction", Pool.merge);
+    
     private final Receiver<Long> sleep;
+    private final Compaction compaction;
+    private final boolean mapped;
     
     /**
      * Constructs an instance.
      */
     public
     RollingN2V(final Receiver<Long> sleep) {
+        this(sleep, null, false);
+    }
+    
+    /**
+     * Constructs an instance.
+     * @param sleep         permission to sleep the current thread
+     * @param compaction    archive merging policy, or <code>null</code> for
+     *                      {@link Compaction#standard}
+     * @param mapped        Map the archives into memory? A mapped archive
+     *                      file is not released until garbage collected, so
+     *                      on Windows, a merged or destroyed archive may
+     *                      not be deleted until later.
+     */
+    public
+    RollingN2V(final Receiver<Long> sleep, final Compaction compaction,
+               final boolean mapped) {
         this.sleep = sleep;
+        this.compaction =
+            null != compaction ? compaction : Compaction.standard;
+        this.mapped = mapped;
     }
     
     // org.waterken.store.StoreMaker interface
@@ -57,78 +99,82 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
         final File parent, final File dir) {
         final File pending = Filesystem.file(dir, ".pending");
         final File committed = Filesystem.file(dir, ".committed");
+        final File merging = Filesystem.file(dir, ".merging");
         return new Store() {
             protected int lastId = 0;               // id of newest archive file
             protected ArrayList<File> files = null; // un-merged commit files
             protected ArrayList<N2V> versions = null; // un-merged commit archives
+            protected List<N2V> latest = null;      // archives for a snapshot
 
             protected Update active = null;         // Is an update in progress?
             private boolean mergeScheduled = false; // Is a merge scheduled?
+            private boolean swapping = false;       // Is a merge being swapped?
+            private Collector collector = null;     // unreferenced entry
+                                                    // finder, or null
+            private long opened = 0;                // number of snapshots
+            
+            /**
+             * [ serial number of an open snapshot ]
+             */
+            private final TreeSet<Long> open = new TreeSet<Long>();
+            
+            /**
+             * [ archive => number of open snapshots that read it ]
+             */
+            private final HashMap<N2V,Integer> readers =
+                new HashMap<N2V,Integer>();
+            
+            /**
+             * [ merged archive => its file, to delete once no longer read ]
+             */
+            private final HashMap<N2V,File> retired = new HashMap<N2V,File>();
+            
+            /**
+             * [ retired archive file that could not be deleted yet ]
+             */
+            private final ArrayList<File> undeleted = new ArrayList<File>();
             
             public void
             clean() throws IOException {
+                close();
                 final File tmp = Filesystem.file(parent,".dead."+dir.getName());
                 if (dir.isDirectory()) {
                     rename(dir, tmp);
                 }
-                if (tmp.isDirectory()) {
-                    deleteRecursively(tmp);
+                if (!mapped) {
+                    if (tmp.isDirectory()) {
+                        deleteRecursively(tmp);
+                    }
+                    return;
+                }
+                
+                // A mapped archive file cannot be deleted on some platforms
+                // until the mapping is garbage collected, so the files left
+                // by a dead vat are deleted along with the next one.
+                final File[] dead = parent.listFiles(new FileFilter() {
+                    public boolean
+                    accept(final File child) {
+                        return child.getName().startsWith(".dead.");
+                    }
+                });
+                if (null == dead) { throw new IOException(parent.toString()); }
+                for (final File x : dead) {
+                    try {
+                        deleteRecursively(x);
+                    } catch (final IOException e) {}
                 }
             }
             
             public synchronized Update
             update() throws DoesNotExist, IOException {
-                while (null != active) {
+                while (null != active || swapping) {
                     try {
                         wait();
                     } catch (final InterruptedException e) {
                         throw new InterruptedIOException();
                     }
                 }
-                
-                if (null == versions) {
-                    try {
-                        // recover from a previous incarnation
-                        if (pending.isDirectory()) {
-                            if (committed.isDirectory()) {
-                                deleteRecursively(committed);
-                            }
-                            deleteRecursively(pending);
-                        } else if (committed.isDirectory()) {
-                            renameAll(committed, dir);
-                        }
-    
-                        // load the recovered persistent state
-                        final File[] fs = dir.listFiles();
-                        if (null == fs) { throw new IOException(); }
-                        int n = 0;
-                        for (int i = 0; i != fs.length; ++i) {
-                            if (fs[i].getName().endsWith(".n2v") &&
-                                    fs[i].isFile()) {
-                                fs[n++] = fs[i];
-                            }
-                        }
-                        Arrays.sort(fs, 0, n, new Comparator<File>() {
-                            public int
-                            compare(final File a, final File b) {
-                                return id(a) - id(b);
-                            }
-                        });
-                        files = new ArrayList<File>(n);
-                        final ArrayList<N2V> prior = new ArrayList<N2V>(n);
-                        for (int i = 0; i != n; ++i) {
-                            files.add(fs[i]);
-                            prior.add(N2V.open(fs[i]));
-                        }
-                        lastId = 0 != n ? id(fs[n - 1]) : 0;
-                        
-                        // mark the store as fully loaded
-                        versions = prior;
-                    } catch (final IOException e) {
-                        if (!dir.isDirectory()) { throw new DoesNotExist(); }
-                        throw e;
-                    }
-                }
+                if (null == versions) { load(); }
                 
                 // take ownership of the loaded archives
                 final ArrayList<N2V> prior = versions;
@@ -141,13 +187,20 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
                 final Object lock = this;
                 return active = new Update() {
                     
+                    /**
+                     * [ filename => content read ahead ]
+                     */
+                    private final HashMap<String,byte[]> ahead =
+                        new HashMap<String,byte[]>();
+                    
                     public void
                     close() {
                         synchronized (lock) {
                             if (this != active) { return; }
                             
+                            ahead.clear();
                             active = null;
-                            lock.notify();
+                            lock.notifyAll();
                             committing.set(true);
                             if (updates.is()) {
                                 try {
@@ -162,11 +215,17 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
                         if (this != active) { throw new AssertionError(); }
                         if (committing.is()) { throw new AssertionError(); }
                         
-                        for (int i = prior.size(); 0 != i--;) {
-                            final Archive.Entry r = prior.get(i).find(name);
-                            if (null != r) { return r.open(); }
-                        }
-                        throw new FileNotFoundException();
+                        final byte[] r = ahead.remove(name);
+                        return null != r
+                            ? new ByteArrayInputStream(r) : open(prior, name);
+                    }
+                    
+                    public int
+                    prefetch(final Iterable<String> names) throws IOException {
+                        if (this != active) { throw new AssertionError(); }
+                        if (committing.is()) { throw new AssertionError(); }
+                        
+                        return RollingN2V.prefetch(prior, names, ahead);
                     }
                     
                     public OutputStream
@@ -180,8 +239,11 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
                                 mkdir(pending);
                                 mutated.set(true);
                             }
-                            updates.set(new N2VOutput(writeNew(
-                                Filesystem.file(pending, name(++lastId)))));
+                            // buffered, as the values are streamed in
+                            updates.set(new N2VOutput(new BufferedOutputStream(
+                                writeNew(Filesystem.file(pending,
+                                                         name(++lastId))),
+                                1 << 16)));
                         }
                         return updates.get().append(filename);
                     }
@@ -222,26 +284,19 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
                                 updates.get().close();
                             }
                             markCommitted();
+                            latest = null;  // reloaded, if not published below
                             if (!prior.isEmpty()) {
                                 if (updates.is()) {
                                     final File f =
                                         Filesystem.file(dir, name(lastId));
-                                    prior.add(N2V.open(f));
+                                    prior.add(N2V.open(f, mapped));
                                     files.add(f);
                                 }
                                 
                                 // give up ownership of the archives
-                                versions = prior;
-                                
-                                if (!mergeScheduled && null != background) {
-                                    background.apply(new Promise<Void>() {
-                                        public Void
-                                        call() throws IOException {
-                                            merge();
-                                            return null;
-                                        }
-                                    });
-                                    mergeScheduled = true;
+                                synchronized (lock) {
+                                    publish(prior);
+                                    if (null != background) { schedule(); }
                                 }
                             }
                         } else {
@@ -252,61 +307,418 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
                 };
             }
             
-            protected synchronized void
-            merge() throws IOException {
-                while (null != active) {
+            public synchronized void
+            collect(final Collector collector) {
+                this.collector = collector;
+            }
+            
+            public synchronized void
+            close() {
+                // the archives are in use by a transaction or a merge
+                if (null == versions || null != active || swapping ||
+                        mergeScheduled || !readers.isEmpty()) { return; }
+                
+                for (final N2V version : versions) {
+                    try {
+                        version.close();
+                    } catch (final IOException e) {}
+                }
+                files = null;
+                versions = null;
+                latest = null;
+            }
+            
+            public synchronized Update
+            snapshot() throws DoesNotExist, IOException {
+                // a snapshot doesn't wait on a swap, which may itself be
+                // waiting on an update that waits on a query
+                while (null == latest && null != active) {
                     try {
                         wait();
                     } catch (final InterruptedException e) {
                         throw new InterruptedIOException();
                     }
                 }
-
-                mergeScheduled = false;
-                if (null == versions) { return; }
+                if (null == latest) { load(); }
                 
-                final int n = files.size();
-                int i = n - 1;
-                long sum = files.get(i).length();
-                for (; 0 != i; --i) {
-                    final long l = files.get(i - 1).length();
-                    if (l / 10 > sum) { break; }
-                    sum += l;
+                // share the committed archives with the update transaction
+                final List<N2V> prior = latest;
+                for (final N2V version : prior) {
+                    final Integer n = readers.get(version);
+                    readers.put(version, null != n ? n + 1 : 1);
                 }
-                if (n - i > 1) {
-                	try {
-                        mkdir(pending);
-                	} catch (final IOException e) {
-                		if (dir.isDirectory()) { throw e; }
-                		return;	// database no longer exists, skip the merge
-                	}
-                	
-                    // take ownership of the loaded archives
-                    final ArrayList<N2V> prior = versions;
-                    versions = null;
+                
+                // construct a read-only transaction
+                final Long serial = ++opened;
+                open.add(serial);
+                final Milestone<Boolean> closed = Milestone.make();
+                final Object lock = this;
+                return new Update() {
+                    
+                    /**
+                     * [ filename => content read ahead ]
+                     */
+                    private final HashMap<String,byte[]> ahead =
+                        new HashMap<String,byte[]>();
+                    
+                    public void
+                    close() {
+                        synchronized (lock) {
+                            if (closed.is()) { return; }
+                            
+                            ahead.clear();
+                            closed.set(true);
+                            release(prior);
+                            open.remove(serial);
+                            lock.notifyAll();
+                        }
+                    }
+                    
+                    public InputStream
+                    read(final String name) throws IOException {
+                        if (closed.is()) { throw new AssertionError(); }
+                        
+                        final byte[] r = ahead.remove(name);
+                        return null != r
+                            ? new ByteArrayInputStream(r) : open(prior, name);
+                    }
+                    
+                    public int
+                    prefetch(final Iterable<String> names) throws IOException {
+                        if (closed.is()) { throw new AssertionError(); }
+                        
+                        return RollingN2V.prefetch(prior, names, ahead);
+                    }
+                    
+                    public OutputStream
+                    write(final String filename) {
+                        throw new AssertionError();
+                    }
+                    
+                    public Store
+                    nest(final String filename) {
+                        throw new AssertionError();
+                    }
+                    
+                    public void
+                    commit() {
+                        if (closed.is()) { throw new AssertionError(); }
+                    }
+                };
+            }
+            
+            /**
+             * Loads the committed archives.
+             */
+            protected void
+            load() throws DoesNotExist, IOException {
+                try {
+                    // recover from a previous incarnation
+                    if (pending.isDirectory()) {
+                        if (committed.isDirectory()) {
+                            deleteRecursively(committed);
+                        }
+                        deleteRecursively(pending);
+                    } else if (committed.isDirectory()) {
+                        renameAll(committed, dir);
+                    }
+                    if (!mergeScheduled && merging.isDirectory()) {
+                        deleteRecursively(merging);
+                    }
 
-                    final String name = name(++lastId);
-                    final FileOutputStream sout = new FileOutputStream(
-                        Filesystem.file(pending, name), true);
-                    final FileChannel out = sout.getChannel();
-                    final List<N2V> sub = prior.subList(i, n);
-                    N2V.merge(out, sub);
-                    out.force(true);
-                    out.close();
-                    sout.close();
+                    // load the recovered persistent state
+                    final File[] fs = dir.listFiles();
+                    if (null == fs) { throw new IOException(); }
+                    int n = 0;
+                    for (int i = 0; i != fs.length; ++i) {
+                        if (fs[i].getName().endsWith(".n2v") &&
+                                fs[i].isFile()) {
+                            fs[n++] = fs[i];
+                        }
+                    }
+                    Arrays.sort(fs, 0, n, new Comparator<File>() {
+                        public int
+                        compare(final File a, final File b) {
+                            return id(a) - id(b);
+                        }
+                    });
+                    final Map<String,Layout> layouts = recall();
+                    files = new ArrayList<File>(n);
+                    final ArrayList<N2V> prior = new ArrayList<N2V>(n);
+                    for (int i = 0; i != n; ++i) {
+                        final Layout layout = layouts.get(fs[i].getName());
+                        files.add(fs[i]);
+                        prior.add(null != layout
+                            ? N2V.open(fs[i], layout, mapped)
+                            : N2V.open(fs[i], mapped));
+                    }
+                    if (0 != n) { lastId = Math.max(lastId, id(fs[n - 1])); }
+                    
+                    // mark the store as fully loaded
+                    publish(prior);
+                } catch (final IOException e) {
+                    if (!dir.isDirectory()) { throw new DoesNotExist(); }
+                    throw e;
+                }
+            }
+            
+            /**
+             * Schedules a merge of the newest archives, if needed.
+             * <p>
+             * The merged archive's id is reserved now, so that it sorts
+             * after the archives it replaces, but before any that are
+             * committed while the merge is running. A merge of all the
+             * archives also drops the unreferenced entries, if there is a
+             * {@linkplain #collect collector}.
+             * </p>
+             */
+            protected void
+            schedule() {
+                if (mergeScheduled) { return; }
+                final long[] lengths = new long[files.size()];
+                for (int i = 0; i != lengths.length; ++i) {
+                    lengths[i] = files.get(i).length();
+                }
+                final int first = compaction.select(lengths);
+                if (lengths.length - first < 2) { return; }
+                
+                final List<File> sub =
+                    new ArrayList<File>(files.subList(first, lengths.length));
+                final String name = name(++lastId);
+                final Collector sweep = 0 == first ? collector : null;
+                final long since = opened;
+                compactor.apply(new Promise<Void>() {
+                    public Void
+                    call() throws IOException {
+                        merge(sub, name, sweep, since);
+                        return null;
+                    }
+                });
+                mergeScheduled = true;
+            }
+            
+            /**
+             * Merges archive files.
+             * <p>
+             * The merged archive is built to the side, from separately opened
+             * copies of the archives, so transactions proceed while it is
+             * built. The store is only locked to swap in the merged archive.
+             * </p>
+             * @param sub   archive files to merge, oldest to newest
+             * @param name  filename for the merged archive
+             * @param sweep unreferenced entry finder, or <code>null</code>
+             *              to keep all the entries
+             * @param since number of snapshots opened before the merge
+             * @throws IOException  any I/O problem
+             */
+            protected void
+            merge(final List<File> sub, final String name,
+                  final Collector sweep, final long since) throws IOException {
+                final File f = Filesystem.file(merging, name);
+                try {
+                    if (!merging.isDirectory()) { mkdir(merging); }
+                    final ArrayList<N2V> inputs = new ArrayList<N2V>();
+                    final Set<String> dead;
+                    try {
+                        for (final File file : sub) {
+                            inputs.add(N2V.open(file, mapped));
+                        }
+                        dead = null != sweep ? mark(inputs, sweep)
+                                             : Collections.<String>emptySet();
+                        final FileOutputStream sout = new FileOutputStream(f);
+                        try {
+                            final FileChannel out = sout.getChannel();
+                            N2V.merge(0 != compaction.rate
+                                ? new Throttle(out, compaction.rate, sleep)
+                            : out, inputs, compaction.dictionary, dead);
+                            out.force(true);
+                        } finally {
+                            sout.close();
+                        }
+                    } finally {
+                        for (final N2V input : inputs) { input.close(); }
+                    }
+                    swap(sub, f, dead, sweep, since);
+                } catch (final IOException e) {
+                    if (dir.isDirectory()) { throw e; }
+                    // database no longer exists, skip merge
+                } finally {
+                    f.delete();
+                    synchronized (this) { mergeScheduled = false; }
+                }
+            }
+            
+            /**
+             * Replaces archives with the archive they were merged into.
+             * <p>
+             * If the merge dropped entries, the swap first waits for the
+             * snapshots opened before the merge, which might still read a
+             * dropped entry and refer to it in a later commit. The merged
+             * archive is then discarded if a dropped entry is referred to
+             * by an archive committed since, or has become a root.
+             * </p>
+             * @param sub       merged archive files, oldest to newest
+             * @param merged    merged archive file
+             * @param dead      names of the dropped entries
+             * @param sweep     unreferenced entry finder, or
+             *                  <code>null</code> if none
+             * @param since     number of snapshots opened before the merge
+             * @throws IOException  any I/O problem
+             */
+            protected synchronized void
+            swap(final List<File> sub, final File merged,
+                 final Set<String> dead, final Collector sweep,
+                 final long since) throws IOException {
+                while (!dead.isEmpty() && !open.isEmpty() &&
+                       open.first() <= since) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                
+                // hold off new updates until the current update is done
+                swapping = true;
+                try {
+                    while (null != active) {
+                        try {
+                            wait();
+                        } catch (final InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    
+                    // check the merged archives are still in use
+                    if (null == versions) { return; }
+                    final int i = files.indexOf(sub.get(0));
+                    final int j = i + sub.size();
+                    if (-1 == i || j > files.size() ||
+                            !sub.equals(files.subList(i, j))) { return; }
+                    
+                    // check the dropped entries are still unreferenced
+                    if (!dead.isEmpty() && !unreferenced(dead,
+                            versions.subList(j, versions.size()), sweep)) {
+                        return;
+                    }
+                    
+                    // commit the merged archive along with a new manifest
+                    mkdir(pending);
+                    final File p = Filesystem.file(pending, merged.getName());
+                    rename(merged, p);
+                    final N2V archive = N2V.open(p);
+                    final Layout layout;
+                    try {
+                        layout = archive.getLayout();
+                    } finally {
+                        archive.close();
+                    }
+                    final File f = Filesystem.file(dir, merged.getName());
+                    final ArrayList<File> fs = new ArrayList<File>(files);
+                    final ArrayList<Layout> layouts =
+                        new ArrayList<Layout>(versions.size());
+                    for (final N2V version : versions) {
+                        synchronized (version) {
+                            layouts.add(version.getLayout());
+                        }
+                    }
+                    fs.subList(i, j).clear();
+                    fs.add(i, f);
+                    layouts.subList(i, j).clear();
+                    layouts.add(i, layout);
+                    Manifest.write(new FileOutputStream(
+                        Filesystem.file(pending, Manifest.filename)),
+                        fs, layouts);
                     markCommitted();
                     
-                    for (final N2V version : sub) { version.close(); }
-                    final List<File> subFiles = files.subList(i, n);
-                    for (final File file : subFiles) { file.delete(); }
-                    sub.clear();
-                    subFiles.clear();
-                    final File f = Filesystem.file(dir, name);
-                    prior.add(N2V.open(f));
-                    files.add(f);
+                    // retire the merged archives
+                    final List<N2V> sup = versions.subList(i, j);
+                    for (int k = 0; k != sup.size(); ++k) {
+                        final N2V version = sup.get(k);
+                        if (readers.containsKey(version)) {
+                            retired.put(version, sub.get(k));
+                        } else {
+                            version.close();
+                            discard(sub.get(k));
+                        }
+                    }
+                    sup.clear();
+                    files.subList(i, j).clear();
+                    versions.add(i, N2V.open(f, layout, mapped));
+                    files.add(i, f);
                     
                     // give up ownership of the archives
-                    versions = prior;
+                    publish(versions);
+                } finally {
+                    swapping = false;
+                    notifyAll();
+                }
+            }
+            
+            /**
+             * Releases the archives read by a closed snapshot.
+             * @param prior archives read by the snapshot
+             */
+            protected void
+            release(final List<N2V> prior) {
+                for (final N2V version : prior) {
+                    final int n = readers.get(version) - 1;
+                    if (0 != n) {
+                        readers.put(version, n);
+                    } else {
+                        readers.remove(version);
+                        final File file = retired.remove(version);
+                        if (null != file) {
+                            try {
+                                version.close();
+                            } catch (final IOException e) {}
+                            discard(file);
+                        }
+                    }
+                }
+            }
+            
+            /**
+             * Deletes a retired archive file, along with any that could not
+             * be deleted before.
+             * <p>
+             * A file still in use, such as a mapped archive on Windows,
+             * cannot be deleted, so it is tried again with the next one.
+             * </p>
+             * @param file  retired archive file
+             */
+            protected void
+            discard(final File file) {
+                undeleted.add(file);
+                for (final Iterator<File> i = undeleted.iterator();
+                                          i.hasNext();) {
+                    final File x = i.next();
+                    if (x.delete() || !x.exists()) { i.remove(); }
+                }
+            }
+            
+            /**
+             * Makes the committed archives available to the next transaction.
+             * @param prior committed archives, ordered from oldest to newest
+             */
+            protected void
+            publish(final ArrayList<N2V> prior) {
+                versions = prior;
+                latest = new ArrayList<N2V>(prior);
+            }
+            
+            /**
+             * Reads the layouts recorded by the last merge.
+             * @return [ archive filename => layout ]
+             */
+            protected Map<String,Layout>
+            recall() {
+                try {
+                    return Manifest.read(new FileInputStream(
+                        Filesystem.file(dir, Manifest.filename)));
+                } catch (final IOException e) {
+                    // archives are opened without a manifest
+                    return new HashMap<String,Layout>();
                 }
             }
             
@@ -377,6 +789,170 @@ RollingN2V extends Struct implements StoreMaker, Serializable {
     
     // the rest is static implementation helpers for file I/O
     
+    /**
+     * Reads an entry from the newest archive that contains it.
+     * <p>
+     * An archive may be read by the update and many snapshots at once, so the
+     * entry is read in full while holding the archive's lock.
+     * </p>
+     * @param versions  archives, ordered from oldest to newest
+     * @param name      entry name
+     * @return entry content
+     * @throws FileNotFoundException    no entry named <code>name</code>
+     * @throws IOException              any I/O problem
+     */
+    static protected InputStream
+    open(final List<N2V> versions, final String name) throws IOException {
+        for (int i = versions.size(); 0 != i--;) {
+            final N2V version = versions.get(i);
+            synchronized (version) {
+                final Archive.Entry r = version.find(name);
+                if (null != r) { return new ByteArrayInputStream(read(r)); }
+            }
+        }
+        throw new FileNotFoundException();
+    }
+    
+    /**
+     * Reads many entries, each from the newest archive that contains it.
+     * <p>
+     * Each archive is searched for all the entries not found in a newer one,
+     * and the entries found are read in the order they are stored, while
+     * holding the archive's lock just once.
+     * </p>
+     * @param versions  archives, ordered from oldest to newest
+     * @param names     entry names
+     * @param ahead     [ entry name => entry content ], to add to
+     * @return number of entries added to <code>ahead</code>
+     * @throws IOException  any I/O problem
+     */
+    static protected int
+    prefetch(final List<N2V> versions, final Iterable<String> names,
+             final Map<String,byte[]> ahead) throws IOException {
+        final HashSet<String> todo = new HashSet<String>();
+        for (final String name : names) {
+            if (!ahead.containsKey(name)) { todo.add(name); }
+        }
+        int r = 0;
+        for (int i = versions.size(); 0 != i-- && !todo.isEmpty();) {
+            final N2V version = versions.get(i);
+            synchronized (version) {
+                for (final Archive.Entry x : version.find(todo)) {
+                    ahead.put(x.getName(), read(x));
+                    todo.remove(x.getName());
+                    r += 1;
+                }
+            }
+        }
+        return r;
+    }
+    
+    /**
+     * Finds the entries not referred to from a root entry.
+     * @param versions  all the archives, ordered from oldest to newest
+     * @param collector reference finder
+     * @return names of the unreferenced entries
+     * @throws IOException  any I/O problem
+     */
+    static private Set<String>
+    mark(final List<N2V> versions,
+         final Collector collector) throws IOException {
+        // find the newest version of each entry
+        final HashMap<String,N2V> newest = new HashMap<String,N2V>();
+        for (int i = versions.size(); 0 != i--;) {
+            final N2V version = versions.get(i);
+            for (final Archive.Entry x : version) {
+                if (!newest.containsKey(x.getName())) {
+                    newest.put(x.getName(), version);
+                }
+            }
+        }
+        
+        // follow the references from the roots
+        final HashSet<String> live = new HashSet<String>();
+        final ArrayList<String> todo = new ArrayList<String>();
+        for (final String name : newest.keySet()) {
+            if (collector.isRoot(name)) {
+                live.add(name);
+                todo.add(name);
+            }
+        }
+        while (!todo.isEmpty()) {
+            final String name = todo.remove(todo.size() - 1);
+            final byte[] content = read(newest.get(name).find(name));
+            for (final String referent : collector.trace(content)) {
+                if (newest.containsKey(referent) && live.add(referent)) {
+                    todo.add(referent);
+                }
+            }
+        }
+        final HashSet<String> r = new HashSet<String>(newest.keySet());
+        r.removeAll(live);
+        return r;
+    }
+    
+    /**
+     * Checks that dropped entries are still unreferenced.
+     * @param dead      names of the dropped entries
+     * @param newer     archives committed since the entries were found
+     * @param collector reference finder
+     * @return <code>true</code> if no entry in <code>newer</code> refers to
+     *         a dropped entry it doesn't also replace, and no dropped entry
+     *         has become a root, else <code>false</code>
+     * @throws IOException  any I/O problem
+     */
+    static private boolean
+    unreferenced(final Set<String> dead, final List<N2V> newer,
+                 final Collector collector) throws IOException {
+        final HashSet<String> replaced = new HashSet<String>();
+        for (final N2V version : newer) {
+            synchronized (version) {
+                for (final Archive.Entry x : version) {
+                    replaced.add(x.getName());
+                }
+            }
+        }
+        for (final N2V version : newer) {
+            synchronized (version) {
+                for (final Archive.Entry x : version) {
+                    for (final String referent : collector.trace(read(x))) {
+                        if (dead.contains(referent) &&
+                                !replaced.contains(referent)) { return false; }
+                    }
+                }
+            }
+        }
+        for (final String name : dead) {
+            if (!replaced.contains(name) && collector.isRoot(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Reads all of an entry.
+     * @param entry entry to read
+     * @return entry content
+     * @throws IOException  any I/O problem
+     */
+    static private byte[]
+    read(final Archive.Entry entry) throws IOException {
+        if (entry.getLength() > Integer.MAX_VALUE) { throw new IOException(); }
+        final byte[] r = new byte[(int)entry.getLength()];
+        final InputStream in = entry.open();
+        try {
+            for (int n = 0; n != r.length;) {
+                final int d = in.read(r, n, r.length - n);
+                if (-1 == d) { throw new EOFException(); }
+                n += d;
+            }
+        } finally {
+            in.close();
+        }
+        return r;
+    }
+    
     /**
      * Creates a file for writing.
      * @param file  file to create
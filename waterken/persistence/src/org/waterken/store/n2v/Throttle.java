@@ -0,0 +1,63 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.store.n2v;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.ref_send.promise.Receiver;
+
+/**
+ * A channel that limits the rate at which bytes are written.
+ */
+/* package */ final class
+Throttle implements WritableByteChannel {
+
+    private final WritableByteChannel out;
+    private final long rate;            // maximum bytes per second
+    private final Receiver<Long> sleep;
+    private final int chunk;            // maximum bytes per underlying write
+    private final long start = System.currentTimeMillis();
+    private long written = 0;           // total number of bytes written
+    
+    /**
+     * Constructs an instance.
+     * @param out   underlying channel
+     * @param rate  maximum number of bytes per second
+     * @param sleep permission to sleep the current thread
+     */
+    protected
+    Throttle(final WritableByteChannel out, final long rate,
+             final Receiver<Long> sleep) {
+        this.out = out;
+        this.rate = rate;
+        this.sleep = sleep;
+        chunk = (int)Math.max(4096, Math.min(1 << 20, rate / 10));
+    }
+    
+    // java.nio.channels.WritableByteChannel interface
+    
+    public int
+    write(final ByteBuffer src) throws IOException {
+        int r = 0;
+        while (src.hasRemaining()) {
+            final ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(part.remaining(), chunk));
+            final int n = out.write(part);
+            src.position(src.position() + n);
+            r += n;
+            written += n;
+            final long ms = start + written * 1000 / rate -
+                            System.currentTimeMillis();
+            if (ms > 0) { sleep.apply(ms); }
+        }
+        return r;
+    }
+    
+    public boolean
+    isOpen() { return out.isOpen(); }
+    
+    public void
+    close() throws IOException { out.close(); }
+}
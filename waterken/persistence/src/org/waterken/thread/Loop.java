@@ -3,8 +3,8 @@
 package org.waterken.thread;
 
 import java.util.LinkedList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.ref_send.promise.Promise;
 import org.ref_send.promise.Receiver;
@@ -32,17 +32,27 @@ Loop<T extends Promise<?>> {
     }
     
     /**
-     * global thread pool
+     * Constructs an instance, run by the {@link Pool#turn turn} pool.
+     * @param name  loop name
      */
-    static public final ExecutorService pool = Executors.newCachedThreadPool();
+    static public <T extends Promise<?>> Loop<T>
+    make(final String name) { return make(name, Pool.turn); }
 
     /**
      * Constructs an instance.
+     * <p>
+     * The loop runs on a pool thread while it has tasks. If the pool rejects
+     * the loop, the enqueued task is dropped, and the rejection is thrown to
+     * the enqueuer. A pool that runs rejected tasks in the submitting thread
+     * must not be used, since the loop would then run in its enqueuer's turn.
+     * </p>
      * @param name  loop name
+     * @param pool  thread pool
      */
     static public <T extends Promise<?>> Loop<T>
-    make(final String name) {
+    make(final String name, final Executor pool) {
         if (null == name) { throw new NullPointerException(); }
+        if (null == pool) { throw new NullPointerException(); }
 
         final Object lock = new Object();
         final LinkedList<T> foreground = new LinkedList<T>();        
@@ -100,7 +110,13 @@ Loop<T extends Promise<?>> {
                     tasks.add(task);
                     if (!running[0]) {
                         running[0] = true;
-                        pool.submit(runner);
+                        try {
+                            pool.execute(runner);
+                        } catch (final RejectedExecutionException e) {
+                            running[0] = false;
+                            tasks.removeLast();
+                            throw e;
+                        }
                     }
                 }
             }
@@ -108,4 +124,42 @@ Loop<T extends Promise<?>> {
         return new Loop<T>(new Enqueue<T>(foreground),
                            new Enqueue<Promise<?>>(background));
     }
+    
+    /**
+     * Constructs a task queue whose tasks are run concurrently, by the
+     * {@link Pool#turn turn} pool.
+     * @param name  task name
+     */
+    static public <T extends Promise<?>> Receiver<T>
+    concurrent(final String name) { return concurrent(name, Pool.turn); }
+    
+    /**
+     * Constructs a task queue whose tasks are run concurrently.
+     * @param name  task name
+     * @param pool  thread pool
+     */
+    static public <T extends Promise<?>> Receiver<T>
+    concurrent(final String name, final Executor pool) {
+        if (null == name) { throw new NullPointerException(); }
+        if (null == pool) { throw new NullPointerException(); }
+        
+        return new Receiver<T>() {
+            public void
+            apply(final T task) {
+                if (null == task) { throw new NullPointerException(); }
+                
+                pool.execute(new Runnable() {
+                    public void
+                    run() {
+                        try {
+                            task.call();
+                        } catch (final Throwable e) {
+                            System.err.println(name + ":");
+                            e.printStackTrace(System.err);
+                        }
+                    }
+                });
+            }
+        };
+    }
 }
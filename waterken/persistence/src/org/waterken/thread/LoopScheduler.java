@@ -2,26 +2,20 @@
 // found at http://www.opensource.org/licenses/mit-license.html
 package org.waterken.thread;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
 import org.ref_send.promise.Promise;
 import org.ref_send.promise.Receiver;
 import org.waterken.db.Scheduler;
 
 /**
  * Puts an event on a specified event loop after a timeout.
+ * <p>
+ * The timeouts of all the loops are kept on the shared
+ * {@link TimingWheel#timeouts} wheel.
+ * </p>
  */
 public final class
 LoopScheduler<T extends Promise<?>> implements Scheduler<T> {
 
-    /**
-     * shared timeout thread
-     */
-    static private final ScheduledExecutorService timeouts =
-        Executors.newSingleThreadScheduledExecutor();
-    
     /**
      * event loop for executing tasks
      */
@@ -41,9 +35,9 @@ LoopScheduler<T extends Promise<?>> implements Scheduler<T> {
     
     public void
     apply(final long timeout, final T task) {
-        timeouts.schedule(new Runnable() {
+        TimingWheel.timeouts.schedule(timeout, new Runnable() {
             public void
             run() { loop.apply(task); }
-        }, timeout, TimeUnit.MILLISECONDS);
+        });
     }
 }
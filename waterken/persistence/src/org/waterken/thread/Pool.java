@@ -0,0 +1,329 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.thread;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An instrumented thread pool, usually bounded.
+ * <p>
+ * The server's threads are divided among a few pools, one for each role, so
+ * a flood of work for one role cannot starve the others, or exhaust the
+ * JVM's threads. The size of each pool is set by a {@link Workers} policy,
+ * which can be changed while the pool is in use. An idle worker exits after
+ * a minute.
+ * </p>
+ * <p>
+ * A pool whose tasks block for a long time, such as the loops of outbound
+ * connections, must not have a thread limit. If it did, a few slow tasks
+ * would hold every worker, and the other tasks would wait in the queue
+ * indefinitely.
+ * </p>
+ */
+public final class
+Pool implements Executor {
+
+    /**
+     * how long an idle worker waits for a task, in milliseconds
+     */
+    static private final long keepAlive = 60 * 1000;
+
+    /**
+     * maker of virtual threads, or <code>null</code> if not supported
+     */
+    static private final ThreadFactory virtual = virtual();
+
+    private final String name;
+    private final LinkedList<Runnable> queue =  // [ task waiting for a worker ]
+        new LinkedList<Runnable>();             // also guards the counts
+    private       int workers = 0;              // number of workers
+    private       int idle = 0;                 // number of workers waiting
+    private       int largest = 0;              // largest number of workers
+    private       boolean shutdown = false;     // Are new tasks refused?
+    private final long started = System.nanoTime();
+    private final AtomicLong made = new AtomicLong();      // workers made
+    private final AtomicLong ran = new AtomicLong();       // tasks run
+    private final AtomicLong busy = new AtomicLong();      // nanoseconds spent
+                                                           // running tasks
+    private final AtomicLong rejected = new AtomicLong();  // tasks rejected
+    private volatile Workers policy;
+
+    private
+    Pool(final String name, final Workers policy) {
+        this.name = name;
+        this.policy = policy;
+    }
+
+    /**
+     * runs each accepted connection
+     */
+    static public final Pool accept =
+        new Pool("accept", new Workers(256, 1024, false, false));
+
+    /**
+     * runs the event loop of each vat
+     * <p>
+     * A vat turn may block: a destroyed vat waits for its transactions to
+     * finish, and creating a vat commits to disk, so the turn pool has no
+     * thread limit by default.
+     * </p>
+     */
+    static public final Pool turn =
+        new Pool("turn", new Workers(0, 0, false, false));
+
+    /**
+     * runs the send and receive loops of each outbound connection
+     * <p>
+     * These loops block in socket reads, and sleep between attempts to reach
+     * a dead peer, so each running loop gets a thread of its own. The number
+     * of threads is bounded by twice the number of peers.
+     * </p>
+     */
+    static public final Pool outbound =
+        new Pool("outbound", new Workers(0, 0, false, false));
+
+    /**
+     * runs background archive merges
+     */
+    static public final Pool merge =
+        new Pool("merge", new Workers(2, 0, false, false));
+
+    /**
+     * Stops all the pools, once their queued tasks are done.
+     */
+    static public void
+    shutdown() {
+        for (final Pool x : new Pool[] { accept, turn, outbound, merge }) {
+            synchronized (x.queue) {
+                x.shutdown = true;
+                x.queue.notifyAll();
+            }
+        }
+    }
+
+    static private ThreadFactory
+    virtual() {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").
+                invoke(null);
+            return (ThreadFactory)Class.forName("java.lang.Thread$Builder").
+                getMethod("factory").invoke(builder);
+        } catch (final Exception e) { return null; }
+    }
+
+    // java.util.concurrent.Executor interface
+
+    /**
+     * Runs a task on a worker thread.
+     * @param task  task to run
+     * @throws RejectedExecutionException   {@link Workers#queue queue} full,
+     *                                      or pool shut down
+     */
+    public void
+    execute(final Runnable task) throws RejectedExecutionException {
+        if (null == task) { throw new NullPointerException(); }
+
+        final Workers p = policy;
+        synchronized (queue) {
+            if (shutdown) { throw new RejectedExecutionException(name); }
+            if (idle > queue.size()) {
+                queue.add(task);
+                queue.notify();
+                return;
+            }
+            if (0 == p.threads || workers < p.threads) {
+                start(task);
+                return;
+            }
+            if (0 == p.queue || queue.size() - idle < p.queue) {
+                queue.add(task);
+                return;
+            }
+        }
+        rejected.incrementAndGet();
+        if (!p.caller) { throw new RejectedExecutionException(name); }
+        run(task);
+    }
+
+    /**
+     * Starts a worker, while holding the queue lock.
+     * @param first first task to run
+     */
+    private void
+    start(final Runnable first) {
+        final Runnable work = new Runnable() {
+            public void
+            run() { work(first); }
+        };
+        final Thread thread = policy.virtual && null != virtual
+            ? virtual.newThread(work) : new Thread(work);
+        thread.setName(name + "-" + made.incrementAndGet());
+        thread.start();
+        workers += 1;
+        largest = Math.max(largest, workers);
+    }
+
+    /**
+     * Runs a task, then each queued task, until the worker has been idle for
+     * the {@link #keepAlive}, or there are more workers than the thread limit.
+     * <p>
+     * If a task throws, the worker's thread exits, and a new worker is
+     * started for any queued tasks.
+     * </p>
+     * @param first first task to run
+     */
+    private void
+    work(final Runnable first) {
+        for (Runnable task = first; null != task;) {
+            boolean done = false;
+            try {
+                run(task);
+                done = true;
+            } finally {
+                synchronized (queue) {
+                    task = done ? next() : null;
+                    if (null == task) {
+                        workers -= 1;
+                        if (!done && !queue.isEmpty()) {
+                            start(queue.removeFirst());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the next queued task, while holding the queue lock.
+     * @return next task, or <code>null</code> if the worker is to exit
+     */
+    private Runnable
+    next() {
+        final long deadline = System.currentTimeMillis() + keepAlive;
+        while (true) {
+            final int limit = policy.threads;
+            if (0 != limit && workers > limit) {
+                if (!queue.isEmpty()) { queue.notify(); }
+                return null;
+            }
+            if (!queue.isEmpty()) { return queue.removeFirst(); }
+            final long timeout = deadline - System.currentTimeMillis();
+            if (shutdown || timeout <= 0) { return null; }
+            idle += 1;
+            try {
+                queue.wait(timeout);
+            } catch (final InterruptedException e) {
+                return null;
+            } finally {
+                idle -= 1;
+            }
+        }
+    }
+
+    private void
+    run(final Runnable task) {
+        final long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            busy.addAndGet(System.nanoTime() - start);
+            ran.incrementAndGet();
+        }
+    }
+
+    // org.waterken.thread.Pool interface
+
+    /**
+     * Changes the worker policy.
+     * <p>
+     * A smaller {@linkplain Workers#threads thread limit} takes effect as the
+     * extra workers finish their current task. A larger one, or no limit,
+     * starts workers for the tasks waiting in the queue.
+     * </p>
+     * @param policy    new policy, or <code>null</code> to leave it unchanged
+     */
+    public void
+    configure(final Workers policy) {
+        if (null == policy) { return; }
+
+        synchronized (queue) {
+            this.policy = policy;
+            queue.notifyAll();      // let any extra idle workers exit
+            while (queue.size() > idle &&
+                   (0 == policy.threads || workers < policy.threads)) {
+                start(queue.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Gets the current worker policy.
+     */
+    public Workers
+    getPolicy() { return policy; }
+
+    /**
+     * Gets the number of workers running a task.
+     */
+    public int
+    getActive() {
+        synchronized (queue) { return workers - idle; }
+    }
+
+    /**
+     * Gets the largest number of workers there have been at once.
+     */
+    public int
+    getLargest() {
+        synchronized (queue) { return largest; }
+    }
+
+    /**
+     * Gets the number of tasks waiting for a worker.
+     */
+    public int
+    getQueued() {
+        synchronized (queue) { return queue.size(); }
+    }
+
+    /**
+     * Gets the number of tasks run.
+     */
+    public long
+    getCompleted() { return ran.get(); }
+
+    /**
+     * Gets the number of tasks rejected.
+     */
+    public long
+    getRejected() { return rejected.get(); }
+
+    /**
+     * Gets the total time spent running tasks, in nanoseconds.
+     * <p>
+     * The pool's utilization over an interval is the change in this value,
+     * divided by the length of the interval times the
+     * {@linkplain Workers#threads thread limit}, or by the
+     * {@linkplain #getLargest largest} number of workers, if there is no limit.
+     * </p>
+     */
+    public long
+    getBusy() { return busy.get(); }
+
+    /**
+     * Gets the fraction of the {@linkplain Workers#threads thread limit}, or
+     * of the {@linkplain #getLargest largest} number of workers, if there is
+     * no limit, used since the pool was made.
+     */
+    public double
+    getUtilization() {
+        final long elapsed = System.nanoTime() - started;
+        final int threads = policy.threads;
+        return (double)busy.get() / elapsed /
+               Math.max(1, 0 != threads ? threads : getLargest());
+    }
+}
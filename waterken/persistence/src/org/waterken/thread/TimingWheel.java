@@ -0,0 +1,250 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.thread;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed hierarchical timing wheel.
+ * <p>
+ * Time is divided into ticks. Each of the wheel's levels is a ring of
+ * {@value #slots} buckets, each bucket a list of the timeouts due within a
+ * span of time: one tick on the lowest level, and {@value #slots} times the
+ * span of the level below on each higher level. A timeout is put in the
+ * lowest level that spans its deadline, and moved down a level each time the
+ * level below comes around to the span of its bucket. Scheduling, and
+ * cancelling, a timeout is a constant time list operation, however many
+ * timeouts are pending.
+ * </p>
+ * <p>
+ * A timeout may run up to a tick, plus a {@linkplain #TimingWheel slack}
+ * fraction of its delay, late. Deadlines are rounded up to a multiple of the
+ * largest power of two ticks within this slack, so timeouts with nearby
+ * deadlines, such as the retries of many backed off pollers, share a bucket
+ * and run together.
+ * </p>
+ * <p>
+ * The whole wheel is guarded by a single lock, held only for the few list
+ * operations of each schedule, cancel, or tick.
+ * </p>
+ */
+public final class
+TimingWheel {
+
+    /**
+     * number of buckets in each level
+     */
+    static private final int slots = 256;
+    static private final int bits = 8;
+    static private final int levels = 4;
+
+    /**
+     * shared timeout wheel, with a 10 millisecond tick, and 1/16th slack
+     */
+    static public final TimingWheel timeouts =
+        new TimingWheel("timeouts", 10, 16);
+
+    private final String name;          // name of the wheel's thread
+    private final long tick;            // milliseconds per tick
+    private final int slack;            // delay divisor for allowed lateness
+    private final Timeout[][] wheel;    // [ level ][ bucket ] => list head
+    private final long epoch = System.nanoTime();
+    private       long now = 0;         // last tick run
+    private       long pending = 0;     // number of scheduled timeouts
+
+    /**
+     * Constructs an instance.
+     * @param name  name of the thread running the wheel
+     * @param tick  milliseconds per tick
+     * @param slack a timeout may be up to its delay divided by this number of
+     *              milliseconds late, or <code>0</code> for no coalescing
+     */
+    public
+    TimingWheel(final String name, final long tick, final int slack) {
+        if (tick < 1 || slack < 0) { throw new IllegalArgumentException(); }
+
+        this.name = name;
+        this.tick = tick;
+        this.slack = slack;
+        wheel = new Timeout[levels][slots];
+        for (final Timeout[] level : wheel) {
+            for (int i = 0; i != slots; ++i) { level[i] = new Timeout(null); }
+        }
+        final Thread thread = new Thread(new Runnable() {
+            public void
+            run() {
+                try {
+                    while (true) { advance(); }
+                } catch (final InterruptedException e) {}
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static public final class
+    Timeout {
+        final Runnable task;
+        long deadline;                  // tick to run at
+        Timeout prev = this;            // previous in its bucket
+        Timeout next = this;            // next in its bucket
+        volatile TimingWheel wheel;     // wheel it is scheduled on, or null
+
+        Timeout(final Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancels the task, if it has not yet been run.
+         * @return <code>true</code> if cancelled, else <code>false</code>
+         */
+        public boolean
+        cancel() {
+            final TimingWheel x = wheel;
+            if (null == x) { return false; }
+            synchronized (x) {
+                if (x != wheel) { return false; }
+                unlink();
+                x.pending -= 1;
+                return true;
+            }
+        }
+
+        void
+        unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = this;
+            wheel = null;
+        }
+    }
+
+    // org.waterken.thread.TimingWheel interface
+
+    /**
+     * Gets the number of scheduled timeouts.
+     */
+    public synchronized long
+    getPending() { return pending; }
+
+    /**
+     * Schedules a task.
+     * @param ms    minimum number of milliseconds to delay for
+     * @param task  task to run, on the wheel's thread
+     * @return timeout, for cancelling the task
+     */
+    public Timeout
+    schedule(final long ms, final Runnable task) {
+        if (null == task) { throw new NullPointerException(); }
+
+        final Timeout r = new Timeout(task);
+        final long delay = (Math.max(0, ms) + tick - 1) / tick;
+        final long grain = 0 != slack && delay / slack > 1
+            ? Long.highestOneBit(delay / slack) : 1;
+        synchronized (this) {
+            final long current = elapsed();
+            if (0 == pending++) {
+                // with no timeouts in the wheel, skip ahead to the present
+                now = Math.max(now, current);
+                notify();
+            }
+            // the current tick is partly gone, so count from the next one
+            r.deadline = (current + delay + grain) / grain * grain;
+            place(r, now + 1);
+        }
+        return r;
+    }
+
+    /**
+     * Gets the number of ticks since the wheel was made.
+     */
+    private long
+    elapsed() { return (System.nanoTime() - epoch) / 1000000 / tick; }
+
+    /**
+     * Puts a timeout in the bucket for its deadline.
+     * @param timeout   timeout to place
+     * @param first     first tick not yet run
+     */
+    private void
+    place(final Timeout timeout, final long first) {
+        final long deadline = Math.max(timeout.deadline, first);
+        final long delay = deadline - now;
+        int level = 0;
+        while (level != levels - 1 && delay >= 1L << (bits * (level + 1))) {
+            ++level;
+        }
+        final long slot = level == levels - 1 && delay >= 1L << bits * levels
+            ? now + (1L << bits * levels) - 1 : deadline;
+        final Timeout head = wheel[level][(int)(slot >>> bits*level) & slots-1];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+        timeout.wheel = this;
+    }
+
+    /**
+     * Moves the timeouts in a bucket to the lower levels.
+     * @return index of the bucket
+     */
+    private int
+    cascade(final int level) {
+        final int index = (int)(now >>> bits * level) & slots - 1;
+        final Timeout head = wheel[level][index];
+        while (head.next != head) {
+            final Timeout x = head.next;
+            x.unlink();
+            place(x, now);
+        }
+        return index;
+    }
+
+    /**
+     * Runs the timeouts due by the current time, waiting for the next tick.
+     */
+    private void
+    advance() throws InterruptedException {
+        final ArrayList<Runnable> due = new ArrayList<Runnable>();
+        synchronized (this) {
+            while (0 == pending) { wait(); }
+            final long target = elapsed();
+            if (now >= target) {
+                final long ms = (System.nanoTime() - epoch) / 1000000;
+                wait(tick - ms % tick);
+                return;
+            }
+            while (now < target) {
+                if (0 == pending) {
+                    now = target;
+                    break;
+                }
+                now += 1;
+                final int index = (int)now & slots - 1;
+                if (0 == index) {
+                    for (int level = 1; level != levels; ++level) {
+                        if (0 != cascade(level)) { break; }
+                    }
+                }
+                final Timeout head = wheel[0][index];
+                while (head.next != head) {
+                    final Timeout x = head.next;
+                    x.unlink();
+                    pending -= 1;
+                    due.add(x.task);
+                }
+            }
+        }
+        for (final Runnable task : due) {
+            try {
+                task.run();
+            } catch (final Throwable e) {
+                System.err.println(name + ":");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+}
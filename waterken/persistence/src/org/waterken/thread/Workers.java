@@ -0,0 +1,67 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.thread;
+
+import java.io.Serializable;
+
+import org.joe_e.Powerless;
+import org.joe_e.Struct;
+import org.ref_send.deserializer;
+import org.ref_send.name;
+
+/**
+ * A policy for the worker threads of a {@link Pool}.
+ * <p>
+ * A task is run by an idle worker, or by a new one, if there are fewer than
+ * {@link #threads} workers, or there is no limit. Otherwise, the task waits
+ * in the pool's queue. A task submitted when the queue already holds
+ * {@link #queue} tasks is rejected: it is either run by the submitting
+ * thread, or refused with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ * </p>
+ */
+public final class
+Workers extends Struct implements Powerless, Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * maximum number of worker threads, or <code>0</code> for no limit
+     */
+    public final int threads;
+
+    /**
+     * maximum number of tasks waiting for a worker, or <code>0</code> for no
+     * limit
+     */
+    public final int queue;
+
+    /**
+     * Run a rejected task in the submitting thread, rather than refuse it?
+     */
+    public final boolean caller;
+
+    /**
+     * Use virtual threads, where the JVM supports them?
+     */
+    public final boolean virtual;
+
+    /**
+     * Constructs an instance.
+     * @param threads   {@link #threads}
+     * @param queue     {@link #queue}
+     * @param caller    {@link #caller}
+     * @param virtual   {@link #virtual}
+     */
+    public @deserializer
+    Workers(@name("threads") final int threads,
+            @name("queue") final int queue,
+            @name("caller") final boolean caller,
+            @name("virtual") final boolean virtual) {
+        if (threads < 0 || queue < 0) { throw new IllegalArgumentException(); }
+
+        this.threads = threads;
+        this.queue = queue;
+        this.caller = caller;
+        this.virtual = virtual;
+    }
+}
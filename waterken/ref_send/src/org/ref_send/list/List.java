@@ -16,12 +16,35 @@ import org.ref_send.promise.Receiver;
 
 /**
  * A linked list.
+ * <p>
+ * The elements are kept in a ring of fixed size chunks. Appending an element
+ * fills the next slot of the last chunk, and removing the front element
+ * empties the first slot of the first chunk, so however many elements are
+ * appended and removed, only the list and its first and last chunks are
+ * modified. An emptied chunk is reused once the ring fills up.
+ * </p>
  * @param <T> element type
  */
 public final class
 List<T> implements Iterable<T>, Serializable {
     static private final long serialVersionUID = 1L;
 
+    /**
+     * number of elements in each chunk
+     */
+    static private final int chunk = 16;
+
+    static protected final class
+    Chunk<T> implements Equatable, Serializable {
+        static private final long serialVersionUID = 1L;
+
+        protected Promise<Chunk<T>> next;
+        protected final Object[] values = new Object[chunk];
+    }
+
+    /**
+     * link in a list saved before elements were kept in chunks
+     */
     static protected final class
     Link<T> implements Equatable, Serializable {
         static private final long serialVersionUID = 1L;
@@ -31,17 +54,38 @@ List<T> implements Iterable<T>, Serializable {
     }
 
     /**
-     * first element link
+     * first element link, in a list saved before elements were kept in chunks,
+     * else <code>null</code>
      */
     protected Promise<Link<T>> first;
 
     /**
-     * first unused link
+     * first unused link, in a list saved before elements were kept in chunks
      */
     protected Link<T> last;
 
     /**
-     * link count
+     * first element chunk
+     */
+    protected Promise<Chunk<T>> head;
+
+    /**
+     * chunk holding the first unused slot
+     */
+    protected Promise<Chunk<T>> tail;
+
+    /**
+     * index of the first element in the {@link #head} chunk
+     */
+    private int front;
+
+    /**
+     * index of the first unused slot in the {@link #tail} chunk
+     */
+    private int back;
+
+    /**
+     * chunk count
      */
     private long capacity;
 
@@ -51,13 +95,7 @@ List<T> implements Iterable<T>, Serializable {
     private long size;
 
     private
-    List() {
-        last = new Link<T>();
-        last.next = ref(last);
-        first = last.next;
-        capacity = 1;
-        size = 0;
-    }
+    List() { start(); }
 
     /**
      * Constructs a list.
@@ -66,6 +104,37 @@ List<T> implements Iterable<T>, Serializable {
     static public <T> List<T>
     list() { return new List<T>(); }
 
+    /**
+     * Starts an empty ring of one chunk.
+     */
+    private void
+    start() {
+        final Chunk<T> x = new Chunk<T>();
+        x.next = ref(x);
+        head = x.next;
+        tail = x.next;
+        front = 0;
+        back = 0;
+        capacity = 1;
+        size = 0;
+    }
+
+    /**
+     * Moves the elements of a list saved before elements were kept in chunks
+     * into chunks, before the list is next modified.
+     */
+    private void
+    upgrade() {
+        if (null == first) { return; }
+
+        final Link<T> end = last;
+        Link<T> x = near(first);
+        first = null;
+        last = null;
+        start();
+        for (; x != end; x = near(x.next)) { append(x.value); }
+    }
+
     // java.lang.Iterable interface
 
     /**
@@ -73,12 +142,39 @@ List<T> implements Iterable<T>, Serializable {
      * @return forward iterator over this list
      */
     public final Iterator<T>
-    iterator() { return new IteratorX(); }
+    iterator() {
+        return null != first ? new LinkIterator() : new IteratorX();
+    }
 
     protected final class
     IteratorX implements Iterator<T>, Serializable {
         static private final long serialVersionUID = 1L;
 
+        private Chunk<T> current = near(head);
+        private int index = front;
+
+        public boolean
+        hasNext() { return current != near(tail) || index != back; }
+
+        public T
+        next() {
+            if (!hasNext()) { throw new NoSuchElementException(); }
+            final @SuppressWarnings("unchecked") T r = (T)current.values[index];
+            if (chunk == ++index) {
+                current = near(current.next);
+                index = 0;
+            }
+            return r;
+        }
+
+        public void
+        remove() { throw new UnsupportedOperationException(); }
+    }
+
+    protected final class
+    LinkIterator implements Iterator<T>, Serializable {
+        static private final long serialVersionUID = 1L;
+
         private Link<T> current = near(first);
 
         public boolean
@@ -118,7 +214,9 @@ List<T> implements Iterable<T>, Serializable {
     public T
     getFront() throws NullPointerException {
         if (0 == size) { throw new NullPointerException(); }
-        return near(first).value;
+        if (null != first) { return near(first).value; }
+        final @SuppressWarnings("unchecked") T r = (T)near(head).values[front];
+        return r;
     }
 
     /**
@@ -128,12 +226,16 @@ List<T> implements Iterable<T>, Serializable {
      */
     public T
     pop() throws NullPointerException {
+        upgrade();
         if (0 == size) { throw new NullPointerException(); }
-        final Link<T> x = near(first);
-        final T r = x.value;
-        x.value = null;
-        first = x.next;
+        final Chunk<T> x = near(head);
+        final @SuppressWarnings("unchecked") T r = (T)x.values[front];
+        x.values[front] = null;
         size -= 1;
+        if (chunk == ++front) {
+            head = x.next;
+            front = 0;
+        }
         return r;
     }
 
@@ -143,17 +245,22 @@ List<T> implements Iterable<T>, Serializable {
      */
     public void
     append(final T value) {
-        last.value = value;
+        upgrade();
+        final Chunk<T> x = near(tail);
+        x.values[back] = value;
         size += 1;
-        if (capacity == size) {
-            final Link<T> spare = new Link<T>();
-            spare.next = last.next;
-            last.next = ref(spare);
-            capacity += 1;
+        if (chunk == ++back) {
+            if (capacity == (front + size) / chunk) {
+                final Chunk<T> spare = new Chunk<T>();
+                spare.next = x.next;
+                x.next = ref(spare);
+                capacity += 1;
+            }
+            tail = x.next;
+            back = 0;
         }
-        last = near(last.next);
     }
-    
+
     /**
      * Constructs an {@linkplain #append append}er.
      */
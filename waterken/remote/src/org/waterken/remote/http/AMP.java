@@ -89,7 +89,11 @@ AMP extends Struct implements Remoting<Server>, Powerless, Serializable {
             final Message<Request> m = new Message<Request>(head, null == body ?
                 null : Stream.snapshot(length >= 0 ? length : 512,
                                        Limited.input(maxEntitySize + 1, body)));
-            vat.service.apply(new Service() {
+            final boolean isQuery = "GET".equals(head.method) ||
+                                    "HEAD".equals(head.method) ||
+                                    "OPTIONS".equals(head.method) ||
+                                    "TRACE".equals(head.method);
+            final Service respond = new Service() {
                 public Void
                 call() throws Exception {
                     if (!cors.isStillWaiting()) {
@@ -99,11 +103,7 @@ AMP extends Struct implements Remoting<Server>, Powerless, Serializable {
                     
                     final Message<Response> r;
                     try {
-                        r = vat.enter("GET".equals(head.method) ||
-                                      "HEAD".equals(head.method) ||
-                                      "OPTIONS".equals(head.method) ||
-                                      "TRACE".equals(head.method),
-                                      callee(q, m)).call();
+                        r = vat.enter(isQuery, callee(q, m)).call();
                     } catch (final DoesNotExist e) {
                         cors.receive(Response.gone(), null);
                         return null;
@@ -117,7 +117,20 @@ AMP extends Struct implements Remoting<Server>, Powerless, Serializable {
                     } catch (final IOException e) {}
                     return null;
                 }
-            });
+            };
+            if (!isQuery || null == vat.queries) {
+                vat.service.apply(respond);
+            } else {
+                // run the query once the preceding tasks are done, but
+                // alongside any that follow it
+                vat.service.apply(new Service() {
+                    public Void
+                    call() {
+                        vat.queries.apply(respond);
+                        return null;
+                    }
+                });
+            }
         }
     }; }
     
@@ -89,8 +89,9 @@ HTTP extends Eventual implements Serializable {
             final ByteArray body = new JSONSerializer().serializeTuple(
                 exports.export(), ConstArray.array(paramv),
                                   ConstArray.array(argv));
+            final TurnBatch batch = root.fetch(null, VatInitializer.batch);
             final PowerlessArray<String> rd = creator.apply(null, here, label,
-                new VatInitializer(make, here, body)).call();
+                new VatInitializer(make, here, body, batch)).call();
             log.sent(rd.get(0));
             final Importer connect = exports.connect();
             final @SuppressWarnings("unchecked") R top =
@@ -0,0 +1,59 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.remote.http;
+
+import java.io.Serializable;
+
+import org.joe_e.Powerless;
+import org.joe_e.Struct;
+import org.ref_send.deserializer;
+import org.ref_send.name;
+
+/**
+ * A limit on the number of event loop turns committed together.
+ * <p>
+ * Queued turns are run inside a single update transaction, until either
+ * {@link #turns} turns have been run, or {@link #millis} milliseconds have
+ * elapsed. A turn that fails is re-run alone, after the turns that preceded
+ * it in the batch are committed.
+ * </p>
+ * <p>
+ * A vat's policy is set when it is created, from the server's
+ * <code>turnBatch</code> setting, or, for a vat spawned by another, from the
+ * spawning vat. The default policy runs one turn per transaction.
+ * </p>
+ */
+public final class
+TurnBatch extends Struct implements Powerless, Serializable {
+    static private final long serialVersionUID = 1L;
+
+    /**
+     * one turn per transaction
+     */
+    static public final TurnBatch solo = new TurnBatch(1, 0);
+
+    /**
+     * maximum number of turns per transaction
+     */
+    public final int turns;
+
+    /**
+     * maximum milliseconds of work per transaction, or <code>0</code> if only
+     * {@link #turns} is used
+     */
+    public final long millis;
+
+    /**
+     * Constructs an instance.
+     * @param turns     {@link #turns}
+     * @param millis    {@link #millis}
+     */
+    public @deserializer
+    TurnBatch(@name("turns") final int turns,
+              @name("millis") final long millis) {
+        if (turns < 1 || millis < 0) { throw new IllegalArgumentException(); }
+
+        this.turns = turns;
+        this.millis = millis;
+    }
+}
@@ -25,6 +25,7 @@ import org.waterken.db.Database;
 import org.waterken.db.Effect;
 import org.waterken.db.Root;
 import org.waterken.db.Transaction;
+import org.waterken.db.TransactionMonitor;
 import org.waterken.http.Server;
 import org.waterken.syntax.Exporter;
 import org.waterken.syntax.json.JSONDeserializer;
@@ -38,12 +39,15 @@ VatInitializer extends Struct implements Transaction<PowerlessArray<String>> {
     private final Method make;      // maker method
     private final String base;      // base URL for JSON serialization
     private final ByteArray body;   // JSON serialized arguments
+    private final TurnBatch policy; // turn batching policy, or null for solo
     
     protected
-    VatInitializer(final Method make, final String base, final ByteArray body) {
+    VatInitializer(final Method make, final String base, final ByteArray body,
+                   final TurnBatch policy) {
         this.make = make;
         this.base = base;
         this.body = body;
+        this.policy = policy;
     }
     
     public PowerlessArray<String>
@@ -65,6 +69,8 @@ VatInitializer extends Struct implements Transaction<PowerlessArray<String>> {
         root.assign(VatInitializer.exports, exports);
         root.assign(VatInitializer.sessions, sessions);
         root.assign(Database.wake, wake(tasks, outbound));
+        root.assign(Database.pending, pending(tasks, outbound));
+        if (null != policy) { root.assign(VatInitializer.batch, policy); }
         Type[] paramv = make.getGenericParameterTypes();
         final Object[] argv = new Object[paramv.length];
         int nextArg = 0;
@@ -88,6 +94,27 @@ VatInitializer extends Struct implements Transaction<PowerlessArray<String>> {
     create(final Database<Server> parent, final String project,
            final String base, final String label,
            final Class<?> maker, final ByteArray body) throws Exception {
+        return create(parent, project, base, label, maker, body, null);
+    }
+    
+    /**
+     * Creates a vat.
+     * @param parent    database to create the vat in
+     * @param project   project name
+     * @param base      base URL for the vat
+     * @param label     vat name, or <code>null</code> for a random one
+     * @param maker     maker of the vat's top object
+     * @param body      JSON serialized arguments to the maker
+     * @param policy    {@link TurnBatch} policy for the vat, or
+     *                  <code>null</code> for one turn per transaction
+     * @return URL of the vat's top object
+     * @throws Exception    any problem
+     */
+    static public String
+    create(final Database<Server> parent, final String project,
+           final String base, final String label,
+           final Class<?> maker, final ByteArray body,
+           final TurnBatch policy) throws Exception {
         final Method make = NotAMaker.dispatch(maker);
         return parent.enter(Database.update,
                             new Transaction<PowerlessArray<String>>() {
@@ -95,7 +122,7 @@ VatInitializer extends Struct implements Transaction<PowerlessArray<String>> {
             apply(final Root local) throws Exception {
                 final Creator creator = local.fetch(null, Database.creator);
                 return creator.apply(project, base, label,
-                                     new VatInitializer(make,null,body)).call();
+                    new VatInitializer(make, null, body, policy)).call();
             }
         }).call().get(1);
     }
@@ -152,30 +179,126 @@ VatInitializer extends Struct implements Transaction<PowerlessArray<String>> {
         return new Wake();
     }
     
+    static private Promise<Boolean>
+    pending(final List<Promise<?>> tasks, final Outbound outbound) {
+        class Pending extends Struct implements Promise<Boolean>, Serializable {
+            static private final long serialVersionUID = 1L;
+            
+            public Boolean
+            call() {
+                return !tasks.isEmpty() || 0 != outbound.getPending().length();
+            }
+        }
+        return new Pending();
+    }
+    
     static protected Effect<Server>
-    runTask() {
+    runTask() { return runTask(0); }
+    
+    /**
+     * Constructs an effect that runs a batch of queued turns.
+     * @param solo  number of turns to run one per transaction, before
+     *              resuming the vat's {@link TurnBatch} policy
+     */
+    static private Effect<Server>
+    runTask(final int solo) {
         return new Effect<Server>() {
             public void
             apply(final Database<Server> vat) throws Exception {
-                vat.enter(Database.update, new Transaction<Immutable>() {
-                    public Immutable
-                    apply(final Root local) throws Exception {
-                        final List<Promise<?>> tasks =
-                            local.fetch(null, VatInitializer.tasks);
-                        final Promise<?> task = tasks.pop();
-                        if (!tasks.isEmpty()) {
-                            final Receiver<Effect<Server>> effect =
-                                local.fetch(null, Database.effect);
-                            effect.apply(runTask());
-                        }
-                        task.call();
-                        return new Token();
+                final Turns batch = 0 != solo ? new Turns(1, solo - 1)
+                                              : new Turns(0, 0);
+                try {
+                    vat.enter(Database.update, batch).call();
+                } catch (final Exception e) {
+                    if (batch.halted) {
+                        /*
+                         * A turn failed after others in the batch completed.
+                         * The aborted transaction is replayed up to the last
+                         * good turn boundary and the failed turn is then run
+                         * alone, just as it would've been without batching.
+                         */
+                        vat.enter(Database.update,
+                                  new Turns(batch.done, 1)).call();
+                    } else if (batch.done > 1) {
+                        // the commit failed, so give each turn its own
+                        vat.enter(Database.update,
+                                  new Turns(1, batch.done - 1)).call();
+                    } else {
+                        throw e;
                     }
-                }).call();
+                }
             }
         };
     }
-
+    
+    /**
+     * Runs queued turns in a single transaction.
+     */
+    static private final class
+    Turns implements Transaction<Immutable> {
+        
+        private final int max;      // maximum turns to run, or 0 for policy
+        private final int solo;     // turns to run alone after this batch
+        
+        protected int done = 0;             // number of completed turns
+        protected boolean halted = false;   // Was the batch aborted by a turn?
+        
+        Turns(final int max, final int solo) {
+            this.max = max;
+            this.solo = solo;
+        }
+        
+        public Immutable
+        apply(final Root local) throws Exception {
+            final List<Promise<?>> tasks =
+                local.fetch(null, VatInitializer.tasks);
+            final Receiver<Effect<Server>> effect =
+                local.fetch(null, Database.effect);
+            final TurnBatch policy = 0 != max
+                ? new TurnBatch(max, 0)
+            : local.<TurnBatch>fetch(TurnBatch.solo, VatInitializer.batch);
+            final TransactionMonitor monitor =
+                local.fetch(null, Database.monitor);
+            final Receiver<?> flip = local.fetch(null, Database.flip);
+            while (true) {
+                if (0 != done && null != flip) { flip.apply(null); }
+                
+                /*
+                 * The task is left at the front of the queue while it runs, so
+                 * that tasks it enqueues don't schedule another transaction.
+                 */
+                try {
+                    tasks.getFront().call();
+                } catch (final Exception e) {
+                    if (0 != done) {
+                        halted = true;
+                        throw new Error(e);
+                    }
+                    tasks.pop();
+                    if (!tasks.isEmpty()) { effect.apply(runTask(solo)); }
+                    throw e;
+                } catch (final Error e) {
+                    halted = 0 != done;
+                    throw e;
+                }
+                tasks.pop();
+                done += 1;
+                if (tasks.isEmpty()) { break; }
+                if (done == policy.turns ||
+                        (0 != policy.millis && null != monitor &&
+                         monitor.elapsed() >= policy.millis)) {
+                    effect.apply(runTask(solo));
+                    break;
+                }
+            }
+            if (1 != done) {
+                final Log log_ = local.fetch(null, Database.log);
+                log_.comment("committing " + done + " turns");
+            }
+            return new Token();
+        }
+    }
+    
     /**
      * key bound to the session maker in all vats
      */
@@ -183,5 +306,6 @@ VatInitializer extends Struct implements Transaction<PowerlessArray<String>> {
     
     static protected final String outbound = ".outbound";
     static private   final String tasks = ".tasks";
+    static protected final String batch = ".batch";
     static public    final String exports = ".exports";
 }
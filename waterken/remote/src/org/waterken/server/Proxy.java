@@ -14,6 +14,7 @@ import org.waterken.http.TokenList;
 import org.waterken.net.Locator;
 import org.waterken.net.http.ClientSide;
 import org.waterken.thread.Loop;
+import org.waterken.thread.Pool;
 import org.waterken.thread.Sleep;
 
 /**
@@ -29,8 +30,10 @@ Proxy extends Struct implements Server, Serializable {
     connect(final String peer, final Locator transport) {
         Server r = connections.fetch(null, peer);
         if (null == r) {
-            final Loop<ClientSide.Outbound> sender = Loop.make("->" + peer);
-            final Loop<ClientSide.Inbound> receiver = Loop.make("<-" + peer);
+            final Loop<ClientSide.Outbound> sender =
+                Loop.make("->" + peer, Pool.outbound);
+            final Loop<ClientSide.Inbound> receiver =
+                Loop.make("<-" + peer, Pool.outbound);
             r = ClientSide.make(peer, transport, new Sleep(),
                                 sender.foreground, receiver.foreground);
             connections.put(peer, r);
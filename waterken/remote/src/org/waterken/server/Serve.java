@@ -11,12 +11,14 @@ import java.net.ServerSocket;
 import org.joe_e.Immutable;
 import org.joe_e.Token;
 import org.joe_e.array.ByteArray;
+import org.joe_e.file.Filesystem;
 import org.ref_send.promise.Receiver;
 import org.waterken.db.Database;
 import org.waterken.db.DatabaseManager;
 import org.waterken.db.Root;
 import org.waterken.db.Transaction;
 import org.waterken.http.Server;
+import org.waterken.jos.JODBManager;
 import org.waterken.net.TCPDaemon;
 import org.waterken.udp.UDPDaemon;
 
@@ -60,6 +62,14 @@ Serve {
         // summarize the configuration information
         Settings.summarize(hostname, System.out);
 
+        // keep the index of vats to wake from before any request is served
+        final DatabaseManager<Server> vats = Settings.config.read("dbm");
+        final File root = Settings.config.read("vatRootFolder");
+        final JODBManager<?> manager = vats instanceof JODBManager<?>
+            ? (JODBManager<?>)vats : null;
+        final boolean indexed = null != manager &&
+            manager.index(Filesystem.file(root, ".waking"));
+
         // start the network services
         final Receiver<ByteArray> updateDNS_= Settings.config.read("updateDNS");
         for (final String service : services) {
@@ -95,12 +105,21 @@ Serve {
             }
         }
 
-        // ping all the persistent vats to restart any pending tasks
-        System.out.println(Thread.currentThread().getName() +
-                           ": restarting all vats...");
-        final DatabaseManager<Server> vats = Settings.config.read("dbm");
-        final File root = Settings.config.read("vatRootFolder");
-        ping(vats, root);
+        // restart the pending tasks of the persistent vats, waking only the
+        // indexed vats, if there is an index, or else all of them; the other
+        // vats are woken by their first request
+        if (indexed) {
+            System.out.println(Thread.currentThread().getName() +
+                               ": restarting indexed vats...");
+            manager.wake(2 * Runtime.getRuntime().availableProcessors());
+        } else {
+            System.out.println(Thread.currentThread().getName() +
+                               ": restarting all vats...");
+            ping(vats, root);
+        }
+        if (null != manager) {
+            manager.warm(Filesystem.file(root, ".resident"));
+        }
         System.out.println(Thread.currentThread().getName() +
                            ": all vats restarted");
     }
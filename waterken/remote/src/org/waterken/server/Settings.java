@@ -8,16 +8,25 @@ import java.io.PrintStream;
 import org.joe_e.file.Filesystem;
 import org.ref_send.log.Event;
 import org.ref_send.promise.Receiver;
+import org.waterken.archive.n2v.FileCache;
+import org.waterken.cache.Budget;
 import org.waterken.db.Database;
 import org.waterken.db.DatabaseManager;
 import org.waterken.http.Server;
 import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.jos.Residency;
 import org.waterken.project.Project;
 import org.waterken.remote.http.AMP;
 import org.waterken.remote.mux.Mux;
+import org.waterken.store.StoreMaker;
+import org.waterken.store.k2v.FolderK2V;
+import org.waterken.store.n2v.Compaction;
 import org.waterken.store.n2v.RollingN2V;
 import org.waterken.syntax.config.Config;
+import org.waterken.thread.Pool;
 import org.waterken.thread.Sleep;
+import org.waterken.thread.Workers;
 
 /**
  * Server settings.
@@ -59,10 +68,47 @@ Settings {
         config.override("os", System.getProperty("os.name"));
         
         final Receiver<Event> log;
-        try { log = config.read("log");
+        final Compaction compaction;
+        final Budget cache;
+        final Boolean compact;
+        final Boolean quick;
+        final Boolean collect;
+        final Boolean shared;
+        final Boolean mapped;
+        final Residency residency;
+        final Workers accept;
+        final Workers turn;
+        final Workers outbound;
+        final Workers merge;
+        final Integer files;
+        try {
+            log = config.read("log");
+            compaction = config.read("compaction");
+            cache = config.read("cache");
+            compact = config.read("compactObjects");
+            quick = config.read("quickVersions");
+            collect = config.read("collectGarbage");
+            shared = config.read("sharedStore");
+            mapped = config.read("mapArchives");
+            residency = config.read("residency");
+            accept = config.read("acceptThreads");
+            turn = config.read("turnThreads");
+            outbound = config.read("outboundThreads");
+            merge = config.read("mergeThreads");
+            files = config.read("archiveFiles");
         } catch (final Exception e) { throw new Error(e); }
-        config.override("dbm", new JODBManager<Server>(
-            new RollingN2V(new Sleep()), new Proxy(), log));
+        Pool.accept.configure(accept);
+        Pool.turn.configure(turn);
+        Pool.outbound.configure(outbound);
+        Pool.merge.configure(merge);
+        if (null != files) { FileCache.shared.configure(files); }
+        final StoreMaker store = Boolean.TRUE.equals(shared) ?
+            new FolderK2V() : new RollingN2V(new Sleep(), compaction,
+                                             Boolean.TRUE.equals(mapped));
+        config.override("dbm", new JODBManager<Server>(store, new Proxy(), log,
+            new Options(cache, Boolean.TRUE.equals(compact),
+                        Boolean.TRUE.equals(quick),
+                        Boolean.TRUE.equals(collect), residency)));
     }
     
     /**
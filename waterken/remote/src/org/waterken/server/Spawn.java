@@ -10,6 +10,7 @@ import org.joe_e.charset.UTF8;
 import org.ref_send.promise.NotAMaker;
 import org.waterken.net.http.HTTPD;
 import org.waterken.project.Project;
+import org.waterken.remote.http.TurnBatch;
 import org.waterken.remote.http.VatInitializer;
 import org.waterken.store.NameCollision;
 import org.waterken.uri.Header;
@@ -70,6 +71,7 @@ Spawn {
 
         // load configured values
         final String vatURIPathPrefix= Settings.config.read("vatURIPathPrefix");
+        final TurnBatch batch = Settings.config.read("turnBatch");
 
         // determine the local address
         final String here;
@@ -92,7 +94,8 @@ Spawn {
         final Class<?> maker = code.loadClass(typename);
         try {
             final String r = VatInitializer.create(Settings.db(""), project,
-                                                   here, label, maker, body);
+                                                   here, label, maker, body,
+                                                   batch);
             System.out.println(r);
         } catch (final NotAMaker e) {
             System.err.println(
@@ -10,12 +10,13 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.Enumeration;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.joe_e.array.ByteArray;
 import org.ref_send.promise.Receiver;
 import org.waterken.dns.Resource;
 import org.waterken.net.TCPDaemon;
-import org.waterken.thread.Loop;
+import org.waterken.thread.Pool;
 import org.waterken.uri.Header;
 
 /**
@@ -51,21 +52,28 @@ TCP implements Runnable {
             try {
                 final Socket socket = port.accept();
                 final String client = "<->" + socket.getRemoteSocketAddress();
-                Loop.pool.submit(new Runnable() {
-                    public void
-                    run() {
-                        try {
-                            daemon.accept(hostname, socket).call();
-                        } catch (final SocketTimeoutException e) {
-                            // normal end to a TCP connection
-                        } catch (final Throwable e) {
-                            System.err.println(client + ":");
-                            e.printStackTrace(System.err);
-                        } finally {
-                            try { socket.close(); } catch (final Exception e) {}
+                try {
+                    Pool.accept.execute(new Runnable() {
+                        public void
+                        run() {
+                            try {
+                                daemon.accept(hostname, socket).call();
+                            } catch (final SocketTimeoutException e) {
+                                // normal end to a TCP connection
+                            } catch (final Throwable e) {
+                                System.err.println(client + ":");
+                                e.printStackTrace(System.err);
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (final Exception e) {}
+                            }
                         }
-                    }
-                });
+                    });
+                } catch (final RejectedExecutionException e) {
+                    // shed the load of a connection flood
+                    try { socket.close(); } catch (final Exception e2) {}
+                }
             } catch (final SocketTimeoutException e) {
                 updateHostAddress();
             } catch (final Throwable e) {
@@ -1,9 +1,9 @@
 #!/bin/sh
 if [ "$OS" = 'Windows_NT' ]
 then
-    CLASSPATH='..\joe-e\bin;..\ref_send\bin;..\shared\bin;..\example\bin;..\network\bin;..\log\bin;..\persistence\bin;..\remote\bin;..\dns\bin;..\server\bin'
+    CLASSPATH='..\joe-e\bin;..\ref_send\bin;..\shared\bin;..\example\bin;..\network\bin;..\log\bin;..\persistence\bin;..\k2v\bin;..\remote\bin;..\dns\bin;..\server\bin'
 else
-    CLASSPATH='../joe-e/bin:../ref_send/bin:../shared/bin:../example/bin:../network/bin:../log/bin:../persistence/bin:../remote/bin:../dns/bin:../server/bin'
+    CLASSPATH='../joe-e/bin:../ref_send/bin:../shared/bin:../example/bin:../network/bin:../log/bin:../persistence/bin:../k2v/bin:../remote/bin:../dns/bin:../server/bin'
 fi
 
 echo 'Building test project...'
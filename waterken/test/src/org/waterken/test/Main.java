@@ -2,6 +2,8 @@
 // found at http://www.opensource.org/licenses/mit-license.html
 package org.waterken.test;
 
+import org.waterken.thread.Pool;
+
 /**
  * Runs all tests.
  */
@@ -14,8 +16,24 @@ Main {
      */
     static public void
     main(final String[] args) throws Exception {
-        org.waterken.test.uri.Main.main(args);
-        org.waterken.all.All.main(args);
-        org.waterken.factorial.FactorialN.main(args);
+        try {
+            org.waterken.test.uri.Main.main(args);
+            org.waterken.test.commit.Check.main(args);
+            org.waterken.test.n2v.Check.main(args);
+            org.waterken.test.bloom.Check.main(args);
+            org.waterken.test.merge.Check.main(args);
+            org.waterken.test.prefetch.Check.main(args);
+            org.waterken.test.gc.Check.main(args);
+            org.waterken.test.residency.Check.main(args);
+            org.waterken.test.persist.Check.main(args);
+            org.waterken.test.etag.Check.main(args);
+            org.waterken.test.timer.Check.main(args);
+            org.waterken.test.pool.Check.main(args);
+            org.waterken.all.All.main(args);
+            org.waterken.factorial.FactorialN.main(args);
+        } finally {
+            // let the JVM exit, without waiting for idle workers
+            Pool.shutdown();
+        }
     }
 }
@@ -0,0 +1,132 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.bloom;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.waterken.archive.n2v.N2V;
+import org.waterken.archive.n2v.N2VOutput;
+
+/**
+ * Package test.
+ * <p>
+ * Checks the Bloom filter block of an archive, whether written or merged,
+ * never hides an entry the archive has, and that names the archive doesn't
+ * have are still not found.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final File root = File.createTempFile("bloom", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Random prng = new Random(0);
+            final TreeSet<String> older = names(prng, 3000);
+            final TreeSet<String> newer = names(prng, 1000);
+            newer.addAll(new ArrayList<String>(older).subList(0, 500));
+            final TreeSet<String> absent = names(prng, 20000);
+            absent.removeAll(older);
+            absent.removeAll(newer);
+
+            final ArrayList<N2V> versions = new ArrayList<N2V>();
+            versions.add(write(new File(root, "0.n2v"), older));
+            versions.add(write(new File(root, "1.n2v"), newer));
+            check(versions.get(0), older, absent);
+            check(versions.get(1), newer, absent);
+
+            final File merged = new File(root, "merged.n2v");
+            final FileOutputStream fout = new FileOutputStream(merged);
+            final FileChannel out = fout.getChannel();
+            N2V.merge(out, versions);
+            out.close();
+            fout.close();
+            for (final N2V version : versions) { version.close(); }
+            final TreeSet<String> all = new TreeSet<String>(older);
+            all.addAll(newer);
+            final N2V result = N2V.open(merged);
+            try {
+                check(result, all, absent);
+            } finally {
+                result.close();
+            }
+
+            final N2V empty = write(new File(root, "empty.n2v"),
+                                    new TreeSet<String>());
+            try {
+                check(empty, new TreeSet<String>(), absent);
+            } finally {
+                empty.close();
+            }
+            System.out.println("bloom: " + all.size() + " entries found, " +
+                               absent.size() + " absent names not found");
+        } finally {
+            for (final File file : root.listFiles()) { file.delete(); }
+            root.delete();
+        }
+    }
+
+    static private void
+    check(final N2V archive, final TreeSet<String> present,
+          final TreeSet<String> absent) throws Exception {
+        if (0 != present.size() && -1 == archive.getLayout().filterAddress) {
+            throw new AssertionError("no filter block");
+        }
+        if (present.size() != archive.getLayout().entryCount) {
+            throw new AssertionError(archive.getLayout().entryCount +
+                                     " entries");
+        }
+        for (final String name : present) {
+            if (null == archive.find(name)) {
+                throw new AssertionError("filter hides " + name);
+            }
+        }
+        for (final String name : absent) {
+            if (null != archive.find(name)) {
+                throw new AssertionError("found " + name);
+            }
+        }
+    }
+
+    static private N2V
+    write(final File file, final TreeSet<String> names) throws Exception {
+        final N2VOutput out = new N2VOutput(new FileOutputStream(file));
+        for (final String name : names) {
+            final OutputStream entry = out.append(name);
+            entry.write(name.getBytes("UTF-8"));
+            entry.close();
+        }
+        out.finish();
+        out.close();
+        return N2V.open(file);
+    }
+
+    /**
+     * Generates names of varied length, some of them not ASCII.
+     */
+    static private TreeSet<String>
+    names(final Random prng, final int n) {
+        final TreeSet<String> r = new TreeSet<String>();
+        while (r.size() != n) {
+            final char[] name = new char[1 + prng.nextInt(24)];
+            for (int i = 0; i != name.length; ++i) {
+                name[i] = 0 == prng.nextInt(40)
+                    ? (char)(0x00E0 + prng.nextInt(0x100))
+                    : "abcdefghijklmnopqrstuvwxyz234567".charAt(
+                        prng.nextInt(32));
+            }
+            r.add(new String(name));
+        }
+        return r;
+    }
+}
@@ -0,0 +1,166 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.commit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.waterken.store.Store;
+import org.waterken.store.Update;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks each commit of many concurrent {@link RollingN2V} stores can be
+ * read by a snapshot once committed, and by a new store for the same folder,
+ * once all the commits are done.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int stores = 16;
+        final int commits = 40;
+        final RollingN2V maker = new RollingN2V(new Sleep());
+        final File root = File.createTempFile("commit", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Thread[] threads = new Thread[stores];
+            final Throwable[] failed = { null };
+            for (int i = 0; i != stores; ++i) {
+                final File dir = new File(root, "" + i);
+                if (!dir.mkdir()) { throw new IOException(); }
+                final Store store = maker.apply(null, root, dir);
+                final int id = i;
+                threads[i] = new Thread() {
+                    public void
+                    run() {
+                        try {
+                            for (int j = 0; j != commits; ++j) {
+                                final Update tx = store.update();
+                                try {
+                                    write(tx, "x" + j, value(id, j));
+                                    write(tx, "latest", value(id, j));
+                                    tx.commit();
+                                } finally {
+                                    tx.close();
+                                }
+                                final Update snapshot = store.snapshot();
+                                try {
+                                    check(snapshot, "latest", value(id, j));
+                                    check(snapshot, "x" + j, value(id, j));
+                                } finally {
+                                    snapshot.close();
+                                }
+                            }
+                        } catch (final Throwable e) {
+                            synchronized (failed) { failed[0] = e; }
+                        }
+                    }
+                };
+            }
+            for (final Thread thread : threads) { thread.start(); }
+            for (final Thread thread : threads) { thread.join(); }
+            if (null != failed[0]) { throw new Exception(failed[0]); }
+
+            // read the commits with a new store, once no more merges are
+            // running, so it can safely read the same archives
+            for (int i = 0; i != stores; ++i) {
+                final File dir = new File(root, "" + i);
+                settle(dir);
+                final Update snapshot =
+                    maker.apply(null, root, dir).snapshot();
+                try {
+                    check(snapshot, "latest", value(i, commits - 1));
+                    for (int j = 0; j != commits; ++j) {
+                        check(snapshot, "x" + j, value(i, j));
+                    }
+                } finally {
+                    snapshot.close();
+                }
+            }
+            System.out.println("commit: " + stores * commits + " concurrent" +
+                               " commits read back once committed");
+        } finally {
+            delete(root);
+        }
+    }
+
+    /**
+     * Generates the value written by a commit, a different length for each.
+     */
+    static private byte[]
+    value(final int store, final int commit) {
+        final byte[] r = new byte[1 + (store * 31 + commit * 17) % 700];
+        for (int i = 0; i != r.length; ++i) {
+            r[i] = (byte)(store ^ commit ^ i);
+        }
+        return r;
+    }
+
+    static private void
+    write(final Update tx, final String name,
+          final byte[] value) throws IOException {
+        final OutputStream out = tx.write(name);
+        out.write(value);
+        out.close();
+    }
+
+    static private void
+    check(final Update tx, final String name,
+          final byte[] expected) throws IOException {
+        final InputStream in = tx.read(name);
+        final ByteArrayOutputStream r = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[256];
+        for (int n = in.read(buffer); -1 != n; n = in.read(buffer)) {
+            r.write(buffer, 0, n);
+        }
+        in.close();
+        if (!Arrays.equals(expected, r.toByteArray())) {
+            throw new AssertionError("value of " + name);
+        }
+    }
+
+    /**
+     * Waits for the scheduled merges to finish.
+     */
+    static private void
+    settle(final File dir) throws InterruptedException {
+        long stored = -1;
+        for (int quiet = 0; quiet != 5;) {
+            Thread.sleep(20);
+            final long now = size(dir);
+            final String[] merging = new File(dir, ".merging").list();
+            quiet = now == stored &&
+                (null == merging || 0 == merging.length) ? quiet + 1 : 0;
+            stored = now;
+        }
+    }
+
+    static private long
+    size(final File file) {
+        final File[] children = file.listFiles();
+        if (null == children) { return file.length(); }
+        long r = 0;
+        for (final File child : children) { r += size(child); }
+        return r;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
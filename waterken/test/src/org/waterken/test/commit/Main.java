@@ -0,0 +1,93 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.commit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.waterken.store.Store;
+import org.waterken.store.Update;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures commit throughput of many concurrent {@link RollingN2V} stores.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ commits per store ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int commits = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+
+        final File root = File.createTempFile("commit", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("stores\tcommits/s");
+            for (int stores = 1; stores <= 64; stores *= 2) {
+                final double rate =
+                    run(new RollingN2V(new Sleep()), root, stores, commits);
+                System.out.println(stores + "\t" + (long)rate);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    /**
+     * Runs one commit loop per store, in parallel.
+     * @return number of commits per second
+     */
+    static private double
+    run(final RollingN2V maker, final File root,
+        final int stores, final int commits) throws Exception {
+        final Thread[] threads = new Thread[stores];
+        final Exception[] failed = { null };
+        for (int i = 0; i != stores; ++i) {
+            final File dir = new File(root, "" + i);
+            if (!dir.mkdir()) { throw new IOException(); }
+            final Store store = maker.apply(null, root, dir);
+            threads[i] = new Thread() {
+                public void
+                run() {
+                    try {
+                        for (int j = 0; j != commits; ++j) {
+                            final Update tx = store.update();
+                            try {
+                                final OutputStream out = tx.write("x" + j);
+                                out.write(new byte[] { (byte)j });
+                                out.close();
+                                tx.commit();
+                            } finally {
+                                tx.close();
+                            }
+                        }
+                    } catch (final Exception e) {
+                        synchronized (failed) { failed[0] = e; }
+                    }
+                }
+            };
+        }
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) { thread.start(); }
+        for (final Thread thread : threads) { thread.join(); }
+        final long elapsed = System.nanoTime() - start;
+        if (null != failed[0]) { throw failed[0]; }
+        for (final File dir : root.listFiles()) { delete(dir); }
+        return stores * commits * 1e9 / elapsed;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
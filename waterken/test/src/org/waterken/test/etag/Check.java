@@ -0,0 +1,190 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.etag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.joe_e.array.LongArray;
+import org.joe_e.array.PowerlessArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.db.TransactionMonitor;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks a kept ETag is only reused for the same set of objects, and the
+ * same committed state, by comparing the tags of the same, and different,
+ * sets of objects read in different orders, before and after a write, with
+ * the tags computed by a new database manager.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final File root = File.createTempFile("etag", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Database<Object> top = connect().connect(root);
+            top.enter(Database.update, new Create("vat", 8)).call();
+            final File dir = new File(root, "vat");
+            final Database<Object> db = connect().connect(dir);
+
+            final String a = tag(db, 0, 1, 2);
+            same(a, tag(db, 0, 1, 2));
+            same(a, tag(db, 2, 0, 1));
+            final String b = tag(db, 0, 1, 3);
+            differ(a, b);
+            differ(a, tag(db, 0, 1));
+            differ(a, tag(db, 0, 1, 2, 3));
+
+            // a write changes the tags that read it, and only those
+            db.enter(Database.update, new Touch(3)).call();
+            same(a, tag(db, 1, 2, 0));
+            final String c = tag(db, 3, 1, 0);
+            differ(b, c);
+            same(c, tag(db, 0, 1, 3));
+
+            // the kept tags are those that would be computed again
+            final Database<Object> fresh = connect().connect(dir);
+            same(a, tag(fresh, 0, 1, 2));
+            same(c, tag(fresh, 0, 1, 3));
+            System.out.println("etag: kept tags match their objects");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private JODBManager<Object>
+    connect() {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null);
+    }
+
+    static private String
+    tag(final Database<Object> db, final int... cells) throws Exception {
+        return db.enter(Database.query, new Tag(cells)).call().get(0);
+    }
+
+    static private void
+    same(final String expected, final String actual) {
+        if (null == expected || !expected.equals(actual)) {
+            throw new AssertionError(expected + " != " + actual);
+        }
+    }
+
+    static private void
+    differ(final String a, final String b) {
+        if (null == a || a.equals(b)) {
+            throw new AssertionError(a + " == " + b);
+        }
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int cells;
+
+        Create(final String name, final int cells) {
+            this.name = name;
+            this.cells = cells;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(cells)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int cells;
+
+        Populate(final int cells) {
+            this.cells = cells;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            for (int i = 0; i != cells; ++i) {
+                local.assign(".cell" + i, new Cell());
+            }
+            return LongArray.array(cells);
+        }
+    }
+
+    static private final class
+    Tag implements Transaction<PowerlessArray<String>> {
+        static private final long serialVersionUID = 1L;
+
+        private final int[] cells;
+
+        Tag(final int[] cells) {
+            this.cells = cells;
+        }
+
+        public PowerlessArray<String>
+        apply(final Root local) throws Exception {
+            for (final int i : cells) {
+                final Cell cell = local.fetch(null, ".cell" + i);
+                if (null == cell) { throw new NullPointerException(); }
+            }
+            final TransactionMonitor monitor =
+                local.fetch(null, Database.monitor);
+            return PowerlessArray.array(monitor.tag());
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int cell;
+
+        Touch(final int cell) {
+            this.cell = cell;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell x = local.fetch(null, ".cell" + cell);
+            x.count += 1;
+            return LongArray.array(x.count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
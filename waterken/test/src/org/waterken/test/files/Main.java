@@ -0,0 +1,126 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.waterken.archive.Archive;
+import org.waterken.archive.n2v.FileCache;
+import org.waterken.archive.n2v.N2V;
+import org.waterken.archive.n2v.N2VOutput;
+
+/**
+ * Measures the file descriptors held by many open archives, and the cost of
+ * reading them, with and without a limit on the number of open files.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of archives, open file limit, number of reads ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int archives = args.length > 0 ? Integer.parseInt(args[0]) : 800;
+        final int limit = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final int reads = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+        final File root = File.createTempFile("files", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final File[] files = new File[archives];
+            final byte[] value = new byte[256];
+            final Random prng = new Random(0);
+            for (int i = 0; i != archives; ++i) {
+                files[i] = new File(root, i + ".n2v");
+                final N2VOutput out =
+                    new N2VOutput(new FileOutputStream(files[i]));
+                for (int k = 0; k != 32; ++k) {
+                    prng.nextBytes(value);
+                    final OutputStream entry = out.append(k + ".jos");
+                    entry.write(value);
+                    entry.close();
+                }
+                out.finish();
+                out.close();
+            }
+
+            final FileCache cache = FileCache.shared;
+            System.out.println("limit\tread us\tdescriptors\thits\treopens");
+            for (int round = 0; round != 3; ++round) {
+                for (final int max : new int[] { 0, limit }) {
+                    cache.configure(max);
+                    final long hits = cache.getHits();
+                    final long reopens = cache.getReopens();
+                    final N2V[] opened = new N2V[archives];
+                    for (int i = 0; i != archives; ++i) {
+                        opened[i] = N2V.open(files[i], false);
+                    }
+                    try {
+                        final Random order = new Random(1);
+                        final long start = System.nanoTime();
+                        for (int i = 0; i != reads; ++i) {
+                            read(opened[order.nextInt(archives)],
+                                 order.nextInt(32) + ".jos", value);
+                        }
+                        final long elapsed = System.nanoTime() - start;
+                        System.out.println((0 == max ? "none" : "" + max) +
+                            "\t" + elapsed / 1000 / reads +
+                            "\t" + descriptors() +
+                            "\t" + (cache.getHits() - hits) +
+                            "\t" + (cache.getReopens() - reopens));
+                    } finally {
+                        for (final N2V x : opened) { x.close(); }
+                    }
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    /**
+     * Reads an archive entry.
+     */
+    static private void
+    read(final N2V archive, final String name,
+         final byte[] buffer) throws IOException {
+        final Archive.Entry found = archive.find(name);
+        if (null == found) { throw new AssertionError(); }
+        final InputStream in = found.open();
+        try {
+            for (int n = 0; n != buffer.length;) {
+                final int d = in.read(buffer, n, buffer.length - n);
+                if (-1 == d) { throw new AssertionError(); }
+                n += d;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Counts the process's open file descriptors, where the platform lists
+     * them.
+     */
+    static private int
+    descriptors() {
+        final String[] fds = new File("/proc/self/fd").list();
+        return null != fds ? fds.length : -1;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,292 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.gc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.joe_e.array.PowerlessArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.store.n2v.Compaction;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks a collected vat keeps every anchored object, and each object only
+ * reachable from one, along with its current state, while the objects it
+ * replaces are collected.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = 40;
+        final int payload = 512;
+        final int rounds = 60;
+        final File root = File.createTempFile("collect", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final PowerlessArray<String> exported =
+                connect(root).enter(Database.update,
+                    new Create("vat", objects, payload)).call();
+            final File dir = new File(root, "vat");
+            final Database<Object> db = connect(dir);
+            for (int i = 0; i != rounds; ++i) {
+                db.enter(Database.update,
+                         new Replace(i, objects, payload)).call();
+            }
+
+            // commit until a merge has collected the replaced objects
+            final long written = (long)rounds * objects * payload;
+            for (int i = 0; settle(dir) > written / 4; ++i) {
+                if (10 == i) {
+                    throw new AssertionError(size(dir) / 1024 + " KB stored" +
+                        ", of " + written / 1024 + " KB written");
+                }
+                db.enter(Database.update, new Touch()).call();
+            }
+            final long stored = size(dir);
+
+            // the anchored objects haven't been loaded by this connection,
+            // so are read back from the store
+            final long live = db.enter(Database.query,
+                new Reachable(exported, objects)).call().get(0);
+            if (live != (objects + 2 * exported.length()) * payload) {
+                throw new AssertionError(live + " bytes live");
+            }
+            System.out.println("gc: " + exported.length() + " anchored " +
+                               "objects kept, " + stored / 1024 + " of " +
+                               written / 1024 + " KB stored");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir) throws Exception {
+        // merge all the archives after each commit, so the replaced objects
+        // are soon collected
+        final Compaction all = new Compaction(false, Integer.MAX_VALUE, 0);
+        return new JODBManager<Object>(
+            new RollingN2V(new Sleep(), all, false), null, null,
+            new Options(null, false, false, true, null)).connect(dir);
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+        Cell next;              // object only reachable from this one, if any
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The vat's state.
+     */
+    static private final class
+    Box implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        Cell[] cells;
+    }
+
+    static private Cell[]
+    fill(final int seed, final int objects, final int payload) {
+        final Random prng = new Random(seed);
+        final Cell[] r = new Cell[objects];
+        for (int i = 0; i != r.length; ++i) {
+            final byte[] bytes = new byte[payload];
+            prng.nextBytes(bytes);
+            r[i] = new Cell(ByteArray.array(bytes));
+        }
+        return r;
+    }
+
+    static private final class
+    Create implements Transaction<PowerlessArray<String>> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public PowerlessArray<String>
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    /**
+     * Gives out the names of an object not otherwise referred to, and of an
+     * object in the vat's state that will later be replaced, each referring
+     * to an object of its own.
+     */
+    static private final class
+    Populate implements Transaction<PowerlessArray<String>> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public PowerlessArray<String>
+        apply(final Root local) throws Exception {
+            final Box box = new Box();
+            box.cells = fill(-1, objects, payload);
+            local.assign(".box", box);
+            final Cell[] extra = fill(-2, 3, payload);
+            final Cell orphan = extra[0];
+            orphan.count = 42;
+            orphan.next = extra[1];
+            orphan.next.count = 43;
+            final Cell replaced = box.cells[objects / 2];
+            replaced.count = 42;
+            replaced.next = extra[2];
+            replaced.next.count = 43;
+            return PowerlessArray.array(local.export(orphan, false),
+                                        local.export(replaced, false));
+        }
+    }
+
+    static private final class
+    Replace implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int round;
+        private final int objects;
+        private final int payload;
+
+        Replace(final int round, final int objects, final int payload) {
+            this.round = round;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            box.cells = fill(round, objects, payload);
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            box.cells[0].count += 1;
+            return LongArray.array(box.cells[0].count);
+        }
+    }
+
+    /**
+     * Counts the payload bytes of the reachable objects, checking the
+     * anchored objects still have their state.
+     */
+    static private final class
+    Reachable implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final PowerlessArray<String> exported;
+        private final int objects;
+
+        Reachable(final PowerlessArray<String> exported, final int objects) {
+            this.exported = exported;
+            this.objects = objects;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            if (objects != box.cells.length) {
+                throw new AssertionError(box.cells.length + " objects");
+            }
+            long live = 0;
+            for (final Cell cell : box.cells) { live += cell.payload.length(); }
+            for (final String name : exported) {
+                final Cell anchored = local.fetch(null, name);
+                if (null == anchored || 42 != anchored.count ||
+                        null == anchored.next || 43 != anchored.next.count) {
+                    throw new AssertionError("lost " + name);
+                }
+                live += anchored.payload.length();
+                live += anchored.next.payload.length();
+            }
+            return LongArray.array(live);
+        }
+    }
+
+    /**
+     * Waits for the scheduled merges to finish.
+     * @return number of bytes stored
+     */
+    static private long
+    settle(final File dir) throws InterruptedException {
+        long r = -1;
+        for (int quiet = 0; quiet != 5;) {
+            Thread.sleep(100);
+            final long now = size(dir);
+            final String[] merging = new File(dir, ".merging").list();
+            quiet = now == r &&
+                (null == merging || 0 == merging.length) ? quiet + 1 : 0;
+            r = now;
+        }
+        return r;
+    }
+
+    static private long
+    size(final File file) {
+        final File[] children = file.listFiles();
+        if (null == children) { return file.length(); }
+        long r = 0;
+        for (final File child : children) { r += size(child); }
+        return r;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
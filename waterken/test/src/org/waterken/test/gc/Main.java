@@ -0,0 +1,251 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.gc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.joe_e.array.PowerlessArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures the size of a vat's store as its objects are replaced, with and
+ * without collection of the unreferenced objects.
+ * <p>
+ * Each round replaces all the objects in the vat's state. An object only
+ * referred to by a name given out of the vat must still be there at the end.
+ * </p>
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of objects, payload length, number of rounds ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int payload = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        final File root = File.createTempFile("collect", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("mode\tupdate us\tstored KB\tlive KB");
+            for (final boolean collect : new boolean[] { false, true }) {
+                final String name = collect ? "collect" : "keep";
+                final PowerlessArray<String> exported =
+                    connect(root, collect).enter(Database.update,
+                        new Create(name, objects, payload)).call();
+                final File dir = new File(root, name);
+                final Database<Object> db = connect(dir, collect);
+
+                final long start = System.nanoTime();
+                for (int i = 0; i != rounds; ++i) {
+                    db.enter(Database.update,
+                             new Replace(i, objects, payload)).call();
+                }
+                final long update = (System.nanoTime() - start) / 1000 / rounds;
+
+                // let the background merges finish
+                long stored = size(dir);
+                for (int i = 0; i != 40; ++i) {
+                    Thread.sleep(250);
+                    db.enter(Database.update, new Touch()).call();
+                    final long now = size(dir);
+                    if (now == stored && i >= 8) { break; }
+                    stored = now;
+                }
+
+                final long live =
+                    db.enter(Database.query, new Check(exported)).call().get(0);
+                System.out.println(name + "\t" + update + "\t" +
+                    stored / 1024 + "\t" + live / 1024);
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir, final boolean collect) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null,
+            new Options(null, false, false, collect, null)).connect(dir);
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The vat's state.
+     */
+    static private final class
+    Box implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        Cell[] cells;
+    }
+
+    static private Cell[]
+    fill(final int seed, final int objects, final int payload) {
+        final Random prng = new Random(seed);
+        final Cell[] r = new Cell[objects];
+        for (int i = 0; i != r.length; ++i) {
+            final byte[] bytes = new byte[payload];
+            prng.nextBytes(bytes);
+            r[i] = new Cell(ByteArray.array(bytes));
+        }
+        return r;
+    }
+
+    static private final class
+    Create implements Transaction<PowerlessArray<String>> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public PowerlessArray<String>
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<PowerlessArray<String>> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public PowerlessArray<String>
+        apply(final Root local) throws Exception {
+            final Box box = new Box();
+            box.cells = fill(-1, objects, payload);
+            local.assign(".box", box);
+            final Cell orphan = fill(-2, 1, payload)[0];
+            orphan.count = 42;
+            return PowerlessArray.array(local.export(orphan, false));
+        }
+    }
+
+    static private final class
+    Replace implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int round;
+        private final int objects;
+        private final int payload;
+
+        Replace(final int round, final int objects, final int payload) {
+            this.round = round;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            box.cells = fill(round, objects, payload);
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            box.cells[0].count += 1;
+            return LongArray.array(box.cells[0].count);
+        }
+    }
+
+    /**
+     * Checks the reachable objects are all still stored.
+     */
+    static private final class
+    Check implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final PowerlessArray<String> exported;
+
+        Check(final PowerlessArray<String> exported) {
+            this.exported = exported;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            long live = 0;
+            for (final Cell cell : box.cells) { live += cell.payload.length(); }
+            for (final String name : exported) {
+                final Cell orphan = local.fetch(null, name);
+                if (null == orphan || 42 != orphan.count) {
+                    throw new AssertionError(name);
+                }
+                live += orphan.payload.length();
+            }
+            return LongArray.array(live);
+        }
+    }
+
+    static private long
+    size(final File file) {
+        final File[] children = file.listFiles();
+        if (null == children) { return file.length(); }
+        long r = 0;
+        for (final File child : children) { r += size(child); }
+        return r;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,211 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.k2v;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.StoreMaker;
+import org.waterken.store.k2v.FolderK2V;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures transaction latency of a vat kept in a {@link RollingN2V} store,
+ * and in a {@link FolderK2V} store.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of objects, payload length, number of updates ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int payload = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        final int updates = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        final File root = File.createTempFile("k2v", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("store\tcreate us\tcold us\tquery us\t" +
+                               "update us\tstored KB");
+            for (int round = 0; round != 3; ++round) {
+                for (final boolean k2v : new boolean[] { false, true }) {
+                    final String kind = k2v ? "k2v" : "n2v";
+                    final File top = new File(root, round + "-" + kind);
+                    if (!top.mkdir()) { throw new IOException(); }
+
+                    // creating a vat holding all the objects
+                    long start = System.nanoTime();
+                    connect(top, k2v).enter(Database.update,
+                        new Create("vat", objects, payload)).call();
+                    final long create = (System.nanoTime() - start) / 1000;
+
+                    // reading every object from a freshly opened vat
+                    final Database<Object> db =
+                        connect(new File(top, "vat"), k2v);
+                    start = System.nanoTime();
+                    db.enter(Database.query, new Query()).call();
+                    final long cold = (System.nanoTime() - start) / 1000;
+
+                    // reading every object from the cache
+                    start = System.nanoTime();
+                    for (int i = 0; i != updates; ++i) {
+                        db.enter(Database.query, new Query()).call();
+                    }
+                    final long query =
+                        (System.nanoTime() - start) / 1000 / updates;
+
+                    // modifying one object
+                    start = System.nanoTime();
+                    for (int i = 0; i != updates; ++i) {
+                        db.enter(Database.update, new Touch(i)).call();
+                    }
+                    final long update =
+                        (System.nanoTime() - start) / 1000 / updates;
+
+                    final long sum =
+                        db.enter(Database.query, new Query()).call().get(0);
+                    if (updates != sum) { throw new AssertionError(sum); }
+                    System.out.println(kind + "\t" + create + "\t" + cold +
+                        "\t" + query + "\t" + update + "\t" + size(top) / 1024);
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir, final boolean k2v) throws Exception {
+        final StoreMaker maker =
+            k2v ? new FolderK2V() : new RollingN2V(new Sleep());
+        return new JODBManager<Object>(maker, null, null).connect(dir);
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            long sum = 0;
+            for (final Cell cell : cells) { sum += cell.count; }
+            return LongArray.array(sum);
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int i;
+
+        Touch(final int i) {
+            this.i = i;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final Cell cell = cells[i % cells.length];
+            cell.count += 1;
+            return LongArray.array(cell.count);
+        }
+    }
+
+    static private long
+    size(final File file) {
+        final File[] children = file.listFiles();
+        if (null == children) { return file.length(); }
+        long r = 0;
+        for (final File child : children) { r += size(child); }
+        return r;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
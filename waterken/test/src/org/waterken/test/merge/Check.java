@@ -0,0 +1,162 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.merge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.waterken.archive.Archive;
+import org.waterken.archive.n2v.N2V;
+import org.waterken.archive.n2v.N2VOutput;
+
+/**
+ * Package test.
+ * <p>
+ * Checks an archive merged from overlapping archives has exactly the newest
+ * version of each entry that wasn't left out, in name order, whether the
+ * values are copied as is, or deflated, and that a deflated archive can be
+ * merged again.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final File root = File.createTempFile("merge", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Random prng = new Random(0);
+            final int archives = 6;
+            final ArrayList<N2V> versions = new ArrayList<N2V>();
+            final TreeMap<String,byte[]> expected =
+                new TreeMap<String,byte[]>();
+            TreeMap<String,byte[]> newest = null;
+            for (int i = 0; i != archives; ++i) {
+                final TreeMap<String,byte[]> entries =
+                    new TreeMap<String,byte[]>();
+                final int n = 0 == i % 3 ? 0 : 200 + prng.nextInt(800);
+                while (entries.size() != n) {
+                    final String name = "o" + prng.nextInt(2000) + ".jos";
+                    final byte[] value = new byte[prng.nextInt(300)];
+                    for (int j = 0; j != value.length; ++j) {
+                        value[j] = (byte)"a serialized object".charAt(
+                            (i + j) % 19);
+                    }
+                    entries.put(name, value);
+                }
+                expected.putAll(entries);
+                newest = entries;
+                final File file = new File(root, i + ".n2v");
+                final N2VOutput out =
+                    new N2VOutput(new FileOutputStream(file));
+                for (final Map.Entry<String,byte[]> x : entries.entrySet()) {
+                    final OutputStream entry = out.append(x.getKey());
+                    entry.write(x.getValue());
+                    entry.close();
+                }
+                out.finish();
+                out.close();
+                versions.add(N2V.open(file));
+            }
+
+            // leave out some entries, and some names that aren't there
+            final HashSet<String> drop = new HashSet<String>();
+            for (int i = 0; i != 100; ++i) {
+                drop.add("o" + prng.nextInt(2500) + ".jos");
+            }
+            final TreeMap<String,byte[]> kept =
+                new TreeMap<String,byte[]>(expected);
+            kept.keySet().removeAll(drop);
+            final N2V copied = merge(new File(root, "copied.n2v"),
+                                     versions, 0, drop);
+            check(copied, kept);
+            final N2V deflated = merge(new File(root, "deflated.n2v"),
+                                       versions, 4096, drop);
+            check(deflated, kept);
+            if (deflated.getLayout().length >= copied.getLayout().length) {
+                throw new AssertionError("values not deflated");
+            }
+
+            // merge the deflated archive with the newest one again
+            final ArrayList<N2V> again = new ArrayList<N2V>();
+            again.add(deflated);
+            again.add(versions.get(archives - 1));
+            final N2V remerged = merge(new File(root, "remerged.n2v"), again,
+                                       4096, new HashSet<String>());
+            kept.putAll(newest);
+            check(remerged, kept);
+            remerged.close();
+            deflated.close();
+            copied.close();
+            for (final N2V version : versions) { version.close(); }
+            System.out.println("merge: " + archives + " archives merged " +
+                               "into their newest entries");
+        } finally {
+            for (final File file : root.listFiles()) { file.delete(); }
+            root.delete();
+        }
+    }
+
+    static private N2V
+    merge(final File file, final ArrayList<N2V> versions,
+          final int dictionarySize,
+          final HashSet<String> drop) throws Exception {
+        final FileOutputStream fout = new FileOutputStream(file);
+        final FileChannel out = fout.getChannel();
+        N2V.merge(out, versions, dictionarySize, drop);
+        out.close();
+        fout.close();
+        return N2V.open(file);
+    }
+
+    static private void
+    check(final N2V archive,
+          final TreeMap<String,byte[]> expected) throws Exception {
+        if (expected.size() != archive.getLayout().entryCount) {
+            throw new AssertionError(archive.getLayout().entryCount +
+                                     " entries, not " + expected.size());
+        }
+        final Iterator<Archive.Entry> i = archive.iterator();
+        for (final Map.Entry<String,byte[]> x : expected.entrySet()) {
+            if (!i.hasNext()) { throw new AssertionError("too few entries"); }
+            final Archive.Entry entry = i.next();
+            if (!x.getKey().equals(entry.getName())) {
+                throw new AssertionError(entry.getName() + " in place of " +
+                                         x.getKey());
+            }
+            same(x.getKey(), x.getValue(), entry);
+            same(x.getKey(), x.getValue(), archive.find(x.getKey()));
+        }
+        if (i.hasNext()) { throw new AssertionError("too many entries"); }
+    }
+
+    static private void
+    same(final String name, final byte[] expected,
+         final Archive.Entry entry) throws Exception {
+        if (null == entry) { throw new AssertionError("missing " + name); }
+        final InputStream in = entry.open();
+        final ByteArrayOutputStream r = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64];
+        for (int n = in.read(buffer); -1 != n; n = in.read(buffer)) {
+            r.write(buffer, 0, n);
+        }
+        in.close();
+        if (!Arrays.equals(expected, r.toByteArray())) {
+            throw new AssertionError("value of " + name);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.merge;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.waterken.archive.n2v.N2V;
+import org.waterken.archive.n2v.N2VOutput;
+
+/**
+ * Measures {@link N2V#merge} of many overlapping archives.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of archives, entries per archive, value length,
+     *                dictionary size ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int archives = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int entries =
+            args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        final int valueLength = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        final int dictionarySize =
+            args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        final File root = File.createTempFile("merge", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            // each archive overrides half the entries of the one before it
+            final ArrayList<N2V> versions = new ArrayList<N2V>(archives);
+            final byte[] value = new byte[valueLength];
+            for (int i = 0; i != value.length; ++i) {
+                value[i] = (byte)"a serialized object".charAt(i % 19);
+            }
+            for (int i = 0; i != archives; ++i) {
+                final File file = new File(root, i + ".n2v");
+                final N2VOutput out = new N2VOutput(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+                final long first = (long)i * entries / 2;
+                for (long k = first; k != first + entries; ++k) {
+                    final OutputStream entry = out.append(name(k));
+                    value[0] = (byte)k;
+                    entry.write(value);
+                    entry.close();
+                }
+                out.finish();
+                out.close();
+                versions.add(N2V.open(file, true));
+            }
+
+            final File merged = new File(root, "merged.n2v");
+            final long start = System.nanoTime();
+            final FileOutputStream fout = new FileOutputStream(merged);
+            final FileChannel out = fout.getChannel();
+            N2V.merge(out, versions, dictionarySize);
+            out.close();
+            fout.close();
+            final long ms = (System.nanoTime() - start) / 1000000;
+            for (final N2V version : versions) { version.close(); }
+
+            final N2V result = N2V.open(merged);
+            final long count = result.getLayout().entryCount;
+            result.close();
+            System.out.println("archives\tentries\tmerged\tbytes\tms");
+            System.out.println(archives + "\t" + (long)archives * entries +
+                               "\t" + count + "\t" + merged.length() +
+                               "\t" + ms);
+        } finally {
+            for (final File file : root.listFiles()) { file.delete(); }
+            root.delete();
+        }
+    }
+
+    /**
+     * Generates a name like those used for persistent objects, in an order
+     * unrelated to the key order.
+     */
+    static private String
+    name(final long key) {
+        long x = key * 0x9E3779B97F4A7C15L;
+        final char[] r = new char[13];
+        for (int i = 0; i != r.length; ++i, x >>>= 5) {
+            r[i] = "abcdefghijklmnopqrstuvwxyz234567".charAt((int)(x & 31));
+        }
+        return new String(r) + ".jos";
+    }
+}
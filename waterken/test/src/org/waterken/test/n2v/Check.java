@@ -0,0 +1,136 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.n2v;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.waterken.archive.Archive;
+import org.waterken.archive.n2v.N2V;
+import org.waterken.archive.n2v.N2VOutput;
+
+/**
+ * Package test.
+ * <p>
+ * Checks a memory mapped archive reads the same entries, and the same bytes,
+ * as the same archive read through a file cursor.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int entries = 2000;
+        final Random prng = new Random(0);
+        final HashMap<String,byte[]> values = new HashMap<String,byte[]>();
+        final File file = File.createTempFile("check", ".n2v");
+        try {
+            final N2VOutput out = new N2VOutput(new FileOutputStream(file));
+            for (int i = 0; i != entries; ++i) {
+                final String name = name(prng);
+                final byte[] value =
+                    new byte[0 == i % 7 ? 0 : prng.nextInt(600)];
+                prng.nextBytes(value);
+                values.put(name, value);
+                final OutputStream entry = out.append(name);
+                entry.write(value);
+                entry.close();
+            }
+            out.finish();
+            out.close();
+
+            final N2V plain = N2V.open(file, false);
+            final N2V mapped = N2V.open(file, true);
+            try {
+                for (final String name : values.keySet()) {
+                    final Archive.Entry a = plain.find(name);
+                    final Archive.Entry b = mapped.find(name);
+                    if (null == a || null == b) {
+                        throw new AssertionError("missing " + name);
+                    }
+                    same(name, values.get(name), a);
+                    same(name, values.get(name), b);
+                    if (!a.getETag().equals(b.getETag())) {
+                        throw new AssertionError("ETag of " + name);
+                    }
+                    if (null != plain.find(name + "~") ||
+                        null != mapped.find(name + "~")) {
+                        throw new AssertionError("found " + name + "~");
+                    }
+                }
+                final Iterator<Archive.Entry> i = plain.iterator();
+                final Iterator<Archive.Entry> j = mapped.iterator();
+                int n = 0;
+                while (i.hasNext() && j.hasNext()) {
+                    final Archive.Entry a = i.next();
+                    final Archive.Entry b = j.next();
+                    if (!a.getName().equals(b.getName())) {
+                        throw new AssertionError(a.getName() + " != " +
+                                                 b.getName());
+                    }
+                    same(a.getName(), read(a.open()), b);
+                    ++n;
+                }
+                if (i.hasNext() || j.hasNext() || entries != n) {
+                    throw new AssertionError(n + " entries");
+                }
+            } finally {
+                plain.close();
+                mapped.close();
+            }
+            System.out.println("n2v: mapped and file cursors read the same " +
+                               entries + " entries");
+        } finally {
+            file.delete();
+        }
+    }
+
+    static private void
+    same(final String name, final byte[] expected,
+         final Archive.Entry entry) throws Exception {
+        if (expected.length != entry.getLength()) {
+            throw new AssertionError("length of " + name);
+        }
+
+        // read part of the value a byte at a time, and the rest in bulk
+        final InputStream in = entry.open();
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (int i = 0; i != expected.length / 3; ++i) {
+            buffer.write(in.read());
+        }
+        final byte[] rest = read(in);
+        buffer.write(rest, 0, rest.length);
+        if (!Arrays.equals(expected, buffer.toByteArray())) {
+            throw new AssertionError("value of " + name);
+        }
+    }
+
+    static private byte[]
+    read(final InputStream in) throws Exception {
+        final ByteArrayOutputStream r = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64];
+        for (int n = in.read(buffer); -1 != n; n = in.read(buffer)) {
+            r.write(buffer, 0, n);
+        }
+        in.close();
+        return r.toByteArray();
+    }
+
+    static private String
+    name(final Random prng) {
+        final char[] r = new char[16];
+        for (int i = 0; i != r.length; ++i) {
+            r[i] = "abcdefghijklmnopqrstuvwxyz234567".charAt(prng.nextInt(32));
+        }
+        return new String(r) + ".jos";
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.n2v;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.waterken.archive.Archive;
+import org.waterken.archive.n2v.N2V;
+import org.waterken.archive.n2v.N2VOutput;
+
+/**
+ * Measures {@link N2V#find} hits and misses, with and without a memory mapped
+ * archive.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of entries, number of finds ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int finds = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        final Random prng = new Random(0);
+        final String[] names = new String[entries];
+        final File file = File.createTempFile("find", ".n2v");
+        try {
+            final N2VOutput out = new N2VOutput(new FileOutputStream(file));
+            final byte[] value = new byte[128];
+            for (int i = 0; i != entries; ++i) {
+                names[i] = name(prng);
+                prng.nextBytes(value);
+                final OutputStream entry = out.append(names[i]);
+                entry.write(value);
+                entry.close();
+            }
+            out.finish();
+            out.close();
+
+            System.out.println("cursor\thit ns\tmiss ns");
+            for (int round = 0; round != 3; ++round) {
+                for (final boolean mapped : new boolean[] { false, true }) {
+                    final N2V archive = N2V.open(file, mapped);
+                    try {
+                        final long hit = time(archive, names, finds, false);
+                        final long miss = time(archive, names, finds, true);
+                        System.out.println((mapped ? "mapped" : "file") +
+                                           "\t" + hit + "\t" + miss);
+                    } finally {
+                        archive.close();
+                    }
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Times a series of finds.
+     * @return average nanoseconds per find
+     */
+    static private long
+    time(final N2V archive, final String[] names,
+         final int finds, final boolean miss) throws Exception {
+        final Random prng = new Random(1);
+        final long start = System.nanoTime();
+        for (int i = 0; i != finds; ++i) {
+            final String name = names[prng.nextInt(names.length)];
+            final Archive.Entry found = archive.find(miss ? name + "~" : name);
+            if (miss == (null != found)) { throw new AssertionError(); }
+        }
+        return (System.nanoTime() - start) / finds;
+    }
+
+    /**
+     * Generates a name like those used for persistent objects.
+     */
+    static private String
+    name(final Random prng) {
+        final char[] r = new char[16];
+        for (int i = 0; i != r.length; ++i) {
+            r[i] = "abcdefghijklmnopqrstuvwxyz234567".charAt(prng.nextInt(32));
+        }
+        return new String(r) + ".jos";
+    }
+}
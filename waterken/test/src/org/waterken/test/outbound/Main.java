@@ -0,0 +1,180 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.outbound;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.joe_e.array.PowerlessArray;
+import org.ref_send.promise.Receiver;
+import org.waterken.http.Client;
+import org.waterken.http.Request;
+import org.waterken.http.Response;
+import org.waterken.http.Server;
+import org.waterken.net.Locator;
+import org.waterken.net.http.ClientSide;
+import org.waterken.thread.Loop;
+import org.waterken.thread.Pool;
+import org.waterken.thread.Workers;
+import org.waterken.uri.Header;
+
+/**
+ * Checks a request to a live peer is answered while more dead peers than
+ * there are threads in a limited pool wait to reconnect, and measures how
+ * long the request waits.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of dead peers, limited threads, wait ms ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int dead = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final long wait = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+        if (dead <= threads) { throw new IllegalArgumentException(); }
+
+        final ServerSocket server =
+            new ServerSocket(0, 1024, InetAddress.getByName(null));
+        daemon(new Runnable() {
+            public void
+            run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        daemon(new Runnable() {
+                            public void
+                            run() { answer(socket); }
+                        });
+                    }
+                } catch (final IOException e) {}
+            }
+        });
+        try {
+            System.out.println("mode\tdead\tthreads\treply ms");
+            for (final boolean limited : new boolean[] { true, false }) {
+                Pool.outbound.configure(
+                    new Workers(limited ? threads : 0, 0, false, false));
+                final CountDownLatch revived = new CountDownLatch(1);
+                for (int i = 0; i != dead; ++i) {
+                    connect("dead" + i, new Peer(server, revived), revived);
+                }
+                Thread.sleep(200);      // let the dead peers start sleeping
+
+                final CountDownLatch replied = new CountDownLatch(1);
+                final long start = System.nanoTime();
+                connect("live", new Peer(server, null), revived).serve("http",
+                    new Request("HTTP/1.1", "GET", "/", PowerlessArray.array(
+                        new Header("Host", "live"))), null, new Client() {
+                    public void
+                    receive(final Response head, final InputStream body) {
+                        replied.countDown();
+                    }
+                });
+                final boolean answered =
+                    replied.await(wait, TimeUnit.MILLISECONDS);
+                final int active = Pool.outbound.getActive();
+                revived.countDown();
+                replied.await();
+                System.out.println((limited ? "limited" : "unlimited") +
+                    "\t" + dead + "\t" + active + "\t" +
+                    (answered ? "" + (System.nanoTime() - start) / 1000000 :
+                                "starved"));
+                if (!limited && !answered) {
+                    throw new AssertionError("live peer starved");
+                }
+            }
+        } finally {
+            Pool.shutdown();    // leave the server up for the revived peers
+        }
+    }
+
+    /**
+     * Makes a connection to a peer, as done by the server's proxy.
+     */
+    static private Server
+    connect(final String peer, final Locator transport,
+            final CountDownLatch revived) {
+        final Loop<ClientSide.Outbound> sender =
+            Loop.make("->" + peer, Pool.outbound);
+        final Loop<ClientSide.Inbound> receiver =
+            Loop.make("<-" + peer, Pool.outbound);
+        return ClientSide.make(peer, transport, new Receiver<Long>() {
+            public void
+            apply(final Long ms) {
+                try {
+                    revived.await(ms, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {}
+            }
+        }, sender.foreground, receiver.foreground);
+    }
+
+    /**
+     * A peer that refuses connections until revived.
+     */
+    static private final class
+    Peer implements Locator {
+        private final ServerSocket server;
+        private final CountDownLatch revived;   // null if always live
+
+        Peer(final ServerSocket server, final CountDownLatch revived) {
+            this.server = server;
+            this.revived = revived;
+        }
+
+        public String
+        canonicalize(final String authority) { return authority; }
+
+        public Socket
+        locate(final String authority,
+               final SocketAddress mostRecent) throws IOException {
+            if (null != revived && 0 != revived.getCount()) {
+                throw new ConnectException(authority);
+            }
+            return new Socket(server.getInetAddress(), server.getLocalPort());
+        }
+    }
+
+    /**
+     * Answers each request on a connection with an empty response.
+     */
+    static private void
+    answer(final Socket socket) {
+        try {
+            final BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            final OutputStream out = socket.getOutputStream();
+            for (String line = in.readLine(); null != line;
+                                              line = in.readLine()) {
+                if ("".equals(line)) {
+                    out.write(("HTTP/1.1 200 OK\r\n" + "Content-Length: 0" +
+                               "\r\n\r\n").getBytes("US-ASCII"));
+                    out.flush();
+                }
+            }
+        } catch (final IOException e) {
+        } finally {
+            try { socket.close(); } catch (final IOException e) {}
+        }
+    }
+
+    static private void
+    daemon(final Runnable task) {
+        final Thread r = new Thread(task);
+        r.setDaemon(true);
+        r.start();
+    }
+}
@@ -0,0 +1,271 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.ConstArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks created and modified objects, small and large, read back from the
+ * store with the state they were committed with.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = 50;
+        final Random prng = new Random(0);
+        final File root = File.createTempFile("persist", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            connect(root).enter(Database.update, new Create("vat")).call();
+            final File dir = new File(root, "vat");
+            final Database<Object> db = connect(dir);
+
+            // each cell is created, then modified in a mix of commits, its
+            // payload growing past the size of a reused buffer and shrinking
+            final long[] counts = new long[objects];
+            final ByteArray[] payloads = new ByteArray[objects];
+            for (int i = 0; i != objects; ++i) {
+                payloads[i] = payload(prng, i);
+            }
+            db.enter(Database.update, new Replace(
+                ConstArray.array(payloads), new boolean[objects])).call();
+            for (int round = 0; round != 10; ++round) {
+                final boolean[] created = new boolean[objects];
+                final ByteArray[] next = new ByteArray[objects];
+                for (int i = 0; i != objects; ++i) {
+                    switch (prng.nextInt(3)) {
+                    case 0:
+                        created[i] = true;
+                        counts[i] = 0;
+                        next[i] = payloads[i] = payload(prng, round + i);
+                        break;
+                    case 1:
+                        counts[i] += 1;
+                        next[i] = payloads[i] = payload(prng, round + i);
+                        break;
+                    default:
+                        counts[i] += 1;
+                    }
+                }
+                db.enter(Database.update,
+                         new Replace(ConstArray.array(next), created)).call();
+                check("cached", db, counts, payloads);
+            }
+
+            // read the objects back from the store, once no more merges are
+            // running, so another store can safely read the same archives
+            settle(dir);
+            check("stored", connect(dir), counts, payloads);
+            System.out.println("persist: " + objects + " created and " +
+                               "modified objects read back from the store");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null,
+                                       null).connect(dir);
+    }
+
+    /**
+     * Generates a payload, a few of them larger than 64 KB, and a few empty.
+     */
+    static private ByteArray
+    payload(final Random prng, final int i) {
+        final byte[] r = new byte[0 == i % 17 ? 70 * 1024 + prng.nextInt(4096)
+                                  : 0 == i % 5 ? 0 : prng.nextInt(3000)];
+        prng.nextBytes(r);
+        return ByteArray.array(r);
+    }
+
+    static private void
+    check(final String from, final Database<Object> db, final long[] counts,
+          final ByteArray[] payloads) throws Exception {
+        final LongArray loaded = db.enter(Database.query, new Query()).call();
+        if (3 * counts.length != loaded.length()) {
+            throw new AssertionError(loaded.length() / 3 + " objects");
+        }
+        for (int i = 0; i != counts.length; ++i) {
+            final byte[] expected = payloads[i].toByteArray();
+            if (counts[i] != loaded.get(3 * i) ||
+                    expected.length != loaded.get(3 * i + 1) ||
+                    Arrays.hashCode(expected) != loaded.get(3 * i + 2)) {
+                throw new AssertionError(from + " object " + i +
+                                         " has the wrong state");
+            }
+        }
+    }
+
+    /**
+     * Waits for the scheduled merges to finish.
+     */
+    static private void
+    settle(final File dir) throws InterruptedException {
+        long stored = -1;
+        for (int quiet = 0; quiet != 5;) {
+            Thread.sleep(100);
+            final long now = size(dir);
+            final String[] merging = new File(dir, ".merging").list();
+            quiet = now == stored &&
+                (null == merging || 0 == merging.length) ? quiet + 1 : 0;
+            stored = now;
+        }
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The stored array of cells.
+     */
+    static private final class
+    Box implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        Cell[] cells;
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Create(final String name) {
+            this.name = name;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate()).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            local.assign(".box", new Box());
+            return LongArray.array();
+        }
+    }
+
+    /**
+     * Replaces some cells with new ones, and modifies the others.
+     */
+    static private final class
+    Replace implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final ConstArray<ByteArray> payloads;
+        private final boolean[] created;
+
+        Replace(final ConstArray<ByteArray> payloads,
+                final boolean[] created) {
+            this.payloads = payloads;
+            this.created = created;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            if (null == box.cells) {
+                box.cells = new Cell[payloads.length()];
+                for (int i = 0; i != box.cells.length; ++i) {
+                    box.cells[i] = new Cell(payloads.get(i));
+                }
+                return LongArray.array(box.cells.length);
+            }
+            for (int i = 0; i != box.cells.length; ++i) {
+                if (created[i]) {
+                    box.cells[i] = new Cell(payloads.get(i));
+                } else {
+                    box.cells[i].count += 1;
+                    if (null != payloads.get(i)) {
+                        box.cells[i].payload = payloads.get(i);
+                    }
+                }
+            }
+            return LongArray.array(box.cells.length);
+        }
+    }
+
+    /**
+     * Gets the count, and the payload length and hash, of each cell.
+     */
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            final long[] r = new long[3 * box.cells.length];
+            for (int i = 0; i != box.cells.length; ++i) {
+                final byte[] payload = box.cells[i].payload.toByteArray();
+                r[3 * i] = box.cells[i].count;
+                r[3 * i + 1] = payload.length;
+                r[3 * i + 2] = Arrays.hashCode(payload);
+            }
+            return LongArray.array(r);
+        }
+    }
+
+    static private long
+    size(final File file) {
+        final File[] children = file.listFiles();
+        if (null == children) { return file.length(); }
+        long r = 0;
+        for (final File child : children) { r += size(child); }
+        return r;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
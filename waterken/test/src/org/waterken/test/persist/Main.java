@@ -0,0 +1,205 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.persist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures the time taken, and the memory allocated, to store large commits
+ * of created and modified objects.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ payload length, number of commits ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int payload = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        final int commits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        final com.sun.management.ThreadMXBean mx =
+            (com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final File root = File.createTempFile("persist", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("mode\tobjects\tcommit us\talloc KB");
+            for (int round = 0; round != 3; ++round) {
+                for (int objects = 16; objects <= 1024; objects *= 8) {
+                    final String name = round + "-" + objects;
+                    connect(root).enter(Database.update,
+                        new Create(name)).call();
+                    final Database<Object> db =
+                        connect(new File(root, name));
+                    for (final boolean created : new boolean[] {true,false}) {
+                        long elapsed = 0;
+                        long allocated = 0;
+                        for (int i = 0; i != commits; ++i) {
+                            final Transaction<LongArray> tx = created
+                                ? new Replace(objects, payload, i)
+                                : new Touch(objects);
+                            final long before =
+                                mx.getThreadAllocatedBytes(thread);
+                            final long start = System.nanoTime();
+                            db.enter(Database.update, tx).call();
+                            elapsed += System.nanoTime() - start;
+                            allocated +=
+                                mx.getThreadAllocatedBytes(thread) - before;
+                        }
+                        System.out.println((created ? "created" : "modified") +
+                            "\t" + objects + "\t" + elapsed / 1000 / commits +
+                            "\t" + allocated / 1024 / commits);
+                    }
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null,
+                                       null).connect(dir);
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * The stored array of cells.
+     */
+    static private final class
+    Box implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        Cell[] cells;
+    }
+
+    static private Cell[]
+    cells(final int objects, final int payload, final long seed) {
+        final Random prng = new Random(seed);
+        final Cell[] r = new Cell[objects];
+        for (int i = 0; i != r.length; ++i) {
+            final byte[] bytes = new byte[payload];
+            prng.nextBytes(bytes);
+            r[i] = new Cell(ByteArray.array(bytes));
+        }
+        return r;
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Create(final String name) {
+            this.name = name;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate()).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            local.assign(".box", new Box());
+            return LongArray.array();
+        }
+    }
+
+    /**
+     * Stores a new array of new cells.
+     */
+    static private final class
+    Replace implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+        private final long seed;
+
+        Replace(final int objects, final int payload, final long seed) {
+            this.objects = objects;
+            this.payload = payload;
+            this.seed = seed;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            box.cells = cells(objects, payload, seed);
+            return LongArray.array(objects);
+        }
+    }
+
+    /**
+     * Modifies every cell.
+     */
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+
+        Touch(final int objects) {
+            this.objects = objects;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Box box = local.fetch(null, ".box");
+            for (final Cell cell : box.cells) { cell.count += 1; }
+            return LongArray.array(objects);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
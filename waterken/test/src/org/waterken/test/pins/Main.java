@@ -0,0 +1,158 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.pins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+import org.joe_e.array.LongArray;
+import org.waterken.cache.Budget;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Pool;
+import org.waterken.thread.Sleep;
+
+/**
+ * Checks the vats dropped by a manager with an object cache budget, but no
+ * residency policy, also let go of their pinned root objects.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * [ root object loaded by a vat ]
+     */
+    static private final ArrayList<WeakReference<Object>> loaded =
+        new ArrayList<WeakReference<Object>>();
+
+    /**
+     * @param args  [ number of vats, number of rounds ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int vats = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        final File root = File.createTempFile("pins", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Budget budget = new Budget(0);
+            final JODBManager<Object> dbm = new JODBManager<Object>(
+                new RollingN2V(new Sleep()), null, null,
+                new Options(budget, false, false, false, null));
+            final Database<Object> top = dbm.connect(root);
+            for (int i = 0; i != vats; ++i) {
+                top.enter(Database.update, new Create("vat" + i)).call();
+            }
+            for (int round = 0; round != rounds; ++round) {
+                for (int i = 0; i != vats; ++i) {
+                    final Database<Object> db =
+                        dbm.connect(new File(root, "vat" + i));
+                    db.enter(Database.update, new Touch()).call();
+                }
+                squeeze();
+                int pinned = 0;
+                synchronized (loaded) {
+                    for (final WeakReference<Object> x : loaded) {
+                        if (null != x.get()) { pinned += 1; }
+                    }
+                    loaded.clear();
+                }
+                if (0 != pinned) {
+                    throw new AssertionError(pinned + " pinned objects held");
+                }
+            }
+            System.out.println(vats * rounds + " dropped vats let go of " +
+                               "their pinned objects");
+        } finally {
+            Pool.shutdown();
+            delete(root);
+        }
+    }
+
+    /**
+     * Runs the garbage collector until it has cleared all soft references,
+     * which it must do before running out of memory.
+     */
+    static private void
+    squeeze() {
+        final ArrayList<long[]> hog = new ArrayList<long[]>();
+        try {
+            while (true) { hog.add(new long[1 << 20]); }
+        } catch (final OutOfMemoryError e) {}
+        hog.clear();
+        System.gc();
+    }
+
+    /**
+     * A stored object with state of its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Create(final String name) {
+            this.name = name;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate()).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            local.assign(".cells", new Cell[] { new Cell() });
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            synchronized (loaded) {
+                loaded.add(new WeakReference<Object>(cells));
+            }
+            cells[0].count += 1;
+            return LongArray.array(cells[0].count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
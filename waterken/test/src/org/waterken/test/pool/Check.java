@@ -0,0 +1,164 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.pool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.waterken.thread.Pool;
+import org.waterken.thread.Workers;
+
+/**
+ * Package test.
+ * <p>
+ * Checks a bounded pool never runs more tasks at once than its thread limit,
+ * runs each accepted task exactly once, and rejects, or runs in the caller,
+ * the tasks that don't fit in its queue.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int tasks = 2000;
+        final Pool pool = Pool.accept;
+        final Workers original = pool.getPolicy();
+        try {
+            // refuse the tasks that don't fit
+            pool.configure(new Workers(4, 64, false, false));
+            final Count refused = new Count(tasks);
+            final long rejectedBefore = pool.getRejected();
+            final long completedBefore = pool.getCompleted();
+            final boolean[] accepted = new boolean[tasks];
+            int n = 0;
+            for (int i = 0; i != tasks; ++i) {
+                try {
+                    pool.execute(refused.task(i));
+                    accepted[i] = true;
+                    n += 1;
+                } catch (final RejectedExecutionException e) {
+                    refused.done.countDown();
+                }
+            }
+            refused.await();
+            for (int i = 0; i != tasks; ++i) {
+                if ((accepted[i] ? 1 : 0) != refused.ran.get(i)) {
+                    throw new AssertionError("task " + i + " ran " +
+                                             refused.ran.get(i) + " times");
+                }
+            }
+            if (4 < refused.peak.get()) {
+                throw new AssertionError(refused.peak.get() + " workers");
+            }
+            if (tasks - n != pool.getRejected() - rejectedBefore ||
+                    0 == tasks - n) {
+                throw new AssertionError(tasks - n + " tasks rejected");
+            }
+            for (int i = 0; n != pool.getCompleted() - completedBefore; ++i) {
+                if (50 == i) { throw new AssertionError("tasks not counted"); }
+                Thread.sleep(10);
+            }
+
+            // run the tasks that don't fit in the caller
+            pool.configure(new Workers(4, 16, true, false));
+            final Count caller = new Count(tasks);
+            for (int i = 0; i != tasks; ++i) { pool.execute(caller.task(i)); }
+            caller.await();
+            for (int i = 0; i != tasks; ++i) {
+                if (1 != caller.ran.get(i)) {
+                    throw new AssertionError("task " + i + " ran " +
+                                             caller.ran.get(i) + " times");
+                }
+            }
+            if (4 < caller.peak.get()) {
+                throw new AssertionError(caller.peak.get() + " workers");
+            }
+
+            // a larger limit starts workers for the queued tasks
+            pool.configure(new Workers(2, 0, false, false));
+            final CountDownLatch release = new CountDownLatch(1);
+            final Count raised = new Count(16);
+            for (int i = 0; i != 16; ++i) {
+                final Runnable task = raised.task(i);
+                pool.execute(new Runnable() {
+                    public void
+                    run() {
+                        try {
+                            release.await();
+                        } catch (final InterruptedException e) {}
+                        task.run();
+                    }
+                });
+            }
+            Thread.sleep(100);
+            final int before = pool.getActive();
+            pool.configure(new Workers(8, 0, false, false));
+            Thread.sleep(100);
+            final int after = pool.getActive();
+            release.countDown();
+            raised.await();
+            if (2 != before || 8 != after) {
+                throw new AssertionError(before + " then " + after +
+                                         " workers");
+            }
+            System.out.println("pool: " + n + " of " + tasks + " tasks run " +
+                               "once by at most 4 workers, the rest rejected");
+        } finally {
+            pool.configure(original);
+        }
+    }
+
+    /**
+     * Counts the runs of each task, and the most tasks run by workers at once.
+     */
+    static private final class
+    Count {
+        final AtomicIntegerArray ran;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch done;
+        private final Thread caller = Thread.currentThread();
+
+        Count(final int tasks) {
+            ran = new AtomicIntegerArray(tasks);
+            done = new CountDownLatch(tasks);
+        }
+
+        Runnable
+        task(final int i) {
+            return new Runnable() {
+                public void
+                run() {
+                    final boolean worker = Thread.currentThread() != caller;
+                    if (worker) {
+                        final int now = running.incrementAndGet();
+                        for (int was = peak.get(); now > was &&
+                                !peak.compareAndSet(was, now);) {
+                            was = peak.get();
+                        }
+                    }
+                    try {
+                        Thread.sleep(0 == i % 3 ? 1 : 0);
+                    } catch (final InterruptedException e) {
+                    } finally {
+                        if (worker) { running.decrementAndGet(); }
+                        ran.incrementAndGet(i);
+                        done.countDown();
+                    }
+                }
+            };
+        }
+
+        void
+        await() throws InterruptedException {
+            if (!done.await(30, TimeUnit.SECONDS)) {
+                throw new AssertionError(done.getCount() + " tasks not run");
+            }
+        }
+    }
+}
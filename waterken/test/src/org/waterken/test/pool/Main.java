@@ -0,0 +1,123 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.pool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.waterken.thread.Pool;
+import org.waterken.thread.Workers;
+
+/**
+ * Measures the threads used by a flood of slow connections, run by an
+ * unbounded pool, or by the bounded {@link Pool#accept accept} pool, and the
+ * latency of a vat turn run during the flood.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of connections, connection ms, accept threads ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int connections =
+            args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        final long hold = args.length > 1 ? Long.parseLong(args[1]) : 200;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        System.out.println("mode\tflood ms\tpeak threads\tserved\t" +
+                           "rejected\tturn us\tutilization");
+        for (int round = 0; round != 3; ++round) {
+            for (final boolean bounded : new boolean[] { false, true }) {
+                final String mode = bounded ? "bounded" : "unbounded";
+                final ArrayList<Thread> spawned = new ArrayList<Thread>();
+                final ExecutorService cached = bounded ? null :
+                        Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread
+                    newThread(final Runnable task) {
+                        final Thread r = new Thread(task);
+                        synchronized (spawned) { spawned.add(r); }
+                        return r;
+                    }
+                });
+                Pool.accept.configure(
+                    new Workers(threads, 4 * threads, false, false));
+                final Executor accept = null != cached ? cached : Pool.accept;
+                final long rejectedBefore = Pool.accept.getRejected();
+                final long busyBefore = Pool.accept.getBusy();
+                Thread.sleep(100);
+                mx.resetPeakThreadCount();
+
+                final CountDownLatch done = new CountDownLatch(connections);
+                int served = 0;
+                final long start = System.nanoTime();
+                for (int i = 0; i != connections; ++i) {
+                    try {
+                        accept.execute(new Runnable() {
+                            public void
+                            run() {
+                                try {
+                                    Thread.sleep(hold);
+                                } catch (final InterruptedException e) {
+                                } finally {
+                                    done.countDown();
+                                }
+                            }
+                        });
+                        served += 1;
+                    } catch (final RejectedExecutionException e) {
+                        done.countDown();
+                    }
+                }
+                final long turn = turn();
+                done.await();
+                final long elapsed = System.nanoTime() - start;
+                final long rejected =
+                    Pool.accept.getRejected() - rejectedBefore;
+                final String utilization = null != cached ? "-" :
+                    (int)(100 * (Pool.accept.getBusy() - busyBefore) /
+                          elapsed / threads) + "%";
+                System.out.println(mode + "\t" + elapsed / 1000000 +
+                    "\t" + mx.getPeakThreadCount() + "\t" + served +
+                    "\t" + rejected + "\t" + turn / 1000 +
+                    "\t" + utilization);
+                if (null != cached) {
+                    cached.shutdown();
+                    cached.awaitTermination(1, TimeUnit.MINUTES);
+                    for (final Thread x : spawned) { x.join(); }
+                } else if (served + rejected != connections) {
+                    throw new AssertionError(rejected);
+                } else if (Pool.accept.getLargest() > threads) {
+                    throw new AssertionError(Pool.accept.getLargest());
+                }
+            }
+        }
+        Pool.shutdown();
+    }
+
+    /**
+     * Measures the latency of a task run by the {@link Pool#turn turn} pool.
+     */
+    static private long
+    turn() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        Pool.turn.execute(new Runnable() {
+            public void
+            run() { ran.countDown(); }
+        });
+        ran.await();
+        return System.nanoTime() - start;
+    }
+}
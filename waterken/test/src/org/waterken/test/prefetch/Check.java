@@ -0,0 +1,238 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.prefetch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks a tree of spliced objects, spread across archive generations, is
+ * reloaded with the stored state of each object, when the spliced objects
+ * are read ahead.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = 100;
+        final int payload = 64;
+        final File root = File.createTempFile("prefetch", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            connect(root).enter(Database.update,
+                                new Create("vat", objects, payload)).call();
+            final Database<Object> db = connect(new File(root, "vat"));
+            final long[] counts = new long[objects];
+            final int[] payloads = payloads(objects, payload);
+            for (int i = 0; i != 20; ++i) {
+                final int[] touched = { i * 7 % objects, i * 13 % objects };
+                for (final int x : touched) {
+                    db.enter(Database.update, new Touch(x)).call();
+                    counts[x] += 1;
+                }
+
+                // a query run during an update, after two commits in a row,
+                // reloads the whole tree from the store
+                final Hold hold = new Hold();
+                final Thread writer = new Thread() {
+                    public void
+                    run() {
+                        try {
+                            db.enter(Database.update, hold).call();
+                        } catch (final Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                writer.start();
+                hold.entered.acquire();
+                final LongArray loaded;
+                try {
+                    loaded = db.enter(Database.query, new Query()).call();
+                } finally {
+                    hold.released.release();
+                    writer.join();
+                }
+                for (int j = 0; j != objects; ++j) {
+                    if (counts[j] != loaded.get(2 * j) ||
+                            payloads[j] != loaded.get(2 * j + 1)) {
+                        throw new AssertionError("object " + j + " reloaded" +
+                                                 " with the wrong state");
+                    }
+                }
+            }
+            System.out.println("prefetch: " + objects + " spliced objects " +
+                               "reloaded with their stored state");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null,
+                                       null).connect(dir);
+    }
+
+    /**
+     * Computes the hash of each generated payload.
+     */
+    static private int[]
+    payloads(final int objects, final int payload) {
+        final Random prng = new Random(0);
+        final int[] r = new int[objects];
+        for (int i = 0; i != objects; ++i) {
+            final byte[] bytes = new byte[payload];
+            prng.nextBytes(bytes);
+            r[i] = Arrays.hashCode(bytes);
+        }
+        return r;
+    }
+
+    /**
+     * A stored object with state of its own, so it is spliced into the array
+     * that refers to it.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    /**
+     * Gets the count, and the payload hash, of each object.
+     */
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final long[] r = new long[2 * cells.length];
+            for (int i = 0; i != cells.length; ++i) {
+                r[2 * i] = cells[i].count;
+                r[2 * i + 1] = Arrays.hashCode(cells[i].payload.toByteArray());
+            }
+            return LongArray.array(r);
+        }
+    }
+
+    /**
+     * An update that waits to be released.
+     */
+    static private final class
+    Hold implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        final Semaphore entered = new Semaphore(0);
+        final Semaphore released = new Semaphore(0);
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            entered.release();
+            released.acquire();
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int i;
+
+        Touch(final int i) {
+            this.i = i;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            cells[i].count += 1;
+            return LongArray.array(cells[i].count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
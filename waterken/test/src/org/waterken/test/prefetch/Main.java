@@ -0,0 +1,332 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.prefetch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.ref_send.promise.Promise;
+import org.ref_send.promise.Receiver;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.Collector;
+import org.waterken.store.DoesNotExist;
+import org.waterken.store.Store;
+import org.waterken.store.StoreMaker;
+import org.waterken.store.Update;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures the cost of reloading a tree of spliced objects, with and without
+ * reading ahead the spliced objects.
+ * <p>
+ * A query run while an update is in progress loads objects into a side cache,
+ * which starts out empty after two commits in a row, so each such query
+ * reloads the whole tree from the store.
+ * </p>
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of objects, payload length, number of reloads ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int payload = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        final int reloads = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        final File root = File.createTempFile("prefetch", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("mode\treload us\treads\tread ahead\tlookups");
+            for (int round = 0; round != 3; ++round) {
+                for (final boolean prefetch : new boolean[] { false, true }) {
+                    final String name = round + "-" + prefetch;
+                    final Counting maker = new Counting(prefetch);
+                    connect(maker, root).enter(Database.update,
+                        new Create(name, objects, payload)).call();
+                    final Database<Object> db =
+                        connect(maker, new File(root, name));
+
+                    // spread the objects across archive generations
+                    for (int i = 0; i != 8; ++i) {
+                        db.enter(Database.update, new Touch(i * 7)).call();
+                    }
+                    db.enter(Database.query, new Query()).call();
+
+                    long elapsed = 0;
+                    long reads = 0;
+                    long ahead = 0;
+                    long lookups = 0;
+                    for (int i = 0; i != reloads; ++i) {
+                        db.enter(Database.update, new Touch(i)).call();
+                        db.enter(Database.update, new Touch(i + 1)).call();
+                        db.enter(Database.query, new Query()).call();
+                        final Hold hold = new Hold();
+                        final Thread writer = new Thread() {
+                            public void
+                            run() {
+                                try {
+                                    db.enter(Database.update, hold).call();
+                                } catch (final Exception e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        };
+                        writer.start();
+                        hold.entered.acquire();
+                        maker.reset();
+                        final long start = System.nanoTime();
+                        db.enter(Database.query, new Query()).call();
+                        elapsed += System.nanoTime() - start;
+                        synchronized (maker) {
+                            reads += maker.reads;
+                            ahead += maker.ahead;
+                            lookups +=
+                                maker.reads - maker.ahead + maker.batches;
+                        }
+                        hold.released.release();
+                        writer.join();
+                    }
+                    System.out.println((prefetch ? "prefetch" : "separate") +
+                        "\t" + elapsed / 1000 / reloads +
+                        "\t" + reads / reloads + "\t" + ahead / reloads +
+                        "\t" + lookups / reloads);
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final StoreMaker maker, final File dir) throws Exception {
+        return new JODBManager<Object>(maker, null, null).connect(dir);
+    }
+
+    /**
+     * Counts the reads made on a {@link RollingN2V} store.
+     */
+    static private final class
+    Counting implements StoreMaker, Serializable {
+        static private final long serialVersionUID = 1L;
+
+        private final RollingN2V maker = new RollingN2V(new Sleep());
+        private final boolean enabled;  // Is reading ahead enabled?
+        long reads;                     // number of files read
+        long ahead;                     // number of files read ahead
+        long batches;                   // number of read ahead batches
+
+        Counting(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        synchronized void
+        reset() { reads = ahead = batches = 0; }
+
+        public Store
+        apply(final Receiver<Promise<?>> background,
+              final File parent, final File dir) {
+            // without merges, so an update is never held up by a merge
+            final Store store = maker.apply(null, parent, dir);
+            return new Store() {
+                public void
+                clean() throws IOException { store.clean(); }
+
+                public Update
+                update() throws DoesNotExist, IOException {
+                    return count(store.update());
+                }
+
+                public Update
+                snapshot() throws DoesNotExist, IOException {
+                    return count(store.snapshot());
+                }
+
+                public void
+                collect(final Collector collector) {
+                    store.collect(collector);
+                }
+
+                public void
+                close() { store.close(); }
+            };
+        }
+
+        private Update
+        count(final Update update) {
+            final Counting counts = this;
+            return new Update() {
+                public void
+                close() { update.close(); }
+
+                public InputStream
+                read(final String filename) throws IOException {
+                    synchronized (counts) { reads += 1; }
+                    return update.read(filename);
+                }
+
+                public int
+                prefetch(final Iterable<String> filenames) throws IOException{
+                    if (!enabled) { return 0; }
+                    final int r = update.prefetch(filenames);
+                    synchronized (counts) {
+                        ahead += r;
+                        batches += 1;
+                    }
+                    return r;
+                }
+
+                public OutputStream
+                write(final String filename) throws IOException {
+                    return update.write(filename);
+                }
+
+                public Store
+                nest(final String filename) throws IOException {
+                    return update.nest(filename);
+                }
+
+                public void
+                commit() throws IOException { update.commit(); }
+            };
+        }
+    }
+
+    /**
+     * A stored object with state of its own, so it is spliced into the array
+     * that refers to it.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            long sum = 0;
+            for (final Cell cell : cells) { sum += cell.count; }
+            return LongArray.array(sum);
+        }
+    }
+
+    /**
+     * An update that waits to be released.
+     */
+    static private final class
+    Hold implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        final Semaphore entered = new Semaphore(0);
+        final Semaphore released = new Semaphore(0);
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            entered.release();
+            released.acquire();
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int i;
+
+        Touch(final int i) {
+            this.i = i;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final Cell cell = cells[i % cells.length];
+            cell.count += 1;
+            return LongArray.array(cell.count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
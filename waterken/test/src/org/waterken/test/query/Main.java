@@ -0,0 +1,199 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.Semaphore;
+
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.ProhibitedModification;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Checks a query that modifies a loaded object is not seen by a concurrent
+ * query, and is rejected without harming the other query, and that an update
+ * does not wait for the query.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of rounds ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        final File root = File.createTempFile("query", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            connect(root).enter(Database.update, new Create("vat")).call();
+            final Database<Object> db = connect(new File(root, "vat"));
+            db.enter(Database.update, new Touch()).call();  // wake the vat
+            for (int i = 0; i != rounds; ++i) {
+                final long count =
+                    db.enter(Database.query, new Read()).call().get(0);
+
+                // modify the cell in one query, and read it in another
+                final Modify modify = new Modify();
+                final Throwable[] rejected = { null };
+                final Thread writer = new Thread() {
+                    public void
+                    run() {
+                        try {
+                            db.enter(Database.query, modify).call();
+                        } catch (final Throwable e) {
+                            rejected[0] = e;
+                        }
+                    }
+                };
+                writer.start();
+                modify.modified.acquire();
+                final long seen;
+                final Thread updater = new Thread() {
+                    public void
+                    run() {
+                        try {
+                            db.enter(Database.update, new Touch()).call();
+                        } catch (final Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                try {
+                    seen = db.enter(Database.query, new Read()).call().get(0);
+                    updater.start();
+                    updater.join(10000);
+                    if (updater.isAlive()) {
+                        throw new AssertionError("update waited for a query");
+                    }
+                } finally {
+                    modify.released.release();
+                    writer.join();
+                }
+                if (count != seen) {
+                    throw new AssertionError("saw modification: " + seen);
+                }
+                if (!(rejected[0] instanceof ProhibitedModification)) {
+                    throw new AssertionError(rejected[0]);
+                }
+
+                // the next queries see the stored state
+                final long after =
+                    db.enter(Database.query, new Read()).call().get(0);
+                if (count + 1 != after) { throw new AssertionError(after); }
+                db.enter(Database.update, new Touch()).call();
+            }
+            System.out.println(rounds + " modifying queries rejected, " +
+                               "unseen by concurrent queries and updates");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null,
+                                       null).connect(dir);
+    }
+
+    /**
+     * A stored object with state of its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+
+        Create(final String name) {
+            this.name = name;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate()).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            local.assign(".cell", new Cell());
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell cell = local.fetch(null, ".cell");
+            cell.count += 1;
+            return LongArray.array(cell.count);
+        }
+    }
+
+    static private final class
+    Read implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell cell = local.fetch(null, ".cell");
+            return LongArray.array(cell.count);
+        }
+    }
+
+    /**
+     * A query that modifies the cell, and waits to be released.
+     */
+    static private final class
+    Modify implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        final Semaphore modified = new Semaphore(0);
+        final Semaphore released = new Semaphore(0);
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell cell = local.fetch(null, ".cell");
+            cell.count += 1000;
+            modified.release();
+            released.acquire();
+            return LongArray.array(cell.count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
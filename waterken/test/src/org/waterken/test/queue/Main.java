@@ -0,0 +1,373 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.queue;
+
+import static org.ref_send.promise.Eventual.near;
+import static org.ref_send.promise.Eventual.ref;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.Equatable;
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.ref_send.list.List;
+import org.ref_send.promise.Promise;
+import org.ref_send.promise.Receiver;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.Collector;
+import org.waterken.store.DoesNotExist;
+import org.waterken.store.Store;
+import org.waterken.store.StoreMaker;
+import org.waterken.store.Update;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures the objects and bytes written by commits that move messages
+ * through a busy queue, kept in a {@link List}, or in a list with a stored
+ * object for each element.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ queue backlog, payload length, number of commits ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int backlog = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int payload = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final int commits = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        final File root = File.createTempFile("queue", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("mode\tmessages\tcommit us\tobjects\tbytes");
+            for (final int messages : new int[] { 1, 8, 64 }) {
+                for (final boolean chunked : new boolean[] { false, true }) {
+                    final String name = messages + "-" + chunked;
+                    final Counting maker = new Counting();
+                    connect(maker, root).enter(Database.update,
+                        new Create(name, chunked, backlog, payload)).call();
+                    final Database<Object> db =
+                        connect(maker, new File(root, name));
+                    for (int i = 0; i != 20; ++i) {
+                        db.enter(Database.update,
+                                 new Move(messages, payload)).call();
+                    }
+
+                    maker.reset();
+                    final long start = System.nanoTime();
+                    for (int i = 0; i != commits; ++i) {
+                        db.enter(Database.update,
+                                 new Move(messages, payload)).call();
+                    }
+                    final long elapsed = System.nanoTime() - start;
+                    final long size = db.enter(Database.query,
+                                               new Size()).call().get(0);
+                    if (backlog != size) { throw new AssertionError(size); }
+                    synchronized (maker) {
+                        System.out.println((chunked ? "chunked" : "linked") +
+                            "\t" + messages +
+                            "\t" + elapsed / 1000 / commits +
+                            "\t" + maker.files / commits +
+                            "\t" + maker.bytes / commits);
+                    }
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final StoreMaker maker, final File dir) throws Exception {
+        return new JODBManager<Object>(maker, null, null).connect(dir);
+    }
+
+    /**
+     * Counts the files and bytes written to a {@link RollingN2V} store.
+     */
+    static private final class
+    Counting implements StoreMaker, Serializable {
+        static private final long serialVersionUID = 1L;
+
+        private final RollingN2V maker = new RollingN2V(new Sleep());
+        long files;                     // number of files written
+        long bytes;                     // number of bytes written
+
+        synchronized void
+        reset() { files = bytes = 0; }
+
+        public Store
+        apply(final Receiver<Promise<?>> background,
+              final File parent, final File dir) {
+            final Store store = maker.apply(background, parent, dir);
+            return new Store() {
+                public void
+                clean() throws IOException { store.clean(); }
+
+                public Update
+                update() throws DoesNotExist, IOException {
+                    return count(store.update());
+                }
+
+                public Update
+                snapshot() throws DoesNotExist, IOException {
+                    return store.snapshot();
+                }
+
+                public void
+                collect(final Collector collector) {
+                    store.collect(collector);
+                }
+
+                public void
+                close() { store.close(); }
+            };
+        }
+
+        private Update
+        count(final Update update) {
+            final Counting counts = this;
+            return new Update() {
+                public void
+                close() { update.close(); }
+
+                public InputStream
+                read(final String filename) throws IOException {
+                    return update.read(filename);
+                }
+
+                public int
+                prefetch(final Iterable<String> filenames) throws IOException{
+                    return update.prefetch(filenames);
+                }
+
+                public OutputStream
+                write(final String filename) throws IOException {
+                    synchronized (counts) { files += 1; }
+                    return new FilterOutputStream(update.write(filename)) {
+                        public void
+                        write(final int b) throws IOException {
+                            synchronized (counts) { bytes += 1; }
+                            out.write(b);
+                        }
+
+                        public void
+                        write(final byte[] b, final int off,
+                              final int len) throws IOException {
+                            synchronized (counts) { bytes += len; }
+                            out.write(b, off, len);
+                        }
+                    };
+                }
+
+                public Store
+                nest(final String filename) throws IOException {
+                    return update.nest(filename);
+                }
+
+                public void
+                commit() throws IOException { update.commit(); }
+            };
+        }
+    }
+
+    /**
+     * A queue with a stored object for each element, as {@link List} kept
+     * them before it kept its elements in chunks.
+     */
+    static private final class
+    Linked<T> implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        static private final class
+        Link<T> implements Equatable, Serializable {
+            static private final long serialVersionUID = 1L;
+
+            Promise<Link<T>> next;
+            T value;
+        }
+
+        private Promise<Link<T>> first;
+        private Link<T> last;
+        private long capacity;
+        private long size;
+
+        Linked() {
+            last = new Link<T>();
+            last.next = ref(last);
+            first = last.next;
+            capacity = 1;
+        }
+
+        T
+        pop() {
+            final Link<T> x = near(first);
+            final T r = x.value;
+            x.value = null;
+            first = x.next;
+            size -= 1;
+            return r;
+        }
+
+        void
+        append(final T value) {
+            last.value = value;
+            size += 1;
+            if (capacity == size) {
+                final Link<T> spare = new Link<T>();
+                spare.next = last.next;
+                last.next = ref(spare);
+                capacity += 1;
+            }
+            last = near(last.next);
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final boolean chunked;
+        private final int backlog;
+        private final int payload;
+
+        Create(final String name, final boolean chunked,
+               final int backlog, final int payload) {
+            this.name = name;
+            this.chunked = chunked;
+            this.backlog = backlog;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                new Populate(chunked, backlog, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final boolean chunked;
+        private final int backlog;
+        private final int payload;
+
+        Populate(final boolean chunked, final int backlog, final int payload) {
+            this.chunked = chunked;
+            this.backlog = backlog;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            if (chunked) {
+                final List<ByteArray> queue = List.list();
+                for (int i = 0; i != backlog; ++i) {
+                    queue.append(message(prng, payload));
+                }
+                local.assign(".queue", queue);
+            } else {
+                final Linked<ByteArray> queue = new Linked<ByteArray>();
+                for (int i = 0; i != backlog; ++i) {
+                    queue.append(message(prng, payload));
+                }
+                local.assign(".linked", queue);
+            }
+            return LongArray.array();
+        }
+    }
+
+    /**
+     * Appends, and removes, a number of messages.
+     */
+    static private final class
+    Move implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int messages;
+        private final int payload;
+
+        Move(final int messages, final int payload) {
+            this.messages = messages;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final List<ByteArray> queue = local.fetch(null, ".queue");
+            final Linked<ByteArray> linked = local.fetch(null, ".linked");
+            final Random prng = new Random();
+            for (int i = 0; i != messages; ++i) {
+                final ByteArray message = message(prng, payload);
+                if (null != queue) {
+                    queue.append(message);
+                    queue.pop();
+                } else {
+                    linked.append(message);
+                    linked.pop();
+                }
+            }
+            return LongArray.array();
+        }
+    }
+
+    /**
+     * Makes a message, with a payload of its own.
+     */
+    static private ByteArray
+    message(final Random prng, final int payload) {
+        final byte[] bytes = new byte[payload];
+        prng.nextBytes(bytes);
+        return ByteArray.array(bytes);
+    }
+
+    static private final class
+    Size implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final List<ByteArray> queue = local.fetch(null, ".queue");
+            final Linked<ByteArray> linked = local.fetch(null, ".linked");
+            long n = 0;
+            if (null != queue) {
+                for (final ByteArray message : queue) {
+                    if (null == message) { throw new AssertionError(); }
+                    n += 1;
+                }
+                if (n != queue.getSize()) { throw new AssertionError(); }
+            } else {
+                n = linked.size;
+            }
+            return LongArray.array(n);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,233 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.residency;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.jos.Residency;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks no more than the limit of vats stay resident, and that each evicted
+ * vat is loaded again with the state it last committed.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int vats = 10;
+        final int limit = 3;
+        final int objects = 20;
+        final File root = File.createTempFile("residency", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Database<Object> top = connect(null).connect(root);
+            for (int i = 0; i != vats; ++i) {
+                top.enter(Database.update,
+                          new Create("vat" + i, objects, 64)).call();
+            }
+            final int[] payloads = new int[objects];
+            final Random seeded = new Random(0);
+            for (int i = 0; i != objects; ++i) {
+                final byte[] bytes = new byte[64];
+                seeded.nextBytes(bytes);
+                payloads[i] = Arrays.hashCode(bytes);
+            }
+
+            final Residency residency = new Residency(limit, 0, 0);
+            final JODBManager<Object> dbm = connect(residency);
+            final long[][] counts = new long[vats][objects];
+            final Random prng = new Random(0);
+            for (int i = 0; i != 300; ++i) {
+                final int v = prng.nextInt(vats);
+                final int c = prng.nextInt(objects);
+                vat(dbm, root, v).enter(Database.update, new Touch(c)).call();
+                counts[v][c] += 1;
+                if (0 == i % 10) {
+                    final int w = prng.nextInt(vats);
+                    check(dbm, root, w, counts[w], payloads);
+                }
+            }
+            for (int v = 0; v != vats; ++v) {
+                check(dbm, root, v, counts[v], payloads);
+            }
+
+            // the vats over the limit are evicted in the background
+            for (int i = 0; resident(residency) > limit; ++i) {
+                if (50 == i) {
+                    throw new AssertionError(resident(residency) +
+                                             " vats resident");
+                }
+                Thread.sleep(100);
+            }
+            if (0 == residency.getEvictions() ||
+                    0 == residency.getReopens()) {
+                throw new AssertionError("no vats evicted");
+            }
+            System.out.println("residency: " + residency.getReopens() +
+                               " evicted vats reloaded with their state");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private JODBManager<Object>
+    connect(final Residency residency) {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null,
+            new Options(null, false, false, false, residency));
+    }
+
+    static private Database<Object>
+    vat(final JODBManager<Object> dbm,
+        final File root, final int v) throws IOException {
+        return dbm.connect(new File(root, "vat" + v));
+    }
+
+    static private long
+    resident(final Residency residency) {
+        return residency.getOpens() + residency.getReopens() -
+               residency.getEvictions();
+    }
+
+    static private void
+    check(final JODBManager<Object> dbm, final File root, final int v,
+          final long[] counts, final int[] payloads) throws Exception {
+        final LongArray loaded =
+            vat(dbm, root, v).enter(Database.query, new Query()).call();
+        for (int i = 0; i != counts.length; ++i) {
+            if (counts[i] != loaded.get(2 * i) ||
+                    payloads[i] != loaded.get(2 * i + 1)) {
+                throw new AssertionError("vat" + v + " object " + i +
+                                         " loaded with the wrong state");
+            }
+        }
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    /**
+     * Gets the count, and the payload hash, of each object.
+     */
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final long[] r = new long[2 * cells.length];
+            for (int i = 0; i != cells.length; ++i) {
+                r[2 * i] = cells[i].count;
+                r[2 * i + 1] = Arrays.hashCode(cells[i].payload.toByteArray());
+            }
+            return LongArray.array(r);
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int i;
+
+        Touch(final int i) {
+            this.i = i;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            cells[i].count += 1;
+            return LongArray.array(cells[i].count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,226 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.residency;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.jos.Residency;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures the memory held by many vats, with and without a limit on the
+ * number of resident vats, and checks idle vats are evicted, and recently
+ * used vats loaded again after a restart.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of vats, resident vat limit, number of objects ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int vats = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        final int limit = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        final int objects = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        final File root = File.createTempFile("residency", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final Database<Object> top = connect(null).connect(root);
+            for (int i = 0; i != vats; ++i) {
+                top.enter(Database.update,
+                          new Create("vat" + i, objects, 512)).call();
+            }
+
+            System.out.println("mode\tvisit us\theap KB\topens\t" +
+                               "evictions\treopens");
+            for (int round = 0; round != 3; ++round) {
+                for (final boolean limited : new boolean[] { false, true }) {
+                    final long before = heap();
+                    final Residency residency =
+                        new Residency(limited ? limit : 0, 0, 0);
+                    final JODBManager<Object> dbm = connect(residency);
+                    visit(dbm, root, vats);     // warm up
+
+                    final long start = System.nanoTime();
+                    for (int i = 0; i != 4; ++i) { visit(dbm, root, vats); }
+                    final long visit = (System.nanoTime() - start)/1000/vats/4;
+                    System.out.println((limited ? "limit " + limit : "all") +
+                        "\t" + visit + "\t" + (heap() - before) / 1024 +
+                        "\t" + residency.getOpens() +
+                        "\t" + residency.getEvictions() +
+                        "\t" + residency.getReopens());
+                }
+            }
+
+            // evict idle vats
+            final Residency idle = new Residency(0, 200, limit);
+            final JODBManager<Object> dbm = connect(idle);
+            visit(dbm, root, vats);
+            Thread.sleep(1000);
+            if (vats != idle.getEvictions()) {
+                throw new AssertionError(idle.getEvictions());
+            }
+            visit(dbm, root, vats);
+            if (vats != idle.getReopens()) {
+                throw new AssertionError(idle.getReopens());
+            }
+
+            // load the recorded vats after a restart
+            final File record = new File(root, ".resident");
+            dbm.warm(record);
+            Thread.sleep(300);
+            final Residency restart = new Residency(0, 0, limit);
+            connect(restart).warm(record);
+            if (limit != restart.getOpens()) {
+                throw new AssertionError(restart.getOpens());
+            }
+            System.out.println("idle vats evicted, " + limit +
+                               " vats loaded after restart");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private JODBManager<Object>
+    connect(final Residency residency) {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null,
+            new Options(null, false, false, false, residency));
+    }
+
+    /**
+     * Runs a query, then an update, in each vat.
+     */
+    static private void
+    visit(final JODBManager<Object> dbm,
+          final File root, final int vats) throws Exception {
+        for (int i = 0; i != vats; ++i) {
+            final Database<Object> db = dbm.connect(new File(root, "vat" + i));
+            final long before =
+                db.enter(Database.query, new Query()).call().get(0);
+            db.enter(Database.update, new Touch()).call();
+            final long after =
+                db.enter(Database.query, new Query()).call().get(0);
+            if (before + 1 != after) { throw new AssertionError(); }
+        }
+    }
+
+    static private long
+    heap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i != 3; ++i) { System.gc(); }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A stored object with state of its own, so it is stored in a bucket of
+     * its own.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            long sum = 0;
+            for (final Cell cell : cells) { sum += cell.count; }
+            return LongArray.array(sum);
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            cells[0].count += 1;
+            return LongArray.array(cells[0].count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
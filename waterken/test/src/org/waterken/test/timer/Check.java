@@ -0,0 +1,87 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.timer;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.waterken.thread.TimingWheel;
+
+/**
+ * Package test.
+ * <p>
+ * Checks each task scheduled on a {@link TimingWheel} is run exactly once,
+ * and never before its deadline, including the tasks that are cascaded down
+ * from a higher level of the wheel, and that a cancelled task is never run.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int tasks = 3000;
+        final TimingWheel wheel = new TimingWheel("check", 1, 16);
+        final Random prng = new Random(0);
+        final long[] due = new long[tasks];
+        final long[] ran = new long[tasks];
+        final AtomicIntegerArray times = new AtomicIntegerArray(tasks);
+        final TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[tasks];
+        int cancelled = 0;
+        final CountDownLatch fired = new CountDownLatch(tasks - tasks / 3);
+        for (int i = 0; i != tasks; ++i) {
+            final int index = i;
+
+            // the lowest level spans 256 ticks, so the longer delays are
+            // first put on a higher level
+            final long ms = prng.nextInt(1500);
+            due[i] = System.nanoTime() + ms * 1000000;
+            timeouts[i] = wheel.schedule(ms, new Runnable() {
+                public void
+                run() {
+                    ran[index] = System.nanoTime();
+                    times.incrementAndGet(index);
+                    fired.countDown();
+                }
+            });
+            if (0 == i % 3) {
+                if (!timeouts[i].cancel()) {
+                    throw new AssertionError("task " + i + " not cancelled");
+                }
+                ++cancelled;
+            }
+        }
+        if (!fired.await(10, TimeUnit.SECONDS)) {
+            throw new AssertionError(fired.getCount() + " tasks not run");
+        }
+        Thread.sleep(100);      // let any extra runs happen
+
+        for (int i = 0; i != tasks; ++i) {
+            if (0 == i % 3) {
+                if (0 != times.get(i)) {
+                    throw new AssertionError("cancelled task " + i + " run");
+                }
+                continue;
+            }
+            if (1 != times.get(i)) {
+                throw new AssertionError(
+                    "task " + i + " run " + times.get(i) + " times");
+            }
+            if (ran[i] < due[i]) {
+                throw new AssertionError("task " + i + " run " +
+                                         (due[i] - ran[i]) + " ns early");
+            }
+            if (timeouts[i].cancel()) {
+                throw new AssertionError("task " + i + " cancelled after run");
+            }
+        }
+        if (0 != wheel.getPending()) {
+            throw new AssertionError(wheel.getPending() + " pending");
+        }
+        System.out.println("timer: " + (tasks - cancelled) + " tasks run once" +
+                           ", " + cancelled + " cancelled");
+    }
+}
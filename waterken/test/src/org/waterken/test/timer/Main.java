@@ -0,0 +1,227 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.timer;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.waterken.thread.TimingWheel;
+
+/**
+ * Measures the cost of scheduling and cancelling timeouts, with a million
+ * timeouts outstanding, on a heap based scheduled executor, and on a
+ * {@link TimingWheel}, and how late, and in how many batches, a burst of
+ * backed off retries is run.
+ * <p>
+ * Also checks each scheduled task is run exactly once, and never before its
+ * deadline, and that a cancelled task is never run.
+ * </p>
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of outstanding timeouts, number of threads ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int outstanding =
+            args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        System.out.println("mode\tschedule ns\tcancel ns\tcontended ns\t" +
+                           "late ms\tmax late ms\tbatches");
+        for (int round = 0; round != 3; ++round) {
+            for (final boolean wheel : new boolean[] { false, true }) {
+                final Timers timers = wheel ? new Wheel() : new Heap();
+                final Random prng = new Random(round);
+                final AtomicInteger runs = new AtomicInteger();
+                final Runnable count = new Runnable() {
+                    public void
+                    run() { runs.incrementAndGet(); }
+                };
+
+                // a million timeouts due in the next hour
+                final Object[] scheduled = new Object[outstanding];
+                long start = System.nanoTime();
+                for (int i = 0; i != outstanding; ++i) {
+                    scheduled[i] = timers.schedule(
+                        1000 + prng.nextInt(3600 * 1000), count);
+                }
+                final long schedule = (System.nanoTime() - start) / outstanding;
+
+                // schedule and cancel from many threads at once
+                final int each = outstanding / 10 / threads;
+                final AtomicInteger leaked = new AtomicInteger();
+                final Runnable never = new Runnable() {
+                    public void
+                    run() { leaked.incrementAndGet(); }
+                };
+                final AtomicInteger uncancelled = new AtomicInteger();
+                final CountDownLatch done = new CountDownLatch(threads);
+                start = System.nanoTime();
+                for (int t = 0; t != threads; ++t) {
+                    final int seed = t;
+                    new Thread() {
+                        public void
+                        run() {
+                            final Random r = new Random(seed);
+                            for (int i = 0; i != each; ++i) {
+                                if (!timers.cancel(timers.schedule(
+                                        1000 + r.nextInt(3600 * 1000),
+                                        never))) {
+                                    uncancelled.incrementAndGet();
+                                }
+                            }
+                            done.countDown();
+                        }
+                    }.start();
+                }
+                done.await();
+                if (0 != uncancelled.get()) {
+                    throw new AssertionError(uncancelled + " not cancelled");
+                }
+                final long contended =
+                    (System.nanoTime() - start) / (each * threads);
+
+                // a burst of retries, backed off to about a second
+                final int retries = 20000;
+                final long[] ran = new long[retries];
+                final AtomicIntegerArray times =
+                    new AtomicIntegerArray(retries);
+                final CountDownLatch fired = new CountDownLatch(retries);
+                final long burst = System.nanoTime();
+                for (int i = 0; i != retries; ++i) {
+                    final int index = i;
+                    final long due = burst / 1000000 + 1000 + i % 500;
+                    timers.schedule(1000 + i % 500, new Runnable() {
+                        public void
+                        run() {
+                            ran[index] = System.nanoTime() / 1000000 - due;
+                            times.incrementAndGet(index);
+                            fired.countDown();
+                        }
+                    });
+                }
+                fired.await();
+                Thread.sleep(100);      // let any extra runs happen
+                long late = 0;
+                long max = 0;
+                for (int i = 0; i != retries; ++i) {
+                    if (1 != times.get(i)) {
+                        throw new AssertionError(
+                            "retry " + i + " run " + times.get(i) + " times");
+                    }
+                    if (ran[i] < 0) {
+                        throw new AssertionError(
+                            "retry " + i + " run " + -ran[i] + " ms early");
+                    }
+                    late += ran[i];
+                    max = Math.max(max, ran[i]);
+                }
+
+                int kept = 0;
+                start = System.nanoTime();
+                for (final Object x : scheduled) {
+                    if (!timers.cancel(x)) { ++kept; }
+                }
+                final long cancel = (System.nanoTime() - start) / outstanding;
+                Thread.sleep(100);      // let any task being run finish
+                if (kept != runs.get()) {
+                    throw new AssertionError(runs + " run, but " + kept +
+                                             " not cancelled");
+                }
+                if (0 != leaked.get()) {
+                    throw new AssertionError(leaked + " cancelled tasks run");
+                }
+                System.out.println((wheel ? "wheel" : "heap") +
+                    "\t" + schedule + "\t" + cancel + "\t" + contended +
+                    "\t" + late / retries + "\t" + max +
+                    "\t" + timers.batches());
+                timers.shutdown();
+            }
+        }
+    }
+
+    static private abstract class
+    Timers {
+        private final HashSet<Long> runs = new HashSet<Long>();
+
+        abstract Object
+        schedule(long ms, Runnable task);
+
+        abstract boolean
+        cancel(Object timeout);
+
+        abstract void
+        shutdown();
+
+        /**
+         * Counts the distinct milliseconds in which tasks were run.
+         */
+        final Runnable
+        counted(final Runnable task) {
+            return new Runnable() {
+                public void
+                run() {
+                    task.run();
+                    synchronized (runs) {
+                        runs.add(System.nanoTime() / 1000000);
+                    }
+                }
+            };
+        }
+
+        final int
+        batches() {
+            synchronized (runs) { return runs.size(); }
+        }
+    }
+
+    static private final class
+    Heap extends Timers {
+        private final ScheduledThreadPoolExecutor timeouts =
+            new ScheduledThreadPoolExecutor(1);
+        {
+            timeouts.setRemoveOnCancelPolicy(true);
+        }
+
+        Object
+        schedule(final long ms, final Runnable task) {
+            return timeouts.schedule(counted(task), ms, TimeUnit.MILLISECONDS);
+        }
+
+        boolean
+        cancel(final Object timeout) {
+            return ((ScheduledFuture<?>)timeout).cancel(false);
+        }
+
+        void
+        shutdown() { timeouts.shutdownNow(); }
+    }
+
+    static private final class
+    Wheel extends Timers {
+        private final TimingWheel timeouts = new TimingWheel("bench", 10, 16);
+
+        Object
+        schedule(final long ms, final Runnable task) {
+            return timeouts.schedule(ms, counted(task));
+        }
+
+        boolean
+        cancel(final Object timeout) {
+            return ((TimingWheel.Timeout)timeout).cancel();
+        }
+
+        void
+        shutdown() {}
+    }
+}
@@ -0,0 +1,283 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.version;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.joe_e.array.PowerlessArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.db.TransactionMonitor;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Package test.
+ * <p>
+ * Checks objects versioned by an HMAC-SHA256, or by a SipHash, are written
+ * when modified, and only then, that the ETag of their state is the same
+ * when computed again, and that a vat can be switched between the two modes.
+ * </p>
+ */
+public final class
+Check {
+    private Check() {}
+
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = 30;
+        final File root = File.createTempFile("version", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            for (final boolean quick : new boolean[] { false, true }) {
+                final String name = quick ? "siphash" : "hmac";
+                connect(root, quick).enter(Database.update,
+                    new Create(name, objects, 256)).call();
+                final File dir = new File(root, name);
+                final long[] counts = new long[objects];
+
+                // in one mode
+                final Database<Object> db = connect(dir, quick);
+                unchanged(dir, db);
+                final String before = tag(db);
+                if (!before.equals(tag(db))) {
+                    throw new AssertionError(name + " tag changed");
+                }
+                for (int i = 0; i != 10; ++i) { touch(db, i * 7, counts); }
+                final String after = tag(db);
+                if (before.equals(after)) {
+                    throw new AssertionError(name + " tag unchanged");
+                }
+                unchanged(dir, db);
+                settle(dir);
+                final Database<Object> again = connect(dir, quick);
+                check(name, again, counts);
+                if (!after.equals(tag(again))) {
+                    throw new AssertionError(name + " tag not recomputed");
+                }
+
+                // then in the other mode
+                final Database<Object> other = connect(dir, !quick);
+                check(name, other, counts);
+                unchanged(dir, other);
+                for (int i = 0; i != 10; ++i) { touch(other, i * 3, counts); }
+                unchanged(dir, other);
+                settle(dir);
+                check(name, connect(dir, quick), counts);
+            }
+            System.out.println("version: modified objects written, and " +
+                               "only those, in both versioning modes");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir, final boolean quick) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null,
+            new Options(null, false, quick, false, null)).connect(dir);
+    }
+
+    static private String
+    tag(final Database<Object> db) throws Exception {
+        return db.enter(Database.query, new Tag()).call().get(0);
+    }
+
+    static private void
+    touch(final Database<Object> db, final int i,
+          final long[] counts) throws Exception {
+        db.enter(Database.update, new Touch(i)).call();
+        counts[i % counts.length] += 1;
+    }
+
+    /**
+     * Checks an update that modifies no object doesn't write to the store.
+     */
+    static private void
+    unchanged(final File dir, final Database<Object> db) throws Exception {
+        settle(dir);
+        final long stored = size(dir);
+        for (int i = 0; i != 5; ++i) {
+            db.enter(Database.update, new Query()).call();
+        }
+        if (stored != size(dir)) {
+            throw new AssertionError("unmodified objects written");
+        }
+    }
+
+    static private void
+    check(final String name, final Database<Object> db,
+          final long[] counts) throws Exception {
+        final LongArray loaded = db.enter(Database.query, new Query()).call();
+        for (int i = 0; i != counts.length; ++i) {
+            if (counts[i] != loaded.get(i)) {
+                throw new AssertionError(name + " object " + i +
+                                         " has the wrong state");
+            }
+        }
+    }
+
+    /**
+     * Waits for the scheduled merges to finish.
+     */
+    static private void
+    settle(final File dir) throws InterruptedException {
+        long stored = -1;
+        for (int quiet = 0; quiet != 5;) {
+            Thread.sleep(20);
+            final long now = size(dir);
+            final String[] merging = new File(dir, ".merging").list();
+            quiet = now == stored &&
+                (null == merging || 0 == merging.length) ? quiet + 1 : 0;
+            stored = now;
+        }
+    }
+
+    /**
+     * A stored object with custom serialization, so its state must be
+     * serialized to find out whether it has changed.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+
+        private void
+        writeObject(final ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    /**
+     * Gets the count of each cell.
+     */
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final long[] r = new long[cells.length];
+            for (int i = 0; i != cells.length; ++i) { r[i] = cells[i].count; }
+            return LongArray.array(r);
+        }
+    }
+
+    /**
+     * Gets the ETag of all the cells.
+     */
+    static private final class
+    Tag implements Transaction<PowerlessArray<String>> {
+        static private final long serialVersionUID = 1L;
+
+        public PowerlessArray<String>
+        apply(final Root local) throws Exception {
+            local.fetch(null, ".cells");
+            final TransactionMonitor monitor =
+                local.fetch(null, Database.monitor);
+            return PowerlessArray.array(monitor.tag());
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int i;
+
+        Touch(final int i) {
+            this.i = i;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final Cell cell = cells[i % cells.length];
+            cell.count += 1;
+            return LongArray.array(cell.count);
+        }
+    }
+
+    static private long
+    size(final File file) {
+        final File[] children = file.listFiles();
+        if (null == children) { return file.length(); }
+        long r = 0;
+        for (final File child : children) { r += size(child); }
+        return r;
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,199 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.version;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.joe_e.array.ByteArray;
+import org.joe_e.array.LongArray;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.db.TransactionMonitor;
+import org.waterken.jos.JODBManager;
+import org.waterken.jos.Options;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures transaction latency with objects versioned by an HMAC-SHA256, and
+ * by a SipHash.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * @param args  [ number of objects, payload length, number of queries ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int objects = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int payload = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        final int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        final File root = File.createTempFile("version", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            System.out.println("mode\tcold us\tquery us\tupdate us");
+            for (int round = 0; round != 3; ++round) {
+                for (final boolean quick : new boolean[] { false, true }) {
+                    final String name = round + "-" + quick;
+                    connect(root, quick).enter(Database.update,
+                        new Create(name, objects, payload)).call();
+
+                    // reading every object from a freshly opened vat
+                    final Database<Object> db =
+                        connect(new File(root, name), quick);
+                    long start = System.nanoTime();
+                    db.enter(Database.query, new Query()).call();
+                    final long cold = (System.nanoTime() - start) / 1000;
+
+                    // re-checking every object, as in a GET with an ETag
+                    start = System.nanoTime();
+                    for (int i = 0; i != queries; ++i) {
+                        db.enter(Database.query, new Query()).call();
+                    }
+                    final long query =
+                        (System.nanoTime() - start) / 1000 / queries;
+
+                    // modifying one object
+                    start = System.nanoTime();
+                    for (int i = 0; i != queries / 10; ++i) {
+                        db.enter(Database.update, new Touch(i)).call();
+                    }
+                    final long update =
+                        (System.nanoTime() - start) / 100 / queries;
+                    System.out.println((quick ? "siphash" : "hmac") + "\t" +
+                        cold + "\t" + query + "\t" + update);
+                }
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private Database<Object>
+    connect(final File dir, final boolean quick) throws Exception {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null,
+            new Options(null, false, quick, false, null)).connect(dir);
+    }
+
+    /**
+     * A stored object with custom serialization, so its state must be
+     * serialized to find out whether it has changed.
+     */
+    static private final class
+    Cell implements Serializable {
+        static private final long serialVersionUID = 1L;
+
+        long count;
+        final ByteArray payload;
+
+        Cell(final ByteArray payload) {
+            this.payload = payload;
+        }
+
+        private void
+        writeObject(final ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final int objects;
+        private final int payload;
+
+        Create(final String name, final int objects, final int payload) {
+            this.name = name;
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(objects, payload)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int objects;
+        private final int payload;
+
+        Populate(final int objects, final int payload) {
+            this.objects = objects;
+            this.payload = payload;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Random prng = new Random(0);
+            final Cell[] cells = new Cell[objects];
+            for (int i = 0; i != cells.length; ++i) {
+                final byte[] bytes = new byte[payload];
+                prng.nextBytes(bytes);
+                cells[i] = new Cell(ByteArray.array(bytes));
+            }
+            local.assign(".cells", cells);
+            return LongArray.array(cells.length);
+        }
+    }
+
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            long sum = 0;
+            for (final Cell cell : cells) { sum += cell.count; }
+            final TransactionMonitor monitor =
+                local.fetch(null, Database.monitor);
+            monitor.tag();
+            return LongArray.array(sum);
+        }
+    }
+
+    static private final class
+    Touch implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final int i;
+
+        Touch(final int i) {
+            this.i = i;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Cell[] cells = local.fetch(null, ".cells");
+            final Cell cell = cells[i % cells.length];
+            cell.count += 1;
+            return LongArray.array(cell.count);
+        }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}
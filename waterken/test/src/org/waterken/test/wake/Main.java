@@ -0,0 +1,210 @@
+// Copyright 2010 Waterken Inc. under the terms of the MIT X license
+// found at http://www.opensource.org/licenses/mit-license.html
+package org.waterken.test.wake;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joe_e.array.ImmutableArray;
+import org.joe_e.array.LongArray;
+import org.ref_send.promise.Promise;
+import org.waterken.db.Creator;
+import org.waterken.db.Database;
+import org.waterken.db.Effect;
+import org.waterken.db.Root;
+import org.waterken.db.Transaction;
+import org.waterken.jos.JODBManager;
+import org.waterken.store.n2v.RollingN2V;
+import org.waterken.thread.Sleep;
+
+/**
+ * Measures the time taken to restart the wake tasks of many vats, a few of
+ * which have work to do, by pinging every vat, or by waking only the vats
+ * listed in the index of vats to wake.
+ */
+final class
+Main {
+    private Main() {}
+
+    /**
+     * number of wake tasks run
+     */
+    static private final AtomicInteger woken = new AtomicInteger();
+
+    /**
+     * @param args  [ number of vats, one busy vat in every, concurrency ]
+     */
+    static public void
+    main(final String[] args) throws Exception {
+        final int vats = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        final int every = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final int concurrency = args.length > 2 ? Integer.parseInt(args[2]) :
+            2 * Runtime.getRuntime().availableProcessors();
+
+        final File root = File.createTempFile("wake", "");
+        if (!root.delete() || !root.mkdir()) { throw new IOException(); }
+        try {
+            final File index = new File(root, ".waking");
+            final JODBManager<Object> dbm = connect();
+            if (dbm.index(index)) { throw new AssertionError(); }
+            final Database<Object> top = dbm.connect(root);
+            for (int i = 0; i != vats; ++i) {
+                top.enter(Database.update,
+                          new Create("vat" + i, 0 == i % every)).call();
+            }
+
+            // finish the work of every other busy vat
+            int busy = 0;
+            for (int i = 0; i < vats; i += every) {
+                if (0 == busy++ % 2) { continue; }
+                final Database<Object> db =
+                    dbm.connect(new File(root, "vat" + i));
+                db.enter(Database.update, new Finish()).call();
+            }
+            busy -= busy / 2;
+
+            System.out.println("mode\tvats\twoken\trestart ms");
+            for (int round = 0; round != 3; ++round) {
+                woken.set(0);
+                long start = System.nanoTime();
+                ping(connect(), root);
+                System.out.println("ping all\t" + vats + "\t" + woken.get() +
+                    "\t" + (System.nanoTime() - start) / 1000000);
+
+                woken.set(0);
+                start = System.nanoTime();
+                final JODBManager<Object> restarted = connect();
+                if (!restarted.index(index)) { throw new AssertionError(); }
+                restarted.wake(concurrency);
+                System.out.println("indexed\t" + vats + "\t" + woken.get() +
+                    "\t" + (System.nanoTime() - start) / 1000000);
+                if (busy != woken.get()) {
+                    throw new AssertionError(woken.get());
+                }
+
+                // an idle vat is woken by its first transaction
+                final Database<Object> idle =
+                    restarted.connect(new File(root, "vat1"));
+                idle.enter(Database.query, new Query()).call();
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    static private JODBManager<Object>
+    connect() {
+        return new JODBManager<Object>(new RollingN2V(new Sleep()), null, null);
+    }
+
+    static private void
+    ping(final JODBManager<Object> dbm, final File dir) throws Exception {
+        for (final File child : dir.listFiles(new FileFilter() {
+            public boolean
+            accept(final File file) {
+                return file.isDirectory() && !file.getName().startsWith(".");
+            }
+        })) { ping(dbm, child); }
+        final Database<Object> db = dbm.connect(dir);
+        db.enter(Database.query, new Query()).call();
+    }
+
+    /**
+     * A wake task that counts its runs.
+     */
+    static private final class
+    Task implements Promise<ImmutableArray<Effect<Object>>>, Serializable {
+        static private final long serialVersionUID = 1L;
+
+        public ImmutableArray<Effect<Object>>
+        call() {
+            woken.incrementAndGet();
+            return ImmutableArray.array();
+        }
+    }
+
+    /**
+     * Whether the wake task has any work to do.
+     */
+    static private final class
+    Flag implements Promise<Boolean>, Serializable {
+        static private final long serialVersionUID = 1L;
+
+        boolean busy = true;
+
+        public Boolean
+        call() { return busy; }
+    }
+
+    static private final class
+    Create implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final String name;
+        private final boolean busy;
+
+        Create(final String name, final boolean busy) {
+            this.name = name;
+            this.busy = busy;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Creator creator = local.fetch(null, Database.creator);
+            return creator.apply(null, "http://localhost/", name,
+                                 new Populate(busy)).call();
+        }
+    }
+
+    static private final class
+    Populate implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        private final boolean busy;
+
+        Populate(final boolean busy) {
+            this.busy = busy;
+        }
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            local.assign(Database.wake, new Task());
+            final Flag pending = new Flag();
+            pending.busy = busy;
+            local.assign(Database.pending, pending);
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Finish implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) throws Exception {
+            final Flag pending = local.fetch(null, Database.pending);
+            pending.busy = false;
+            return LongArray.array();
+        }
+    }
+
+    static private final class
+    Query implements Transaction<LongArray> {
+        static private final long serialVersionUID = 1L;
+
+        public LongArray
+        apply(final Root local) { return LongArray.array(); }
+    }
+
+    static private void
+    delete(final File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) { delete(child); }
+        }
+        file.delete();
+    }
+}